@@ -0,0 +1,33 @@
+package net.toshimichi.indexer;
+
+public class Entity {
+
+    private final ObservableField<Entity, Integer> id;
+    private final ObservableField<Entity, Integer> group;
+    private final IntObservableField<Entity> key;
+    private final ObservableSet<Entity, Integer> tags;
+
+    public Entity(int id, int group) {
+        this.id = new ObservableField<>(id);
+        this.group = new ObservableField<>(group);
+        this.key = new IntObservableField<>(id);
+        this.tags = new ObservableSet<>();
+        this.tags.add(id);
+    }
+
+    public ObservableField<Entity, Integer> getId() {
+        return id;
+    }
+
+    public ObservableField<Entity, Integer> getGroup() {
+        return group;
+    }
+
+    public IntObservableField<Entity> getKey() {
+        return key;
+    }
+
+    public ObservableSet<Entity, Integer> getTags() {
+        return tags;
+    }
+}
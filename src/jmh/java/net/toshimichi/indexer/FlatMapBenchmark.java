@@ -0,0 +1,63 @@
+package net.toshimichi.indexer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast an element added to a nested set propagates through {@link ObservableSet#createFlatMap(java.util.function.Function)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class FlatMapBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int size;
+
+    /**
+     * Whether the flattened set has a subscriber of its own, which adds one more hop to every propagation.
+     */
+    @Param({"false", "true"})
+    public boolean subscribed;
+
+    private Entity[] entities;
+    private int cursor;
+
+    @Setup
+    public void setup() {
+        ObservableSet<?, Entity> set = new ObservableSet<>();
+        entities = new Entity[size];
+        for (int i = 0; i < size; i++) {
+            entities[i] = new Entity(i, i % 16);
+            set.add(entities[i]);
+        }
+
+        ObservableSet<?, Integer> tags = set.createFlatMap(Entity::getTags);
+        if (subscribed) tags.subscribe(it -> {}, it -> {});
+    }
+
+    @Benchmark
+    public boolean addRemoveNested() {
+        Entity entity = entities[cursor];
+        cursor = (cursor + 1) % entities.length;
+
+        // negative tags are never used by the initial entities
+        int tag = -entity.getId().get() - 1;
+        entity.getTags().add(tag);
+        return entity.getTags().remove(tag);
+    }
+}
@@ -0,0 +1,81 @@
+package net.toshimichi.indexer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast an element added to a nested set reaches an index through {@link ObservableSet#path(java.util.function.Function)}
+ * compared with an index on {@link ObservableSet#createFlatMap(java.util.function.Function)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class FlatMapPathBenchmark {
+
+    private static final int GROUP_SIZE = 16;
+
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    /**
+     * Whether the index is created on a path instead of a flat-mapped set.
+     */
+    @Param({"false", "true"})
+    public boolean path;
+
+    private Group[] groups;
+    private Entity spare;
+    private int cursor;
+
+    @Setup
+    public void setup() {
+        ObservableSet<?, Group> set = new ObservableSet<>();
+        groups = new Group[size / GROUP_SIZE];
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = new Group();
+            for (int j = 0; j < GROUP_SIZE; j++) {
+                groups[i].getEntities().add(new Entity(i * GROUP_SIZE + j, j));
+            }
+            set.add(groups[i]);
+        }
+
+        if (path) {
+            set.path(Group::getEntities).createMultiIndex(Entity::getGroup);
+        } else {
+            set.createFlatMap(Group::getEntities).createMultiIndex(Entity::getGroup);
+        }
+        spare = new Entity(-1, GROUP_SIZE);
+    }
+
+    @Benchmark
+    public boolean addRemoveNested() {
+        Group group = groups[cursor];
+        cursor = (cursor + 1) % groups.length;
+
+        group.getEntities().add(spare);
+        return group.getEntities().remove(spare);
+    }
+
+    public static class Group {
+
+        private final ObservableSet<Group, Entity> entities = new ObservableSet<>();
+
+        public ObservableSet<Group, Entity> getEntities() {
+            return entities;
+        }
+    }
+}
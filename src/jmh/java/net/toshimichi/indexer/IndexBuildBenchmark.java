@@ -0,0 +1,57 @@
+package net.toshimichi.indexer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares creating indexes one by one with building them at once through {@link IndexBuilder}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class IndexBuildBenchmark {
+
+    @Param({"100000", "1000000", "5000000"})
+    public int size;
+
+    private ObservableSet<?, Entity> set;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        set = new ObservableSet<>();
+        for (int i = 0; i < size; i++) {
+            set.add(new Entity(i, i % 16));
+        }
+    }
+
+    @Benchmark
+    public ObservableSet<?, Entity> createSequentially() {
+        set.createIndex(Entity::getId);
+        set.createMultiIndex(Entity::getGroup);
+        return set;
+    }
+
+    @Benchmark
+    public ObservableSet<?, Entity> buildInParallel() {
+        IndexBuilder<Entity> builder = set.indexBuilder();
+        builder.addIndex(Entity::getId);
+        builder.addMultiIndex(Entity::getGroup);
+        builder.build();
+        return set;
+    }
+}
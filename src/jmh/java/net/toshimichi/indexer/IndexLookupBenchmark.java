@@ -0,0 +1,95 @@
+package net.toshimichi.indexer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Map#get(Object)} on every kind of index with uniformly distributed keys.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class IndexLookupBenchmark {
+
+    private static final int KEYS = 4096;
+
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int size;
+
+    private Map<Integer, Entity> index;
+    private Map<Integer, Set<Entity>> multiIndex;
+    private Map<Integer, Entity> flatIndex;
+    private Map<Integer, Set<Entity>> flatMultiIndex;
+    private IntIndex<Entity> intIndex;
+
+    private Integer[] keys;
+    private int cursor;
+
+    @Setup
+    public void setup() {
+        ObservableSet<?, Entity> set = new ObservableSet<>();
+        for (int i = 0; i < size; i++) {
+            set.add(new Entity(i, i % 16));
+        }
+
+        index = set.createIndex(Entity::getId);
+        multiIndex = set.createMultiIndex(Entity::getGroup);
+        flatIndex = set.createFlatIndex(Entity::getTags);
+        flatMultiIndex = set.createFlatMultiIndex(Entity::getTags);
+        intIndex = set.createIntIndex(Entity::getKey);
+
+        Random random = new Random(0);
+        keys = new Integer[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = random.nextInt(size);
+        }
+    }
+
+    private Integer next() {
+        Integer key = keys[cursor];
+        cursor = (cursor + 1) & (KEYS - 1);
+        return key;
+    }
+
+    @Benchmark
+    public Entity getIndex() {
+        return index.get(next());
+    }
+
+    @Benchmark
+    public Entity getIntIndex() {
+        return intIndex.get(next());
+    }
+
+    @Benchmark
+    public Set<Entity> getMultiIndex() {
+        return multiIndex.get(next() & 15);
+    }
+
+    @Benchmark
+    public Entity getFlatIndex() {
+        return flatIndex.get(next());
+    }
+
+    @Benchmark
+    public Set<Entity> getFlatMultiIndex() {
+        return flatMultiIndex.get(next());
+    }
+}
@@ -0,0 +1,63 @@
+package net.toshimichi.indexer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the intersection of two keys of multi indexes against the same keys of bitmap indexes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class IntersectBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int size;
+
+    private Map<Integer, Set<Entity>> idIndex;
+    private Map<Integer, Set<Entity>> groupIndex;
+    private BitmapIndex<Integer, Entity> idBitmapIndex;
+    private BitmapIndex<Integer, Entity> groupBitmapIndex;
+
+    @Setup
+    public void setup() {
+        ObservableSet<?, Entity> set = new ObservableSet<>();
+        for (int i = 0; i < size; i++) {
+            set.add(new Entity(i % 3, i % 16));
+        }
+
+        idIndex = set.createMultiIndex(Entity::getId);
+        groupIndex = set.createMultiIndex(Entity::getGroup);
+        idBitmapIndex = set.createBitmapIndex(Entity::getId);
+        groupBitmapIndex = set.createBitmapIndex(Entity::getGroup);
+    }
+
+    @Benchmark
+    public int intersectMultiIndex() {
+        Set<Entity> result = new HashSet<>(groupIndex.get(1));
+        result.retainAll(idIndex.get(1));
+        return result.size();
+    }
+
+    @Benchmark
+    public int intersectBitmapIndex() {
+        return groupBitmapIndex.getBitmap(1).and(idBitmapIndex.getBitmap(1)).getCardinality();
+    }
+}
@@ -0,0 +1,59 @@
+package net.toshimichi.indexer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the memory used by each key of a multi index.
+ * <p>
+ * Run with {@code -prof gc}, which is the default of the {@code jmh} task, and read {@code gc.alloc.rate.norm}
+ * as the number of bytes allocated per key. Each key holds {@code valuesPerKey} elements.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class MultiIndexMemoryBenchmark {
+
+    private static final int KEYS = 100_000;
+
+    @Param({"1", "2", "4", "16"})
+    public int valuesPerKey;
+
+    private List<Entity> entities;
+
+    @Setup
+    public void setup() {
+        entities = new ArrayList<>(KEYS * valuesPerKey);
+        for (int i = 0; i < KEYS * valuesPerKey; i++) {
+            entities.add(new Entity(i, i / valuesPerKey));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public Map<Integer, Set<Entity>> createMultiIndex() {
+        MultiIndexMap<Integer, Entity> index = new MultiIndexMap<>(Entity::getGroup);
+        index.addAll0(entities);
+        index.removeAll0(entities);
+        return index;
+    }
+}
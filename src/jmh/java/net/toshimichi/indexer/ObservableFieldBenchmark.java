@@ -0,0 +1,74 @@
+package net.toshimichi.indexer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the fan-out of {@link ObservableField#set(Object)} to the attached indexes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class ObservableFieldBenchmark {
+
+    // flipping this bit always moves a value to a key which is not used by any other entity
+    private static final int FLIP = 1 << 30;
+
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int size;
+
+    private Entity[] entities;
+    private int cursor;
+
+    @Setup
+    public void setup() {
+        ObservableSet<?, Entity> set = new ObservableSet<>();
+        entities = new Entity[size];
+        for (int i = 0; i < size; i++) {
+            entities[i] = new Entity(i, i % 16);
+            set.add(entities[i]);
+        }
+
+        set.createIndex(Entity::getId);
+        set.createMultiIndex(Entity::getGroup);
+        set.createIntIndex(Entity::getKey);
+    }
+
+    private Entity next() {
+        Entity entity = entities[cursor];
+        cursor = (cursor + 1) % entities.length;
+        return entity;
+    }
+
+    @Benchmark
+    public void setIndexed() {
+        ObservableField<Entity, Integer> field = next().getId();
+        field.set(field.get() ^ FLIP);
+    }
+
+    @Benchmark
+    public void setIntIndexed() {
+        IntObservableField<Entity> field = next().getKey();
+        field.set(field.get() ^ FLIP);
+    }
+
+    @Benchmark
+    public void setMultiIndexed() {
+        ObservableField<Entity, Integer> field = next().getGroup();
+        field.set(field.get() ^ FLIP);
+    }
+}
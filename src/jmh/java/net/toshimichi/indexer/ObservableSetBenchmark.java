@@ -0,0 +1,60 @@
+package net.toshimichi.indexer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link ObservableSet#add(Object)} and {@link ObservableSet#remove(Object)} with 0 to 4 attached indexes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class ObservableSetBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int size;
+
+    /**
+     * The number of attached indexes, in the order of index, multi index, flat index and flat multi index.
+     */
+    @Param({"0", "1", "2", "3", "4"})
+    public int indexes;
+
+    private ObservableSet<?, Entity> set;
+    private Entity entity;
+
+    @Setup
+    public void setup() {
+        set = new ObservableSet<>();
+        for (int i = 0; i < size; i++) {
+            set.add(new Entity(i, i % 16));
+        }
+
+        if (indexes > 0) set.createIndex(Entity::getId);
+        if (indexes > 1) set.createMultiIndex(Entity::getGroup);
+        if (indexes > 2) set.createFlatIndex(Entity::getTags);
+        if (indexes > 3) set.createFlatMultiIndex(Entity::getTags);
+
+        entity = new Entity(size, size % 16);
+    }
+
+    @Benchmark
+    public boolean addRemove() {
+        set.add(entity);
+        return set.remove(entity);
+    }
+}
@@ -2,5 +2,7 @@
  * This module provides an implementation of the {@link java.util.Set} interface which tracks changes to the set.
  */
 open module indexer {
+    requires static jdk.jfr;
+
     exports net.toshimichi.indexer;
 }
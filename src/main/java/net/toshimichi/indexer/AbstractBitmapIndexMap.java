@@ -0,0 +1,105 @@
+package net.toshimichi.indexer;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+abstract class AbstractBitmapIndexMap<K, V> extends AbstractMap<K, Set<V>> implements BitmapIndex<K, V>, ElementHandler<V>, FieldIndex<V> {
+
+    private final ElementIds<V> ids;
+    private final Map<K, Bitmap> internal = new HashMap<>();
+    private Subscription subscription;
+
+    AbstractBitmapIndexMap(ElementIds<V> ids) {
+        this.ids = ids;
+    }
+
+    void put0(K key, V value) {
+        internal.computeIfAbsent(key, k -> new Bitmap()).add(ids.getId(value));
+    }
+
+    void remove1(K key, V value) {
+        Bitmap bitmap = internal.get(key);
+        if (bitmap == null) return;
+        bitmap.remove(ids.getId(value));
+        if (bitmap.isEmpty()) internal.remove(key);
+    }
+
+    @Override
+    public Bitmap getBitmap(K key) {
+        Bitmap bitmap = internal.get(key);
+        return bitmap == null ? new Bitmap() : bitmap;
+    }
+
+    @Override
+    public ElementIds<V> getIds() {
+        return ids;
+    }
+
+    @Override
+    public void attached(Subscription subscription) {
+        this.subscription = subscription;
+    }
+
+    @Override
+    public void close() {
+        if (subscription != null) subscription.unsubscribe();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return subscription != null && !subscription.isSubscribed();
+    }
+
+    @Override
+    public Set<Entry<K, Set<V>>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<K, Set<V>>> iterator() {
+                Iterator<Entry<K, Bitmap>> iterator = internal.entrySet().iterator();
+                return new Iterator<>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Entry<K, Set<V>> next() {
+                        Entry<K, Bitmap> entry = iterator.next();
+                        return new SimpleImmutableEntry<>(entry.getKey(), new BitmapSet<>(entry.getValue(), ids));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return internal.size();
+            }
+        };
+    }
+
+    @Override
+    public Set<V> get(Object key) {
+        Bitmap bitmap = internal.get(key);
+        if (bitmap == null) return null;
+        return new BitmapSet<>(bitmap, ids);
+    }
+
+    @Override
+    public int size() {
+        return internal.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return internal.isEmpty();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return internal.containsKey(key);
+    }
+}
@@ -0,0 +1,99 @@
+package net.toshimichi.indexer;
+
+import java.util.function.Function;
+
+/**
+ * Statistics of a field or a set queried through an {@link AdaptiveIndexer}.
+ * <p>
+ * Instances of this class are created by {@link AdaptiveIndexer#getStats()} and never change.
+ */
+public final class AdaptiveIndexStats {
+
+    private final Function<?, ?> function;
+    private final String kind;
+    private final long scans;
+    private final long lookups;
+    private final int builds;
+    private final int drops;
+    private final boolean indexed;
+
+    AdaptiveIndexStats(Function<?, ?> function, String kind, long scans, long lookups, int builds, int drops, boolean indexed) {
+        this.function = function;
+        this.kind = kind;
+        this.scans = scans;
+        this.lookups = lookups;
+        this.builds = builds;
+        this.drops = drops;
+        this.indexed = indexed;
+    }
+
+    /**
+     * Gets the function which was first used to query the field or the set.
+     *
+     * @return the function
+     */
+    public Function<?, ?> getFunction() {
+        return function;
+    }
+
+    /**
+     * Gets the kind of the index for the field or the set,
+     * which is {@code "multi"}, {@code "sorted"} or {@code "flat multi"}.
+     *
+     * @return the kind of the index
+     */
+    public String getKind() {
+        return kind;
+    }
+
+    /**
+     * Gets the number of queries which scanned the set since the index was last dropped.
+     *
+     * @return the number of scans
+     */
+    public long getScans() {
+        return scans;
+    }
+
+    /**
+     * Gets the number of queries which used the index.
+     *
+     * @return the number of lookups
+     */
+    public long getLookups() {
+        return lookups;
+    }
+
+    /**
+     * Gets the number of times the index was built.
+     *
+     * @return the number of builds
+     */
+    public int getBuilds() {
+        return builds;
+    }
+
+    /**
+     * Gets the number of times the index was dropped because it was idle.
+     *
+     * @return the number of drops
+     */
+    public int getDrops() {
+        return drops;
+    }
+
+    /**
+     * Checks whether the index currently exists.
+     *
+     * @return true if the index exists
+     */
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    @Override
+    public String toString() {
+        return kind + "{scans=" + scans + ", lookups=" + lookups + ", builds=" + builds
+                + ", drops=" + drops + ", indexed=" + indexed + "}";
+    }
+}
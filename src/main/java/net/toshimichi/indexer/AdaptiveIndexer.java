@@ -0,0 +1,161 @@
+package net.toshimichi.indexer;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Creates and drops indexes of an {@link ObservableSet} following the queries executed on it.
+ * <p>
+ * Instances of this class are created by {@link ObservableSet#enableAdaptiveIndexing(int, Duration, Executor)}.
+ * Every {@link Query} which has to scan the set for a condition on a field or a set without an index is counted
+ * for that field or set. Once the count reaches the threshold, an index for it is built on the executor,
+ * and queries use the index from then on. An index which no query has used for the idle window is closed,
+ * so that the cost of maintaining indexes follows the actual queries. The decisions can be inspected
+ * with {@link #getStats()}.
+ * <p>
+ * Fields and sets are told apart by the fields and sets the functions return for an element,
+ * like {@link Query} matches indexes. Equality conditions build a multi index, range conditions build
+ * a sorted index, and contains conditions build a flat multi index.
+ *
+ * @param <E> the type of the elements
+ */
+public final class AdaptiveIndexer<E> implements AutoCloseable {
+
+    private final ObservableSet<?, E> set;
+    private final int threshold;
+    private final long idle;
+    private final Executor executor;
+    private final LongSupplier clock;
+    private final ArrayList<Attribute> attributes = new ArrayList<>();
+    private boolean closed;
+
+    AdaptiveIndexer(ObservableSet<?, E> set, int threshold, Duration idle, Executor executor, LongSupplier clock) {
+        if (threshold <= 0) throw new IllegalArgumentException("Threshold must be positive: " + threshold);
+        this.set = set;
+        this.threshold = threshold;
+        this.idle = idle.toNanos();
+        this.executor = executor;
+        this.clock = clock;
+    }
+
+    synchronized void scanned(String kind, Function<E, ?> function, E sample) {
+        long now = clock.getAsLong();
+        evict(now);
+
+        Attribute attribute = find(kind, function.apply(sample), sample);
+        if (attribute == null) {
+            attribute = new Attribute(kind, function);
+            attributes.add(attribute);
+        }
+        attribute.scans++;
+        if (attribute.scans < threshold || attribute.index != null || attribute.pending) return;
+
+        Attribute target = attribute;
+        target.pending = true;
+        executor.execute(() -> build(target));
+    }
+
+    synchronized void used(Object index) {
+        long now = clock.getAsLong();
+        for (Attribute attribute : attributes) {
+            if (attribute.index != index) continue;
+            attribute.lookups++;
+            attribute.lastUsed = now;
+        }
+        evict(now);
+    }
+
+    private Attribute find(String kind, Object source, E sample) {
+        for (Attribute attribute : attributes) {
+            if (attribute.kind.equals(kind) && attribute.function.apply(sample) == source) return attribute;
+        }
+        return null;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private synchronized void build(Attribute attribute) {
+        attribute.pending = false;
+        if (closed) return;
+
+        Function function = attribute.function;
+        switch (attribute.kind) {
+            case "multi":
+                attribute.index = set.createMultiIndex(function);
+                break;
+            case "sorted":
+                attribute.index = (Map<?, ?>) set.createSortedIndex(function);
+                break;
+            default:
+                attribute.index = set.createFlatMultiIndex(function);
+                break;
+        }
+        attribute.builds++;
+        attribute.lastUsed = clock.getAsLong();
+    }
+
+    private void evict(long now) {
+        for (Attribute attribute : attributes) {
+            if (attribute.index == null || now - attribute.lastUsed <= idle) continue;
+            close(attribute.index);
+            attribute.index = null;
+            attribute.scans = 0;
+            attribute.drops++;
+        }
+    }
+
+    private void close(Map<?, ?> index) {
+        ((CloseableMap<?, ?>) index).close();
+    }
+
+    /**
+     * Gets the statistics of the fields and sets which have been queried.
+     *
+     * @return the statistics in the order the fields and sets were first queried
+     */
+    public synchronized List<AdaptiveIndexStats> getStats() {
+        ArrayList<AdaptiveIndexStats> stats = new ArrayList<>(attributes.size());
+        for (Attribute attribute : attributes) {
+            stats.add(new AdaptiveIndexStats(attribute.function, attribute.kind, attribute.scans, attribute.lookups,
+                    attribute.builds, attribute.drops, attribute.index != null));
+        }
+        return stats;
+    }
+
+    /**
+     * Stops creating indexes and drops the indexes created by this instance.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        for (Attribute attribute : attributes) {
+            if (attribute.index == null) continue;
+            close(attribute.index);
+            attribute.index = null;
+        }
+        set.disableAdaptiveIndexing(this);
+    }
+
+    private class Attribute {
+
+        private final String kind;
+        private final Function<E, ?> function;
+        private long scans;
+        private long lookups;
+        private int builds;
+        private int drops;
+        private long lastUsed;
+        private boolean pending;
+        private Map<?, ?> index;
+
+        private Attribute(String kind, Function<E, ?> function) {
+            this.kind = kind;
+            this.function = function;
+        }
+    }
+}
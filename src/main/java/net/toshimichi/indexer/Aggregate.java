@@ -0,0 +1,32 @@
+package net.toshimichi.indexer;
+
+/**
+ * Aggregated values of a group of elements.
+ * <p>
+ * Instances of this interface are created by
+ * {@link ObservableSet#createGroupedAggregate(java.util.function.Function, java.util.function.Function)}
+ * and are live views which reflect later updates of the group.
+ */
+public interface Aggregate {
+
+    /**
+     * Gets the number of elements in the group.
+     *
+     * @return the number of elements
+     */
+    int getCount();
+
+    /**
+     * Gets the sum of the values of the elements in the group. {@code null} values are treated as zero.
+     *
+     * @return the sum of the values
+     */
+    double getSum();
+
+    /**
+     * Gets the average of the values of the elements in the group. {@code null} values are treated as zero.
+     *
+     * @return the average of the values
+     */
+    double getAverage();
+}
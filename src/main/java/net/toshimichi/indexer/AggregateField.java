@@ -0,0 +1,61 @@
+package net.toshimichi.indexer;
+
+/**
+ * A read-only field which holds an aggregate of the elements of an {@link ObservableSet}.
+ * <p>
+ * Instances of this class are created by {@link ObservableSet#createCount()}, {@link ObservableSet#createSum(java.util.function.Function)},
+ * {@link ObservableSet#createMin(java.util.function.Function)} and {@link ObservableSet#createMax(java.util.function.Function)}.
+ * Like indexes, they subscribe to the set and to the fields of its elements until they are closed.
+ *
+ * @param <O> the type of the owner of this field
+ * @param <V> the type of the value of this field
+ */
+public class AggregateField<O, V> extends ObservableField<O, V> implements AutoCloseable {
+
+    private Subscription subscription;
+
+    AggregateField(O owner, V value) {
+        super(value);
+        initialize(owner);
+    }
+
+    void bind(Subscription subscription) {
+        this.subscription = subscription;
+    }
+
+    /**
+     * Always throws {@link UnsupportedOperationException}, because aggregates cannot be modified.
+     *
+     * @param value ignored
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void set(V value) {
+        throw new UnsupportedOperationException("Aggregates cannot be modified");
+    }
+
+    void update(V value) {
+        super.set(value);
+    }
+
+    /**
+     * Detaches this field from the set it is created from and from the fields of the elements.
+     * <p>
+     * This method takes linear time in the number of elements of the set.
+     * This field goes back to the aggregate of no elements and is no longer updated.
+     * Calling this method more than once has no effect.
+     */
+    @Override
+    public void close() {
+        if (subscription != null) subscription.unsubscribe();
+    }
+
+    /**
+     * Checks whether this field is closed.
+     *
+     * @return true if this field is detached from the set
+     */
+    public boolean isClosed() {
+        return subscription != null && !subscription.isSubscribed();
+    }
+}
@@ -0,0 +1,195 @@
+package net.toshimichi.indexer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+abstract class AsyncDispatcher<T> implements AsyncSubscription, Runnable {
+
+    private final Executor executor;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ArrayDeque<T> queue = new ArrayDeque<>();
+    private Subscription subscription;
+    private volatile boolean subscribed = true;
+
+    // guarded by this
+    private boolean scheduled;
+    // run by the next task instead of delivering, so that it never runs concurrently with a delivery
+    private Runnable last;
+    private int depth;
+    private int maxDepth;
+    private long dropped;
+
+    AsyncDispatcher(Executor executor, int capacity, OverflowPolicy policy) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        this.executor = executor;
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    void bind(Subscription subscription) {
+        this.subscription = subscription;
+    }
+
+    // returns the number of events which disappeared, 1 if only the event was absorbed
+    // or 2 if the event and a pending event cancelled each other out
+    int merge(T event) {
+        return 0;
+    }
+
+    // events merged away stay in the queue until they are drained
+    boolean isLive(T event) {
+        return true;
+    }
+
+    void dequeued(T event) {
+    }
+
+    abstract void deliver(List<T> batch);
+
+    // the maximum number of events delivered by the next batch, 0 stops delivering until resume() is called
+    int limit() {
+        return Integer.MAX_VALUE;
+    }
+
+    void resume() {
+        synchronized (this) {
+            if (scheduled || queue.isEmpty()) return;
+            scheduled = true;
+        }
+        schedule();
+    }
+
+    void enqueue(T event) {
+        synchronized (this) {
+            if (!subscribed) return;
+
+            int merged = policy == OverflowPolicy.COALESCE ? merge(event) : 0;
+            if (merged > 0) {
+                depth += 1 - merged;
+                dropped += merged;
+                return;
+            }
+
+            if (depth >= capacity) {
+                dropped++;
+                if (policy == OverflowPolicy.DROP_NEWEST) {
+                    dequeued(event);
+                    return;
+                }
+                pollLive();
+            } else {
+                depth++;
+            }
+
+            queue.add(event);
+            maxDepth = Math.max(maxDepth, depth);
+            // without demand, resume() restarts the delivery
+            if (scheduled || limit() == 0) return;
+            scheduled = true;
+        }
+
+        // executed outside of the lock, because some executors run the task in the calling thread
+        schedule();
+    }
+
+    private void pollLive() {
+        T event;
+        do {
+            event = queue.poll();
+            dequeued(event);
+        } while (!isLive(event));
+    }
+
+    private void schedule() {
+        try {
+            executor.execute(this);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                scheduled = false;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void run() {
+        Runnable last;
+        ArrayList<T> batch;
+        synchronized (this) {
+            last = this.last;
+            this.last = null;
+            int limit = limit();
+            batch = new ArrayList<>(Math.min(depth, limit));
+            while (batch.size() < limit) {
+                T event = queue.poll();
+                if (event == null) break;
+                dequeued(event);
+                if (isLive(event)) batch.add(event);
+            }
+            depth -= batch.size();
+        }
+
+        try {
+            if (last != null) {
+                last.run();
+            } else if (subscribed && !batch.isEmpty()) {
+                deliver(batch);
+            }
+        } finally {
+            boolean again;
+            synchronized (this) {
+                again = this.last != null || (!queue.isEmpty() && limit() > 0);
+                scheduled = again;
+            }
+            if (again) schedule();
+        }
+    }
+
+    @Override
+    public void unsubscribe() {
+        subscribed = false;
+        subscription.unsubscribe();
+        synchronized (this) {
+            for (T event = queue.poll(); event != null; event = queue.poll()) dequeued(event);
+            depth = 0;
+        }
+    }
+
+    // unsubscribes and then runs the action on the executor, unless this dispatcher is already unsubscribed
+    void unsubscribe(Runnable last) {
+        synchronized (this) {
+            if (!subscribed) return;
+            this.last = last;
+        }
+        unsubscribe();
+
+        synchronized (this) {
+            if (scheduled) return;
+            scheduled = true;
+        }
+        schedule();
+    }
+
+    @Override
+    public boolean isSubscribed() {
+        return subscribed;
+    }
+
+    @Override
+    public synchronized int getQueueDepth() {
+        return depth;
+    }
+
+    @Override
+    public synchronized int getMaxQueueDepth() {
+        return maxDepth;
+    }
+
+    @Override
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+}
@@ -0,0 +1,84 @@
+package net.toshimichi.indexer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+class AsyncFieldDispatcher<O, V> extends AsyncDispatcher<AsyncFieldDispatcher.Event<V>> implements ObservableFieldHandler<O, V> {
+
+    private final ObservableField<O, V> field;
+    // either of them receives the events
+    private final ObservableFieldHandler<? super O, ? super V> handler;
+    private final FlowChannel<FieldChange<V>> channel;
+    private Event<V> last;
+
+    AsyncFieldDispatcher(ObservableField<O, V> field, ObservableFieldHandler<? super O, ? super V> handler,
+                         Executor executor, int capacity, OverflowPolicy policy) {
+        this(field, handler, null, executor, capacity, policy);
+    }
+
+    AsyncFieldDispatcher(ObservableField<O, V> field, FlowChannel<FieldChange<V>> channel,
+                         Executor executor, int capacity, OverflowPolicy policy) {
+        this(field, null, channel, executor, capacity, policy);
+    }
+
+    private AsyncFieldDispatcher(ObservableField<O, V> field, ObservableFieldHandler<? super O, ? super V> handler,
+                                 FlowChannel<FieldChange<V>> channel, Executor executor, int capacity, OverflowPolicy policy) {
+        super(executor, capacity, policy);
+        this.field = field;
+        this.handler = handler;
+        this.channel = channel;
+    }
+
+    @Override
+    int limit() {
+        return channel == null ? Integer.MAX_VALUE : channel.limit();
+    }
+
+    @Override
+    int merge(Event<V> event) {
+        if (last == null) {
+            last = event;
+            return 0;
+        }
+
+        last.updated = event.updated;
+        return 1;
+    }
+
+    @Override
+    void dequeued(Event<V> event) {
+        if (last == event) last = null;
+    }
+
+    @Override
+    void deliver(List<Event<V>> batch) {
+        if (channel != null) {
+            ArrayList<FieldChange<V>> changes = new ArrayList<>(batch.size());
+            for (Event<V> event : batch) changes.add(new FieldChange<>(event.old, event.updated));
+            channel.deliver(changes);
+            return;
+        }
+
+        for (Event<V> event : batch) {
+            if (!isSubscribed()) return;
+            handler.accept(field, event.old, event.updated);
+        }
+    }
+
+    @Override
+    public void accept(ObservableField<? extends O, ? extends V> field, V old, V updated) {
+        enqueue(new Event<>(old, updated));
+    }
+
+    static class Event<V> {
+
+        private final V old;
+        private V updated;
+
+        private Event(V old, V updated) {
+            this.old = old;
+            this.updated = updated;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package net.toshimichi.indexer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+class AsyncSetDispatcher<O, E> extends AsyncDispatcher<AsyncSetDispatcher.Event<E>> implements ObservableSetHandler<O, E> {
+
+    private final ObservableSet<O, E> set;
+    // either of them receives the events
+    private final ObservableSetHandler<? super O, ? super E> handler;
+    private final FlowChannel<SetChange<E>> channel;
+
+    // pending events by element, only used with the COALESCE policy
+    private final Map<E, Event<E>> pending;
+
+    AsyncSetDispatcher(ObservableSet<O, E> set, ObservableSetHandler<? super O, ? super E> handler,
+                       Executor executor, int capacity, OverflowPolicy policy) {
+        this(set, handler, null, executor, capacity, policy);
+    }
+
+    AsyncSetDispatcher(ObservableSet<O, E> set, FlowChannel<SetChange<E>> channel,
+                       Executor executor, int capacity, OverflowPolicy policy) {
+        this(set, null, channel, executor, capacity, policy);
+    }
+
+    private AsyncSetDispatcher(ObservableSet<O, E> set, ObservableSetHandler<? super O, ? super E> handler,
+                               FlowChannel<SetChange<E>> channel, Executor executor, int capacity, OverflowPolicy policy) {
+        super(executor, capacity, policy);
+        this.set = set;
+        this.handler = handler;
+        this.channel = channel;
+        this.pending = policy == OverflowPolicy.COALESCE ? new HashMap<>() : null;
+    }
+
+    @Override
+    int limit() {
+        return channel == null ? Integer.MAX_VALUE : channel.limit();
+    }
+
+    @Override
+    int merge(Event<E> event) {
+        Event<E> previous = pending.remove(event.element);
+        if (previous == null) {
+            pending.put(event.element, event);
+            return 0;
+        }
+
+        previous.live = false;
+        return 2;
+    }
+
+    @Override
+    boolean isLive(Event<E> event) {
+        return event.live;
+    }
+
+    @Override
+    void dequeued(Event<E> event) {
+        if (pending != null && event.live) pending.remove(event.element, event);
+    }
+
+    @Override
+    void deliver(List<Event<E>> batch) {
+        if (channel != null) {
+            ArrayList<SetChange<E>> changes = new ArrayList<>(batch.size());
+            for (Event<E> event : batch) changes.add(new SetChange<>(event.element, event.added));
+            channel.deliver(changes);
+            return;
+        }
+
+        // consecutive events of the same kind are delivered at once
+        int start = 0;
+        while (start < batch.size() && isSubscribed()) {
+            boolean added = batch.get(start).added;
+            int end = start + 1;
+            while (end < batch.size() && batch.get(end).added == added) end++;
+
+            if (end - start == 1) {
+                E element = batch.get(start).element;
+                if (added) handler.add(set, element);
+                else handler.remove(set, element);
+            } else {
+                ArrayList<E> elements = new ArrayList<>(end - start);
+                for (int i = start; i < end; i++) elements.add(batch.get(i).element);
+                if (added) handler.addAll(set, elements);
+                else handler.removeAll(set, elements);
+            }
+            start = end;
+        }
+    }
+
+    @Override
+    public void add(ObservableSet<? extends O, ? extends E> set, E element) {
+        enqueue(new Event<>(element, true));
+    }
+
+    @Override
+    public void remove(ObservableSet<? extends O, ? extends E> set, E element) {
+        enqueue(new Event<>(element, false));
+    }
+
+    @Override
+    public void addAll(ObservableSet<? extends O, ? extends E> set, Collection<? extends E> elements) {
+        for (E element : elements) enqueue(new Event<>(element, true));
+    }
+
+    @Override
+    public void removeAll(ObservableSet<? extends O, ? extends E> set, Collection<? extends E> elements) {
+        for (E element : elements) enqueue(new Event<>(element, false));
+    }
+
+    static class Event<E> {
+
+        private final E element;
+        private final boolean added;
+        private boolean live = true;
+
+        private Event(E element, boolean added) {
+            this.element = element;
+            this.added = added;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package net.toshimichi.indexer;
+
+/**
+ * This interface represents a handler subscribed to an {@link ObservableSet} or an {@link ObservableField}
+ * which receives notifications asynchronously.
+ * <p>
+ * Notifications which are already being delivered when {@link #unsubscribe()} is called may still reach the handler,
+ * but pending notifications are discarded.
+ */
+public interface AsyncSubscription extends Subscription {
+
+    /**
+     * Gets the number of notifications waiting to be delivered.
+     *
+     * @return the number of pending notifications
+     */
+    int getQueueDepth();
+
+    /**
+     * Gets the largest number of notifications which have been waiting to be delivered at once.
+     *
+     * @return the largest number of pending notifications
+     */
+    int getMaxQueueDepth();
+
+    /**
+     * Gets the number of notifications dropped or merged by the {@link OverflowPolicy}.
+     *
+     * @return the number of notifications which were not delivered as they were
+     */
+    long getDroppedCount();
+}
@@ -0,0 +1,525 @@
+package net.toshimichi.indexer;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A compressed set of non-negative {@code int} values.
+ * <p>
+ * Values are grouped by their upper 16 bits, and each group is stored either as a sorted array or,
+ * when it has more than 4096 values, as a bitmap of 65536 bits. Dense groups take one bit per value
+ * and sparse groups take two bytes per value, and the set operations work on whole groups at a time.
+ * <p>
+ * Instances of this class returned by {@link BitmapIndex#getBitmap(Object)} are live views of the index
+ * and must not be read while the index is updated. The results of {@link #and(Bitmap)}, {@link #or(Bitmap)}
+ * and {@link #andNot(Bitmap)} are new bitmaps which never change.
+ */
+public final class Bitmap {
+
+    // a group holding at most this number of values is stored as an array
+    private static final int ARRAY_LIMIT = 4096;
+    private static final int WORDS = 1024;
+
+    private char[] keys;
+    private Container[] containers;
+    private int size;
+    private int cardinality;
+
+    /**
+     * Creates a new empty bitmap.
+     */
+    public Bitmap() {
+        this(0);
+    }
+
+    private Bitmap(int capacity) {
+        this.keys = new char[capacity];
+        this.containers = new Container[capacity];
+    }
+
+    /**
+     * Creates a bitmap which contains the specified values.
+     *
+     * @param values the values
+     * @return the bitmap
+     * @throws IllegalArgumentException if a value is negative
+     */
+    public static Bitmap of(int... values) {
+        Bitmap bitmap = new Bitmap();
+        for (int value : values) {
+            if (value < 0) throw new IllegalArgumentException("Negative value: " + value);
+            bitmap.add(value);
+        }
+        return bitmap;
+    }
+
+    private int find(char key) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            char k = keys[middle];
+            if (k < key) {
+                low = middle + 1;
+            } else if (k > key) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    boolean add(int value) {
+        char key = (char) (value >>> 16);
+        int index = find(key);
+        if (index < 0) {
+            index = -index - 1;
+            if (size == keys.length) {
+                int capacity = Math.max(4, size * 2);
+                keys = Arrays.copyOf(keys, capacity);
+                containers = Arrays.copyOf(containers, capacity);
+            }
+            System.arraycopy(keys, index, keys, index + 1, size - index);
+            System.arraycopy(containers, index, containers, index + 1, size - index);
+            keys[index] = key;
+            containers[index] = new ArrayContainer();
+            size++;
+        }
+
+        Container container = containers[index];
+        int cardinality = container.cardinality();
+        containers[index] = container.add((char) value);
+        if (containers[index].cardinality() == cardinality) return false;
+        this.cardinality++;
+        return true;
+    }
+
+    boolean remove(int value) {
+        int index = find((char) (value >>> 16));
+        if (index < 0) return false;
+
+        Container container = containers[index];
+        int cardinality = container.cardinality();
+        container = container.remove((char) value);
+        if (container.cardinality() == cardinality) return false;
+        this.cardinality--;
+
+        if (container.cardinality() == 0) {
+            System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+            System.arraycopy(containers, index + 1, containers, index, size - index - 1);
+            containers[--size] = null;
+        } else {
+            containers[index] = container;
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether this bitmap contains the specified value.
+     *
+     * @param value the value
+     * @return true if this bitmap contains the value
+     */
+    public boolean contains(int value) {
+        if (value < 0) return false;
+        int index = find((char) (value >>> 16));
+        return index >= 0 && containers[index].contains((char) value);
+    }
+
+    /**
+     * Gets the number of values in this bitmap.
+     *
+     * @return the number of values
+     */
+    public int getCardinality() {
+        return cardinality;
+    }
+
+    /**
+     * Checks whether this bitmap is empty.
+     *
+     * @return true if this bitmap has no values
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Computes the values contained in both this bitmap and the specified bitmap.
+     *
+     * @param other the other bitmap
+     * @return a new bitmap
+     */
+    public Bitmap and(Bitmap other) {
+        Bitmap result = new Bitmap(Math.min(size, other.size));
+        int i = 0;
+        int j = 0;
+        while (i < size && j < other.size) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                result.append(keys[i], containers[i].and(other.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Computes the values contained in either this bitmap or the specified bitmap.
+     *
+     * @param other the other bitmap
+     * @return a new bitmap
+     */
+    public Bitmap or(Bitmap other) {
+        Bitmap result = new Bitmap(size + other.size);
+        int i = 0;
+        int j = 0;
+        while (i < size || j < other.size) {
+            if (j == other.size || i < size && keys[i] < other.keys[j]) {
+                result.append(keys[i], containers[i].copy());
+                i++;
+            } else if (i == size || keys[i] > other.keys[j]) {
+                result.append(other.keys[j], other.containers[j].copy());
+                j++;
+            } else {
+                result.append(keys[i], containers[i].or(other.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Computes the values contained in this bitmap but not in the specified bitmap.
+     *
+     * @param other the other bitmap
+     * @return a new bitmap
+     */
+    public Bitmap andNot(Bitmap other) {
+        Bitmap result = new Bitmap(size);
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            while (j < other.size && other.keys[j] < keys[i]) j++;
+            if (j < other.size && other.keys[j] == keys[i]) {
+                result.append(keys[i], containers[i].andNot(other.containers[j]));
+            } else {
+                result.append(keys[i], containers[i].copy());
+            }
+        }
+        return result;
+    }
+
+    private void append(char key, Container container) {
+        if (container.cardinality() == 0) return;
+        keys[size] = key;
+        containers[size++] = container;
+        cardinality += container.cardinality();
+    }
+
+    /**
+     * Performs the specified action for each value in ascending order.
+     *
+     * @param action the action
+     */
+    public void forEach(IntConsumer action) {
+        for (int i = 0; i < size; i++) containers[i].forEach(keys[i] << 16, action);
+    }
+
+    /**
+     * Copies the values of this bitmap into a new array in ascending order.
+     *
+     * @return the array of the values
+     */
+    public int[] toArray() {
+        int[] array = new int[getCardinality()];
+        int[] cursor = new int[1];
+        forEach(value -> array[cursor[0]++] = value);
+        return array;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Bitmap)) return false;
+        return Arrays.equals(toArray(), ((Bitmap) o).toArray());
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(toArray());
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+
+    // converts the bits of a group into the smaller representation
+    private static Container normalize(long[] words) {
+        int cardinality = 0;
+        for (long word : words) cardinality += Long.bitCount(word);
+        if (cardinality > ARRAY_LIMIT) return new BitmapContainer(words, cardinality);
+
+        char[] values = new char[cardinality];
+        int index = 0;
+        for (int i = 0; i < WORDS; i++) {
+            long word = words[i];
+            while (word != 0) {
+                values[index++] = (char) (i * 64 + Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return new ArrayContainer(values, cardinality);
+    }
+
+    private abstract static class Container {
+
+        abstract int cardinality();
+
+        abstract boolean contains(char value);
+
+        // the returned container replaces this container, which may be converted to the other representation
+        abstract Container add(char value);
+
+        abstract Container remove(char value);
+
+        abstract Container copy();
+
+        abstract long[] words();
+
+        abstract void forEach(int high, IntConsumer action);
+
+        Container and(Container other) {
+            long[] words = words();
+            long[] others = other.words();
+            for (int i = 0; i < WORDS; i++) words[i] &= others[i];
+            return normalize(words);
+        }
+
+        Container or(Container other) {
+            long[] words = words();
+            long[] others = other.words();
+            for (int i = 0; i < WORDS; i++) words[i] |= others[i];
+            return normalize(words);
+        }
+
+        Container andNot(Container other) {
+            long[] words = words();
+            long[] others = other.words();
+            for (int i = 0; i < WORDS; i++) words[i] &= ~others[i];
+            return normalize(words);
+        }
+    }
+
+    private static class ArrayContainer extends Container {
+
+        private char[] values;
+        private int cardinality;
+
+        ArrayContainer() {
+            this(new char[4], 0);
+        }
+
+        ArrayContainer(char[] values, int cardinality) {
+            this.values = values;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        @Override
+        Container add(char value) {
+            int index = Arrays.binarySearch(values, 0, cardinality, value);
+            if (index >= 0) return this;
+            if (cardinality == ARRAY_LIMIT) {
+                long[] words = words();
+                words[value >>> 6] |= 1L << value;
+                return new BitmapContainer(words, cardinality + 1);
+            }
+
+            index = -index - 1;
+            if (cardinality == values.length) values = Arrays.copyOf(values, Math.min(ARRAY_LIMIT, cardinality * 2));
+            System.arraycopy(values, index, values, index + 1, cardinality - index);
+            values[index] = value;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        Container remove(char value) {
+            int index = Arrays.binarySearch(values, 0, cardinality, value);
+            if (index < 0) return this;
+            System.arraycopy(values, index + 1, values, index, cardinality - index - 1);
+            cardinality--;
+            if (cardinality * 4 < values.length && values.length > 4) values = Arrays.copyOf(values, values.length / 2);
+            return this;
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, cardinality), cardinality);
+        }
+
+        @Override
+        long[] words() {
+            long[] words = new long[WORDS];
+            for (int i = 0; i < cardinality; i++) words[values[i] >>> 6] |= 1L << values[i];
+            return words;
+        }
+
+        @Override
+        void forEach(int high, IntConsumer action) {
+            for (int i = 0; i < cardinality; i++) action.accept(high | values[i]);
+        }
+
+        @Override
+        Container and(Container other) {
+            char[] result = new char[cardinality];
+            int count = 0;
+            if (other instanceof ArrayContainer) {
+                ArrayContainer array = (ArrayContainer) other;
+                int j = 0;
+                for (int i = 0; i < cardinality && j < array.cardinality; ) {
+                    if (values[i] < array.values[j]) {
+                        i++;
+                    } else if (values[i] > array.values[j]) {
+                        j++;
+                    } else {
+                        result[count++] = values[i];
+                        i++;
+                        j++;
+                    }
+                }
+            } else {
+                for (int i = 0; i < cardinality; i++) {
+                    if (other.contains(values[i])) result[count++] = values[i];
+                }
+            }
+            return new ArrayContainer(result, count);
+        }
+
+        @Override
+        Container or(Container other) {
+            if (!(other instanceof ArrayContainer)) return super.or(other);
+            ArrayContainer array = (ArrayContainer) other;
+            if (cardinality + array.cardinality > ARRAY_LIMIT) return super.or(other);
+
+            char[] result = new char[cardinality + array.cardinality];
+            int count = 0;
+            int i = 0;
+            int j = 0;
+            while (i < cardinality || j < array.cardinality) {
+                if (j == array.cardinality || i < cardinality && values[i] < array.values[j]) {
+                    result[count++] = values[i++];
+                } else if (i == cardinality || values[i] > array.values[j]) {
+                    result[count++] = array.values[j++];
+                } else {
+                    result[count++] = values[i];
+                    i++;
+                    j++;
+                }
+            }
+            return new ArrayContainer(result, count);
+        }
+
+        @Override
+        Container andNot(Container other) {
+            char[] result = new char[cardinality];
+            int count = 0;
+            for (int i = 0; i < cardinality; i++) {
+                if (!other.contains(values[i])) result[count++] = values[i];
+            }
+            return new ArrayContainer(result, count);
+        }
+    }
+
+    private static class BitmapContainer extends Container {
+
+        private final long[] words;
+        private int cardinality;
+
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        Container add(char value) {
+            long word = words[value >>> 6];
+            long updated = word | (1L << value);
+            if (word == updated) return this;
+            words[value >>> 6] = updated;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        Container remove(char value) {
+            long word = words[value >>> 6];
+            long updated = word & ~(1L << value);
+            if (word == updated) return this;
+            words[value >>> 6] = updated;
+            cardinality--;
+            return cardinality > ARRAY_LIMIT ? this : normalize(words);
+        }
+
+        @Override
+        Container copy() {
+            return new BitmapContainer(words.clone(), cardinality);
+        }
+
+        @Override
+        long[] words() {
+            return words.clone();
+        }
+
+        @Override
+        void forEach(int high, IntConsumer action) {
+            for (int i = 0; i < WORDS; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    action.accept(high | (i * 64 + Long.numberOfTrailingZeros(word)));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        @Override
+        Container and(Container other) {
+            if (other instanceof ArrayContainer) return other.and(this);
+            return super.and(other);
+        }
+
+        @Override
+        Container andNot(Container other) {
+            if (!(other instanceof ArrayContainer)) return super.andNot(other);
+            long[] result = words.clone();
+            other.forEach(0, value -> result[value >>> 6] &= ~(1L << value));
+            return normalize(result);
+        }
+    }
+}
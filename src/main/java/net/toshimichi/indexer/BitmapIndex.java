@@ -0,0 +1,35 @@
+package net.toshimichi.indexer;
+
+import java.util.Set;
+
+/**
+ * An index which stores the elements of each key as a {@link Bitmap} of their {@link ElementIds}.
+ * <p>
+ * Instances of this interface are created by {@link ObservableSet#createBitmapIndex(java.util.function.Function)}
+ * and {@link ObservableSet#createFlatBitmapIndex(java.util.function.Function)}. As a map, it works like
+ * a multi index, but the bitmaps of different keys and different indexes of the same set can be combined
+ * with {@link Bitmap#and(Bitmap)}, {@link Bitmap#or(Bitmap)} and {@link Bitmap#andNot(Bitmap)}
+ * without hashing the elements.
+ *
+ * @param <K> the type of the keys
+ * @param <E> the type of the elements
+ */
+public interface BitmapIndex<K, E> extends CloseableMap<K, Set<E>> {
+
+    /**
+     * Gets the ids of the elements mapped to the specified key.
+     * <p>
+     * The returned bitmap is a live view of this index and must not be read while this index is updated.
+     *
+     * @param key the key
+     * @return the bitmap of the ids, which is empty if no element is mapped to the key
+     */
+    Bitmap getBitmap(K key);
+
+    /**
+     * Gets the ids of the elements of the set this index is created from.
+     *
+     * @return the ids
+     */
+    ElementIds<E> getIds();
+}
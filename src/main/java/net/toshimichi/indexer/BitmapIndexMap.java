@@ -0,0 +1,48 @@
+package net.toshimichi.indexer;
+
+import java.util.function.Function;
+
+class BitmapIndexMap<K, V> extends AbstractBitmapIndexMap<K, V> implements ObservableFieldHandler<V, K> {
+
+    private final Function<V, ObservableField<V, K>> function;
+
+    public BitmapIndexMap(Function<V, ObservableField<V, K>> function, ElementIds<V> ids) {
+        super(ids);
+        this.function = function;
+    }
+
+    @Override
+    public void add0(V obj) {
+        ObservableField<V, K> field = function.apply(obj);
+        field.initialize(obj);
+        field.subscribe(this);
+
+        K key = field.get();
+        if (key == null) return;
+        put0(key, obj);
+    }
+
+    @Override
+    public boolean remove0(V obj) {
+        ObservableField<V, K> field = function.apply(obj);
+        boolean result = field.unsubscribe(this);
+        if (result) {
+            K key = field.get();
+            if (key != null) remove1(key, obj);
+        }
+
+        return result;
+    }
+
+    @Override
+    public void accept(ObservableField<? extends V, ? extends K> field, K old, K updated) {
+        V owner = field.getOwner();
+        if (old != null) remove1(old, owner);
+        if (updated != null) put0(updated, owner);
+    }
+
+    @Override
+    public Object source(V element) {
+        return function.apply(element);
+    }
+}
@@ -0,0 +1,46 @@
+package net.toshimichi.indexer;
+
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+
+// a read-only view of the elements whose ids are in a bitmap
+class BitmapSet<E> extends AbstractSet<E> {
+
+    private final Bitmap bitmap;
+    private final ElementIds<E> ids;
+
+    public BitmapSet(Bitmap bitmap, ElementIds<E> ids) {
+        this.bitmap = bitmap;
+        this.ids = ids;
+    }
+
+    Bitmap bitmap() {
+        return bitmap;
+    }
+
+    ElementIds<E> ids() {
+        return ids;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        int id = ids.getId(o);
+        return id >= 0 && bitmap.contains(id);
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return Collections.unmodifiableList(ids.getElements(bitmap)).iterator();
+    }
+
+    @Override
+    public int size() {
+        return bitmap.getCardinality();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return bitmap.isEmpty();
+    }
+}
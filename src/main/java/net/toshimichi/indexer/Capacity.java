@@ -0,0 +1,45 @@
+package net.toshimichi.indexer;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+final class Capacity {
+
+    private static final int MAXIMUM = 1 << 30;
+
+    private Capacity() {
+    }
+
+    static int of(int expected) {
+        if (expected < 3) return expected + 1;
+        if (expected >= MAXIMUM / 4 * 3) return MAXIMUM;
+        return (int) (expected / 0.75f + 1);
+    }
+
+    static <E> Set<E> ensure(Set<E> set, int additional) {
+        // other implementations either size themselves or cannot be replaced safely
+        if (set.getClass() != HashSet.class) return set;
+        if (set.isEmpty()) {
+            return additional > 12 ? new HashSet<>(of(additional)) : set;
+        }
+        if (additional <= set.size()) return set;
+
+        HashSet<E> grown = new HashSet<>(of(set.size() + additional));
+        grown.addAll(set);
+        return grown;
+    }
+
+    static <K, V> Map<K, V> ensure(Map<K, V> map, int additional) {
+        if (map.getClass() != HashMap.class) return map;
+        if (map.isEmpty()) {
+            return additional > 12 ? new HashMap<>(of(additional)) : map;
+        }
+        if (additional <= map.size()) return map;
+
+        HashMap<K, V> grown = new HashMap<>(of(map.size() + additional));
+        grown.putAll(map);
+        return grown;
+    }
+}
@@ -0,0 +1,32 @@
+package net.toshimichi.indexer;
+
+import java.util.Map;
+
+/**
+ * A map maintained by an {@link ObservableSet} which can be detached from the set.
+ * <p>
+ * Indexes keep themselves up to date by subscribing to the set and to the fields or sets of its elements,
+ * so they are referenced by the set until they are closed. Indexes which are only needed for a while,
+ * such as ones built for a single query, should be closed once they are no longer used.
+ *
+ * @param <K> the type of keys maintained by this map
+ * @param <V> the type of mapped values
+ */
+public interface CloseableMap<K, V> extends Map<K, V>, AutoCloseable {
+
+    /**
+     * Detaches this map from the set it is created from and from the fields and sets of the elements.
+     * <p>
+     * This method takes linear time in the number of elements of the set.
+     * This map becomes empty and is no longer updated. Calling this method more than once has no effect.
+     */
+    @Override
+    void close();
+
+    /**
+     * Checks whether this map is closed.
+     *
+     * @return true if this map is detached from the set
+     */
+    boolean isClosed();
+}
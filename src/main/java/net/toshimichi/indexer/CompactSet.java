@@ -0,0 +1,200 @@
+package net.toshimichi.indexer;
+
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+// a set which stores one element inline and a few elements in an array before falling back to a HashSet,
+// because most keys of a multi index only have a handful of values
+class CompactSet<E> extends AbstractSet<E> {
+
+    private static final int ARRAY_LIMIT = 8;
+
+    // the element itself if size is 1, an array if the set is small, or a HashSet
+    private Object values;
+    private int size;
+    // counts the modifications, so that iterators fail fast like the JDK collections
+    private int modCount;
+
+    @SuppressWarnings("unchecked")
+    private HashSet<E> hashSet() {
+        return values instanceof HashSet ? (HashSet<E>) values : null;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (size == 0) return false;
+        if (size == 1) return Objects.equals(values, o);
+
+        HashSet<E> set = hashSet();
+        if (set != null) return set.contains(o);
+        return indexOf((Object[]) values, o) >= 0;
+    }
+
+    private int indexOf(Object[] array, Object o) {
+        for (int i = 0; i < size; i++) {
+            if (Objects.equals(array[i], o)) return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean add(E e) {
+        if (size == 0) {
+            values = e;
+            size = 1;
+            modCount++;
+            return true;
+        }
+        if (size == 1) {
+            if (Objects.equals(values, e)) return false;
+            Object[] array = new Object[4];
+            array[0] = values;
+            array[1] = e;
+            values = array;
+            size = 2;
+            modCount++;
+            return true;
+        }
+
+        HashSet<E> set = hashSet();
+        if (set != null) {
+            if (!set.add(e)) return false;
+            size++;
+            modCount++;
+            return true;
+        }
+
+        Object[] array = (Object[]) values;
+        if (indexOf(array, e) >= 0) return false;
+        if (size == ARRAY_LIMIT) {
+            HashSet<E> grown = new HashSet<>(Capacity.of(ARRAY_LIMIT * 2));
+            for (Object o : array) grown.add(cast(o));
+            grown.add(e);
+            values = grown;
+        } else {
+            if (size == array.length) {
+                Object[] grown = new Object[ARRAY_LIMIT];
+                System.arraycopy(array, 0, grown, 0, size);
+                array = grown;
+                values = array;
+            }
+            array[size] = e;
+        }
+        size++;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (size == 0) return false;
+        if (size == 1) {
+            if (!Objects.equals(values, o)) return false;
+            values = null;
+            size = 0;
+            modCount++;
+            return true;
+        }
+
+        HashSet<E> set = hashSet();
+        if (set != null) {
+            if (!set.remove(o)) return false;
+            size--;
+            modCount++;
+
+            // shrinks only well below the limit, so that a set around the limit does not keep converting
+            if (size <= ARRAY_LIMIT / 2) {
+                Object[] array = new Object[ARRAY_LIMIT];
+                int i = 0;
+                for (E e : set) array[i++] = e;
+                values = array;
+            }
+            return true;
+        }
+
+        Object[] array = (Object[]) values;
+        int index = indexOf(array, o);
+        if (index < 0) return false;
+        size--;
+        modCount++;
+        array[index] = array[size];
+        array[size] = null;
+        if (size == 1) values = array[0];
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> E cast(Object o) {
+        return (E) o;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        if (size == 0) return Collections.emptyIterator();
+        if (size == 1) return new CheckedIterator(Collections.singleton(CompactSet.<E>cast(values)).iterator());
+
+        HashSet<E> set = hashSet();
+        if (set != null) return new CheckedIterator(Collections.unmodifiableSet(set).iterator());
+        return new ArrayIterator((Object[]) values);
+    }
+
+    private class ArrayIterator implements Iterator<E> {
+
+        private final Object[] array;
+        private final int expectedModCount = modCount;
+        private int cursor;
+
+        public ArrayIterator(Object[] array) {
+            this.array = array;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return cursor < size;
+        }
+
+        @Override
+        public E next() {
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            if (cursor >= size) throw new NoSuchElementException();
+            return cast(array[cursor++]);
+        }
+    }
+
+    // the set may switch to another representation, which the iterator of the old one does not notice
+    private class CheckedIterator implements Iterator<E> {
+
+        private final Iterator<E> iterator;
+        private final int expectedModCount = modCount;
+
+        public CheckedIterator(Iterator<E> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public E next() {
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+            return iterator.next();
+        }
+    }
+}
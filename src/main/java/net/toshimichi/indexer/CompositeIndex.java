@@ -0,0 +1,84 @@
+package net.toshimichi.indexer;
+
+import java.util.Set;
+
+/**
+ * An index keyed by a combination of several values.
+ * <p>
+ * Instances of this interface are created by {@link ObservableSet#createCompositeIndex(java.util.function.Function[])}
+ * and automatically get updated when the set or any of the indexed fields change.
+ * Elements can be looked up by the full key or by any prefix of it, and lookups never allocate a key object.
+ * The returned sets are unmodifiable views which reflect later updates.
+ *
+ * @param <E> the type of the indexed elements
+ */
+public interface CompositeIndex<E> extends AutoCloseable {
+
+    /**
+     * Gets the elements whose first key is equal to the specified value.
+     *
+     * @param first the first key
+     * @return the elements, or an empty set if there are no such elements
+     */
+    Set<E> get(Object first);
+
+    /**
+     * Gets the elements whose first and second keys are equal to the specified values.
+     *
+     * @param first  the first key
+     * @param second the second key
+     * @return the elements, or an empty set if there are no such elements
+     * @throws IllegalArgumentException if this index has less than two keys
+     */
+    Set<E> get(Object first, Object second);
+
+    /**
+     * Gets the elements whose first three keys are equal to the specified values.
+     *
+     * @param first  the first key
+     * @param second the second key
+     * @param third  the third key
+     * @return the elements, or an empty set if there are no such elements
+     * @throws IllegalArgumentException if this index has less than three keys
+     */
+    Set<E> get(Object first, Object second, Object third);
+
+    /**
+     * Gets the elements whose keys start with the specified values.
+     *
+     * @param keys the prefix of the keys
+     * @return the elements, or an empty set if there are no such elements
+     * @throws IllegalArgumentException if no key is specified or this index has less keys than specified
+     */
+    Set<E> get(Object... keys);
+
+    /**
+     * Gets the number of keys of this index.
+     *
+     * @return the number of keys
+     */
+    int getArity();
+
+    /**
+     * Gets the number of indexed elements.
+     *
+     * @return the number of indexed elements
+     */
+    int size();
+
+    /**
+     * Detaches this index from the set it is created from and from the fields of the elements.
+     * <p>
+     * This method takes linear time in the number of elements of the set.
+     * This index becomes empty and is no longer updated. Calling this method more than once has no effect.
+     */
+    @Override
+    void close();
+
+    /**
+     * Checks whether this index is closed.
+     *
+     * @return true if this index is detached from the set
+     */
+    boolean isClosed();
+}
@@ -0,0 +1,192 @@
+package net.toshimichi.indexer;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+
+class CompositeIndexMap<V> implements CompositeIndex<V>, ElementHandler<V> {
+
+    // every node holds the elements whose keys start with the path to the node
+    private final Node<V> root = new Node<>();
+    private final Function<V, ? extends ObservableField<V, ?>>[] functions;
+    private final Component[] components;
+    private int size;
+    private Subscription subscription;
+
+    @SuppressWarnings("unchecked")
+    public CompositeIndexMap(Function<V, ? extends ObservableField<V, ?>>[] functions) {
+        if (functions.length == 0) {
+            throw new IllegalArgumentException("No key is specified");
+        }
+
+        this.functions = functions.clone();
+        this.components = (Component[]) new CompositeIndexMap<?>.Component[functions.length];
+        for (int i = 0; i < functions.length; i++) {
+            components[i] = new Component(i);
+        }
+    }
+
+    private Object key(V obj, int depth) {
+        return functions[depth].apply(obj).get();
+    }
+
+    private void put0(V obj) {
+        Node<V> node = root;
+        for (int depth = 0; depth < functions.length; depth++) {
+            Object key = key(obj, depth);
+            if (node.children == null) node.children = new HashMap<>();
+            Node<V> child = node.children.get(key);
+            if (child == null) {
+                child = new Node<>();
+                node.children.put(key, child);
+            }
+            child.elements.add(obj);
+            node = child;
+        }
+        size++;
+    }
+
+    private void remove1(Node<V> node, int depth, V obj, int position, Object override) {
+        Object key = depth == position ? override : key(obj, depth);
+        Node<V> child = child(node, key);
+        if (child == null || !child.elements.remove(obj)) return;
+
+        if (depth + 1 < functions.length) {
+            remove1(child, depth + 1, obj, position, override);
+        } else {
+            size--;
+        }
+        if (child.elements.isEmpty()) node.children.remove(key);
+    }
+
+    @Override
+    public void attached(Subscription subscription) {
+        this.subscription = subscription;
+    }
+
+    @Override
+    public void close() {
+        if (subscription != null) subscription.unsubscribe();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return subscription != null && !subscription.isSubscribed();
+    }
+
+    public void add0(V obj) {
+        for (int i = 0; i < functions.length; i++) {
+            ObservableField<V, ?> field = functions[i].apply(obj);
+            field.initialize(obj);
+            field.subscribe(components[i]);
+        }
+        put0(obj);
+    }
+
+    @Override
+    public void addAll0(Collection<? extends V> objs) {
+        if (root.children == null) root.children = new HashMap<>();
+        root.children = Capacity.ensure(root.children, objs.size());
+        for (V obj : objs) add0(obj);
+    }
+
+    public boolean remove0(V obj) {
+        boolean result = false;
+        for (int i = 0; i < functions.length; i++) {
+            result |= functions[i].apply(obj).unsubscribe(components[i]);
+        }
+        if (result) remove1(root, 0, obj, -1, null);
+        return result;
+    }
+
+    private static <V> Node<V> child(Node<V> node, Object key) {
+        return node.children == null ? null : node.children.get(key);
+    }
+
+    private Set<V> find(Object[] keys, int length) {
+        if (length == 0 || length > functions.length) {
+            throw new IllegalArgumentException("Expected 1 to " + functions.length + " keys, but got " + length);
+        }
+
+        Node<V> node = root;
+        for (int i = 0; i < length && node != null; i++) {
+            node = child(node, keys[i]);
+        }
+        return node == null ? Collections.emptySet() : node.view;
+    }
+
+    @Override
+    public Set<V> get(Object first) {
+        Node<V> node = child(root, first);
+        return node == null ? Collections.emptySet() : node.view;
+    }
+
+    @Override
+    public Set<V> get(Object first, Object second) {
+        if (functions.length < 2) {
+            throw new IllegalArgumentException("Expected 1 to " + functions.length + " keys, but got 2");
+        }
+
+        Node<V> node = child(root, first);
+        if (node != null) node = child(node, second);
+        return node == null ? Collections.emptySet() : node.view;
+    }
+
+    @Override
+    public Set<V> get(Object first, Object second, Object third) {
+        if (functions.length < 3) {
+            throw new IllegalArgumentException("Expected 1 to " + functions.length + " keys, but got 3");
+        }
+
+        Node<V> node = child(root, first);
+        if (node != null) node = child(node, second);
+        if (node != null) node = child(node, third);
+        return node == null ? Collections.emptySet() : node.view;
+    }
+
+    @Override
+    public Set<V> get(Object... keys) {
+        return find(keys, keys.length);
+    }
+
+    @Override
+    public int getArity() {
+        return functions.length;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private static class Node<V> {
+
+        // null for leaves
+        private Map<Object, Node<V>> children;
+        private final HashSet<V> elements = new HashSet<>();
+        private final Set<V> view = Collections.unmodifiableSet(elements);
+    }
+
+    private class Component implements ObservableFieldHandler<V, Object> {
+
+        private final int position;
+
+        public Component(int position) {
+            this.position = position;
+        }
+
+        @Override
+        public void accept(ObservableField<? extends V, ?> field, Object old, Object updated) {
+            if (Objects.equals(old, updated)) return;
+
+            V owner = field.getOwner();
+            remove1(root, 0, owner, position, old);
+            put0(owner);
+        }
+    }
+}
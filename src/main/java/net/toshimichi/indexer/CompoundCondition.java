@@ -0,0 +1,38 @@
+package net.toshimichi.indexer;
+
+import java.util.List;
+import java.util.StringJoiner;
+
+class CompoundCondition<E> implements Condition<E> {
+
+    private final boolean and;
+    private final List<Condition<E>> conditions;
+
+    public CompoundCondition(boolean and, List<Condition<E>> conditions) {
+        this.and = and;
+        this.conditions = conditions;
+    }
+
+    boolean isAnd() {
+        return and;
+    }
+
+    List<Condition<E>> conditions() {
+        return conditions;
+    }
+
+    @Override
+    public boolean test(E element) {
+        for (Condition<E> condition : conditions) {
+            if (condition.test(element) != and) return !and;
+        }
+        return and;
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner joiner = new StringJoiner(", ", and ? "and(" : "or(", ")");
+        for (Condition<E> condition : conditions) joiner.add(condition.toString());
+        return joiner.toString();
+    }
+}
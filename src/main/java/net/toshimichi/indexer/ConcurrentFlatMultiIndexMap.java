@@ -0,0 +1,206 @@
+package net.toshimichi.indexer;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+class ConcurrentFlatMultiIndexMap<K, V> extends FlatMultiIndexMap<K, V> {
+
+    private final IndexLock lock = new IndexLock();
+
+    // the keys each element is indexed with, guarded by the write lock, because the set of an element
+    // may be modified after it is subscribed but before it is indexed, or while the element is being removed
+    private final Map<V, Set<K>> keys = new HashMap<>();
+
+    public ConcurrentFlatMultiIndexMap(Function<V, ObservableSet<V, K>> function) {
+        super(function, new ConcurrentHashMap<>());
+    }
+
+    @Override
+    Set<V> newSet() {
+        return ConcurrentHashMap.newKeySet();
+    }
+
+    @Override
+    public void add0(V obj) {
+        long stamp = lock.beginWrite();
+        try {
+            ObservableSet<V, K> set = set(obj);
+            set.initialize(obj);
+            set.subscribe(this);
+
+            HashSet<K> indexed = new HashSet<>();
+            keys.put(obj, indexed);
+            for (K key : set) {
+                put0(key, obj);
+                indexed.add(key);
+            }
+        } finally {
+            lock.endWrite(stamp);
+        }
+    }
+
+    @Override
+    public void addAll0(Collection<? extends V> objs) {
+        long stamp = lock.beginWrite();
+        try {
+            super.addAll0(objs);
+        } finally {
+            lock.endWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean remove0(V obj) {
+        long stamp = lock.beginWrite();
+        try {
+            if (!set(obj).unsubscribe(this)) return false;
+            Set<K> indexed = keys.remove(obj);
+            if (indexed != null) {
+                for (K key : indexed) remove1(key, obj);
+            }
+            return true;
+        } finally {
+            lock.endWrite(stamp);
+        }
+    }
+
+    @Override
+    public void removeAll0(Collection<? extends V> objs) {
+        long stamp = lock.beginWrite();
+        try {
+            super.removeAll0(objs);
+        } finally {
+            lock.endWrite(stamp);
+        }
+    }
+
+    // the element is already removed, or has been indexed with the key
+    private void add1(V owner, K key) {
+        Set<K> indexed = keys.get(owner);
+        if (indexed == null || indexed.contains(key)) return;
+        put0(key, owner);
+        indexed.add(key);
+    }
+
+    private void remove2(V owner, K key) {
+        Set<K> indexed = keys.get(owner);
+        if (indexed != null && indexed.remove(key)) remove1(key, owner);
+    }
+
+    @Override
+    public void add(ObservableSet<? extends V, ? extends K> set, K element) {
+        long stamp = lock.beginWrite();
+        try {
+            add1(set.getOwner(), element);
+        } finally {
+            lock.endWrite(stamp);
+        }
+    }
+
+    @Override
+    public void remove(ObservableSet<? extends V, ? extends K> set, K element) {
+        long stamp = lock.beginWrite();
+        try {
+            remove2(set.getOwner(), element);
+        } finally {
+            lock.endWrite(stamp);
+        }
+    }
+
+    @Override
+    public void addAll(ObservableSet<? extends V, ? extends K> set, Collection<? extends K> elements) {
+        long stamp = lock.beginWrite();
+        try {
+            V owner = set.getOwner();
+            for (K element : elements) add1(owner, element);
+        } finally {
+            lock.endWrite(stamp);
+        }
+    }
+
+    @Override
+    public void removeAll(ObservableSet<? extends V, ? extends K> set, Collection<? extends K> elements) {
+        long stamp = lock.beginWrite();
+        try {
+            V owner = set.getOwner();
+            for (K element : elements) remove2(owner, element);
+        } finally {
+            lock.endWrite(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        long stamp = lock.beginOptimisticRead();
+        int result = super.size();
+        if (lock.validate(stamp)) return result;
+
+        stamp = lock.beginRead();
+        try {
+            return super.size();
+        } finally {
+            lock.endRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        long stamp = lock.beginOptimisticRead();
+        boolean result = super.isEmpty();
+        if (lock.validate(stamp)) return result;
+
+        stamp = lock.beginRead();
+        try {
+            return super.isEmpty();
+        } finally {
+            lock.endRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        long stamp = lock.beginOptimisticRead();
+        boolean result = super.containsValue(value);
+        if (lock.validate(stamp)) return result;
+
+        stamp = lock.beginRead();
+        try {
+            return super.containsValue(value);
+        } finally {
+            lock.endRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        long stamp = lock.beginOptimisticRead();
+        boolean result = super.containsKey(key);
+        if (lock.validate(stamp)) return result;
+
+        stamp = lock.beginRead();
+        try {
+            return super.containsKey(key);
+        } finally {
+            lock.endRead(stamp);
+        }
+    }
+
+    @Override
+    public Set<V> get(Object key) {
+        long stamp = lock.beginOptimisticRead();
+        Set<V> result = super.get(key);
+        if (lock.validate(stamp)) return result;
+
+        stamp = lock.beginRead();
+        try {
+            return super.get(key);
+        } finally {
+            lock.endRead(stamp);
+        }
+    }
+}
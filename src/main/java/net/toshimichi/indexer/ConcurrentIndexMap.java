@@ -0,0 +1,201 @@
+package net.toshimichi.indexer;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+class ConcurrentIndexMap<K, V> extends IndexMap<K, V> {
+
+    private final IndexLock lock = new IndexLock();
+
+    // the key each element is indexed with, guarded by the write lock, because the field of an element
+    // may be set after it is subscribed but before it is indexed, or while the element is being removed
+    private final Map<V, K> keys = new HashMap<>();
+
+    public ConcurrentIndexMap(Function<V, ObservableField<V, K>> function) {
+        super(function, new ConcurrentHashMap<>());
+    }
+
+    // ConcurrentHashMap does not permit null keys, so null keys are not indexed
+    @Override
+    void put0(K key, V value) {
+        if (key != null) super.put0(key, value);
+    }
+
+    @Override
+    void remove1(K key) {
+        if (key != null) super.remove1(key);
+    }
+
+    @Override
+    public void add0(V obj) {
+        long stamp = lock.beginWrite();
+        try {
+            K key = observe(obj);
+            keys.put(obj, null);
+            put0(key, obj);
+            keys.put(obj, key);
+        } finally {
+            lock.endWrite(stamp);
+        }
+    }
+
+    @Override
+    void putAll0(List<? extends Map<K, V>> partials) {
+        long stamp = lock.beginWrite();
+        try {
+            super.putAll0(partials);
+            for (Map<K, V> partial : partials) {
+                for (Entry<K, V> entry : partial.entrySet()) keys.put(entry.getValue(), entry.getKey());
+            }
+        } finally {
+            lock.endWrite(stamp);
+        }
+    }
+
+    @Override
+    void restore(V obj, K key) {
+        long stamp = lock.beginWrite();
+        try {
+            super.restore(obj, key);
+            keys.put(obj, key);
+        } finally {
+            lock.endWrite(stamp);
+        }
+    }
+
+    @Override
+    public Map<?, ?> freeze() {
+        long stamp = lock.beginWrite();
+        try {
+            return super.freeze();
+        } finally {
+            lock.endWrite(stamp);
+        }
+    }
+
+    @Override
+    public void addAll0(Collection<? extends V> objs) {
+        long stamp = lock.beginWrite();
+        try {
+            super.addAll0(objs);
+        } finally {
+            lock.endWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean remove0(V obj) {
+        long stamp = lock.beginWrite();
+        try {
+            if (!field(obj).unsubscribe(this)) return false;
+            if (keys.containsKey(obj)) remove1(keys.remove(obj));
+            return true;
+        } finally {
+            lock.endWrite(stamp);
+        }
+    }
+
+    @Override
+    public void removeAll0(Collection<? extends V> objs) {
+        long stamp = lock.beginWrite();
+        try {
+            super.removeAll0(objs);
+        } finally {
+            lock.endWrite(stamp);
+        }
+    }
+
+    @Override
+    public void accept(ObservableField<? extends V, ? extends K> field, K old, K updated) {
+        long stamp = lock.beginWrite();
+        try {
+            // the element is already removed, or has been indexed with the updated key
+            V owner = field.getOwner();
+            if (!keys.containsKey(owner)) return;
+            K key = keys.get(owner);
+            if (Objects.equals(key, updated)) return;
+
+            remove1(key);
+            keys.put(owner, null);
+            put0(updated, owner);
+            keys.put(owner, updated);
+        } finally {
+            lock.endWrite(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        long stamp = lock.beginOptimisticRead();
+        int result = super.size();
+        if (lock.validate(stamp)) return result;
+
+        stamp = lock.beginRead();
+        try {
+            return super.size();
+        } finally {
+            lock.endRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        long stamp = lock.beginOptimisticRead();
+        boolean result = super.isEmpty();
+        if (lock.validate(stamp)) return result;
+
+        stamp = lock.beginRead();
+        try {
+            return super.isEmpty();
+        } finally {
+            lock.endRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        long stamp = lock.beginOptimisticRead();
+        boolean result = super.containsValue(value);
+        if (lock.validate(stamp)) return result;
+
+        stamp = lock.beginRead();
+        try {
+            return super.containsValue(value);
+        } finally {
+            lock.endRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        long stamp = lock.beginOptimisticRead();
+        boolean result = super.containsKey(key);
+        if (lock.validate(stamp)) return result;
+
+        stamp = lock.beginRead();
+        try {
+            return super.containsKey(key);
+        } finally {
+            lock.endRead(stamp);
+        }
+    }
+
+    @Override
+    public V get(Object key) {
+        long stamp = lock.beginOptimisticRead();
+        V result = super.get(key);
+        if (lock.validate(stamp)) return result;
+
+        stamp = lock.beginRead();
+        try {
+            return super.get(key);
+        } finally {
+            lock.endRead(stamp);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package net.toshimichi.indexer;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+class ConcurrentMultiIndexMap<K, V> extends MultiIndexMap<K, V> {
+
+    private final IndexLock lock = new IndexLock();
+
+    // the key each element is indexed with, guarded by the write lock, because the field of an element
+    // may be set after it is subscribed but before it is indexed, or while the element is being removed
+    private final Map<V, K> keys = new HashMap<>();
+
+    public ConcurrentMultiIndexMap(Function<V, ObservableField<V, K>> function) {
+        super(function, new ConcurrentHashMap<>());
+    }
+
+    @Override
+    Set<V> newSet() {
+        return ConcurrentHashMap.newKeySet();
+    }
+
+    @Override
+    public void add0(V obj) {
+        long stamp = lock.beginWrite();
+        try {
+            K key = observe(obj);
+            keys.put(obj, key);
+            if (key != null) put0(key, obj);
+        } finally {
+            lock.endWrite(stamp);
+        }
+    }
+
+    @Override
+    void putAll0(List<? extends Map<K, ? extends Collection<V>>> partials) {
+        long stamp = lock.beginWrite();
+        try {
+            super.putAll0(partials);
+            for (Map<K, ? extends Collection<V>> partial : partials) {
+                for (Entry<K, ? extends Collection<V>> entry : partial.entrySet()) {
+                    for (V value : entry.getValue()) keys.put(value, entry.getKey());
+                }
+            }
+        } finally {
+            lock.endWrite(stamp);
+        }
+    }
+
+    @Override
+    void restore(V obj, K key) {
+        long stamp = lock.beginWrite();
+        try {
+            super.restore(obj, key);
+            keys.put(obj, key);
+        } finally {
+            lock.endWrite(stamp);
+        }
+    }
+
+    @Override
+    public Map<?, ?> freeze() {
+        long stamp = lock.beginWrite();
+        try {
+            return super.freeze();
+        } finally {
+            lock.endWrite(stamp);
+        }
+    }
+
+    @Override
+    public void addAll0(Collection<? extends V> objs) {
+        long stamp = lock.beginWrite();
+        try {
+            super.addAll0(objs);
+        } finally {
+            lock.endWrite(stamp);
+        }
+    }
+
+    @Override
+    public boolean remove0(V obj) {
+        long stamp = lock.beginWrite();
+        try {
+            if (!field(obj).unsubscribe(this)) return false;
+            K key = keys.remove(obj);
+            if (key != null) remove1(key, obj);
+            return true;
+        } finally {
+            lock.endWrite(stamp);
+        }
+    }
+
+    @Override
+    public void removeAll0(Collection<? extends V> objs) {
+        long stamp = lock.beginWrite();
+        try {
+            super.removeAll0(objs);
+        } finally {
+            lock.endWrite(stamp);
+        }
+    }
+
+    @Override
+    public void accept(ObservableField<? extends V, ? extends K> field, K old, K updated) {
+        long stamp = lock.beginWrite();
+        try {
+            // the element is already removed, or has been indexed with the updated key
+            V owner = field.getOwner();
+            if (!keys.containsKey(owner)) return;
+            K key = keys.get(owner);
+            if (Objects.equals(key, updated)) return;
+
+            if (key != null) remove1(key, owner);
+            if (updated != null) put0(updated, owner);
+            keys.put(owner, updated);
+        } finally {
+            lock.endWrite(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        long stamp = lock.beginOptimisticRead();
+        int result = super.size();
+        if (lock.validate(stamp)) return result;
+
+        stamp = lock.beginRead();
+        try {
+            return super.size();
+        } finally {
+            lock.endRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean isEmpty() {
+        long stamp = lock.beginOptimisticRead();
+        boolean result = super.isEmpty();
+        if (lock.validate(stamp)) return result;
+
+        stamp = lock.beginRead();
+        try {
+            return super.isEmpty();
+        } finally {
+            lock.endRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        long stamp = lock.beginOptimisticRead();
+        boolean result = super.containsValue(value);
+        if (lock.validate(stamp)) return result;
+
+        stamp = lock.beginRead();
+        try {
+            return super.containsValue(value);
+        } finally {
+            lock.endRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        long stamp = lock.beginOptimisticRead();
+        boolean result = super.containsKey(key);
+        if (lock.validate(stamp)) return result;
+
+        stamp = lock.beginRead();
+        try {
+            return super.containsKey(key);
+        } finally {
+            lock.endRead(stamp);
+        }
+    }
+
+    @Override
+    public Set<V> get(Object key) {
+        long stamp = lock.beginOptimisticRead();
+        Set<V> result = super.get(key);
+        if (lock.validate(stamp)) return result;
+
+        stamp = lock.beginRead();
+        try {
+            return super.get(key);
+        } finally {
+            lock.endRead(stamp);
+        }
+    }
+}
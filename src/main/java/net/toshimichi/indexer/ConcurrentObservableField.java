@@ -0,0 +1,28 @@
+package net.toshimichi.indexer;
+
+/**
+ * A thread-safe variant of {@link ObservableField}.
+ * <p>
+ * The value can be read from any thread without locking. Updates are serialized per field, so every handler
+ * receives the updates in the order they were applied and the {@code old} value of an update is always
+ * the {@code updated} value of the previous one.
+ *
+ * @param <O> The type of the owner of this field.
+ * @param <V> The type of the value of this field.
+ */
+public class ConcurrentObservableField<O, V> extends ObservableField<O, V> {
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param value the initial value of this field, can be {@code null}
+     */
+    public ConcurrentObservableField(V value) {
+        super(value);
+    }
+
+    @Override
+    public synchronized void set(V value) {
+        super.set(value);
+    }
+}
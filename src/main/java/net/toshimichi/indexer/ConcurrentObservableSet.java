@@ -0,0 +1,222 @@
+package net.toshimichi.indexer;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * A thread-safe variant of {@link ObservableSet}.
+ * <p>
+ * Reads such as {@link #contains(Object)} and iteration never block and iteration is weakly consistent.
+ * Modifications are serialized, so handlers never receive concurrent notifications from the same set.
+ * <p>
+ * Indexes created by {@link #createIndex(Function)}, {@link #createFlatIndex(Function)},
+ * {@link #createMultiIndex(Function)} and {@link #createFlatMultiIndex(Function)} can be read from any thread.
+ * A lookup never observes a key in the middle of being moved to another key.
+ * Other indexes are kept up to date, but must be read from the thread which modifies this set.
+ * {@link IndexMode#LAZY} is not supported and such indexes are maintained eagerly.
+ * The fields and sets of the elements should be {@link ConcurrentObservableField} and {@link ConcurrentObservableSet}
+ * if they are modified from multiple threads.
+ *
+ * @param <O> the type of the owner of this set
+ * @param <E> the type of elements maintained by this set
+ */
+public class ConcurrentObservableSet<O, E> extends ObservableSet<O, E> {
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Creates a new empty set.
+     */
+    public ConcurrentObservableSet() {
+        super(ConcurrentHashMap.newKeySet());
+    }
+
+    @Override
+    Subscription attach(ElementHandler<E> handler) {
+        lock.lock();
+        try {
+            return super.attach(handler);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Snapshot<E> snapshot() {
+        lock.lock();
+        try {
+            return super.snapshot();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    void exclusive(Runnable action) {
+        lock.lock();
+        try {
+            action.run();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    <K> IndexMap<K, E> newIndexMap(Function<E, ObservableField<E, K>> function) {
+        return new ConcurrentIndexMap<>(function);
+    }
+
+    @Override
+    <K> MultiIndexMap<K, E> newMultiIndexMap(Function<E, ObservableField<E, K>> function) {
+        return new ConcurrentMultiIndexMap<>(function);
+    }
+
+    @Override
+    public <K> CloseableMap<K, E> createIndex(Function<E, ObservableField<E, K>> function) {
+        ConcurrentIndexMap<K, E> map = new ConcurrentIndexMap<>(function);
+        attach(map);
+        return map;
+    }
+
+    @Override
+    public <K> CloseableMap<K, E> createIndex(Function<E, ObservableField<E, K>> function, IndexMode mode) {
+        return createIndex(function);
+    }
+
+    @Override
+    public <K> CloseableMap<K, E> createFlatIndex(Function<E, ObservableSet<E, K>> function) {
+        ConcurrentFlatIndexMap<K, E> map = new ConcurrentFlatIndexMap<>(function);
+        attach(map);
+        return map;
+    }
+
+    @Override
+    public <K> CloseableMap<K, Set<E>> createMultiIndex(Function<E, ObservableField<E, K>> function) {
+        ConcurrentMultiIndexMap<K, E> map = new ConcurrentMultiIndexMap<>(function);
+        attach(map);
+        return map;
+    }
+
+    @Override
+    public <K> CloseableMap<K, Set<E>> createMultiIndex(Function<E, ObservableField<E, K>> function, IndexMode mode) {
+        return createMultiIndex(function);
+    }
+
+    @Override
+    public <K> CloseableMap<K, Set<E>> createFlatMultiIndex(Function<E, ObservableSet<E, K>> function) {
+        ConcurrentFlatMultiIndexMap<K, E> map = new ConcurrentFlatMultiIndexMap<>(function);
+        attach(map);
+        return map;
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return new ConcurrentIterator(super.iterator());
+    }
+
+    @Override
+    public boolean add(E e) {
+        lock.lock();
+        try {
+            return super.add(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            return super.remove(o);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends E> c) {
+        lock.lock();
+        try {
+            return super.addAll(c);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        lock.lock();
+        try {
+            return super.removeAll(c);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> c) {
+        lock.lock();
+        try {
+            return super.retainAll(c);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean replaceWith(Predicate<? super E> filter, Iterable<? extends E> elements) {
+        lock.lock();
+        try {
+            return super.replaceWith(filter, elements);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            super.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private class ConcurrentIterator implements Iterator<E> {
+
+        private final Iterator<E> iterator;
+        private E cursor;
+
+        public ConcurrentIterator(Iterator<E> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public E next() {
+            cursor = iterator.next();
+            return cursor;
+        }
+
+        @Override
+        public void remove() {
+            if (cursor == null) {
+                throw new IllegalStateException();
+            }
+
+            ConcurrentObservableSet.this.remove(cursor);
+            cursor = null;
+        }
+    }
+}
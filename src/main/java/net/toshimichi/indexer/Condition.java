@@ -0,0 +1,107 @@
+package net.toshimichi.indexer;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.function.Function;
+
+/**
+ * A condition on the elements of an {@link ObservableSet}, which is evaluated by {@link ObservableSet#query(Condition)}.
+ * <p>
+ * Conditions refer to fields and sets of the elements by the same functions used to create indexes,
+ * so that a query can use the indexes attached to the set without naming them.
+ * An index is used for a condition if both functions return the same field or set for the elements.
+ *
+ * @param <E> the type of the elements
+ */
+public interface Condition<E> {
+
+    /**
+     * Tests whether an element satisfies this condition.
+     *
+     * @param element the element
+     * @return true if the element satisfies this condition
+     */
+    boolean test(E element);
+
+    /**
+     * Creates a condition which is satisfied when a field equals the specified value.
+     *
+     * @param function a function which maps the elements to the field
+     * @param value    the value, can be {@code null}
+     * @param <E>      the type of the elements
+     * @param <K>      the type of the value
+     * @return the condition
+     */
+    static <E, K> Condition<E> equal(Function<E, ObservableField<E, K>> function, K value) {
+        return new FieldCondition<>(function, Collections.singleton(value));
+    }
+
+    /**
+     * Creates a condition which is satisfied when a field equals one of the specified values.
+     *
+     * @param function a function which maps the elements to the field
+     * @param values   the values
+     * @param <E>      the type of the elements
+     * @param <K>      the type of the values
+     * @return the condition
+     */
+    static <E, K> Condition<E> in(Function<E, ObservableField<E, K>> function, Collection<? extends K> values) {
+        return new FieldCondition<>(function, values);
+    }
+
+    /**
+     * Creates a condition which is satisfied when a field is in the specified range.
+     * <p>
+     * {@code null} values of the field never satisfy this condition.
+     *
+     * @param function a function which maps the elements to the field
+     * @param from     the lower bound which is inclusive, or {@code null} if the range has no lower bound
+     * @param to       the upper bound which is exclusive, or {@code null} if the range has no upper bound
+     * @param <E>      the type of the elements
+     * @param <K>      the type of the values
+     * @return the condition
+     */
+    static <E, K extends Comparable<? super K>> Condition<E> range(Function<E, ObservableField<E, K>> function, K from, K to) {
+        return new RangeCondition<>(function, from, to);
+    }
+
+    /**
+     * Creates a condition which is satisfied when a set of the element contains the specified value.
+     *
+     * @param function a function which maps the elements to the set
+     * @param value    the value
+     * @param <E>      the type of the elements
+     * @param <K>      the type of the value
+     * @return the condition
+     */
+    static <E, K> Condition<E> contains(Function<E, ObservableSet<E, K>> function, K value) {
+        return new ContainsCondition<>(function, value);
+    }
+
+    /**
+     * Creates a condition which is satisfied when all the specified conditions are satisfied.
+     *
+     * @param conditions the conditions
+     * @param <E>        the type of the elements
+     * @return the condition
+     */
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    static <E> Condition<E> and(Condition<E>... conditions) {
+        return new CompoundCondition<>(true, Arrays.asList(conditions.clone()));
+    }
+
+    /**
+     * Creates a condition which is satisfied when any of the specified conditions is satisfied.
+     *
+     * @param conditions the conditions
+     * @param <E>        the type of the elements
+     * @return the condition
+     */
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    static <E> Condition<E> or(Condition<E>... conditions) {
+        return new CompoundCondition<>(false, Arrays.asList(conditions.clone()));
+    }
+}
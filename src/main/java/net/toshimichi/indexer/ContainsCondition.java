@@ -0,0 +1,32 @@
+package net.toshimichi.indexer;
+
+import java.util.function.Function;
+
+class ContainsCondition<E, K> implements Condition<E> {
+
+    private final Function<E, ObservableSet<E, K>> function;
+    private final K value;
+
+    public ContainsCondition(Function<E, ObservableSet<E, K>> function, K value) {
+        this.function = function;
+        this.value = value;
+    }
+
+    Function<E, ObservableSet<E, K>> function() {
+        return function;
+    }
+
+    K value() {
+        return value;
+    }
+
+    @Override
+    public boolean test(E element) {
+        return function.apply(element).contains(value);
+    }
+
+    @Override
+    public String toString() {
+        return "contains(" + value + ")";
+    }
+}
@@ -0,0 +1,41 @@
+package net.toshimichi.indexer;
+
+import java.util.Collection;
+
+class CountAggregate<E> implements ElementHandler<E> {
+
+    private final AggregateField<?, Integer> field;
+    private int count;
+
+    public CountAggregate(AggregateField<?, Integer> field) {
+        this.field = field;
+    }
+
+    @Override
+    public void attached(Subscription subscription) {
+        field.bind(subscription);
+    }
+
+    @Override
+    public void add0(E obj) {
+        field.update(++count);
+    }
+
+    @Override
+    public boolean remove0(E obj) {
+        field.update(--count);
+        return true;
+    }
+
+    @Override
+    public void addAll0(Collection<? extends E> objs) {
+        count += objs.size();
+        field.update(count);
+    }
+
+    @Override
+    public void removeAll0(Collection<? extends E> objs) {
+        count -= objs.size();
+        field.update(count);
+    }
+}
@@ -0,0 +1,121 @@
+package net.toshimichi.indexer;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.function.Predicate;
+
+/**
+ * A read-only set whose elements are maintained by the set it is created from.
+ * <p>
+ * Instances of this class are created by {@link ObservableSet#createFlatMap(java.util.function.Function)} and
+ * {@link ObservableSet#createFilter(Predicate, java.util.function.Function[])}. Like any other set,
+ * indexes and other views can be created on it, but its elements cannot be modified directly.
+ *
+ * @param <E> the type of elements maintained by this set
+ */
+public abstract class DerivedSet<E> extends ObservableSet<Object, E> implements AutoCloseable {
+
+    private final int depth;
+    private Subscription subscription;
+
+    DerivedSet(int depth) {
+        this.depth = depth;
+    }
+
+    @Override
+    int depth() {
+        return depth;
+    }
+
+    void bind(Subscription subscription) {
+        this.subscription = subscription;
+    }
+
+    /**
+     * Detaches this set from the set it is created from and from the fields and sets of the elements.
+     * <p>
+     * This method takes linear time in the number of elements of the set this set is created from.
+     * This set becomes empty and is no longer updated, and the handlers subscribed to this set are notified
+     * of the removal. Calling this method more than once has no effect.
+     */
+    @Override
+    public void close() {
+        if (subscription != null) subscription.unsubscribe();
+    }
+
+    /**
+     * Checks whether this set is closed.
+     *
+     * @return true if this set is detached from the set it is created from
+     */
+    public boolean isClosed() {
+        return subscription != null && !subscription.isSubscribed();
+    }
+
+    void add1(E e) {
+        super.add(e);
+    }
+
+    void remove1(E e) {
+        super.remove(e);
+    }
+
+    @Override
+    public boolean add(E e) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends E> c) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> c) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void clear() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean replaceWith(Predicate<? super E> filter, Iterable<? extends E> elements) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return new ImmutableIterator<>(super.iterator());
+    }
+
+    private static class ImmutableIterator<E> implements Iterator<E> {
+
+        private final Iterator<E> internal;
+
+        public ImmutableIterator(Iterator<E> internal) {
+            this.internal = internal;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return internal.hasNext();
+        }
+
+        @Override
+        public E next() {
+            return internal.next();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package net.toshimichi.indexer;
+
+import java.util.Collection;
+
+interface ElementHandler<E> {
+
+    void add0(E obj);
+
+    boolean remove0(E obj);
+
+    default void addAll0(Collection<? extends E> objs) {
+        for (E obj : objs) add0(obj);
+    }
+
+    default void removeAll0(Collection<? extends E> objs) {
+        for (E obj : objs) remove0(obj);
+    }
+
+    // called with the subscription which detaches this handler from the set
+    default void attached(Subscription subscription) {
+    }
+}
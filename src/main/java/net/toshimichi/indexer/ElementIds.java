@@ -0,0 +1,131 @@
+package net.toshimichi.indexer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Dense {@code int} ids of the elements of an {@link ObservableSet}.
+ * <p>
+ * Instances of this class are created by {@link ObservableSet#elementIds()}. Every element of the set has an id
+ * between zero and the largest number of elements the set has had, and the ids of removed elements are reused
+ * for elements added later. The id of a removed element stays valid until the set is modified next time,
+ * so that the indexes notified of the removal can still find it.
+ * <p>
+ * Ids are used by {@link BitmapIndex} to store the elements of each key as a {@link Bitmap}.
+ *
+ * @param <E> the type of the elements
+ */
+public final class ElementIds<E> {
+
+    private final HashMap<E, Integer> ids = new HashMap<>();
+    private Object[] elements = new Object[16];
+    private int[] free = new int[0];
+    private int freeCount;
+    private int next;
+
+    // elements which are removed from the set, whose ids are released when the set is modified next time
+    private final ArrayList<E> released = new ArrayList<>();
+
+    ElementIds() {
+    }
+
+    ElementHandler<E> handler() {
+        return new Handler();
+    }
+
+    private void assign(E element) {
+        int id;
+        if (freeCount > 0) {
+            id = free[--freeCount];
+        } else {
+            id = next++;
+            if (id == elements.length) elements = Arrays.copyOf(elements, id * 2);
+        }
+        ids.put(element, id);
+        elements[id] = element;
+    }
+
+    private void release() {
+        if (released.isEmpty()) return;
+        if (free.length < freeCount + released.size()) free = Arrays.copyOf(free, Math.max(16, (freeCount + released.size()) * 2));
+        for (E element : released) {
+            Integer id = ids.remove(element);
+            if (id == null) continue;
+            elements[id] = null;
+            free[freeCount++] = id;
+        }
+        released.clear();
+    }
+
+    /**
+     * Gets the id of the specified element.
+     *
+     * @param element the element
+     * @return the id, or {@code -1} if the element is not in the set
+     */
+    public int getId(Object element) {
+        Integer id = ids.get(element);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Gets the element with the specified id.
+     *
+     * @param id the id
+     * @return the element, or {@code null} if no element has the id
+     */
+    @SuppressWarnings("unchecked")
+    public E getElement(int id) {
+        if (id < 0 || id >= next) return null;
+        return (E) elements[id];
+    }
+
+    /**
+     * Gets the elements whose ids are in the specified bitmap.
+     *
+     * @param bitmap the bitmap of ids
+     * @return a new list of the elements in the order of their ids
+     */
+    public List<E> getElements(Bitmap bitmap) {
+        ArrayList<E> result = new ArrayList<>(bitmap.getCardinality());
+        bitmap.forEach(id -> {
+            E element = getElement(id);
+            if (element != null) result.add(element);
+        });
+        return result;
+    }
+
+    // subscribed before the bitmap indexes, so that they always find the ids of the elements
+    private class Handler implements ElementHandler<E> {
+
+        @Override
+        public void add0(E obj) {
+            release();
+            if (!ids.containsKey(obj)) assign(obj);
+        }
+
+        @Override
+        public void addAll0(Collection<? extends E> objs) {
+            release();
+            for (E obj : objs) {
+                if (!ids.containsKey(obj)) assign(obj);
+            }
+        }
+
+        @Override
+        public boolean remove0(E obj) {
+            release();
+            released.add(obj);
+            return true;
+        }
+
+        @Override
+        public void removeAll0(Collection<? extends E> objs) {
+            release();
+            released.addAll(objs);
+        }
+    }
+}
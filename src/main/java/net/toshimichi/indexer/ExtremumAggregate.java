@@ -0,0 +1,74 @@
+package net.toshimichi.indexer;
+
+import java.util.Comparator;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+class ExtremumAggregate<K, E> implements ElementHandler<E>, ObservableFieldHandler<E, K> {
+
+    private final AggregateField<?, K> field;
+    private final Function<E, ObservableField<E, K>> function;
+
+    // counts the elements of each value, the first key is the extremum
+    private final TreeMap<K, Integer> counts;
+
+    public ExtremumAggregate(AggregateField<?, K> field, Function<E, ObservableField<E, K>> function, Comparator<? super K> comparator) {
+        this.field = field;
+        this.function = function;
+        this.counts = new TreeMap<>(comparator);
+    }
+
+    private void put0(K key) {
+        if (key == null) return;
+        counts.merge(key, 1, Integer::sum);
+    }
+
+    private void remove1(K key) {
+        if (key == null) return;
+        Integer count = counts.get(key);
+        if (count == null) return;
+        if (count == 1) {
+            counts.remove(key);
+        } else {
+            counts.put(key, count - 1);
+        }
+    }
+
+    private void update() {
+        K extremum = counts.isEmpty() ? null : counts.firstKey();
+        if (!Objects.equals(extremum, field.get())) field.update(extremum);
+    }
+
+    @Override
+    public void attached(Subscription subscription) {
+        field.bind(subscription);
+    }
+
+    @Override
+    public void add0(E obj) {
+        ObservableField<E, K> value = function.apply(obj);
+        value.initialize(obj);
+        value.subscribe(this);
+        put0(value.get());
+        update();
+    }
+
+    @Override
+    public boolean remove0(E obj) {
+        ObservableField<E, K> value = function.apply(obj);
+        boolean result = value.unsubscribe(this);
+        if (result) {
+            remove1(value.get());
+            update();
+        }
+        return result;
+    }
+
+    @Override
+    public void accept(ObservableField<? extends E, ? extends K> field, K old, K updated) {
+        remove1(old);
+        put0(updated);
+        update();
+    }
+}
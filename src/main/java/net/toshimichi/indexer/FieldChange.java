@@ -0,0 +1,55 @@
+package net.toshimichi.indexer;
+
+import java.util.Objects;
+
+/**
+ * An update of a field published by {@link ObservableField#publisher()}.
+ *
+ * @param <V> the type of the value
+ */
+public final class FieldChange<V> {
+
+    private final V old;
+    private final V updated;
+
+    FieldChange(V old, V updated) {
+        this.old = old;
+        this.updated = updated;
+    }
+
+    /**
+     * Gets the value before the update.
+     *
+     * @return the old value
+     */
+    public V getOld() {
+        return old;
+    }
+
+    /**
+     * Gets the value after the update.
+     *
+     * @return the updated value
+     */
+    public V getUpdated() {
+        return updated;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof FieldChange)) return false;
+        FieldChange<?> other = (FieldChange<?>) o;
+        return Objects.equals(old, other.old) && Objects.equals(updated, other.updated);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(old, updated);
+    }
+
+    @Override
+    public String toString() {
+        return old + " -> " + updated;
+    }
+}
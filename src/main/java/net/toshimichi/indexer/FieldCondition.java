@@ -0,0 +1,36 @@
+package net.toshimichi.indexer;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Function;
+
+class FieldCondition<E, K> implements Condition<E> {
+
+    private final Function<E, ObservableField<E, K>> function;
+    private final Set<K> values;
+
+    public FieldCondition(Function<E, ObservableField<E, K>> function, Collection<? extends K> values) {
+        this.function = function;
+        this.values = new HashSet<>(values);
+    }
+
+    Function<E, ObservableField<E, K>> function() {
+        return function;
+    }
+
+    Set<K> values() {
+        return values;
+    }
+
+    @Override
+    public boolean test(E element) {
+        return values.contains(function.apply(element).get());
+    }
+
+    @Override
+    public String toString() {
+        if (values.size() == 1) return "equal(" + values.iterator().next() + ")";
+        return "in(" + values + ")";
+    }
+}
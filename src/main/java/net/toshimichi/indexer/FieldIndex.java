@@ -0,0 +1,7 @@
+package net.toshimichi.indexer;
+
+// an index which reads a field or a set of every element, so that queries can find it by the field or the set
+interface FieldIndex<E> {
+
+    Object source(E element);
+}
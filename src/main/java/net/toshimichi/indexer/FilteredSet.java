@@ -0,0 +1,87 @@
+package net.toshimichi.indexer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+class FilteredSet<E> extends DerivedSet<E> implements ElementHandler<E>, ObservableFieldHandler<E, Object>, Instrumented {
+
+    private final Predicate<? super E> predicate;
+    private final Function<E, ? extends ObservableField<E, ?>>[] dependencies;
+
+    public FilteredSet(Predicate<? super E> predicate, int depth, Function<E, ? extends ObservableField<E, ?>>[] dependencies) {
+        super(depth);
+        this.predicate = predicate;
+        this.dependencies = dependencies.clone();
+    }
+
+    private void subscribe(E obj) {
+        for (Function<E, ? extends ObservableField<E, ?>> dependency : dependencies) {
+            ObservableField<E, ?> field = dependency.apply(obj);
+            field.initialize(obj);
+            field.subscribeLate(this);
+        }
+    }
+
+    @Override
+    public void add0(E obj) {
+        subscribe(obj);
+        if (predicate.test(obj)) add1(obj);
+    }
+
+    @Override
+    public void addAll0(Collection<? extends E> objs) {
+        ArrayList<E> accepted = new ArrayList<>();
+        for (E obj : objs) {
+            subscribe(obj);
+            if (predicate.test(obj)) accepted.add(obj);
+        }
+
+        bulkAdd(accepted, false);
+    }
+
+    @Override
+    public boolean remove0(E obj) {
+        boolean result = dependencies.length == 0;
+        for (Function<E, ? extends ObservableField<E, ?>> dependency : dependencies) {
+            result |= dependency.apply(obj).unsubscribe(this);
+        }
+        if (result) remove1(obj);
+        return result;
+    }
+
+    @Override
+    public void removeAll0(Collection<? extends E> objs) {
+        for (E obj : objs) {
+            for (Function<E, ? extends ObservableField<E, ?>> dependency : dependencies) {
+                dependency.apply(obj).unsubscribe(this);
+            }
+        }
+
+        bulkRemove(objs);
+    }
+
+    @Override
+    public void accept(ObservableField<? extends E, ?> field, Object old, Object updated) {
+        E owner = field.getOwner();
+        boolean accepted = predicate.test(owner);
+        if (accepted == contains(owner)) return;
+
+        if (accepted) {
+            add1(owner);
+        } else {
+            remove1(owner);
+        }
+    }
+
+    @Override
+    public void attached(Subscription subscription) {
+        bind(subscription);
+    }
+
+    @Override
+    public void instrument(MetricsSink metrics) {
+        setMetricsSink(metrics);
+    }
+}
@@ -0,0 +1,60 @@
+package net.toshimichi.indexer;
+
+import java.util.Collection;
+import java.util.function.Function;
+
+class FlatBitmapIndexMap<K, V> extends AbstractBitmapIndexMap<K, V> implements ObservableSetHandler<V, K> {
+
+    private final Function<V, ObservableSet<V, K>> function;
+
+    public FlatBitmapIndexMap(Function<V, ObservableSet<V, K>> function, ElementIds<V> ids) {
+        super(ids);
+        this.function = function;
+    }
+
+    @Override
+    public void add0(V obj) {
+        ObservableSet<V, K> set = function.apply(obj);
+        set.initialize(obj);
+        set.subscribe(this);
+        set.forEach(it -> put0(it, obj));
+    }
+
+    @Override
+    public boolean remove0(V obj) {
+        ObservableSet<V, K> set = function.apply(obj);
+        boolean result = set.unsubscribe(this);
+        if (result) {
+            for (K key : set) remove1(key, obj);
+        }
+
+        return result;
+    }
+
+    @Override
+    public void add(ObservableSet<? extends V, ? extends K> set, K element) {
+        put0(element, set.getOwner());
+    }
+
+    @Override
+    public void remove(ObservableSet<? extends V, ? extends K> set, K element) {
+        remove1(element, set.getOwner());
+    }
+
+    @Override
+    public void addAll(ObservableSet<? extends V, ? extends K> set, Collection<? extends K> elements) {
+        V owner = set.getOwner();
+        for (K element : elements) put0(element, owner);
+    }
+
+    @Override
+    public void removeAll(ObservableSet<? extends V, ? extends K> set, Collection<? extends K> elements) {
+        V owner = set.getOwner();
+        for (K element : elements) remove1(element, owner);
+    }
+
+    @Override
+    public Object source(V element) {
+        return function.apply(element);
+    }
+}
@@ -4,24 +4,63 @@ import java.util.AbstractMap;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.function.Function;
 
-class FlatIndexMap<K, V> extends AbstractMap<K, V> implements ObservableSetHandler<V, K> {
+class FlatIndexMap<K, V> extends AbstractMap<K, V> implements CloseableMap<K, V>, ObservableSetHandler<V, K>, ElementHandler<V>, Instrumented, FieldIndex<V> {
 
-    private final HashMap<K, V> internal = new HashMap<>();
+    private Map<K, V> internal;
     private final Function<V, ObservableSet<V, K>> function;
+    private MetricsSink metrics;
+    private Subscription subscription;
 
     public FlatIndexMap(Function<V, ObservableSet<V, K>> function) {
+        this(function, new HashMap<>());
+    }
+
+    FlatIndexMap(Function<V, ObservableSet<V, K>> function, Map<K, V> internal) {
         this.function = function;
+        this.internal = internal;
     }
 
-    private void put0(K key, V value) {
+    void put0(K key, V value) {
         if (internal.containsKey(key)) {
+            if (metrics != null) metrics.rejected(this, key);
             throw new IllegalArgumentException("Duplicated key: " + key);
         }
 
         internal.put(key, value);
+        if (metrics != null) metrics.updated(this, internal.size());
+    }
+
+    void remove1(K key) {
+        internal.remove(key);
+        if (metrics != null) metrics.updated(this, internal.size());
+    }
+
+    @Override
+    public void attached(Subscription subscription) {
+        this.subscription = subscription;
+    }
+
+    @Override
+    public void close() {
+        if (subscription != null) subscription.unsubscribe();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return subscription != null && !subscription.isSubscribed();
+    }
+
+    @Override
+    public void instrument(MetricsSink metrics) {
+        this.metrics = metrics;
+    }
+
+    ObservableSet<V, K> set(V obj) {
+        return function.apply(obj);
     }
 
     public void add0(V obj) {
@@ -31,10 +70,20 @@ class FlatIndexMap<K, V> extends AbstractMap<K, V> implements ObservableSetHandl
         set.forEach(it -> put0(it, obj));
     }
 
+    @Override
+    public void addAll0(Collection<? extends V> objs) {
+        int expected = 0;
+        for (V obj : objs) expected += function.apply(obj).size();
+        internal = Capacity.ensure(internal, expected);
+        for (V obj : objs) add0(obj);
+    }
+
     public boolean remove0(V obj) {
         ObservableSet<V, K> set = function.apply(obj);
         boolean result = set.unsubscribe(this);
-        if (result) set.forEach(internal::remove);
+        if (result) {
+            for (K key : set) remove1(key);
+        }
         return result;
     }
 
@@ -45,7 +94,19 @@ class FlatIndexMap<K, V> extends AbstractMap<K, V> implements ObservableSetHandl
 
     @Override
     public void remove(ObservableSet<? extends V, ? extends K> set, K element) {
-        internal.remove(element);
+        remove1(element);
+    }
+
+    @Override
+    public void addAll(ObservableSet<? extends V, ? extends K> set, Collection<? extends K> elements) {
+        V owner = set.getOwner();
+        internal = Capacity.ensure(internal, elements.size());
+        for (K element : elements) put0(element, owner);
+    }
+
+    @Override
+    public void removeAll(ObservableSet<? extends V, ? extends K> set, Collection<? extends K> elements) {
+        for (K element : elements) remove1(element);
     }
 
     @Override
@@ -85,6 +146,13 @@ class FlatIndexMap<K, V> extends AbstractMap<K, V> implements ObservableSetHandl
 
     @Override
     public V get(Object key) {
-        return internal.get(key);
+        V value = internal.get(key);
+        if (metrics != null) metrics.lookedUp(this, value != null);
+        return value;
+    }
+
+    @Override
+    public Object source(V element) {
+        return function.apply(element);
     }
 }
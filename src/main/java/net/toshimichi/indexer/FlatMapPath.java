@@ -0,0 +1,122 @@
+package net.toshimichi.indexer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * A chain of flat maps from an {@link ObservableSet}, which indexes the elements at its end without
+ * materializing the sets in between.
+ * <p>
+ * Instances of this class are created by {@link ObservableSet#path(Function)} and are immutable.
+ * Compared with {@link ObservableSet#createFlatMap(Function)}, an index created from a path receives the changes
+ * of the nested sets directly, so every change is inserted into the index only once no matter how long the path is.
+ * Like {@link ObservableSet#createFlatMap(Function)}, every element must be reached through only one path,
+ * but this is not verified. The intermediate sets are materialized only by {@link #materialize()}.
+ * <p>
+ * For example, the following index maps factory types to the factories of all nations:
+ * <pre>{@code
+ * Map<FactoryType, Set<Factory>> index = nations.path(Nation::getFactories).createMultiIndex(Factory::getFactoryType);
+ * }</pre>
+ *
+ * @param <E> the type of the elements at the end of this path
+ */
+public final class FlatMapPath<E> {
+
+    private final ObservableSet<?, ?> root;
+    private final List<Function<?, ?>> hops;
+
+    FlatMapPath(ObservableSet<?, ?> root, List<Function<?, ?>> hops) {
+        this.root = root;
+        this.hops = hops;
+    }
+
+    /**
+     * Extends this path with another flat map.
+     *
+     * @param function a function which maps the elements at the end of this path to their sets
+     * @param <K>      the type of the elements of the sets
+     * @return the extended path
+     */
+    public <K> FlatMapPath<K> flatMap(Function<E, ObservableSet<E, K>> function) {
+        ArrayList<Function<?, ?>> extended = new ArrayList<>(hops);
+        extended.add(function);
+        return new FlatMapPath<>(root, List.copyOf(extended));
+    }
+
+    /**
+     * Creates an index which maps elements to their owners at the end of this path.
+     *
+     * @param function a function which maps the owners to their elements
+     * @param <K>      the type of the elements in the index
+     * @return the index
+     * @see ObservableSet#createIndex(Function)
+     */
+    public <K> CloseableMap<K, E> createIndex(Function<E, ObservableField<E, K>> function) {
+        IndexMap<K, E> map = new IndexMap<>(function);
+        attach(map);
+        return map;
+    }
+
+    /**
+     * Creates an index which maps elements to their owners at the end of this path.
+     *
+     * @param function a function which maps the owners to their elements
+     * @param <K>      the type of the elements in the index
+     * @return the index
+     * @see ObservableSet#createMultiIndex(Function)
+     */
+    public <K> CloseableMap<K, Set<E>> createMultiIndex(Function<E, ObservableField<E, K>> function) {
+        MultiIndexMap<K, E> map = new MultiIndexMap<>(function);
+        attach(map);
+        return map;
+    }
+
+    /**
+     * Creates an index which maps elements to their owners at the end of this path.
+     *
+     * @param function a function which maps the owners to their elements
+     * @param <K>      the type of the elements in the index
+     * @return the index
+     * @see ObservableSet#createFlatIndex(Function)
+     */
+    public <K> CloseableMap<K, E> createFlatIndex(Function<E, ObservableSet<E, K>> function) {
+        FlatIndexMap<K, E> map = new FlatIndexMap<>(function);
+        attach(map);
+        return map;
+    }
+
+    /**
+     * Creates an index which maps elements to their owners at the end of this path.
+     *
+     * @param function a function which maps the owners to their elements
+     * @param <K>      the type of the elements in the index
+     * @return the index
+     * @see ObservableSet#createFlatMultiIndex(Function)
+     */
+    public <K> CloseableMap<K, Set<E>> createFlatMultiIndex(Function<E, ObservableSet<E, K>> function) {
+        FlatMultiIndexMap<K, E> map = new FlatMultiIndexMap<>(function);
+        attach(map);
+        return map;
+    }
+
+    /**
+     * Creates the sets along this path with {@link ObservableSet#createFlatMap(Function)}.
+     *
+     * @return the set of the elements at the end of this path
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public DerivedSet<E> materialize() {
+        ObservableSet set = root;
+        for (Function hop : hops) set = set.createFlatMap(hop);
+        return (DerivedSet<E>) set;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void attach(ElementHandler<E> index) {
+        ElementHandler handler = index;
+        for (int i = hops.size() - 1; i >= 0; i--) handler = new PathStage(hops.get(i), handler);
+        root.attach(handler);
+    }
+}
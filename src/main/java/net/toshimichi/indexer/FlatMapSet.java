@@ -1,80 +1,107 @@
 package net.toshimichi.indexer;
 
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.function.Function;
 
-class FlatMapSet<K, V> extends ObservableSet<Object, V> implements ObservableSetHandler<K, V> {
+class FlatMapSet<K, V> extends DerivedSet<V> implements ObservableSetHandler<K, V>, ElementHandler<K>, Instrumented {
 
     private final Function<K, ObservableSet<K, V>> function;
 
-    public FlatMapSet(Function<K, ObservableSet<K, V>> function) {
+    public FlatMapSet(Function<K, ObservableSet<K, V>> function, int depth) {
+        super(depth);
         this.function = function;
     }
 
-    private void add1(V key) {
+    private void cascaded(int elements) {
+        MetricsSink metrics = getMetricsSink();
+        if (metrics != null && elements > 0) metrics.cascaded(this, depth(), elements);
+    }
+
+    @Override
+    void add1(V key) {
         if (contains(key)) {
             throw new IllegalArgumentException("Duplicated key: " + key);
         }
-        super.add(key);
+        super.add1(key);
     }
 
     public void add0(K key) {
         ObservableSet<K, V> set = function.apply(key);
         set.initialize(key);
 
-        // cannot be replaced by super#addAll because it causes UnsupportedOperationException
-        set.forEach(super::add);
+        bulkAdd(set, true);
+        cascaded(set.size());
         set.subscribe(this);
     }
 
+    @Override
+    public void addAll0(Collection<? extends K> keys) {
+        ArrayList<V> values = new ArrayList<>();
+        for (K key : keys) {
+            ObservableSet<K, V> set = function.apply(key);
+            set.initialize(key);
+            values.addAll(set);
+        }
+
+        bulkAdd(values, true);
+        cascaded(values.size());
+        for (K key : keys) function.apply(key).subscribe(this);
+    }
+
     public boolean remove0(K key) {
         ObservableSet<K, V> set = function.apply(key);
         boolean result = set.unsubscribe(this);
-        if (result) set.forEach(super::remove);
+        if (result) {
+            bulkRemove(set);
+            cascaded(set.size());
+        }
         return result;
     }
 
+    @Override
+    public void removeAll0(Collection<? extends K> keys) {
+        ArrayList<V> values = new ArrayList<>();
+        for (K key : keys) {
+            ObservableSet<K, V> set = function.apply(key);
+            if (set.unsubscribe(this)) values.addAll(set);
+        }
+
+        bulkRemove(values);
+        cascaded(values.size());
+    }
+
     @Override
     public void add(ObservableSet<? extends K, ? extends V> set, V element) {
         add1(element);
+        cascaded(1);
     }
 
     @Override
     public void remove(ObservableSet<? extends K, ? extends V> set, V element) {
-        super.remove(element);
+        remove1(element);
+        cascaded(1);
     }
 
     @Override
-    public boolean add(V v) {
-        throw new UnsupportedOperationException();
+    public void addAll(ObservableSet<? extends K, ? extends V> set, Collection<? extends V> elements) {
+        bulkAdd(elements, true);
+        cascaded(elements.size());
     }
 
     @Override
-    public boolean remove(Object o) {
-        throw new UnsupportedOperationException();
+    public void removeAll(ObservableSet<? extends K, ? extends V> set, Collection<? extends V> elements) {
+        bulkRemove(elements);
+        cascaded(elements.size());
     }
 
     @Override
-    public Iterator<V> iterator() {
-        return new ImmutableIterator<>(super.iterator());
+    public void attached(Subscription subscription) {
+        bind(subscription);
     }
 
-    private static class ImmutableIterator<E> implements Iterator<E> {
-
-        private final Iterator<E> internal;
-
-        public ImmutableIterator(Iterator<E> internal) {
-            this.internal = internal;
-        }
-
-        @Override
-        public boolean hasNext() {
-            return internal.hasNext();
-        }
-
-        @Override
-        public E next() {
-            return internal.next();
-        }
+    @Override
+    public void instrument(MetricsSink metrics) {
+        setMetricsSink(metrics);
     }
 }
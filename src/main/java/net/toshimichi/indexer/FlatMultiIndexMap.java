@@ -4,21 +4,41 @@ import java.util.AbstractMap;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.function.Function;
 
-class FlatMultiIndexMap<K, V> extends AbstractMap<K, Set<V>> implements ObservableSetHandler<V, K> {
+class FlatMultiIndexMap<K, V> extends AbstractMap<K, Set<V>> implements CloseableMap<K, Set<V>>, ObservableSetHandler<V, K>, ElementHandler<V>, Instrumented, FieldIndex<V> {
 
-    private final HashMap<K, Set<V>> internal = new HashMap<>();
+    private Map<K, Set<V>> internal;
     private final Function<V, ObservableSet<V, K>> function;
+    private MetricsSink metrics;
+    private Subscription subscription;
 
     public FlatMultiIndexMap(Function<V, ObservableSet<V, K>> function) {
+        this(function, new HashMap<>());
+    }
+
+    FlatMultiIndexMap(Function<V, ObservableSet<V, K>> function, Map<K, Set<V>> internal) {
         this.function = function;
+        this.internal = internal;
     }
 
-    private void put0(K key, V value) {
-        internal.computeIfAbsent(key, k -> new HashSet<>()).add(value);
+    Set<V> newSet() {
+        return new CompactSet<>();
+    }
+
+    void put0(K key, V value) {
+        Set<V> set = internal.get(key);
+        if (set == null) {
+            set = newSet();
+            internal.put(key, set);
+        }
+        if (set.add(value) && metrics != null) metrics.updated(this, internal.size());
+    }
+
+    ObservableSet<V, K> set(V obj) {
+        return function.apply(obj);
     }
 
     public void add0(V obj) {
@@ -28,20 +48,52 @@ class FlatMultiIndexMap<K, V> extends AbstractMap<K, Set<V>> implements Observab
         set.forEach(it -> put0(it, obj));
     }
 
+    @Override
+    public void addAll0(Collection<? extends V> objs) {
+        int expected = 0;
+        for (V obj : objs) expected += function.apply(obj).size();
+        internal = Capacity.ensure(internal, expected);
+        for (V obj : objs) add0(obj);
+    }
+
     public boolean remove0(V obj) {
         ObservableSet<V, K> set = function.apply(obj);
         boolean result = set.unsubscribe(this);
         if (result) {
-            for (K key : set) {
-                Collection<V> collection = internal.get(key);
-                collection.remove(obj);
-                if (collection.isEmpty()) internal.remove(key);
-            }
+            for (K key : set) remove1(key, obj);
         }
 
         return result;
     }
 
+    void remove1(K key, V value) {
+        Collection<V> collection = internal.get(key);
+        if (collection == null) return;
+        if (!collection.remove(value)) return;
+        if (collection.isEmpty()) internal.remove(key);
+        if (metrics != null) metrics.updated(this, internal.size());
+    }
+
+    @Override
+    public void attached(Subscription subscription) {
+        this.subscription = subscription;
+    }
+
+    @Override
+    public void close() {
+        if (subscription != null) subscription.unsubscribe();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return subscription != null && !subscription.isSubscribed();
+    }
+
+    @Override
+    public void instrument(MetricsSink metrics) {
+        this.metrics = metrics;
+    }
+
     @Override
     public void add(ObservableSet<? extends V, ? extends K> set, K element) {
         put0(element, set.getOwner());
@@ -49,9 +101,20 @@ class FlatMultiIndexMap<K, V> extends AbstractMap<K, Set<V>> implements Observab
 
     @Override
     public void remove(ObservableSet<? extends V, ? extends K> set, K element) {
-        Collection<V> collection = internal.get(element);
-        collection.remove(set.getOwner());
-        if (collection.isEmpty()) internal.remove(element);
+        remove1(element, set.getOwner());
+    }
+
+    @Override
+    public void addAll(ObservableSet<? extends V, ? extends K> set, Collection<? extends K> elements) {
+        V owner = set.getOwner();
+        internal = Capacity.ensure(internal, elements.size());
+        for (K element : elements) put0(element, owner);
+    }
+
+    @Override
+    public void removeAll(ObservableSet<? extends V, ? extends K> set, Collection<? extends K> elements) {
+        V owner = set.getOwner();
+        for (K element : elements) remove1(element, owner);
     }
 
     @Override
@@ -72,6 +135,7 @@ class FlatMultiIndexMap<K, V> extends AbstractMap<K, Set<V>> implements Observab
     @Override
     public Set<V> get(Object key) {
         Set<V> set = internal.get(key);
+        if (metrics != null) metrics.lookedUp(this, set != null);
         if (set == null) return null;
         return Collections.unmodifiableSet(set);
     }
@@ -95,4 +159,9 @@ class FlatMultiIndexMap<K, V> extends AbstractMap<K, Set<V>> implements Observab
     public boolean containsKey(Object key) {
         return internal.containsKey(key);
     }
+
+    @Override
+    public Object source(V element) {
+        return function.apply(element);
+    }
 }
@@ -0,0 +1,65 @@
+package net.toshimichi.indexer;
+
+import java.util.List;
+import java.util.concurrent.Flow;
+
+// delivers the events of a dispatcher to a subscriber in chunks, one chunk per requested item
+final class FlowChannel<C> implements Flow.Subscription {
+
+    private final Flow.Subscriber<? super List<C>> subscriber;
+    private final int batchSize;
+    private AsyncDispatcher<?> dispatcher;
+
+    // guarded by this
+    private long demand;
+
+    FlowChannel(Flow.Subscriber<? super List<C>> subscriber, int batchSize) {
+        this.subscriber = subscriber;
+        this.batchSize = batchSize;
+    }
+
+    void bind(AsyncDispatcher<?> dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    synchronized int limit() {
+        return demand >= Integer.MAX_VALUE / batchSize ? Integer.MAX_VALUE : (int) demand * batchSize;
+    }
+
+    // called by the dispatcher, which never delivers more events than the limit or delivers concurrently
+    void deliver(List<C> changes) {
+        for (int start = 0; start < changes.size() && dispatcher.isSubscribed(); start += batchSize) {
+            synchronized (this) {
+                demand--;
+            }
+            try {
+                subscriber.onNext(List.copyOf(changes.subList(start, Math.min(start + batchSize, changes.size()))));
+            } catch (Throwable e) {
+                // a failed subscriber receives nothing but the error
+                cancel();
+                subscriber.onError(e);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            // signalled by the dispatcher, so that the error never overlaps a delivery
+            IllegalArgumentException error = new IllegalArgumentException("Requested items must be positive: " + n);
+            dispatcher.unsubscribe(() -> subscriber.onError(error));
+            return;
+        }
+
+        synchronized (this) {
+            demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+        }
+        dispatcher.resume();
+    }
+
+    @Override
+    public void cancel() {
+        dispatcher.unsubscribe();
+    }
+}
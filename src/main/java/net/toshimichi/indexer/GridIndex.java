@@ -0,0 +1,250 @@
+package net.toshimichi.indexer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+class GridIndex<K, V> implements SpatialIndex<V>, ObservableFieldHandler<V, K>, ElementHandler<V> {
+
+    private Map<Long, Set<V>> cells = new HashMap<>();
+    private final Function<V, ObservableField<V, K>> function;
+    private final ToIntFunction<K> x;
+    private final ToIntFunction<K> y;
+    private final int cellSize;
+    private int size;
+    private Subscription subscription;
+
+    public GridIndex(Function<V, ObservableField<V, K>> function, ToIntFunction<K> x, ToIntFunction<K> y, int cellSize) {
+        if (cellSize <= 0) {
+            throw new IllegalArgumentException("Cell size must be positive: " + cellSize);
+        }
+
+        this.function = function;
+        this.x = x;
+        this.y = y;
+        this.cellSize = cellSize;
+    }
+
+    private static long pack(int cellX, int cellY) {
+        return ((long) cellX << 32) | (cellY & 0xffffffffL);
+    }
+
+    private static int unpackX(long cell) {
+        return (int) (cell >> 32);
+    }
+
+    private static int unpackY(long cell) {
+        return (int) cell;
+    }
+
+    private long cellOf(K key) {
+        return pack(Math.floorDiv(x.applyAsInt(key), cellSize), Math.floorDiv(y.applyAsInt(key), cellSize));
+    }
+
+    private void put0(long cell, V value) {
+        if (cells.computeIfAbsent(cell, k -> new HashSet<>()).add(value)) size++;
+    }
+
+    private void remove1(long cell, V value) {
+        Set<V> set = cells.get(cell);
+        if (set == null || !set.remove(value)) return;
+        if (set.isEmpty()) cells.remove(cell);
+        size--;
+    }
+
+    @Override
+    public void attached(Subscription subscription) {
+        this.subscription = subscription;
+    }
+
+    @Override
+    public void close() {
+        if (subscription != null) subscription.unsubscribe();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return subscription != null && !subscription.isSubscribed();
+    }
+
+    public void add0(V obj) {
+        ObservableField<V, K> field = function.apply(obj);
+        field.initialize(obj);
+        field.subscribe(this);
+
+        K key = field.get();
+        if (key == null) return;
+        put0(cellOf(key), obj);
+    }
+
+    @Override
+    public void addAll0(Collection<? extends V> objs) {
+        cells = Capacity.ensure(cells, objs.size());
+        for (V obj : objs) add0(obj);
+    }
+
+    public boolean remove0(V obj) {
+        ObservableField<V, K> field = function.apply(obj);
+        boolean result = field.unsubscribe(this);
+        if (result) {
+            K key = field.get();
+            if (key != null) remove1(cellOf(key), obj);
+        }
+
+        return result;
+    }
+
+    @Override
+    public void accept(ObservableField<? extends V, ? extends K> field, K old, K updated) {
+        long oldCell = old == null ? 0 : cellOf(old);
+        long updatedCell = updated == null ? 0 : cellOf(updated);
+        if (old != null && updated != null && oldCell == updatedCell) return;
+
+        V owner = field.getOwner();
+        if (old != null) remove1(oldCell, owner);
+        if (updated != null) put0(updatedCell, owner);
+    }
+
+    private long distanceSquared(V value, int px, int py) {
+        K key = function.apply(value).get();
+        long dx = (long) x.applyAsInt(key) - px;
+        long dy = (long) y.applyAsInt(key) - py;
+        return dx * dx + dy * dy;
+    }
+
+    @Override
+    public Set<V> getWithinRectangle(int minX, int minY, int maxX, int maxY) {
+        HashSet<V> result = new HashSet<>();
+        int minCellX = Math.floorDiv(minX, cellSize);
+        int minCellY = Math.floorDiv(minY, cellSize);
+        int maxCellX = Math.floorDiv(maxX, cellSize);
+        int maxCellY = Math.floorDiv(maxY, cellSize);
+        if (minCellX > maxCellX || minCellY > maxCellY) return result;
+
+        long area = ((long) maxCellX - minCellX + 1) * ((long) maxCellY - minCellY + 1);
+        if (area > cells.size()) {
+            for (Map.Entry<Long, Set<V>> entry : cells.entrySet()) {
+                int cellX = unpackX(entry.getKey());
+                int cellY = unpackY(entry.getKey());
+                if (cellX < minCellX || cellX > maxCellX || cellY < minCellY || cellY > maxCellY) continue;
+                collect(entry.getValue(), minX, minY, maxX, maxY, result);
+            }
+        } else {
+            for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+                for (int cellY = minCellY; cellY <= maxCellY; cellY++) {
+                    Set<V> set = cells.get(pack(cellX, cellY));
+                    if (set != null) collect(set, minX, minY, maxX, maxY, result);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private void collect(Set<V> set, int minX, int minY, int maxX, int maxY, Set<V> result) {
+        for (V value : set) {
+            K key = function.apply(value).get();
+            int px = x.applyAsInt(key);
+            int py = y.applyAsInt(key);
+            if (px >= minX && px <= maxX && py >= minY && py <= maxY) result.add(value);
+        }
+    }
+
+    @Override
+    public Set<V> getWithinRadius(int x, int y, double radius) {
+        if (radius < 0) return new HashSet<>();
+
+        int r = (int) Math.min(Math.ceil(radius), Integer.MAX_VALUE);
+        int minX = (int) Math.max((long) x - r, Integer.MIN_VALUE);
+        int minY = (int) Math.max((long) y - r, Integer.MIN_VALUE);
+        int maxX = (int) Math.min((long) x + r, Integer.MAX_VALUE);
+        int maxY = (int) Math.min((long) y + r, Integer.MAX_VALUE);
+
+        double limit = radius * radius;
+        Set<V> result = getWithinRectangle(minX, minY, maxX, maxY);
+        result.removeIf(it -> distanceSquared(it, x, y) > limit);
+        return result;
+    }
+
+    @Override
+    public List<V> getNearest(int x, int y, int count) {
+        if (count <= 0 || size == 0) return new ArrayList<>();
+
+        // max-heap of the best candidates found so far
+        PriorityQueue<Candidate<V>> heap = new PriorityQueue<>(Comparator.comparingLong((Candidate<V> it) -> it.distance).reversed());
+        int centerX = Math.floorDiv(x, cellSize);
+        int centerY = Math.floorDiv(y, cellSize);
+        int visited = 0;
+
+        for (int ring = 0; visited < size; ring++) {
+            // scanning every cell is cheaper than probing a ring which is mostly empty
+            if (ring > 0 && 8L * ring > cells.size()) {
+                for (Map.Entry<Long, Set<V>> entry : cells.entrySet()) {
+                    int dx = Math.abs(unpackX(entry.getKey()) - centerX);
+                    int dy = Math.abs(unpackY(entry.getKey()) - centerY);
+                    if (Math.max(dx, dy) < ring) continue;
+                    offer(entry.getValue(), x, y, count, heap);
+                }
+                break;
+            }
+
+            for (int cellX = centerX - ring; cellX <= centerX + ring; cellX++) {
+                boolean edge = cellX == centerX - ring || cellX == centerX + ring;
+                int step = edge ? 1 : Math.max(1, 2 * ring);
+                for (int cellY = centerY - ring; cellY <= centerY + ring; cellY += step) {
+                    Set<V> set = cells.get(pack(cellX, cellY));
+                    if (set == null) continue;
+                    visited += set.size();
+                    offer(set, x, y, count, heap);
+                }
+            }
+
+            // every element outside of this ring is at least ring * cellSize away
+            long reach = (long) ring * cellSize;
+            if (heap.size() == count && heap.peek().distance <= reach * reach) break;
+        }
+
+        ArrayList<V> result = new ArrayList<>(heap.size());
+        while (!heap.isEmpty()) result.add(heap.poll().value);
+        for (int i = 0, j = result.size() - 1; i < j; i++, j--) {
+            result.set(i, result.set(j, result.get(i)));
+        }
+        return result;
+    }
+
+    private void offer(Set<V> set, int x, int y, int count, PriorityQueue<Candidate<V>> heap) {
+        for (V value : set) {
+            long distance = distanceSquared(value, x, y);
+            if (heap.size() < count) {
+                heap.add(new Candidate<>(value, distance));
+            } else if (distance < heap.peek().distance) {
+                heap.poll();
+                heap.add(new Candidate<>(value, distance));
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private static class Candidate<V> {
+
+        private final V value;
+        private final long distance;
+
+        public Candidate(V value, long distance) {
+            this.value = value;
+            this.distance = distance;
+        }
+    }
+}
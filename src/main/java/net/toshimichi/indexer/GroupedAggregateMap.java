@@ -0,0 +1,161 @@
+package net.toshimichi.indexer;
+
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+class GroupedAggregateMap<K, E> extends AbstractMap<K, Aggregate> implements CloseableMap<K, Aggregate>, ElementHandler<E> {
+
+    private Map<K, Group> internal = new HashMap<>();
+    private final Function<E, ObservableField<E, K>> keyFunction;
+    private final Function<E, ObservableField<E, ? extends Number>> valueFunction;
+    private final KeyHandler keyHandler = new KeyHandler();
+    private final ValueHandler valueHandler = new ValueHandler();
+    private Subscription subscription;
+
+    public GroupedAggregateMap(Function<E, ObservableField<E, K>> keyFunction,
+                               Function<E, ObservableField<E, ? extends Number>> valueFunction) {
+        this.keyFunction = keyFunction;
+        this.valueFunction = valueFunction;
+    }
+
+    private void put0(K key, Number value) {
+        if (key == null) return;
+        Group group = internal.get(key);
+        if (group == null) {
+            group = new Group();
+            internal.put(key, group);
+        }
+        group.count++;
+        group.sum.add(value);
+    }
+
+    private void remove1(K key, Number value) {
+        if (key == null) return;
+        Group group = internal.get(key);
+        if (group == null) return;
+        group.sum.subtract(value);
+        if (--group.count == 0) internal.remove(key);
+    }
+
+    @Override
+    public void attached(Subscription subscription) {
+        this.subscription = subscription;
+    }
+
+    @Override
+    public void close() {
+        if (subscription != null) subscription.unsubscribe();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return subscription != null && !subscription.isSubscribed();
+    }
+
+    @Override
+    public void add0(E obj) {
+        ObservableField<E, K> key = keyFunction.apply(obj);
+        key.initialize(obj);
+        key.subscribe(keyHandler);
+
+        ObservableField<E, ? extends Number> value = valueFunction.apply(obj);
+        value.initialize(obj);
+        value.subscribe(valueHandler);
+
+        put0(key.get(), value.get());
+    }
+
+    @Override
+    public void addAll0(Collection<? extends E> objs) {
+        internal = Capacity.ensure(internal, objs.size());
+        for (E obj : objs) add0(obj);
+    }
+
+    @Override
+    public boolean remove0(E obj) {
+        ObservableField<E, K> key = keyFunction.apply(obj);
+        ObservableField<E, ? extends Number> value = valueFunction.apply(obj);
+        boolean result = key.unsubscribe(keyHandler);
+        result &= value.unsubscribe(valueHandler);
+        if (result) remove1(key.get(), value.get());
+        return result;
+    }
+
+    @Override
+    public Set<Entry<K, Aggregate>> entrySet() {
+        return Collections.<K, Aggregate>unmodifiableMap(internal).entrySet();
+    }
+
+    @Override
+    public Aggregate get(Object key) {
+        return internal.get(key);
+    }
+
+    @Override
+    public int size() {
+        return internal.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return internal.isEmpty();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return internal.containsKey(key);
+    }
+
+    private static class Group implements Aggregate {
+
+        private final Sum sum = new Sum();
+        private int count;
+
+        @Override
+        public int getCount() {
+            return count;
+        }
+
+        @Override
+        public double getSum() {
+            return sum.get();
+        }
+
+        @Override
+        public double getAverage() {
+            return sum.get() / count;
+        }
+
+        @Override
+        public String toString() {
+            return "Aggregate{count=" + count + ", sum=" + sum.get() + "}";
+        }
+    }
+
+    private class KeyHandler implements ObservableFieldHandler<E, K> {
+
+        @Override
+        public void accept(ObservableField<? extends E, ? extends K> field, K old, K updated) {
+            Number value = valueFunction.apply(field.getOwner()).get();
+            remove1(old, value);
+            put0(updated, value);
+        }
+    }
+
+    private class ValueHandler implements ObservableFieldHandler<E, Number> {
+
+        @Override
+        public void accept(ObservableField<? extends E, ? extends Number> field, Number old, Number updated) {
+            K key = keyFunction.apply(field.getOwner()).get();
+            if (key == null) return;
+            Group group = internal.get(key);
+            group.sum.subtract(old);
+            group.sum.add(updated);
+        }
+    }
+}
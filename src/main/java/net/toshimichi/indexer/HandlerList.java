@@ -0,0 +1,89 @@
+package net.toshimichi.indexer;
+
+final class HandlerList<H> {
+
+    private static final Registration<?>[] EMPTY = new Registration<?>[0];
+
+    // replaced on every subscription, so that a dispatch in progress keeps iterating the array it started with
+    private volatile Registration<H>[] registrations;
+    private int dead;
+
+    @SuppressWarnings("unchecked")
+    HandlerList() {
+        this.registrations = (Registration<H>[]) EMPTY;
+    }
+
+    Registration<H>[] snapshot() {
+        return registrations;
+    }
+
+    int size() {
+        return registrations.length - dead;
+    }
+
+    synchronized Registration<H> add(H handler) {
+        Registration<H>[] current = registrations;
+        Registration<H> registration = new Registration<>(this, handler);
+
+        @SuppressWarnings("unchecked")
+        Registration<H>[] updated = (Registration<H>[]) new Registration<?>[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = registration;
+        registrations = updated;
+        return registration;
+    }
+
+    synchronized boolean remove(H handler) {
+        for (Registration<H> registration : registrations) {
+            H h = registration.handler;
+            if (h == null || !h.equals(handler)) continue;
+            remove(registration);
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized void remove(Registration<H> registration) {
+        if (registration.handler == null) return;
+        registration.handler = null;
+
+        // compact only when more than half of the slots are dead, which keeps unsubscribing amortized O(1)
+        dead++;
+        if (dead * 2 <= registrations.length) return;
+
+        Registration<H>[] current = registrations;
+        @SuppressWarnings("unchecked")
+        Registration<H>[] updated = (Registration<H>[]) new Registration<?>[current.length - dead];
+        int index = 0;
+        for (Registration<H> r : current) {
+            if (r.handler != null) updated[index++] = r;
+        }
+        registrations = updated;
+        dead = 0;
+    }
+
+    static final class Registration<H> implements Subscription {
+
+        private final HandlerList<H> list;
+        private volatile H handler;
+
+        private Registration(HandlerList<H> list, H handler) {
+            this.list = list;
+            this.handler = handler;
+        }
+
+        H handler() {
+            return handler;
+        }
+
+        @Override
+        public void unsubscribe() {
+            list.remove(this);
+        }
+
+        @Override
+        public boolean isSubscribed() {
+            return handler != null;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package net.toshimichi.indexer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Function;
+
+/**
+ * This class builds several indexes of an {@link ObservableSet} in one pass over the set.
+ * <p>
+ * The set is split into chunks which are indexed in parallel, and the partial results are merged into
+ * presized indexes. The indexes get updated like any other index once {@link #build()} returns.
+ * The set must not be modified while the indexes are built.
+ * <pre>{@code
+ * IndexBuilder<Nation> builder = nations.indexBuilder();
+ * Map<Vec2i, Nation> headquarterIndex = builder.addIndex(Nation::getHeadquarter);
+ * Map<Vec2i, Set<Nation>> startIndex = builder.addMultiIndex(Nation::getStart);
+ * builder.build();
+ * }</pre>
+ *
+ * @param <E> the type of the indexed elements
+ * @see ObservableSet#indexBuilder()
+ */
+public class IndexBuilder<E> {
+
+    // chunks smaller than this are not worth a task
+    private static final int MIN_CHUNK = 1024;
+
+    private final ObservableSet<?, E> set;
+    private final List<Definition<E, ?>> definitions = new ArrayList<>();
+    private boolean built;
+
+    IndexBuilder(ObservableSet<?, E> set) {
+        this.set = set;
+    }
+
+    private void checkNotBuilt() {
+        if (built) {
+            throw new IllegalStateException("Already built");
+        }
+    }
+
+    /**
+     * Adds an index which works exactly the same as one created by {@link ObservableSet#createIndex(Function)}.
+     * <p>
+     * The returned index is empty until {@link #build()} is called.
+     *
+     * @param function a function which maps the owners to their elements
+     * @param <K>      the type of the elements in the index
+     * @return the index
+     * @throws IllegalStateException if the indexes are already built
+     */
+    public <K> CloseableMap<K, E> addIndex(Function<E, ObservableField<E, K>> function) {
+        checkNotBuilt();
+        IndexMap<K, E> map = set.newIndexMap(function);
+        definitions.add(new IndexDefinition<>(map));
+        return map;
+    }
+
+    /**
+     * Adds an index which works exactly the same as one created by {@link ObservableSet#createMultiIndex(Function)}.
+     * <p>
+     * The returned index is empty until {@link #build()} is called.
+     *
+     * @param function a function which maps the owners to their elements
+     * @param <K>      the type of the elements in the index
+     * @return the index
+     * @throws IllegalStateException if the indexes are already built
+     */
+    public <K> CloseableMap<K, Set<E>> addMultiIndex(Function<E, ObservableField<E, K>> function) {
+        checkNotBuilt();
+        MultiIndexMap<K, E> map = set.newMultiIndexMap(function);
+        definitions.add(new MultiIndexDefinition<>(map));
+        return map;
+    }
+
+    /**
+     * Builds the added indexes on the common fork/join pool.
+     *
+     * @throws IllegalStateException    if the indexes are already built
+     * @throws IllegalArgumentException if an index which does not allow duplicated elements has duplicated elements
+     */
+    public void build() {
+        build(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Builds the added indexes on the specified fork/join pool.
+     * <p>
+     * If the build fails, the added indexes are detached from the elements and this builder cannot be built again.
+     *
+     * @param pool the pool
+     * @throws IllegalStateException    if the indexes are already built
+     * @throws IllegalArgumentException if an index which does not allow duplicated elements has duplicated elements
+     */
+    public void build(ForkJoinPool pool) {
+        checkNotBuilt();
+        built = true;
+
+        set.exclusive(() -> {
+            @SuppressWarnings("unchecked")
+            E[] elements = (E[]) set.toArray();
+            try {
+                build(pool, elements);
+            } catch (RuntimeException e) {
+                // the passes subscribe every index to the fields of every element before the keys are checked
+                for (Definition<E, ?> definition : definitions) {
+                    ElementHandler<E> handler = definition.handler();
+                    for (E element : elements) handler.remove0(element);
+                }
+                throw e;
+            }
+
+            for (Definition<E, ?> definition : definitions) {
+                set.adopt(definition.handler());
+            }
+        });
+    }
+
+    private void build(ForkJoinPool pool, E[] elements) {
+        int threshold = Math.max(MIN_CHUNK, elements.length / (pool.getParallelism() * 4));
+        List<Object[]> partials = pool.invoke(new Pass(elements, 0, elements.length, threshold));
+
+        // every definition merges into its own index, so they can be merged in parallel
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                ArrayList<RecursiveAction> merges = new ArrayList<>(definitions.size());
+                for (int i = 0; i < definitions.size(); i++) {
+                    Definition<E, ?> definition = definitions.get(i);
+                    int index = i;
+                    merges.add(new RecursiveAction() {
+                        @Override
+                        protected void compute() {
+                            definition.mergeUnchecked(partials, index);
+                        }
+                    });
+                }
+                invokeAll(merges);
+            }
+        });
+    }
+
+    @SuppressWarnings("serial")
+    private class Pass extends RecursiveTask<List<Object[]>> {
+
+        private final E[] elements;
+        private final int from;
+        private final int to;
+        private final int threshold;
+
+        private Pass(E[] elements, int from, int to, int threshold) {
+            this.elements = elements;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected List<Object[]> compute() {
+            if (to - from <= threshold) {
+                Object[] partials = new Object[definitions.size()];
+                for (int i = 0; i < partials.length; i++) {
+                    partials[i] = definitions.get(i).newPartial(to - from);
+                }
+                for (int i = from; i < to; i++) {
+                    for (int j = 0; j < partials.length; j++) {
+                        definitions.get(j).accumulateUnchecked(partials[j], elements[i]);
+                    }
+                }
+                return Collections.singletonList(partials);
+            }
+
+            int middle = (from + to) >>> 1;
+            Pass left = new Pass(elements, from, middle, threshold);
+            left.fork();
+            List<Object[]> right = new Pass(elements, middle, to, threshold).compute();
+            ArrayList<Object[]> result = new ArrayList<>(left.join());
+            result.addAll(right);
+            return result;
+        }
+    }
+
+    private abstract static class Definition<E, P> {
+
+        abstract P newPartial(int size);
+
+        abstract void accumulate(P partial, E element);
+
+        abstract void merge(List<P> partials);
+
+        abstract ElementHandler<E> handler();
+
+        @SuppressWarnings("unchecked")
+        void accumulateUnchecked(Object partial, E element) {
+            accumulate((P) partial, element);
+        }
+
+        @SuppressWarnings("unchecked")
+        void mergeUnchecked(List<Object[]> partials, int index) {
+            ArrayList<P> own = new ArrayList<>(partials.size());
+            for (Object[] p : partials) own.add((P) p[index]);
+            merge(own);
+        }
+    }
+
+    private static class IndexDefinition<K, E> extends Definition<E, HashMap<K, E>> {
+
+        private final IndexMap<K, E> map;
+
+        private IndexDefinition(IndexMap<K, E> map) {
+            this.map = map;
+        }
+
+        @Override
+        HashMap<K, E> newPartial(int size) {
+            return new HashMap<>(Capacity.of(size));
+        }
+
+        @Override
+        void accumulate(HashMap<K, E> partial, E element) {
+            K key = map.observe(element);
+            if (partial.putIfAbsent(key, element) != null) {
+                throw new IllegalArgumentException("Duplicated key: " + key);
+            }
+        }
+
+        @Override
+        void merge(List<HashMap<K, E>> partials) {
+            map.putAll0(partials);
+        }
+
+        @Override
+        ElementHandler<E> handler() {
+            return map;
+        }
+    }
+
+    private static class MultiIndexDefinition<K, E> extends Definition<E, HashMap<K, List<E>>> {
+
+        private final MultiIndexMap<K, E> map;
+
+        private MultiIndexDefinition(MultiIndexMap<K, E> map) {
+            this.map = map;
+        }
+
+        @Override
+        HashMap<K, List<E>> newPartial(int size) {
+            return new HashMap<>();
+        }
+
+        @Override
+        void accumulate(HashMap<K, List<E>> partial, E element) {
+            K key = map.observe(element);
+            if (key == null) return;
+            partial.computeIfAbsent(key, k -> new ArrayList<>()).add(element);
+        }
+
+        @Override
+        void merge(List<HashMap<K, List<E>>> partials) {
+            map.putAll0(partials);
+        }
+
+        @Override
+        ElementHandler<E> handler() {
+            return map;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package net.toshimichi.indexer;
+
+import java.util.concurrent.locks.StampedLock;
+
+final class IndexLock {
+
+    private final StampedLock lock = new StampedLock();
+    private Thread writer;
+
+    long beginWrite() {
+        // handlers may re-enter the index while it is being updated
+        if (writer == Thread.currentThread()) return 0;
+        long stamp = lock.writeLock();
+        writer = Thread.currentThread();
+        return stamp;
+    }
+
+    void endWrite(long stamp) {
+        if (stamp == 0) return;
+        writer = null;
+        lock.unlockWrite(stamp);
+    }
+
+    long beginOptimisticRead() {
+        return lock.tryOptimisticRead();
+    }
+
+    boolean validate(long stamp) {
+        return lock.validate(stamp) || writer == Thread.currentThread();
+    }
+
+    long beginRead() {
+        return lock.readLock();
+    }
+
+    void endRead(long stamp) {
+        lock.unlockRead(stamp);
+    }
+}
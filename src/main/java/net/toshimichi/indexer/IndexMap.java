@@ -4,84 +4,236 @@ import java.util.AbstractMap;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.function.Function;
 
-class IndexMap<K, V> extends AbstractMap<K, V> implements ObservableFieldHandler<V, K> {
+class IndexMap<K, V> extends AbstractMap<K, V> implements CloseableMap<K, V>, ObservableFieldHandler<V, K>, ElementHandler<V>, Mirrored, Instrumented, FieldIndex<V> {
 
-    private final HashMap<K, V> internal = new HashMap<>();
+    // marks an element which is not in the index yet
+    private static final Object ABSENT = new Object();
+
+    private Map<K, V> internal;
     private final Function<V, ObservableField<V, K>> function;
 
+    // maps dirty elements to the keys they are indexed with, null if the index is eager
+    private final Map<V, Object> dirty;
+
+    // null until the first snapshot is taken
+    private PersistentMap<K, V> mirror;
+    private MetricsSink metrics;
+    private Subscription subscription;
+
     public IndexMap(Function<V, ObservableField<V, K>> function) {
+        this(function, IndexMode.EAGER);
+    }
+
+    public IndexMap(Function<V, ObservableField<V, K>> function, IndexMode mode) {
+        this(function, new HashMap<>(), mode);
+    }
+
+    IndexMap(Function<V, ObservableField<V, K>> function, Map<K, V> internal) {
+        this(function, internal, IndexMode.EAGER);
+    }
+
+    private IndexMap(Function<V, ObservableField<V, K>> function, Map<K, V> internal, IndexMode mode) {
         this.function = function;
+        this.internal = internal;
+        this.dirty = mode == IndexMode.LAZY ? new HashMap<>() : null;
     }
 
-    private void put0(K key, V value) {
+    void put0(K key, V value) {
         if (internal.containsKey(key)) {
+            if (metrics != null) metrics.rejected(this, key);
             throw new IllegalArgumentException("Duplicated key: " + key);
         }
 
         internal.put(key, value);
+        if (mirror != null) mirror = mirror.put(key, value);
+        if (metrics != null) metrics.updated(this, internal.size());
+    }
+
+    void remove1(K key) {
+        internal.remove(key);
+        if (mirror != null) mirror = mirror.remove(key);
+        if (metrics != null) metrics.updated(this, internal.size());
+    }
+
+    @Override
+    public void attached(Subscription subscription) {
+        this.subscription = subscription;
+    }
+
+    @Override
+    public void close() {
+        if (subscription != null) subscription.unsubscribe();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return subscription != null && !subscription.isSubscribed();
+    }
+
+    @Override
+    public void instrument(MetricsSink metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Map<?, ?> freeze() {
+        reconcile();
+        if (mirror == null) mirror = PersistentMap.of(internal);
+        return mirror.asMap();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void reconcile() {
+        if (dirty == null || dirty.isEmpty()) return;
+
+        // vacate every old key first, so that elements can swap their keys
+        for (Entry<V, Object> entry : dirty.entrySet()) {
+            if (entry.getValue() != ABSENT) remove1((K) entry.getValue());
+            entry.setValue(ABSENT);
+        }
+
+        // an element stays dirty until it is indexed, so a duplicated key does not drop the elements after it
+        Iterator<V> iterator = dirty.keySet().iterator();
+        while (iterator.hasNext()) {
+            V obj = iterator.next();
+            put0(function.apply(obj).get(), obj);
+            iterator.remove();
+        }
+    }
+
+    ObservableField<V, K> field(V obj) {
+        return function.apply(obj);
+    }
+
+    // subscribes to the field of the element and returns its key, can be called from multiple threads
+    K observe(V obj) {
+        ObservableField<V, K> field = function.apply(obj);
+        field.initialize(obj);
+        field.subscribe(this);
+        return field.get();
     }
 
     public void add0(V obj) {
+        K key = observe(obj);
+        if (dirty != null) {
+            dirty.put(obj, ABSENT);
+        } else {
+            put0(key, obj);
+        }
+    }
+
+    void putAll0(List<? extends Map<K, V>> partials) {
+        int size = 0;
+        for (Map<K, V> partial : partials) size += partial.size();
+        internal = Capacity.ensure(internal, size);
+
+        for (Map<K, V> partial : partials) {
+            for (Entry<K, V> entry : partial.entrySet()) put0(entry.getKey(), entry.getValue());
+        }
+    }
+
+    void restore(V obj, K key) {
         ObservableField<V, K> field = function.apply(obj);
         field.initialize(obj);
+        if (!Objects.equals(field.get(), key)) {
+            throw new IllegalStateException("Snapshot is out of date: " + obj);
+        }
         field.subscribe(this);
-        put0(field.get(), obj);
+        put0(key, obj);
+    }
+
+    @Override
+    public void addAll0(Collection<? extends V> objs) {
+        internal = Capacity.ensure(internal, objs.size());
+        for (V obj : objs) add0(obj);
     }
 
+    @SuppressWarnings("unchecked")
     public boolean remove0(V obj) {
         ObservableField<V, K> field = function.apply(obj);
         boolean result = field.unsubscribe(this);
-        if (result) internal.remove(field.get());
-        return result;
+        if (!result) return false;
+
+        if (dirty != null && dirty.containsKey(obj)) {
+            Object key = dirty.remove(obj);
+            if (key != ABSENT) remove1((K) key);
+        } else {
+            remove1(field.get());
+        }
+        return true;
     }
 
     @Override
     public void accept(ObservableField<? extends V, ? extends K> field, K old, K updated) {
         V owner = field.getOwner();
-        internal.remove(old);
+        if (dirty != null) {
+            if (!dirty.containsKey(owner)) dirty.put(owner, old);
+            return;
+        }
+
+        remove1(old);
         put0(updated, owner);
     }
 
     @Override
     public Set<Entry<K, V>> entrySet() {
+        reconcile();
         return Collections.unmodifiableSet(internal.entrySet());
     }
 
     @Override
     public Set<K> keySet() {
+        reconcile();
         return Collections.unmodifiableSet(internal.keySet());
     }
 
     @Override
     public Collection<V> values() {
+        reconcile();
         return Collections.unmodifiableCollection(internal.values());
     }
 
     @Override
     public int size() {
+        reconcile();
         return internal.size();
     }
 
     @Override
     public boolean isEmpty() {
+        reconcile();
         return internal.isEmpty();
     }
 
     @Override
     public boolean containsValue(Object value) {
+        reconcile();
         return internal.containsValue(value);
     }
 
     @Override
     public boolean containsKey(Object key) {
+        reconcile();
         return internal.containsKey(key);
     }
 
     @Override
     public V get(Object key) {
-        return internal.get(key);
+        reconcile();
+        V value = internal.get(key);
+        if (metrics != null) metrics.lookedUp(this, value != null);
+        return value;
+    }
+
+    @Override
+    public Object source(V element) {
+        return function.apply(element);
     }
 }
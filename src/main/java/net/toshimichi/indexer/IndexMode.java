@@ -0,0 +1,25 @@
+package net.toshimichi.indexer;
+
+/**
+ * This enum specifies when an index reflects changes of the indexed fields.
+ *
+ * @see ObservableSet#createIndex(java.util.function.Function, IndexMode)
+ * @see ObservableSet#createMultiIndex(java.util.function.Function, IndexMode)
+ */
+public enum IndexMode {
+
+    /**
+     * The index is updated as soon as a field or the set changes.
+     */
+    EAGER,
+
+    /**
+     * Changes only mark the affected elements as dirty, and the index is updated on the next read.
+     * <p>
+     * This mode is suitable for fields which change many times between two reads, because the index only pays
+     * for the latest value of each element. Errors such as duplicated keys are reported by the read
+     * which updates the index instead of by the change. Collections returned by {@code keySet()},
+     * {@code values()} and {@code entrySet()} reflect the index at the time they are obtained.
+     */
+    LAZY
+}
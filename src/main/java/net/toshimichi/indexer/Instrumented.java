@@ -0,0 +1,7 @@
+package net.toshimichi.indexer;
+
+// an index or a set which reports to the metrics sink of the set it is created from
+interface Instrumented {
+
+    void instrument(MetricsSink metrics);
+}
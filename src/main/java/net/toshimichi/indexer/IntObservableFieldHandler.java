@@ -0,0 +1,19 @@
+package net.toshimichi.indexer;
+
+/**
+ * This interface is used to handle updates of an {@link IntObservableField}.
+ *
+ * @param <O> the type of the owner of the field
+ */
+@FunctionalInterface
+public interface IntObservableFieldHandler<O> {
+
+    /**
+     * Called when the value of the field is updated.
+     *
+     * @param field   the field
+     * @param old     the old value
+     * @param updated the updated value
+     */
+    void accept(IntObservableField<? extends O> field, int old, int updated);
+}
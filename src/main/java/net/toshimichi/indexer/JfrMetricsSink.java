@@ -0,0 +1,149 @@
+package net.toshimichi.indexer;
+
+import jdk.jfr.Category;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A {@link MetricsSink} which emits JDK Flight Recorder events.
+ * <p>
+ * Dispatch, rejection and cascade events are enabled by default. Lookup and update events are disabled by default
+ * because they are emitted for every lookup and update, and can be enabled in the recording settings.
+ * This class requires the {@code jdk.jfr} module at run time.
+ */
+public class JfrMetricsSink implements MetricsSink {
+
+    /**
+     * Creates a new sink.
+     */
+    public JfrMetricsSink() {
+    }
+
+    private static String name(Object o) {
+        return o.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(o));
+    }
+
+    @Override
+    public void dispatched(Object source, Object handler, long nanos) {
+        DispatchEvent event = new DispatchEvent();
+        if (!event.isEnabled()) return;
+        event.source = name(source);
+        event.handler = name(handler);
+        event.latency = nanos;
+        event.commit();
+    }
+
+    @Override
+    public void lookedUp(Object index, boolean hit) {
+        LookupEvent event = new LookupEvent();
+        if (!event.isEnabled()) return;
+        event.index = name(index);
+        event.hit = hit;
+        event.commit();
+    }
+
+    @Override
+    public void updated(Object index, int size) {
+        UpdateEvent event = new UpdateEvent();
+        if (!event.isEnabled()) return;
+        event.index = name(index);
+        event.size = size;
+        event.commit();
+    }
+
+    @Override
+    public void rejected(Object index, Object key) {
+        RejectionEvent event = new RejectionEvent();
+        if (!event.isEnabled()) return;
+        event.index = name(index);
+        event.key = String.valueOf(key);
+        event.commit();
+    }
+
+    @Override
+    public void cascaded(Object set, int depth, int elements) {
+        CascadeEvent event = new CascadeEvent();
+        if (!event.isEnabled()) return;
+        event.set = name(set);
+        event.depth = depth;
+        event.elements = elements;
+        event.commit();
+    }
+
+    @Name("net.toshimichi.indexer.Dispatch")
+    @Label("Handler Dispatch")
+    @Category("Indexer")
+    @StackTrace(false)
+    static class DispatchEvent extends Event {
+
+        @Label("Source")
+        String source;
+
+        @Label("Handler")
+        String handler;
+
+        @Label("Latency")
+        @Timespan
+        long latency;
+    }
+
+    @Name("net.toshimichi.indexer.Lookup")
+    @Label("Index Lookup")
+    @Category("Indexer")
+    @StackTrace(false)
+    @Enabled(false)
+    static class LookupEvent extends Event {
+
+        @Label("Index")
+        String index;
+
+        @Label("Hit")
+        boolean hit;
+    }
+
+    @Name("net.toshimichi.indexer.Update")
+    @Label("Index Update")
+    @Category("Indexer")
+    @StackTrace(false)
+    @Enabled(false)
+    static class UpdateEvent extends Event {
+
+        @Label("Index")
+        String index;
+
+        @Label("Size")
+        int size;
+    }
+
+    @Name("net.toshimichi.indexer.Rejection")
+    @Label("Duplicated Key Rejection")
+    @Category("Indexer")
+    static class RejectionEvent extends Event {
+
+        @Label("Index")
+        String index;
+
+        @Label("Key")
+        String key;
+    }
+
+    @Name("net.toshimichi.indexer.Cascade")
+    @Label("Flat Map Cascade")
+    @Category("Indexer")
+    @StackTrace(false)
+    static class CascadeEvent extends Event {
+
+        @Label("Set")
+        String set;
+
+        @Label("Depth")
+        int depth;
+
+        @Label("Elements")
+        int elements;
+    }
+}
@@ -0,0 +1,58 @@
+package net.toshimichi.indexer;
+
+/**
+ * An index keyed by primitive {@code long} values.
+ * <p>
+ * Instances of this interface are created by {@link ObservableSet#createLongIndex(java.util.function.Function)}
+ * and automatically get updated when the set or the indexed fields change. Lookups do not box the key.
+ *
+ * @param <E> the type of the indexed elements
+ */
+public interface LongIndex<E> extends AutoCloseable {
+
+    /**
+     * Gets the element mapped to the specified key.
+     *
+     * @param key the key
+     * @return the element, or {@code null} if no element is mapped to the key
+     */
+    E get(long key);
+
+    /**
+     * Checks whether an element is mapped to the specified key.
+     *
+     * @param key the key
+     * @return true if an element is mapped to the key
+     */
+    boolean containsKey(long key);
+
+    /**
+     * Gets the number of indexed elements.
+     *
+     * @return the number of indexed elements
+     */
+    int size();
+
+    /**
+     * Checks whether this index is empty.
+     *
+     * @return true if no element is indexed
+     */
+    boolean isEmpty();
+
+    /**
+     * Detaches this index from the set it is created from and from the fields of the elements.
+     * <p>
+     * This method takes linear time in the number of elements of the set.
+     * This index becomes empty and is no longer updated. Calling this method more than once has no effect.
+     */
+    @Override
+    void close();
+
+    /**
+     * Checks whether this index is closed.
+     *
+     * @return true if this index is detached from the set
+     */
+    boolean isClosed();
+}
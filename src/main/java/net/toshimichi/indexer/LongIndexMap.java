@@ -0,0 +1,154 @@
+package net.toshimichi.indexer;
+
+import java.util.Collection;
+import java.util.function.Function;
+
+class LongIndexMap<V> implements LongIndex<V>, LongObservableFieldHandler<V>, ElementHandler<V> {
+
+    private static final int MINIMUM_CAPACITY = 16;
+
+    // open addressing with linear probing, a slot is empty when its value is null
+    private long[] keys = new long[MINIMUM_CAPACITY];
+    private Object[] values = new Object[MINIMUM_CAPACITY];
+    private int shift = 64 - Integer.numberOfTrailingZeros(MINIMUM_CAPACITY);
+    private int size;
+    private final Function<V, LongObservableField<V>> function;
+    private Subscription subscription;
+
+    public LongIndexMap(Function<V, LongObservableField<V>> function) {
+        this.function = function;
+    }
+
+    private int slot(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    private int find(long key) {
+        int mask = values.length - 1;
+        for (int i = slot(key); values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) return i;
+        }
+        return -1;
+    }
+
+    private void ensure(int expected) {
+        // keep the load factor at or below 0.5
+        if (expected * 2L <= values.length) return;
+
+        int capacity = Integer.highestOneBit((int) Math.min(expected * 2L, 1 << 30) - 1) << 1;
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+
+        int mask = capacity - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] == null) continue;
+            int j = slot(oldKeys[i]);
+            while (values[j] != null) j = (j + 1) & mask;
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+        }
+    }
+
+    private void put0(long key, V value) {
+        if (find(key) >= 0) {
+            throw new IllegalArgumentException("Duplicated key: " + key);
+        }
+
+        ensure(size + 1);
+        int mask = values.length - 1;
+        int i = slot(key);
+        while (values[i] != null) i = (i + 1) & mask;
+        keys[i] = key;
+        values[i] = value;
+        size++;
+    }
+
+    private void remove1(long key) {
+        int i = find(key);
+        if (i < 0) return;
+
+        // shift the following entries back so that no probe sequence is broken
+        int mask = values.length - 1;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (values[j] == null) break;
+            int home = slot(keys[j]);
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+
+        values[i] = null;
+        size--;
+    }
+
+    @Override
+    public void attached(Subscription subscription) {
+        this.subscription = subscription;
+    }
+
+    @Override
+    public void close() {
+        if (subscription != null) subscription.unsubscribe();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return subscription != null && !subscription.isSubscribed();
+    }
+
+    public void add0(V obj) {
+        LongObservableField<V> field = function.apply(obj);
+        field.initialize(obj);
+        field.subscribe(this);
+        put0(field.get(), obj);
+    }
+
+    @Override
+    public void addAll0(Collection<? extends V> objs) {
+        ensure(size + objs.size());
+        for (V obj : objs) add0(obj);
+    }
+
+    public boolean remove0(V obj) {
+        LongObservableField<V> field = function.apply(obj);
+        boolean result = field.unsubscribe(this);
+        if (result) remove1(field.get());
+        return result;
+    }
+
+    @Override
+    public void accept(LongObservableField<? extends V> field, long old, long updated) {
+        V owner = field.getOwner();
+        remove1(old);
+        put0(updated, owner);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V get(long key) {
+        int i = find(key);
+        return i < 0 ? null : (V) values[i];
+    }
+
+    @Override
+    public boolean containsKey(long key) {
+        return find(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
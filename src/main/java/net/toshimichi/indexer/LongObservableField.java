@@ -0,0 +1,103 @@
+package net.toshimichi.indexer;
+
+/**
+ * A variant of {@link ObservableField} which holds a primitive {@code long} value.
+ * <p>
+ * Neither updates nor notifications box the value, so updating this field and the indexes created by
+ * {@link ObservableSet#createLongIndex(java.util.function.Function)} does not allocate.
+ * <p>
+ * This class must be initialized by calling {@link #initialize(Object)} before using it.
+ * However, initialization is automatically done by {@link ObservableSet} so in most cases you don't have to
+ * manually call {@link #initialize(Object)}.
+ *
+ * @param <O> The type of the owner of this field.
+ */
+public class LongObservableField<O> {
+
+    private O owner;
+    private long value;
+    private final HandlerList<LongObservableFieldHandler<? super O>> handlers = new HandlerList<>();
+
+    /**
+     * Creates a new instance of this class.
+     *
+     * @param value the initial value of this field
+     */
+    public LongObservableField(long value) {
+        this.value = value;
+    }
+
+    /**
+     * Gets the owner of this field.
+     *
+     * @return the owner of this field
+     * @throws IllegalStateException if this set is not initialized
+     */
+    public O getOwner() {
+        if (owner == null) {
+            throw new IllegalStateException("Not initialized");
+        }
+        return owner;
+    }
+
+    /**
+     * Initializes this field.
+     *
+     * @param owner the owner of this field
+     * @throws IllegalStateException if this field is already initialized and the owner is different
+     */
+    public void initialize(O owner) {
+        if (this.owner != null) {
+            if (this.owner.equals(owner)) return;
+            throw new IllegalStateException("Already initialized");
+        }
+
+        this.owner = owner;
+    }
+
+    /**
+     * Gets the value of this field.
+     *
+     * @return the value of this field
+     */
+    public long get() {
+        return value;
+    }
+
+    /**
+     * Sets the value of this field.
+     *
+     * @param value the value of this field
+     */
+    public void set(long value) {
+        long old = this.value;
+        this.value = value;
+        for (HandlerList.Registration<LongObservableFieldHandler<? super O>> registration : handlers.snapshot()) {
+            LongObservableFieldHandler<? super O> handler = registration.handler();
+            if (handler != null) handler.accept(this, old, value);
+        }
+    }
+
+    /**
+     * Subscribes a handler to this field.
+     *
+     * @param handler the handler to subscribe
+     * @return the subscription which can be used to unsubscribe the handler
+     */
+    public Subscription subscribe(LongObservableFieldHandler<? super O> handler) {
+        return handlers.add(handler);
+    }
+
+    /**
+     * Unsubscribes a handler from this field.
+     * <p>
+     * This method takes linear time in the number of subscribed handlers.
+     * Use {@link Subscription#unsubscribe()} to unsubscribe in constant time.
+     *
+     * @param handler the handler to unsubscribe
+     * @return true if the handler was subscribed to this field
+     */
+    public boolean unsubscribe(LongObservableFieldHandler<? super O> handler) {
+        return handlers.remove(handler);
+    }
+}
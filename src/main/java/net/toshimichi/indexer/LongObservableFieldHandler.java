@@ -0,0 +1,19 @@
+package net.toshimichi.indexer;
+
+/**
+ * This interface is used to handle updates of an {@link LongObservableField}.
+ *
+ * @param <O> the type of the owner of the field
+ */
+@FunctionalInterface
+public interface LongObservableFieldHandler<O> {
+
+    /**
+     * Called when the value of the field is updated.
+     *
+     * @param field   the field
+     * @param old     the old value
+     * @param updated the updated value
+     */
+    void accept(LongObservableField<? extends O> field, long old, long updated);
+}
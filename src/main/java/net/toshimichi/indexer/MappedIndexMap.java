@@ -0,0 +1,209 @@
+package net.toshimichi.indexer;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+
+// an index restored from a snapshot, which serves lookups from the mapped table
+// and keeps the keys changed since the restoration on the heap
+class MappedIndexMap<K, V> extends AbstractMap<K, V> implements CloseableMap<K, V>, ObservableFieldHandler<V, K>, ElementHandler<V>, Mirrored, Instrumented, FieldIndex<V> {
+
+    private final MappedTable<K> table;
+    private final List<V> elements;
+    private final Function<V, ObservableField<V, K>> function;
+
+    // the keys changed since the restoration, mapped to null if they are no longer in this index
+    private final HashMap<K, V> overlay = new HashMap<>();
+    private int size;
+
+    // null until the first snapshot is taken
+    private PersistentMap<K, V> mirror;
+    private MetricsSink metrics;
+    private Subscription subscription;
+
+    MappedIndexMap(MappedTable<K> table, List<V> elements, Function<V, ObservableField<V, K>> function) {
+        this.table = table;
+        this.elements = elements;
+        this.function = function;
+        this.size = table.size();
+    }
+
+    private boolean present(Object key) {
+        if (overlay.containsKey(key)) return overlay.get(key) != null;
+        return table.find(key) >= 0;
+    }
+
+    private V lookup(Object key) {
+        if (overlay.containsKey(key)) return overlay.get(key);
+        int entry = table.find(key);
+        if (entry < 0) return null;
+
+        // the field has been observed since the restoration, so a mismatch means that the snapshot was out of date
+        V value = elements.get(table.id(entry, 0));
+        if (!Objects.equals(function.apply(value).get(), key)) {
+            throw new IllegalStateException("Snapshot is out of date: " + value);
+        }
+        return value;
+    }
+
+    private void put0(K key, V value) {
+        if (present(key)) {
+            if (metrics != null) metrics.rejected(this, key);
+            throw new IllegalArgumentException("Duplicated key: " + key);
+        }
+
+        overlay.put(key, value);
+        size++;
+        if (mirror != null) mirror = mirror.put(key, value);
+        if (metrics != null) metrics.updated(this, size);
+    }
+
+    private void remove1(K key) {
+        if (!present(key)) return;
+        overlay.put(key, null);
+        size--;
+        if (mirror != null) mirror = mirror.remove(key);
+        if (metrics != null) metrics.updated(this, size);
+    }
+
+    @Override
+    public void attached(Subscription subscription) {
+        this.subscription = subscription;
+    }
+
+    @Override
+    public void close() {
+        if (subscription != null) subscription.unsubscribe();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return subscription != null && !subscription.isSubscribed();
+    }
+
+    @Override
+    public void instrument(MetricsSink metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Map<?, ?> freeze() {
+        if (mirror == null) mirror = PersistentMap.of(this);
+        return mirror.asMap();
+    }
+
+    // subscribes to the field of an element in the snapshot, which is the only work done for each element
+    void observe(V obj) {
+        ObservableField<V, K> field = function.apply(obj);
+        field.initialize(obj);
+        field.subscribe(this);
+    }
+
+    @Override
+    public void add0(V obj) {
+        observe(obj);
+        put0(function.apply(obj).get(), obj);
+    }
+
+    @Override
+    public boolean remove0(V obj) {
+        ObservableField<V, K> field = function.apply(obj);
+        boolean result = field.unsubscribe(this);
+        if (result) remove1(field.get());
+        return result;
+    }
+
+    @Override
+    public void accept(ObservableField<? extends V, ? extends K> field, K old, K updated) {
+        V owner = field.getOwner();
+        remove1(old);
+        put0(updated, owner);
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return present(key);
+    }
+
+    @Override
+    public V get(Object key) {
+        V value = lookup(key);
+        if (metrics != null) metrics.lookedUp(this, value != null);
+        return value;
+    }
+
+    @Override
+    public Object source(V element) {
+        return function.apply(element);
+    }
+
+    // visits the entries of the table whose keys are unchanged, and then the changed keys
+    private class EntryIterator implements Iterator<Entry<K, V>> {
+
+        private final Iterator<Entry<K, V>> changed = overlay.entrySet().iterator();
+        private int entry = table.first();
+        private Entry<K, V> next;
+
+        private EntryIterator() {
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && entry < table.end()) {
+                K key = table.key(entry);
+                if (!overlay.containsKey(key)) next = new SimpleImmutableEntry<>(key, elements.get(table.id(entry, 0)));
+                entry = table.next(entry);
+            }
+            while (next == null && changed.hasNext()) {
+                Entry<K, V> change = changed.next();
+                if (change.getValue() != null) next = new SimpleImmutableEntry<>(change);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<K, V> next() {
+            if (next == null) throw new NoSuchElementException();
+            Entry<K, V> result = next;
+            advance();
+            return result;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package net.toshimichi.indexer;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+
+// a multi index restored from a snapshot, which copies the elements of a key from the mapped table
+// to the heap when the key is first looked up or changed
+class MappedMultiIndexMap<K, V> extends AbstractMap<K, Set<V>> implements CloseableMap<K, Set<V>>, ObservableFieldHandler<V, K>, ElementHandler<V>, Mirrored, Instrumented, FieldIndex<V> {
+
+    private final MappedTable<K> table;
+    private final List<V> elements;
+    private final Function<V, ObservableField<V, K>> function;
+
+    // the keys copied from the table, whose sets are kept even when they become empty so that the table is not read again
+    private final HashMap<K, Set<V>> overlay = new HashMap<>();
+    private int size;
+
+    // null until the first snapshot is taken
+    private PersistentMap<K, PersistentMap<V, V>> mirror;
+    private MetricsSink metrics;
+    private Subscription subscription;
+
+    MappedMultiIndexMap(MappedTable<K> table, List<V> elements, Function<V, ObservableField<V, K>> function) {
+        this.table = table;
+        this.elements = elements;
+        this.function = function;
+        this.size = table.size();
+    }
+
+    private V element(int entry, int index, Object key, V changed) {
+        // the field has been observed since the restoration, so a mismatch means that the snapshot was out of date
+        V value = elements.get(table.id(entry, index));
+        if (value != changed && !Objects.equals(function.apply(value).get(), key)) {
+            throw new IllegalStateException("Snapshot is out of date: " + value);
+        }
+        return value;
+    }
+
+    // returns the set of the key, or null if the key is neither in the table nor on the heap,
+    // where the changed element is the one whose field is being updated from the key
+    @SuppressWarnings("unchecked")
+    private Set<V> group(Object key, V changed) {
+        Set<V> set = overlay.get(key);
+        if (set != null || key == null) return set;
+
+        int entry = table.find(key);
+        if (entry < 0) return null;
+        set = new CompactSet<>();
+        for (int i = 0; i < table.count(entry); i++) set.add(element(entry, i, key, changed));
+        overlay.put((K) key, set);
+        return set;
+    }
+
+    private void put0(K key, V value) {
+        Set<V> set = group(key, null);
+        if (set == null) {
+            set = new CompactSet<>();
+            overlay.put(key, set);
+        }
+        if (set.isEmpty()) size++;
+        if (!set.add(value)) return;
+        if (mirror != null) {
+            PersistentMap<V, V> values = mirror.get(key);
+            if (values == null) values = PersistentMap.empty();
+            mirror = mirror.put(key, values.put(value, value));
+        }
+        if (metrics != null) metrics.updated(this, size);
+    }
+
+    private void remove1(K key, V value) {
+        Set<V> set = group(key, value);
+        if (set == null || !set.remove(value)) return;
+        if (set.isEmpty()) size--;
+        if (metrics != null) metrics.updated(this, size);
+
+        if (mirror == null) return;
+        PersistentMap<V, V> values = mirror.get(key).remove(value);
+        mirror = values.size() == 0 ? mirror.remove(key) : mirror.put(key, values);
+    }
+
+    @Override
+    public void attached(Subscription subscription) {
+        this.subscription = subscription;
+    }
+
+    @Override
+    public void close() {
+        if (subscription != null) subscription.unsubscribe();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return subscription != null && !subscription.isSubscribed();
+    }
+
+    @Override
+    public void instrument(MetricsSink metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Map<?, ?> freeze() {
+        if (mirror == null) {
+            mirror = PersistentMap.empty();
+            for (Entry<K, Set<V>> entry : entrySet()) {
+                mirror = mirror.put(entry.getKey(), PersistentMap.of(entry.getValue()));
+            }
+        }
+        return mirror.asMap(PersistentMap::asSet);
+    }
+
+    // subscribes to the field of an element in the snapshot, which is the only work done for each element
+    void observe(V obj) {
+        ObservableField<V, K> field = function.apply(obj);
+        field.initialize(obj);
+        field.subscribe(this);
+    }
+
+    @Override
+    public void add0(V obj) {
+        observe(obj);
+        K key = function.apply(obj).get();
+        if (key != null) put0(key, obj);
+    }
+
+    @Override
+    public boolean remove0(V obj) {
+        ObservableField<V, K> field = function.apply(obj);
+        boolean result = field.unsubscribe(this);
+        if (result && field.get() != null) remove1(field.get(), obj);
+        return result;
+    }
+
+    @Override
+    public void accept(ObservableField<? extends V, ? extends K> field, K old, K updated) {
+        V owner = field.getOwner();
+        if (old != null) remove1(old, owner);
+        if (updated != null) put0(updated, owner);
+    }
+
+    @Override
+    public Set<Entry<K, Set<V>>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<K, Set<V>>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (key == null) return false;
+        Set<V> set = overlay.get(key);
+        if (set != null) return !set.isEmpty();
+        return table.find(key) >= 0;
+    }
+
+    @Override
+    public Set<V> get(Object key) {
+        Set<V> set = group(key, null);
+        if (set != null && set.isEmpty()) set = null;
+        if (metrics != null) metrics.lookedUp(this, set != null);
+        if (set == null) return null;
+        return Collections.unmodifiableSet(set);
+    }
+
+    @Override
+    public Object source(V element) {
+        return function.apply(element);
+    }
+
+    // the elements of a key which is still only in the table
+    private class TableSet extends AbstractSet<V> {
+
+        private final int entry;
+        private final K key;
+
+        private TableSet(int entry, K key) {
+            this.entry = entry;
+            this.key = key;
+        }
+
+        @Override
+        public Iterator<V> iterator() {
+            return new Iterator<>() {
+                private int index;
+
+                @Override
+                public boolean hasNext() {
+                    return index < size();
+                }
+
+                @Override
+                public V next() {
+                    if (index >= size()) throw new NoSuchElementException();
+                    return element(entry, index++, key, null);
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return table.count(entry);
+        }
+    }
+
+    // visits the keys which are only in the table, and then the keys on the heap
+    private class EntryIterator implements Iterator<Entry<K, Set<V>>> {
+
+        // copied because looking up a key during the iteration moves it to the heap
+        private final HashMap<K, Set<V>> copied = new HashMap<>(overlay);
+        private final Iterator<Entry<K, Set<V>>> iterator = copied.entrySet().iterator();
+        private int entry = table.first();
+        private Entry<K, Set<V>> next;
+
+        private EntryIterator() {
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && entry < table.end()) {
+                K key = table.key(entry);
+                if (!copied.containsKey(key)) next = new SimpleImmutableEntry<>(key, new TableSet(entry, key));
+                entry = table.next(entry);
+            }
+            while (next == null && iterator.hasNext()) {
+                Entry<K, Set<V>> copy = iterator.next();
+                if (!copy.getValue().isEmpty()) {
+                    next = new SimpleImmutableEntry<>(copy.getKey(), Collections.unmodifiableSet(copy.getValue()));
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<K, Set<V>> next() {
+            if (next == null) throw new NoSuchElementException();
+            Entry<K, Set<V>> result = next;
+            advance();
+            return result;
+        }
+    }
+}
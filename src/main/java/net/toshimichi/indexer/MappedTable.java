@@ -0,0 +1,84 @@
+package net.toshimichi.indexer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+// a key-to-ids table of a snapshot, which is read in place and looked up by the encoded bytes of the keys
+class MappedTable<K> {
+
+    private final ByteBuffer buffer;
+    private final SnapshotCodec<K> codec;
+    private final SnapshotWriter.Buffer encoder = new SnapshotWriter.Buffer();
+    private final int size;
+    private final int mask;
+    private final int first;
+
+    // the buffer starts with the type of the table and is validated by the reader
+    MappedTable(ByteBuffer buffer, SnapshotCodec<K> codec) {
+        this.buffer = buffer;
+        this.codec = codec;
+        this.size = buffer.getInt(1);
+        int slots = buffer.getInt(5);
+        this.mask = slots - 1;
+        this.first = SnapshotWriter.TABLE_HEADER_SIZE + slots * SnapshotWriter.SLOT_SIZE;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // returns the offset of the entry of the key, or -1 if the key is not in this table
+    @SuppressWarnings("unchecked")
+    int find(Object key) {
+        try {
+            encoder.encode(codec, (K) key);
+        } catch (ClassCastException e) {
+            return -1;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        int hash = encoder.hash();
+        // the load factor is at most one half, so the probing always reaches an empty slot
+        for (int slot = hash & mask; ; slot = slot + 1 & mask) {
+            int position = SnapshotWriter.TABLE_HEADER_SIZE + slot * SnapshotWriter.SLOT_SIZE;
+            int offset = buffer.getInt(position + 4);
+            if (offset == SnapshotWriter.EMPTY_SLOT) return -1;
+            if (buffer.getInt(position) == hash && encoder.matches(buffer, offset)) return offset;
+        }
+    }
+
+    int first() {
+        return first;
+    }
+
+    // the end of the last entry, which is where the iteration over the entries stops
+    int end() {
+        return buffer.limit();
+    }
+
+    int next(int entry) {
+        return ids(entry) + 4 * count(entry);
+    }
+
+    K key(int entry) {
+        try {
+            return SnapshotReader.read(buffer.duplicate().position(entry), codec);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    int count(int entry) {
+        return buffer.getInt(ids(entry) - 4);
+    }
+
+    int id(int entry, int index) {
+        return buffer.getInt(ids(entry) + 4 * index);
+    }
+
+    private int ids(int entry) {
+        return entry + 8 + buffer.getInt(entry);
+    }
+}
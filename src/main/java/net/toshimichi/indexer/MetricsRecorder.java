@@ -0,0 +1,137 @@
+package net.toshimichi.indexer;
+
+import java.util.IdentityHashMap;
+
+/**
+ * A {@link MetricsSink} which keeps counters per index and latency histograms per handler in memory.
+ * <p>
+ * Indexes and handlers are distinguished by identity. This class is thread-safe.
+ */
+public class MetricsRecorder implements MetricsSink {
+
+    /**
+     * The number of buckets of the latency histograms.
+     */
+    public static final int BUCKETS = 64;
+
+    private final IdentityHashMap<Object, long[]> indexes = new IdentityHashMap<>();
+    private final IdentityHashMap<Object, long[]> histograms = new IdentityHashMap<>();
+    private int maxCascadeDepth;
+
+    /**
+     * Creates a new recorder with no recorded metrics.
+     */
+    public MetricsRecorder() {
+    }
+
+    // hits, misses, updates, size, rejections
+    private long[] index(Object index) {
+        return indexes.computeIfAbsent(index, k -> new long[5]);
+    }
+
+    @Override
+    public synchronized void dispatched(Object source, Object handler, long nanos) {
+        long[] histogram = histograms.computeIfAbsent(handler, k -> new long[BUCKETS]);
+        histogram[63 - Long.numberOfLeadingZeros(Math.max(nanos, 1))]++;
+    }
+
+    @Override
+    public synchronized void lookedUp(Object index, boolean hit) {
+        index(index)[hit ? 0 : 1]++;
+    }
+
+    @Override
+    public synchronized void updated(Object index, int size) {
+        long[] counters = index(index);
+        counters[2]++;
+        counters[3] = size;
+    }
+
+    @Override
+    public synchronized void rejected(Object index, Object key) {
+        index(index)[4]++;
+    }
+
+    @Override
+    public synchronized void cascaded(Object set, int depth, int elements) {
+        maxCascadeDepth = Math.max(maxCascadeDepth, depth);
+    }
+
+    private synchronized long get(Object index, int counter) {
+        long[] counters = indexes.get(index);
+        return counters == null ? 0 : counters[counter];
+    }
+
+    /**
+     * Gets the number of lookups which found the key.
+     *
+     * @param index the index
+     * @return the number of hits
+     */
+    public long getHits(Object index) {
+        return get(index, 0);
+    }
+
+    /**
+     * Gets the number of lookups which did not find the key.
+     *
+     * @param index the index
+     * @return the number of misses
+     */
+    public long getMisses(Object index) {
+        return get(index, 1);
+    }
+
+    /**
+     * Gets the number of times a key was added to or removed from the index.
+     *
+     * @param index the index
+     * @return the number of updates
+     */
+    public long getUpdates(Object index) {
+        return get(index, 2);
+    }
+
+    /**
+     * Gets the number of keys in the index as of the last update.
+     *
+     * @param index the index
+     * @return the number of keys
+     */
+    public long getSize(Object index) {
+        return get(index, 3);
+    }
+
+    /**
+     * Gets the number of duplicated keys the index rejected.
+     *
+     * @param index the index
+     * @return the number of rejected keys
+     */
+    public long getRejections(Object index) {
+        return get(index, 4);
+    }
+
+    /**
+     * Gets the deepest chain of flat maps a change has passed through.
+     *
+     * @return the depth
+     */
+    public synchronized int getMaxCascadeDepth() {
+        return maxCascadeDepth;
+    }
+
+    /**
+     * Gets the latency histogram of a handler.
+     * <p>
+     * The {@code i}-th bucket counts the notifications which took at least {@code 2^i} and less than
+     * {@code 2^(i+1)} nanoseconds. The first bucket also counts notifications which took less than a nanosecond.
+     *
+     * @param handler the handler
+     * @return a copy of the histogram with {@link #BUCKETS} buckets
+     */
+    public synchronized long[] getHistogram(Object handler) {
+        long[] histogram = histograms.get(handler);
+        return histogram == null ? new long[BUCKETS] : histogram.clone();
+    }
+}
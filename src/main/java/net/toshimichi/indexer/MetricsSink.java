@@ -0,0 +1,65 @@
+package net.toshimichi.indexer;
+
+/**
+ * This interface receives measurements of notifications and index maintenance.
+ * <p>
+ * A sink is registered with {@link ObservableSet#setMetricsSink(MetricsSink)} or
+ * {@link ObservableField#setMetricsSink(MetricsSink)}. Indexes and sets created from a set after
+ * its sink is registered report to the same sink. Nothing is measured when no sink is registered.
+ * <p>
+ * Methods are called synchronously from the thread which modifies or reads the index,
+ * so they should return quickly. Every method does nothing by default.
+ *
+ * @see MetricsRecorder
+ * @see JfrMetricsSink
+ */
+public interface MetricsSink {
+
+    /**
+     * Called after a handler processed a notification.
+     *
+     * @param source  the set or the field which sent the notification
+     * @param handler the handler
+     * @param nanos   the time the handler took in nanoseconds
+     */
+    default void dispatched(Object source, Object handler, long nanos) {
+    }
+
+    /**
+     * Called when a key is looked up in an index.
+     *
+     * @param index the index
+     * @param hit   true if the key was found
+     */
+    default void lookedUp(Object index, boolean hit) {
+    }
+
+    /**
+     * Called after a key of an index is added or removed.
+     *
+     * @param index the index
+     * @param size  the number of keys in the index after the update
+     */
+    default void updated(Object index, int size) {
+    }
+
+    /**
+     * Called when an index which does not allow duplicated keys rejects a key.
+     *
+     * @param index the index
+     * @param key   the rejected key
+     */
+    default void rejected(Object index, Object key) {
+    }
+
+    /**
+     * Called when a set created by {@link ObservableSet#createFlatMap(java.util.function.Function)}
+     * passes on changes of the sets it is created from.
+     *
+     * @param set      the flat-mapped set
+     * @param depth    the number of flat maps between the set and the set the changes come from
+     * @param elements the number of changed elements
+     */
+    default void cascaded(Object set, int depth, int elements) {
+    }
+}
@@ -0,0 +1,10 @@
+package net.toshimichi.indexer;
+
+import java.util.Map;
+
+// an index which can keep a persistent copy of itself for snapshots
+interface Mirrored {
+
+    // starts mirroring on the first call, and returns the current state of the mirror
+    Map<?, ?> freeze();
+}
@@ -0,0 +1,82 @@
+package net.toshimichi.indexer;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Set;
+
+// keeps a persistent copy of the wrapped set up to date
+class MirroredSet<E> extends AbstractSet<E> {
+
+    private final Set<E> internal;
+    private PersistentMap<E, E> mirror;
+
+    public MirroredSet(Set<E> internal) {
+        this.internal = internal;
+        this.mirror = PersistentMap.of(internal);
+    }
+
+    Set<E> freeze() {
+        return mirror.asSet();
+    }
+
+    @Override
+    public boolean add(E e) {
+        if (!internal.add(e)) return false;
+        mirror = mirror.put(e, e);
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!internal.remove(o)) return false;
+        mirror = mirror.remove(o);
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        internal.clear();
+        mirror = PersistentMap.empty();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return internal.contains(o);
+    }
+
+    @Override
+    public int size() {
+        return internal.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return internal.isEmpty();
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        Iterator<E> iterator = internal.iterator();
+        return new Iterator<>() {
+
+            private E current;
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public E next() {
+                current = iterator.next();
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                iterator.remove();
+                mirror = mirror.remove(current);
+            }
+        };
+    }
+}
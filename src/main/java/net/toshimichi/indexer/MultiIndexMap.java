@@ -4,95 +4,267 @@ import java.util.AbstractMap;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.function.Function;
 
-class MultiIndexMap<K, V> extends AbstractMap<K, Set<V>> implements ObservableFieldHandler<V, K> {
+class MultiIndexMap<K, V> extends AbstractMap<K, Set<V>> implements CloseableMap<K, Set<V>>, ObservableFieldHandler<V, K>, ElementHandler<V>, Mirrored, Instrumented, FieldIndex<V> {
 
-    private final HashMap<K, Set<V>> internal = new HashMap<>();
+    // marks an element which is not in the index yet
+    private static final Object ABSENT = new Object();
+
+    private Map<K, Set<V>> internal;
     private final Function<V, ObservableField<V, K>> function;
 
+    // maps dirty elements to the keys they are indexed with, null if the index is eager
+    private final Map<V, Object> dirty;
+
+    // null until the first snapshot is taken
+    private PersistentMap<K, PersistentMap<V, V>> mirror;
+    private MetricsSink metrics;
+    private Subscription subscription;
+
     public MultiIndexMap(Function<V, ObservableField<V, K>> function) {
+        this(function, IndexMode.EAGER);
+    }
+
+    public MultiIndexMap(Function<V, ObservableField<V, K>> function, IndexMode mode) {
+        this(function, new HashMap<>(), mode);
+    }
+
+    MultiIndexMap(Function<V, ObservableField<V, K>> function, Map<K, Set<V>> internal) {
+        this(function, internal, IndexMode.EAGER);
+    }
+
+    private MultiIndexMap(Function<V, ObservableField<V, K>> function, Map<K, Set<V>> internal, IndexMode mode) {
         this.function = function;
+        this.internal = internal;
+        this.dirty = mode == IndexMode.LAZY ? new HashMap<>() : null;
     }
 
-    private void put0(K key, V value) {
-        internal.computeIfAbsent(key, k -> new HashSet<>()).add(value);
+    Set<V> newSet() {
+        return new CompactSet<>();
     }
 
-    public void add0(V obj) {
+    void put0(K key, V value) {
+        Set<V> set = internal.get(key);
+        if (set == null) {
+            set = newSet();
+            internal.put(key, set);
+        }
+        if (!set.add(value)) return;
+        if (mirror != null) mirror0(key, value);
+        if (metrics != null) metrics.updated(this, internal.size());
+    }
+
+    private void mirror0(K key, V value) {
+        PersistentMap<V, V> values = mirror.get(key);
+        if (values == null) values = PersistentMap.empty();
+        mirror = mirror.put(key, values.put(value, value));
+    }
+
+    @Override
+    public Map<?, ?> freeze() {
+        reconcile();
+        if (mirror == null) {
+            mirror = PersistentMap.empty();
+            for (Entry<K, Set<V>> entry : internal.entrySet()) {
+                mirror = mirror.put(entry.getKey(), PersistentMap.of(entry.getValue()));
+            }
+        }
+        return mirror.asMap(PersistentMap::asSet);
+    }
+
+    void remove1(K key, V value) {
+        Collection<V> collection = internal.get(key);
+        if (collection == null) return;
+        if (!collection.remove(value)) return;
+        if (collection.isEmpty()) internal.remove(key);
+        if (metrics != null) metrics.updated(this, internal.size());
+
+        if (mirror == null) return;
+        PersistentMap<V, V> values = mirror.get(key).remove(value);
+        mirror = values.size() == 0 ? mirror.remove(key) : mirror.put(key, values);
+    }
+
+    @Override
+    public void attached(Subscription subscription) {
+        this.subscription = subscription;
+    }
+
+    @Override
+    public void close() {
+        if (subscription != null) subscription.unsubscribe();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return subscription != null && !subscription.isSubscribed();
+    }
+
+    @Override
+    public void instrument(MetricsSink metrics) {
+        this.metrics = metrics;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void reconcile() {
+        if (dirty == null || dirty.isEmpty()) return;
+
+        for (Entry<V, Object> entry : dirty.entrySet()) {
+            Object key = entry.getValue();
+            if (key != ABSENT && key != null) remove1((K) key, entry.getKey());
+            entry.setValue(ABSENT);
+        }
+
+        // an element stays dirty until it is indexed, so a failure does not drop the elements after it
+        Iterator<V> iterator = dirty.keySet().iterator();
+        while (iterator.hasNext()) {
+            V obj = iterator.next();
+            K key = function.apply(obj).get();
+            if (key != null) put0(key, obj);
+            iterator.remove();
+        }
+    }
+
+    ObservableField<V, K> field(V obj) {
+        return function.apply(obj);
+    }
+
+    // subscribes to the field of the element and returns its key, can be called from multiple threads
+    K observe(V obj) {
         ObservableField<V, K> field = function.apply(obj);
         field.initialize(obj);
         field.subscribe(this);
+        return field.get();
+    }
+
+    public void add0(V obj) {
+        K key = observe(obj);
+        if (dirty != null) {
+            dirty.put(obj, ABSENT);
+            return;
+        }
 
-        K key = field.get();
         if (key == null) return;
         put0(key, obj);
     }
 
-    public boolean remove0(V obj) {
-        ObservableField<V, K> field = function.apply(obj);
-        boolean result = field.unsubscribe(this);
-        if (result) {
-            K key = field.get();
-            if (key != null) {
-                Collection<V> collection = internal.get(key);
-                collection.remove(obj);
-                if (collection.isEmpty()) {
-                    internal.remove(key);
+    void putAll0(List<? extends Map<K, ? extends Collection<V>>> partials) {
+        int size = 0;
+        for (Map<K, ? extends Collection<V>> partial : partials) size += partial.size();
+        internal = Capacity.ensure(internal, size);
+
+        for (Map<K, ? extends Collection<V>> partial : partials) {
+            for (Entry<K, ? extends Collection<V>> entry : partial.entrySet()) {
+                Set<V> set = internal.get(entry.getKey());
+                if (set == null) {
+                    set = newSet();
+                    internal.put(entry.getKey(), set);
+                }
+                set.addAll(entry.getValue());
+                if (mirror != null) {
+                    for (V value : entry.getValue()) mirror0(entry.getKey(), value);
                 }
             }
         }
+    }
+
+    void restore(V obj, K key) {
+        ObservableField<V, K> field = function.apply(obj);
+        field.initialize(obj);
+        if (!Objects.equals(field.get(), key)) {
+            throw new IllegalStateException("Snapshot is out of date: " + obj);
+        }
+        field.subscribe(this);
+        if (key != null) put0(key, obj);
+    }
+
+    @Override
+    public void addAll0(Collection<? extends V> objs) {
+        internal = Capacity.ensure(internal, objs.size());
+        for (V obj : objs) add0(obj);
+    }
 
-        return result;
+    @SuppressWarnings("unchecked")
+    public boolean remove0(V obj) {
+        ObservableField<V, K> field = function.apply(obj);
+        boolean result = field.unsubscribe(this);
+        if (!result) return false;
+
+        Object key = dirty != null && dirty.containsKey(obj) ? dirty.remove(obj) : field.get();
+        if (key != ABSENT && key != null) remove1((K) key, obj);
+        return true;
     }
 
     @Override
     public void accept(ObservableField<? extends V, ? extends K> field, K old, K updated) {
-        if (old != null) internal.remove(old);
-        if (updated != null) put0(updated, field.getOwner());
+        V owner = field.getOwner();
+        if (dirty != null) {
+            if (!dirty.containsKey(owner)) dirty.put(owner, old);
+            return;
+        }
+
+        if (old != null) remove1(old, owner);
+        if (updated != null) put0(updated, owner);
     }
 
     @Override
     public Set<Entry<K, Set<V>>> entrySet() {
+        reconcile();
         return Collections.unmodifiableSet(internal.entrySet());
     }
 
     @Override
     public Set<K> keySet() {
+        reconcile();
         return Collections.unmodifiableSet(internal.keySet());
     }
 
     @Override
     public Collection<Set<V>> values() {
+        reconcile();
         return Collections.unmodifiableCollection(internal.values());
     }
 
     @Override
     public Set<V> get(Object key) {
+        reconcile();
         Set<V> set = internal.get(key);
+        if (metrics != null) metrics.lookedUp(this, set != null);
         if (set == null) return null;
         return Collections.unmodifiableSet(set);
     }
 
     @Override
     public int size() {
+        reconcile();
         return internal.size();
     }
 
     @Override
     public boolean isEmpty() {
+        reconcile();
         return internal.isEmpty();
     }
 
     @Override
     public boolean containsValue(Object value) {
+        reconcile();
         return internal.containsValue(value);
     }
 
     @Override
     public boolean containsKey(Object key) {
+        reconcile();
         return internal.containsKey(key);
     }
+
+    @Override
+    public Object source(V element) {
+        return function.apply(element);
+    }
 }
@@ -1,6 +1,9 @@
 package net.toshimichi.indexer;
 
-import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * This class acts as a container of a value and notifies its subscribers when the value is updated.
@@ -15,8 +18,13 @@ import java.util.ArrayList;
 public class ObservableField<O, V> {
 
     private O owner;
-    private V value;
-    private final ArrayList<ObservableFieldHandler<? super O, ? super V>> handlers = new ArrayList<>();
+    // volatile so that concurrent subclasses can read it without locking
+    private volatile V value;
+    private final HandlerList<ObservableFieldHandler<? super O, ? super V>> handlers = new HandlerList<>();
+
+    // notified after the other handlers, so that views change their elements after the indexes on them are updated
+    private HandlerList<ObservableFieldHandler<? super O, ? super V>> lateHandlers;
+    private MetricsSink metrics;
 
     /**
      * Creates a new instance of this class.
@@ -72,25 +80,162 @@ public class ObservableField<O, V> {
     public void set(V value) {
         V old = this.value;
         this.value = value;
-        this.handlers.forEach(it -> it.accept(this, old, value));
+        fire(old, value);
+    }
+
+    void fire(V old, V updated) {
+        fire(handlers, old, updated);
+        HandlerList<ObservableFieldHandler<? super O, ? super V>> late = lateHandlers;
+        if (late != null) fire(late, old, updated);
+    }
+
+    private void fire(HandlerList<ObservableFieldHandler<? super O, ? super V>> list, V old, V updated) {
+        MetricsSink metrics = this.metrics;
+        for (HandlerList.Registration<ObservableFieldHandler<? super O, ? super V>> registration : list.snapshot()) {
+            ObservableFieldHandler<? super O, ? super V> handler = registration.handler();
+            if (handler == null) continue;
+            if (metrics == null) {
+                handler.accept(this, old, updated);
+            } else {
+                long start = System.nanoTime();
+                handler.accept(this, old, updated);
+                metrics.dispatched(this, handler, System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Sets the sink which receives the time each handler takes to process an update of this field.
+     *
+     * @param metrics the sink, or {@code null} to stop measuring
+     * @see MetricsSink
+     */
+    public void setMetricsSink(MetricsSink metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Gets the sink which receives the measurements of this field.
+     *
+     * @return the sink, or {@code null} if this field is not measured
+     */
+    public MetricsSink getMetricsSink() {
+        return metrics;
+    }
+
+    synchronized Subscription subscribeLate(ObservableFieldHandler<? super O, ? super V> handler) {
+        if (lateHandlers == null) lateHandlers = new HandlerList<>();
+        return lateHandlers.add(handler);
     }
 
     /**
      * Subscribes a handler to this field.
+     * <p>
+     * A handler subscribed while a notification is being dispatched does not receive that notification.
+     *
+     * @param handler the handler to subscribe
+     * @return the subscription which can be used to unsubscribe the handler
+     */
+    public Subscription subscribe(ObservableFieldHandler<? super O, ? super V> handler) {
+        return handlers.add(handler);
+    }
+
+    /**
+     * Subscribes a handler to this field and notifies it asynchronously on the common fork/join pool.
      *
      * @param handler the handler to subscribe
+     * @return the subscription which can be used to unsubscribe the handler and to monitor its queue
+     * @see #subscribeAsync(ObservableFieldHandler, Executor, int, OverflowPolicy)
+     */
+    public AsyncSubscription subscribeAsync(ObservableFieldHandler<? super O, ? super V> handler) {
+        return subscribeAsync(handler, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Subscribes a handler to this field and notifies it asynchronously on the specified executor.
+     * <p>
+     * The queue of the handler is unbounded.
+     *
+     * @param handler  the handler to subscribe
+     * @param executor the executor which notifies the handler
+     * @return the subscription which can be used to unsubscribe the handler and to monitor its queue
+     * @see #subscribeAsync(ObservableFieldHandler, Executor, int, OverflowPolicy)
+     */
+    public AsyncSubscription subscribeAsync(ObservableFieldHandler<? super O, ? super V> handler, Executor executor) {
+        return subscribeAsync(handler, executor, Integer.MAX_VALUE, OverflowPolicy.DROP_NEWEST);
+    }
+
+    /**
+     * Subscribes a handler to this field and notifies it asynchronously on the specified executor.
+     * <p>
+     * Updates of this field only enqueue the notifications, which are delivered in order and in batches
+     * by a task submitted to the executor. The handler is never called concurrently,
+     * but it may be called from different threads.
+     *
+     * @param handler  the handler to subscribe
+     * @param executor the executor which notifies the handler
+     * @param capacity the maximum number of pending notifications
+     * @param policy   what to do when the number of pending notifications reaches the capacity
+     * @return the subscription which can be used to unsubscribe the handler and to monitor its queue
+     * @throws IllegalArgumentException if the capacity is not positive
+     */
+    public AsyncSubscription subscribeAsync(ObservableFieldHandler<? super O, ? super V> handler, Executor executor,
+                                            int capacity, OverflowPolicy policy) {
+        AsyncFieldDispatcher<O, V> dispatcher = new AsyncFieldDispatcher<>(this, handler, executor, capacity, policy);
+        dispatcher.bind(subscribe(dispatcher));
+        return dispatcher;
+    }
+
+    /**
+     * Gets a publisher of the updates of this field, which delivers them on the common fork/join pool
+     * in chunks of up to 256 updates.
+     * <p>
+     * The updates are buffered without limit until they are requested.
+     *
+     * @return the publisher
+     * @see #publisher(Executor, int, int, OverflowPolicy)
+     */
+    public Flow.Publisher<List<FieldChange<V>>> publisher() {
+        return publisher(ForkJoinPool.commonPool(), Integer.MAX_VALUE, 256, OverflowPolicy.DROP_NEWEST);
+    }
+
+    /**
+     * Gets a publisher of the updates of this field.
+     * <p>
+     * This method works like {@link ObservableSet#publisher(Executor, int, int, OverflowPolicy)}.
+     * With {@link OverflowPolicy#COALESCE}, updates waiting to be requested are merged into one update
+     * from the oldest to the latest value.
+     *
+     * @param executor  the executor which delivers the updates
+     * @param capacity  the maximum number of updates waiting to be requested by a subscriber
+     * @param batchSize the maximum number of updates in a chunk
+     * @param policy    what to do when the number of waiting updates reaches the capacity
+     * @return the publisher
+     * @throws IllegalArgumentException if the capacity or the batch size is not positive
      */
-    public void subscribe(ObservableFieldHandler<? super O, ? super V> handler) {
-        handlers.add(handler);
+    public Flow.Publisher<List<FieldChange<V>>> publisher(Executor executor, int capacity, int batchSize, OverflowPolicy policy) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        if (batchSize < 1) throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        return subscriber -> {
+            FlowChannel<FieldChange<V>> channel = new FlowChannel<>(subscriber, batchSize);
+            AsyncFieldDispatcher<O, V> dispatcher = new AsyncFieldDispatcher<>(this, channel, executor, capacity, policy);
+            channel.bind(dispatcher);
+            dispatcher.bind(subscribe(dispatcher));
+            subscriber.onSubscribe(channel);
+        };
     }
 
     /**
      * Unsubscribes a handler from this field.
+     * <p>
+     * This method takes linear time in the number of subscribed handlers.
+     * Use {@link Subscription#unsubscribe()} to unsubscribe in constant time.
      *
      * @param handler the handler to unsubscribe
      * @return true if the handler was subscribed to this field
      */
     public boolean unsubscribe(ObservableFieldHandler<? super O, ? super V> handler) {
-        return handlers.remove(handler);
+        if (handlers.remove(handler)) return true;
+        return lateHandlers != null && lateHandlers.remove(handler);
     }
 }
@@ -1,13 +1,26 @@
 package net.toshimichi.indexer;
 
+import java.time.Duration;
 import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
 
 /**
  * This class provides an implementation of the {@link Set} interface which tracks changes to the set.
@@ -25,9 +38,23 @@ import java.util.function.Function;
  */
 public class ObservableSet<O, E> extends AbstractSet<E> {
 
-    private final HashSet<E> internal = new HashSet<>();
-    private final ArrayList<ObservableSetHandler<? super O, ? super E>> handlers = new ArrayList<>();
+    private Set<E> internal;
+    private final HandlerList<ObservableSetHandler<? super O, ? super E>> handlers = new HandlerList<>();
     private O owner;
+    private MetricsSink metrics;
+    private ElementIds<E> ids;
+    private AdaptiveIndexer<E> adaptive;
+
+    /**
+     * Creates a new empty set.
+     */
+    public ObservableSet() {
+        this(new HashSet<>());
+    }
+
+    ObservableSet(Set<E> internal) {
+        this.internal = internal;
+    }
 
     /**
      * Gets the owner of this set.
@@ -59,11 +86,110 @@ public class ObservableSet<O, E> extends AbstractSet<E> {
 
     /**
      * Subscribes the specified handler to this set.
+     * <p>
+     * A handler subscribed while a notification is being dispatched does not receive that notification.
      *
      * @param handler the handler to subscribe
+     * @return the subscription which can be used to unsubscribe the handler
+     */
+    public Subscription subscribe(ObservableSetHandler<? super O, ? super E> handler) {
+        return handlers.add(handler);
+    }
+
+    /**
+     * Subscribes the specified handler to this set and notifies it asynchronously on the common fork/join pool.
+     *
+     * @param handler the handler to subscribe
+     * @return the subscription which can be used to unsubscribe the handler and to monitor its queue
+     * @see #subscribeAsync(ObservableSetHandler, Executor, int, OverflowPolicy)
+     */
+    public AsyncSubscription subscribeAsync(ObservableSetHandler<? super O, ? super E> handler) {
+        return subscribeAsync(handler, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Subscribes the specified handler to this set and notifies it asynchronously on the specified executor.
+     * <p>
+     * The queue of the handler is unbounded.
+     *
+     * @param handler  the handler to subscribe
+     * @param executor the executor which notifies the handler
+     * @return the subscription which can be used to unsubscribe the handler and to monitor its queue
+     * @see #subscribeAsync(ObservableSetHandler, Executor, int, OverflowPolicy)
+     */
+    public AsyncSubscription subscribeAsync(ObservableSetHandler<? super O, ? super E> handler, Executor executor) {
+        return subscribeAsync(handler, executor, Integer.MAX_VALUE, OverflowPolicy.DROP_NEWEST);
+    }
+
+    /**
+     * Subscribes the specified handler to this set and notifies it asynchronously on the specified executor.
+     * <p>
+     * Modifications of this set only enqueue the notifications, which are delivered in order and in batches
+     * by a task submitted to the executor. Consecutive additions or removals in a batch are delivered with
+     * {@link ObservableSetHandler#addAll(ObservableSet, Collection)} or
+     * {@link ObservableSetHandler#removeAll(ObservableSet, Collection)}.
+     * The handler is never called concurrently, but it may be called from different threads.
+     * <p>
+     * Because the handler runs after the modification, the set may already have been modified further
+     * when the handler is called.
+     *
+     * @param handler  the handler to subscribe
+     * @param executor the executor which notifies the handler
+     * @param capacity the maximum number of pending notifications
+     * @param policy   what to do when the number of pending notifications reaches the capacity
+     * @return the subscription which can be used to unsubscribe the handler and to monitor its queue
+     * @throws IllegalArgumentException if the capacity is not positive
+     */
+    public AsyncSubscription subscribeAsync(ObservableSetHandler<? super O, ? super E> handler, Executor executor,
+                                            int capacity, OverflowPolicy policy) {
+        AsyncSetDispatcher<O, E> dispatcher = new AsyncSetDispatcher<>(this, handler, executor, capacity, policy);
+        dispatcher.bind(subscribe(dispatcher));
+        return dispatcher;
+    }
+
+    /**
+     * Gets a publisher of the changes of this set, which delivers them on the common fork/join pool
+     * in chunks of up to 256 changes.
+     * <p>
+     * The changes are buffered without limit until they are requested.
+     *
+     * @return the publisher
+     * @see #publisher(Executor, int, int, OverflowPolicy)
      */
-    public void subscribe(ObservableSetHandler<? super O, ? super E> handler) {
-        handlers.add(handler);
+    public Flow.Publisher<List<SetChange<E>>> publisher() {
+        return publisher(ForkJoinPool.commonPool(), Integer.MAX_VALUE, 256, OverflowPolicy.DROP_NEWEST);
+    }
+
+    /**
+     * Gets a publisher of the changes of this set.
+     * <p>
+     * Each subscriber has its own queue of changes, like a handler subscribed with
+     * {@link #subscribeAsync(ObservableSetHandler, Executor, int, OverflowPolicy)}, but the changes are only
+     * delivered as far as the subscriber has requested them. Each requested item is a chunk of consecutive
+     * changes, so a subscriber which requests one chunk at a time receives at most {@code batchSize} changes
+     * per request. Changes which are not requested yet stay in the queue, and the policy decides what happens
+     * when the queue is full. The publisher never completes, and cancelling a subscription unsubscribes it.
+     * <p>
+     * {@link Flow.Publisher#subscribe(Flow.Subscriber)} must be called where this set may be modified,
+     * and changes made before it are not published.
+     *
+     * @param executor  the executor which delivers the changes
+     * @param capacity  the maximum number of changes waiting to be requested by a subscriber
+     * @param batchSize the maximum number of changes in a chunk
+     * @param policy    what to do when the number of waiting changes reaches the capacity
+     * @return the publisher
+     * @throws IllegalArgumentException if the capacity or the batch size is not positive
+     */
+    public Flow.Publisher<List<SetChange<E>>> publisher(Executor executor, int capacity, int batchSize, OverflowPolicy policy) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        if (batchSize < 1) throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        return subscriber -> {
+            FlowChannel<SetChange<E>> channel = new FlowChannel<>(subscriber, batchSize);
+            AsyncSetDispatcher<O, E> dispatcher = new AsyncSetDispatcher<>(this, channel, executor, capacity, policy);
+            channel.bind(dispatcher);
+            dispatcher.bind(subscribe(dispatcher));
+            subscriber.onSubscribe(channel);
+        };
     }
 
     /**
@@ -71,9 +197,10 @@ public class ObservableSet<O, E> extends AbstractSet<E> {
      *
      * @param adder   a consumer which is called when an element is added to this set
      * @param remover a consumer which is called when an element is removed from this set
+     * @return the subscription which can be used to unsubscribe the handler
      */
-    public void subscribe(Consumer<? super E> adder, Consumer<? super E> remover) {
-        subscribe(new ObservableSetHandler<>() {
+    public Subscription subscribe(Consumer<? super E> adder, Consumer<? super E> remover) {
+        return subscribe(new ObservableSetHandler<>() {
             @Override
             public void add(ObservableSet<? extends O, ? extends E> set, E element) {
                 adder.accept(element);
@@ -88,6 +215,10 @@ public class ObservableSet<O, E> extends AbstractSet<E> {
 
     /**
      * Unsubscribes the specified handler from this set.
+     * <p>
+     * This method takes linear time in the number of subscribed handlers.
+     * Use {@link Subscription#unsubscribe()} of the subscription returned by
+     * {@link #subscribe(ObservableSetHandler)} to unsubscribe in constant time.
      *
      * @param handler the handler to unsubscribe
      * @return true if the handler was subscribed to this set
@@ -106,10 +237,54 @@ public class ObservableSet<O, E> extends AbstractSet<E> {
      * @param <K>      the type of the elements in the index
      * @return the index
      */
-    public <K> Map<K, E> createIndex(Function<E, ObservableField<E, K>> function) {
+    public <K> CloseableMap<K, E> createIndex(Function<E, ObservableField<E, K>> function) {
         IndexMap<K, E> map = new IndexMap<>(function);
-        forEach(map::add0);
-        subscribe(map::add0, map::remove0);
+        attach(map);
+        return map;
+    }
+
+    /**
+     * Creates an index which maps elements to their owners and is maintained in the specified mode.
+     * <p>
+     * With {@link IndexMode#LAZY}, changes of the fields are applied when the index is read next time.
+     *
+     * @param function a function which maps the owners to their elements
+     * @param mode     when the index reflects changes
+     * @param <K>      the type of the elements in the index
+     * @return the index
+     * @see #createIndex(Function)
+     */
+    public <K> CloseableMap<K, E> createIndex(Function<E, ObservableField<E, K>> function, IndexMode mode) {
+        IndexMap<K, E> map = new IndexMap<>(function, mode);
+        attach(map);
+        return map;
+    }
+
+    /**
+     * Creates an index which maps primitive {@code int} elements to their owners.
+     * <p>
+     * This method works exactly the same as {@link #createIndex(Function)}, but neither updates nor lookups box the keys.
+     *
+     * @param function a function which maps the owners to their elements
+     * @return the index
+     */
+    public IntIndex<E> createIntIndex(Function<E, IntObservableField<E>> function) {
+        IntIndexMap<E> map = new IntIndexMap<>(function);
+        attach(map);
+        return map;
+    }
+
+    /**
+     * Creates an index which maps primitive {@code long} elements to their owners.
+     * <p>
+     * This method works exactly the same as {@link #createIndex(Function)}, but neither updates nor lookups box the keys.
+     *
+     * @param function a function which maps the owners to their elements
+     * @return the index
+     */
+    public LongIndex<E> createLongIndex(Function<E, LongObservableField<E>> function) {
+        LongIndexMap<E> map = new LongIndexMap<>(function);
+        attach(map);
         return map;
     }
 
@@ -123,10 +298,9 @@ public class ObservableSet<O, E> extends AbstractSet<E> {
      * @param <K>      the type of the elements in the index
      * @return the index
      */
-    public <K> Map<K, E> createFlatIndex(Function<E, ObservableSet<E, K>> function) {
+    public <K> CloseableMap<K, E> createFlatIndex(Function<E, ObservableSet<E, K>> function) {
         FlatIndexMap<K, E> map = new FlatIndexMap<>(function);
-        forEach(map::add0);
-        subscribe(map::add0, map::remove0);
+        attach(map);
         return map;
     }
 
@@ -140,13 +314,139 @@ public class ObservableSet<O, E> extends AbstractSet<E> {
      * @param <K>      the type of the elements in the index
      * @return the index
      */
-    public <K> Map<K, Set<E>> createMultiIndex(Function<E, ObservableField<E, K>> function) {
+    public <K> CloseableMap<K, Set<E>> createMultiIndex(Function<E, ObservableField<E, K>> function) {
         MultiIndexMap<K, E> map = new MultiIndexMap<>(function);
-        forEach(map::add0);
-        subscribe(map::add0, map::remove0);
+        attach(map);
+        return map;
+    }
+
+    /**
+     * Creates an index which maps elements to their owners and is maintained in the specified mode.
+     * <p>
+     * With {@link IndexMode#LAZY}, changes of the fields are applied when the index is read next time.
+     *
+     * @param function a function which maps the owners to their elements
+     * @param mode     when the index reflects changes
+     * @param <K>      the type of the elements in the index
+     * @return the index
+     * @see #createMultiIndex(Function)
+     */
+    public <K> CloseableMap<K, Set<E>> createMultiIndex(Function<E, ObservableField<E, K>> function, IndexMode mode) {
+        MultiIndexMap<K, E> map = new MultiIndexMap<>(function, mode);
+        attach(map);
         return map;
     }
 
+    /**
+     * Creates an index which maps elements to their owners and keeps the elements sorted.
+     * <p>
+     * Like {@link #createMultiIndex(Function)}, duplicated elements are allowed in this index and
+     * {@code null} elements are not indexed. In addition, the returned map supports range queries
+     * such as {@link NavigableMap#subMap(Object, boolean, Object, boolean)} or {@link NavigableMap#floorKey(Object)}.
+     *
+     * @param function   a function which maps the owners to their elements
+     * @param comparator the comparator used to sort the elements
+     * @param <K>        the type of the elements in the index
+     * @return the index
+     */
+    public <K> SortedIndex<K, E> createSortedIndex(Function<E, ObservableField<E, K>> function, Comparator<K> comparator) {
+        SortedIndexMap<K, E> map = new SortedIndexMap<>(function, comparator);
+        attach(map);
+        return map;
+    }
+
+    /**
+     * Creates an index which maps elements to their owners and keeps the elements sorted in their natural order.
+     *
+     * @param function a function which maps the owners to their elements
+     * @param <K>      the type of the elements in the index
+     * @return the index
+     * @see #createSortedIndex(Function, Comparator)
+     */
+    public <K extends Comparable<? super K>> SortedIndex<K, E> createSortedIndex(Function<E, ObservableField<E, K>> function) {
+        return createSortedIndex(function, Comparator.naturalOrder());
+    }
+
+    /**
+     * Creates an index which maps combinations of several elements to their owners.
+     * <p>
+     * The owners are rekeyed whenever any of the elements changes. They can be looked up by all of the elements
+     * or by the first few of them, in the order of the specified functions. {@code null} elements are indexed as well.
+     *
+     * @param functions functions which map the owners to their elements
+     * @return the index
+     * @throws IllegalArgumentException if no function is specified
+     */
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    public final CompositeIndex<E> createCompositeIndex(Function<E, ? extends ObservableField<E, ?>>... functions) {
+        CompositeIndexMap<E> index = new CompositeIndexMap<>(functions);
+        attach(index);
+        return index;
+    }
+
+    /**
+     * Creates a spatial index which buckets the owners into a uniform grid by their two-dimensional positions.
+     * <p>
+     * Elements whose position is {@code null} are not indexed. Moving an element only updates the index
+     * when it crosses the border of a cell, so the cell size should be close to the typical query radius.
+     *
+     * @param function a function which maps the owners to their positions
+     * @param x        a function which extracts the x coordinate from a position
+     * @param y        a function which extracts the y coordinate from a position
+     * @param cellSize the width and height of a cell of the grid
+     * @param <K>      the type of the positions
+     * @return the index
+     * @throws IllegalArgumentException if {@code cellSize} is not positive
+     */
+    public <K> SpatialIndex<E> createSpatialIndex(Function<E, ObservableField<E, K>> function, ToIntFunction<K> x, ToIntFunction<K> y, int cellSize) {
+        GridIndex<K, E> index = new GridIndex<>(function, x, y, cellSize);
+        attach(index);
+        return index;
+    }
+
+    /**
+     * Creates a spatial index with cells of 16 by 16.
+     *
+     * @param function a function which maps the owners to their positions
+     * @param x        a function which extracts the x coordinate from a position
+     * @param y        a function which extracts the y coordinate from a position
+     * @param <K>      the type of the positions
+     * @return the index
+     * @see #createSpatialIndex(Function, ToIntFunction, ToIntFunction, int)
+     */
+    public <K> SpatialIndex<E> createSpatialIndex(Function<E, ObservableField<E, K>> function, ToIntFunction<K> x, ToIntFunction<K> y) {
+        return createSpatialIndex(function, x, y, 16);
+    }
+
+    /**
+     * Creates an index which maps strings to their owners and supports prefix queries.
+     * <p>
+     * Like {@link #createMultiIndex(Function)}, duplicated strings are allowed in this index and
+     * {@code null} strings are not indexed.
+     *
+     * @param function   a function which maps the owners to their strings
+     * @param ignoreCase whether the strings are compared ignoring case
+     * @return the index
+     * @see PrefixIndex
+     */
+    public PrefixIndex<E> createPrefixIndex(Function<E, ObservableField<E, String>> function, boolean ignoreCase) {
+        PrefixIndexMap<E> map = new PrefixIndexMap<>(function, ignoreCase);
+        attach(map);
+        return map;
+    }
+
+    /**
+     * Creates an index which maps strings to their owners and supports case-sensitive prefix queries.
+     *
+     * @param function a function which maps the owners to their strings
+     * @return the index
+     * @see #createPrefixIndex(Function, boolean)
+     */
+    public PrefixIndex<E> createPrefixIndex(Function<E, ObservableField<E, String>> function) {
+        return createPrefixIndex(function, false);
+    }
+
     /**
      * Creates an index which maps elements to their owners.
      * <p>
@@ -157,10 +457,59 @@ public class ObservableSet<O, E> extends AbstractSet<E> {
      * @param <K>      the type of the elements in the index
      * @return the index
      */
-    public <K> Map<K, Set<E>> createFlatMultiIndex(Function<E, ObservableSet<E, K>> function) {
+    public <K> CloseableMap<K, Set<E>> createFlatMultiIndex(Function<E, ObservableSet<E, K>> function) {
         FlatMultiIndexMap<K, E> map = new FlatMultiIndexMap<>(function);
-        forEach(map::add0);
-        subscribe(map::add0, map::remove0);
+        attach(map);
+        return map;
+    }
+
+    /**
+     * Assigns dense {@code int} ids to the elements of this set.
+     * <p>
+     * The first call attaches the ids to this set, and later calls return the same ids.
+     * Like an index, the ids are kept up to date whenever this set changes.
+     *
+     * @return the ids of the elements
+     */
+    public ElementIds<E> elementIds() {
+        if (ids == null) {
+            ElementIds<E> created = new ElementIds<>();
+            attach(created.handler());
+            ids = created;
+        }
+        return ids;
+    }
+
+    /**
+     * Creates an index which maps elements to the bitmap of their owners.
+     * <p>
+     * This index works like {@link #createMultiIndex(Function)}, but stores the owners of each element
+     * as a {@link Bitmap} of their {@link #elementIds()}, which takes much less memory when an element
+     * has many owners and can be intersected with other bitmap indexes of this set without hashing the owners.
+     *
+     * @param function a function which maps the owners to their elements
+     * @param <K>      the type of the elements in the index
+     * @return the index
+     */
+    public <K> BitmapIndex<K, E> createBitmapIndex(Function<E, ObservableField<E, K>> function) {
+        BitmapIndexMap<K, E> map = new BitmapIndexMap<>(function, elementIds());
+        attach(map);
+        return map;
+    }
+
+    /**
+     * Creates an index which maps elements to the bitmap of their owners.
+     * <p>
+     * This index works like {@link #createFlatMultiIndex(Function)}, but stores the owners of each element
+     * as a {@link Bitmap} like {@link #createBitmapIndex(Function)}.
+     *
+     * @param function a function which maps the owners to their elements
+     * @param <K>      the type of the elements in the index
+     * @return the index
+     */
+    public <K> BitmapIndex<K, E> createFlatBitmapIndex(Function<E, ObservableSet<E, K>> function) {
+        FlatBitmapIndexMap<K, E> map = new FlatBitmapIndexMap<>(function, elementIds());
+        attach(map);
         return map;
     }
 
@@ -171,13 +520,322 @@ public class ObservableSet<O, E> extends AbstractSet<E> {
      * @param <K>      the type of the elements in the set
      * @return the set
      */
-    public <K> ObservableSet<?, K> createFlatMap(Function<E, ObservableSet<E, K>> function) {
-        FlatMapSet<E, K> set = new FlatMapSet<>(function);
-        forEach(set::add0);
-        subscribe(set::add0, set::remove0);
+    public <K> DerivedSet<K> createFlatMap(Function<E, ObservableSet<E, K>> function) {
+        FlatMapSet<E, K> set = new FlatMapSet<>(function, depth() + 1);
+        attach(set);
         return set;
     }
 
+    /**
+     * Creates a path which flat maps the elements of this set without materializing the mapped set.
+     * <p>
+     * Indexes created from the path are updated directly by the sets of the elements, which is faster than
+     * creating them on {@link #createFlatMap(Function)} when the mapped set itself is not needed.
+     *
+     * @param function a function which maps the owners to their elements
+     * @param <K>      the type of the elements at the end of the path
+     * @return the path
+     */
+    public <K> FlatMapPath<K> path(Function<E, ObservableSet<E, K>> function) {
+        return new FlatMapPath<>(this, List.of(function));
+    }
+
+    /**
+     * Creates a set which contains the elements satisfying the specified predicate.
+     * <p>
+     * The predicate is evaluated when an element is added to this set and whenever one of the fields
+     * returned by the dependencies changes, so it must only depend on those fields.
+     * The returned set is read-only, and indexes and other views can be created on it like any other set.
+     *
+     * @param predicate    the predicate which the elements of the returned set satisfy
+     * @param dependencies functions which map the owners to the fields the predicate depends on
+     * @return the set
+     */
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    public final DerivedSet<E> createFilter(Predicate<? super E> predicate, Function<E, ? extends ObservableField<E, ?>>... dependencies) {
+        FilteredSet<E> set = new FilteredSet<>(predicate, depth(), dependencies);
+        attach(set);
+        return set;
+    }
+
+    /**
+     * Creates a field which holds the number of elements in this set.
+     * <p>
+     * The returned field is read-only and notifies its subscribers whenever the number changes.
+     *
+     * @return the field
+     */
+    public AggregateField<ObservableSet<O, E>, Integer> createCount() {
+        AggregateField<ObservableSet<O, E>, Integer> field = new AggregateField<>(this, 0);
+        attach(new CountAggregate<>(field));
+        return field;
+    }
+
+    /**
+     * Creates a field which holds the sum of the values of the elements.
+     * <p>
+     * {@code null} values are treated as zero. Integral values such as {@link Integer} and {@link Long}
+     * are summed exactly, although the sum is rounded when it is converted to {@code double} beyond 2<sup>53</sup>.
+     * The others are summed as {@code double} with compensated summation, and their part of the sum returns to
+     * exactly zero once all of them are removed.
+     * The returned field is read-only and is updated in constant time whenever the set or a value changes.
+     *
+     * @param function a function which maps the owners to their values
+     * @return the field
+     */
+    public AggregateField<ObservableSet<O, E>, Double> createSum(Function<E, ObservableField<E, ? extends Number>> function) {
+        AggregateField<ObservableSet<O, E>, Double> field = new AggregateField<>(this, 0.0);
+        attach(new SumAggregate<>(field, function));
+        return field;
+    }
+
+    /**
+     * Creates a field which holds the smallest value of the elements.
+     * <p>
+     * {@code null} values are ignored and the field holds {@code null} if there are no values.
+     * The returned field is read-only and is updated in logarithmic time whenever the set or a value changes.
+     *
+     * @param function   a function which maps the owners to their values
+     * @param comparator the comparator used to compare the values
+     * @param <K>        the type of the values
+     * @return the field
+     */
+    public <K> AggregateField<ObservableSet<O, E>, K> createMin(Function<E, ObservableField<E, K>> function, Comparator<? super K> comparator) {
+        AggregateField<ObservableSet<O, E>, K> field = new AggregateField<>(this, null);
+        attach(new ExtremumAggregate<>(field, function, comparator));
+        return field;
+    }
+
+    /**
+     * Creates a field which holds the smallest value of the elements in their natural order.
+     *
+     * @param function a function which maps the owners to their values
+     * @param <K>      the type of the values
+     * @return the field
+     * @see #createMin(Function, Comparator)
+     */
+    public <K extends Comparable<? super K>> AggregateField<ObservableSet<O, E>, K> createMin(Function<E, ObservableField<E, K>> function) {
+        return createMin(function, Comparator.naturalOrder());
+    }
+
+    /**
+     * Creates a field which holds the largest value of the elements.
+     * <p>
+     * {@code null} values are ignored and the field holds {@code null} if there are no values.
+     * The returned field is read-only and is updated in logarithmic time whenever the set or a value changes.
+     *
+     * @param function   a function which maps the owners to their values
+     * @param comparator the comparator used to compare the values
+     * @param <K>        the type of the values
+     * @return the field
+     */
+    public <K> AggregateField<ObservableSet<O, E>, K> createMax(Function<E, ObservableField<E, K>> function, Comparator<? super K> comparator) {
+        AggregateField<ObservableSet<O, E>, K> field = new AggregateField<>(this, null);
+        attach(new ExtremumAggregate<>(field, function, Collections.reverseOrder(comparator)));
+        return field;
+    }
+
+    /**
+     * Creates a field which holds the largest value of the elements in their natural order.
+     *
+     * @param function a function which maps the owners to their values
+     * @param <K>      the type of the values
+     * @return the field
+     * @see #createMax(Function, Comparator)
+     */
+    public <K extends Comparable<? super K>> AggregateField<ObservableSet<O, E>, K> createMax(Function<E, ObservableField<E, K>> function) {
+        return createMax(function, Comparator.naturalOrder());
+    }
+
+    /**
+     * Creates a map which groups elements by a key and aggregates their values in each group.
+     * <p>
+     * Like {@link #createMultiIndex(Function)}, elements with a {@code null} key are not grouped and
+     * groups without elements are removed. Groups are updated in constant time whenever the set, a key or a value changes.
+     *
+     * @param keyFunction   a function which maps the owners to their keys
+     * @param valueFunction a function which maps the owners to their values
+     * @param <K>           the type of the keys
+     * @return the map
+     */
+    public <K> CloseableMap<K, Aggregate> createGroupedAggregate(Function<E, ObservableField<E, K>> keyFunction,
+                                                       Function<E, ObservableField<E, ? extends Number>> valueFunction) {
+        GroupedAggregateMap<K, E> map = new GroupedAggregateMap<>(keyFunction, valueFunction);
+        attach(map);
+        return map;
+    }
+
+    /**
+     * Creates a query which finds the elements satisfying the specified condition.
+     * <p>
+     * The query uses the indexes attached to this set when it is executed, so it does not have to know
+     * which indexes exist. Like the indexes other than those maintained by {@link ConcurrentObservableSet},
+     * the query must be executed from the thread which modifies this set and its elements.
+     *
+     * @param condition the condition
+     * @return the query
+     * @see Query#explain()
+     */
+    public Query<E> query(Condition<E> condition) {
+        return new Query<>(this, condition);
+    }
+
+    /**
+     * Takes an immutable point-in-time view of this set and the indexes attached to it.
+     * <p>
+     * The first call copies this set and its indexes into persistent data structures in linear time,
+     * and later modifications keep the copies up to date by copying only a few small nodes.
+     * After that, taking a snapshot takes constant time regardless of the size of this set.
+     * <p>
+     * This method must be called from the thread which modifies this set and its elements,
+     * but the returned snapshot can be read from any thread. Snapshots of sets created from this set,
+     * such as {@link #createFlatMap(Function)}, are consistent with this snapshot if they are taken
+     * without modifying the sets in between.
+     *
+     * @return the snapshot
+     */
+    public Snapshot<E> snapshot() {
+        if (!(internal instanceof MirroredSet)) internal = new MirroredSet<>(internal);
+
+        IdentityHashMap<Object, Map<?, ?>> indexes = new IdentityHashMap<>();
+        for (HandlerList.Registration<ObservableSetHandler<? super O, ? super E>> registration : handlers.snapshot()) {
+            ObservableSetHandler<? super O, ? super E> handler = registration.handler();
+            if (!(handler instanceof ElementSubscriber)) continue;
+            ElementHandler<?> index = ((ElementSubscriber<?, ?>) handler).handler;
+            if (index instanceof Mirrored) indexes.put(index, ((Mirrored) index).freeze());
+        }
+        return new SetSnapshot<>(((MirroredSet<E>) internal).freeze(), indexes);
+    }
+
+    /**
+     * Creates a builder which builds several indexes in one parallel pass over this set.
+     * <p>
+     * This is faster than creating the indexes one by one when this set is large.
+     *
+     * @return the builder
+     */
+    public IndexBuilder<E> indexBuilder() {
+        return new IndexBuilder<>(this);
+    }
+
+    /**
+     * Sets the sink which receives the measurements of this set.
+     * <p>
+     * The sink receives the time each handler takes to process a change of this set.
+     * Indexes and sets created from this set after calling this method report their lookups, updates
+     * and rejected keys to the same sink, and sets created by {@link #createFlatMap(Function)} report how
+     * their elements cascade. When no sink is set, nothing is measured.
+     *
+     * @param metrics the sink, or {@code null} to stop measuring
+     * @see MetricsRecorder
+     * @see JfrMetricsSink
+     */
+    public void setMetricsSink(MetricsSink metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Gets the sink which receives the measurements of this set.
+     *
+     * @return the sink, or {@code null} if this set is not measured
+     */
+    public MetricsSink getMetricsSink() {
+        return metrics;
+    }
+
+    // the number of flat maps between this set and the set it is created from
+    int depth() {
+        return 0;
+    }
+
+    /**
+     * Lets queries create the indexes they need and drop the indexes they no longer use.
+     * <p>
+     * Indexes are built on the thread which executes the query that reaches the threshold.
+     *
+     * @param threshold the number of scans of a field or a set after which an index for it is built
+     * @param idle      how long an index can go unused by queries before it is dropped
+     * @return the indexer, which can be closed to stop adaptive indexing
+     * @throws IllegalStateException if adaptive indexing is already enabled
+     * @see #enableAdaptiveIndexing(int, Duration, Executor)
+     */
+    public AdaptiveIndexer<E> enableAdaptiveIndexing(int threshold, Duration idle) {
+        return enableAdaptiveIndexing(threshold, idle, Runnable::run);
+    }
+
+    /**
+     * Lets queries create the indexes they need and drop the indexes they no longer use.
+     * <p>
+     * Indexes are built by tasks submitted to the executor, and queries keep scanning until the index is built.
+     * The executor must run the tasks where this set may be modified, such as on the thread which modifies
+     * this set or on any thread if this set is a {@link ConcurrentObservableSet}.
+     *
+     * @param threshold the number of scans of a field or a set after which an index for it is built
+     * @param idle      how long an index can go unused by queries before it is dropped
+     * @param executor  the executor which builds the indexes
+     * @return the indexer, which can be closed to stop adaptive indexing
+     * @throws IllegalArgumentException if the threshold is not positive
+     * @throws IllegalStateException    if adaptive indexing is already enabled
+     * @see AdaptiveIndexer
+     */
+    public AdaptiveIndexer<E> enableAdaptiveIndexing(int threshold, Duration idle, Executor executor) {
+        return enableAdaptiveIndexing(threshold, idle, executor, System::nanoTime);
+    }
+
+    synchronized AdaptiveIndexer<E> enableAdaptiveIndexing(int threshold, Duration idle, Executor executor, LongSupplier clock) {
+        if (adaptive != null) throw new IllegalStateException("Adaptive indexing is already enabled");
+        adaptive = new AdaptiveIndexer<>(this, threshold, idle, executor, clock);
+        return adaptive;
+    }
+
+    synchronized void disableAdaptiveIndexing(AdaptiveIndexer<E> indexer) {
+        if (adaptive == indexer) adaptive = null;
+    }
+
+    AdaptiveIndexer<E> adaptiveIndexer() {
+        return adaptive;
+    }
+
+    // the indexes attached to this set which queries can use
+    @SuppressWarnings("unchecked")
+    List<FieldIndex<E>> indexes() {
+        ArrayList<FieldIndex<E>> indexes = new ArrayList<>();
+        for (HandlerList.Registration<ObservableSetHandler<? super O, ? super E>> registration : handlers.snapshot()) {
+            ObservableSetHandler<? super O, ? super E> handler = registration.handler();
+            if (!(handler instanceof ElementSubscriber)) continue;
+            ElementHandler<?> index = ((ElementSubscriber<?, ?>) handler).handler;
+            if (index instanceof FieldIndex) indexes.add((FieldIndex<E>) index);
+        }
+        return indexes;
+    }
+
+    <K> IndexMap<K, E> newIndexMap(Function<E, ObservableField<E, K>> function) {
+        return new IndexMap<>(function);
+    }
+
+    <K> MultiIndexMap<K, E> newMultiIndexMap(Function<E, ObservableField<E, K>> function) {
+        return new MultiIndexMap<>(function);
+    }
+
+    // runs the action while no other thread can modify this set
+    void exclusive(Runnable action) {
+        action.run();
+    }
+
+    Subscription attach(ElementHandler<E> handler) {
+        handler.addAll0(this);
+        return adopt(handler);
+    }
+
+    // subscribes a handler which already holds every element of this set
+    Subscription adopt(ElementHandler<E> handler) {
+        if (metrics != null && handler instanceof Instrumented) ((Instrumented) handler).instrument(metrics);
+        Subscription subscription = new Attachment(handler, subscribe(new ElementSubscriber<>(handler)));
+        handler.attached(subscription);
+        return subscription;
+    }
+
     @Override
     public Iterator<E> iterator() {
         return new ObservableIterator(internal.iterator());
@@ -186,7 +844,7 @@ public class ObservableSet<O, E> extends AbstractSet<E> {
     @Override
     public boolean add(E e) {
         boolean result = internal.add(e);
-        if (result) handlers.forEach(it -> it.add(this, e));
+        if (result) fireAdd(e);
         return result;
     }
 
@@ -194,10 +852,185 @@ public class ObservableSet<O, E> extends AbstractSet<E> {
     @Override
     public boolean remove(Object o) {
         boolean result = internal.remove(o);
-        if (result) handlers.forEach(it -> it.remove(this, (E) o));
+        if (result) fireRemove((E) o);
         return result;
     }
 
+    @Override
+    public boolean addAll(Collection<? extends E> c) {
+        return bulkAdd(c, false);
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        return bulkRemove(c);
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> c) {
+        ArrayList<E> removed = new ArrayList<>();
+        Iterator<E> iterator = internal.iterator();
+        while (iterator.hasNext()) {
+            E e = iterator.next();
+            if (c.contains(e)) continue;
+            iterator.remove();
+            removed.add(e);
+        }
+
+        if (removed.isEmpty()) return false;
+        notifyRemove(removed);
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        if (internal.isEmpty()) return;
+        ArrayList<E> removed = new ArrayList<>(internal);
+        internal.clear();
+        notifyRemove(removed);
+    }
+
+    /**
+     * Replaces the elements of this set with the elements of the specified collection.
+     * <p>
+     * Unlike calling {@link #clear()} and {@link #addAll(Collection)}, this method only notifies the handlers
+     * of the elements which are actually removed or added, so the cost of updating the indexes depends on
+     * the difference between the old and the new elements rather than their number.
+     * Removed elements are notified before added elements, each in a single bulk notification.
+     *
+     * @param c the new elements of this set
+     * @return true if this set changed as a result of the call
+     * @see #replaceWith(Predicate, Iterable)
+     */
+    public boolean replaceWith(Collection<? extends E> c) {
+        Set<?> elements = c instanceof Set ? (Set<?>) c : new HashSet<>(c);
+        return replaceWith(elements::contains, c);
+    }
+
+    /**
+     * Replaces the elements of this set with the specified elements, using a predicate to tell which elements stay.
+     * <p>
+     * The elements which do not satisfy the predicate are removed, and then the specified elements are added.
+     * This is useful when the new elements are described by a range, such as the cells in a rectangle,
+     * because the membership can be tested without collecting the new elements into a set.
+     * The specified elements should satisfy the predicate, otherwise they are removed and added again.
+     * Like {@link #replaceWith(Collection)}, only the elements which are actually removed or added are notified.
+     *
+     * @param filter   the predicate which the elements of this set satisfy after the call
+     * @param elements the new elements of this set
+     * @return true if this set changed as a result of the call
+     */
+    public boolean replaceWith(Predicate<? super E> filter, Iterable<? extends E> elements) {
+        ArrayList<E> removed = new ArrayList<>();
+        Iterator<E> iterator = internal.iterator();
+        while (iterator.hasNext()) {
+            E e = iterator.next();
+            if (filter.test(e)) continue;
+            iterator.remove();
+            removed.add(e);
+        }
+        if (!removed.isEmpty()) notifyRemove(removed);
+
+        ArrayList<E> added = new ArrayList<>();
+        for (E e : elements) {
+            if (internal.add(e)) added.add(e);
+        }
+        if (!added.isEmpty()) notifyAdd(added);
+
+        return !removed.isEmpty() || !added.isEmpty();
+    }
+
+    boolean bulkAdd(Collection<? extends E> c, boolean distinct) {
+        internal = Capacity.ensure(internal, c.size());
+        ArrayList<E> added = new ArrayList<>(c.size());
+        try {
+            for (E e : c) {
+                if (internal.add(e)) {
+                    added.add(e);
+                } else if (distinct) {
+                    throw new IllegalArgumentException("Duplicated key: " + e);
+                }
+            }
+        } finally {
+            if (!added.isEmpty()) notifyAdd(added);
+        }
+
+        return !added.isEmpty();
+    }
+
+    @SuppressWarnings("unchecked")
+    boolean bulkRemove(Collection<?> c) {
+        ArrayList<E> removed = new ArrayList<>(Math.min(c.size(), internal.size()));
+        for (Object o : c) {
+            if (internal.remove(o)) removed.add((E) o);
+        }
+
+        if (removed.isEmpty()) return false;
+        notifyRemove(removed);
+        return true;
+    }
+
+    private void notifyAdd(ArrayList<E> added) {
+        if (added.size() == 1) {
+            fireAdd(added.get(0));
+            return;
+        }
+
+        Collection<E> view = Collections.unmodifiableList(added);
+        MetricsSink metrics = this.metrics;
+        for (HandlerList.Registration<ObservableSetHandler<? super O, ? super E>> registration : handlers.snapshot()) {
+            ObservableSetHandler<? super O, ? super E> handler = registration.handler();
+            if (handler == null) continue;
+            long start = metrics == null ? 0 : System.nanoTime();
+            handler.addAll(this, view);
+            if (metrics != null) metrics.dispatched(this, target(handler), System.nanoTime() - start);
+        }
+    }
+
+    private void notifyRemove(ArrayList<E> removed) {
+        if (removed.size() == 1) {
+            fireRemove(removed.get(0));
+            return;
+        }
+
+        Collection<E> view = Collections.unmodifiableList(removed);
+        MetricsSink metrics = this.metrics;
+        for (HandlerList.Registration<ObservableSetHandler<? super O, ? super E>> registration : handlers.snapshot()) {
+            ObservableSetHandler<? super O, ? super E> handler = registration.handler();
+            if (handler == null) continue;
+            long start = metrics == null ? 0 : System.nanoTime();
+            handler.removeAll(this, view);
+            if (metrics != null) metrics.dispatched(this, target(handler), System.nanoTime() - start);
+        }
+    }
+
+    private void fireAdd(E e) {
+        MetricsSink metrics = this.metrics;
+        for (HandlerList.Registration<ObservableSetHandler<? super O, ? super E>> registration : handlers.snapshot()) {
+            ObservableSetHandler<? super O, ? super E> handler = registration.handler();
+            if (handler == null) continue;
+            long start = metrics == null ? 0 : System.nanoTime();
+            handler.add(this, e);
+            if (metrics != null) metrics.dispatched(this, target(handler), System.nanoTime() - start);
+        }
+    }
+
+    // reports the index or the view instead of the subscriber which forwards notifications to it
+    private static Object target(ObservableSetHandler<?, ?> handler) {
+        return handler instanceof ElementSubscriber ? ((ElementSubscriber<?, ?>) handler).handler : handler;
+    }
+
+    private void fireRemove(E e) {
+        MetricsSink metrics = this.metrics;
+        for (HandlerList.Registration<ObservableSetHandler<? super O, ? super E>> registration : handlers.snapshot()) {
+            ObservableSetHandler<? super O, ? super E> handler = registration.handler();
+            if (handler == null) continue;
+            long start = metrics == null ? 0 : System.nanoTime();
+            handler.remove(this, e);
+            if (metrics != null) metrics.dispatched(this, target(handler), System.nanoTime() - start);
+        }
+    }
+
     @Override
     public int size() {
         return internal.size();
@@ -213,6 +1046,61 @@ public class ObservableSet<O, E> extends AbstractSet<E> {
         return internal.contains(o);
     }
 
+    // detaches a handler from this set and from the fields and sets of the elements, so that it can be collected
+    private class Attachment implements Subscription {
+
+        private final ElementHandler<E> handler;
+        private final Subscription subscription;
+
+        public Attachment(ElementHandler<E> handler, Subscription subscription) {
+            this.handler = handler;
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void unsubscribe() {
+            exclusive(() -> {
+                if (!subscription.isSubscribed()) return;
+                subscription.unsubscribe();
+                handler.removeAll0(Collections.unmodifiableSet(internal));
+            });
+        }
+
+        @Override
+        public boolean isSubscribed() {
+            return subscription.isSubscribed();
+        }
+    }
+
+    private static class ElementSubscriber<O, E> implements ObservableSetHandler<O, E> {
+
+        private final ElementHandler<E> handler;
+
+        public ElementSubscriber(ElementHandler<E> handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void add(ObservableSet<? extends O, ? extends E> set, E element) {
+            handler.add0(element);
+        }
+
+        @Override
+        public void remove(ObservableSet<? extends O, ? extends E> set, E element) {
+            handler.remove0(element);
+        }
+
+        @Override
+        public void addAll(ObservableSet<? extends O, ? extends E> set, Collection<? extends E> elements) {
+            handler.addAll0(elements);
+        }
+
+        @Override
+        public void removeAll(ObservableSet<? extends O, ? extends E> set, Collection<? extends E> elements) {
+            handler.removeAll0(elements);
+        }
+    }
+
     private class ObservableIterator implements Iterator<E> {
 
         private final Iterator<E> iterator;
@@ -236,7 +1124,7 @@ public class ObservableSet<O, E> extends AbstractSet<E> {
         @Override
         public void remove() {
             iterator.remove();
-            handlers.forEach(it -> it.remove(ObservableSet.this, cursor));
+            fireRemove(cursor);
         }
     }
 }
@@ -1,5 +1,7 @@
 package net.toshimichi.indexer;
 
+import java.util.Collection;
+
 /**
  * This interface is used to handle updates of an {@link ObservableSet}.
  *
@@ -23,4 +25,29 @@ public interface ObservableSetHandler<O, E> {
      * @param element the removed element
      */
     void remove(ObservableSet<? extends O, ? extends E> set, E element);
+
+    /**
+     * Called when multiple elements are added to the set at once.
+     * <p>
+     * The default implementation calls {@link #add(ObservableSet, Object)} for each element.
+     * Override this method if the handler can process a batch more efficiently, e.g. by presizing its storage.
+     *
+     * @param set      the set
+     * @param elements the added elements, must not be modified
+     */
+    default void addAll(ObservableSet<? extends O, ? extends E> set, Collection<? extends E> elements) {
+        for (E element : elements) add(set, element);
+    }
+
+    /**
+     * Called when multiple elements are removed from the set at once.
+     * <p>
+     * The default implementation calls {@link #remove(ObservableSet, Object)} for each element.
+     *
+     * @param set      the set
+     * @param elements the removed elements, must not be modified
+     */
+    default void removeAll(ObservableSet<? extends O, ? extends E> set, Collection<? extends E> elements) {
+        for (E element : elements) remove(set, element);
+    }
 }
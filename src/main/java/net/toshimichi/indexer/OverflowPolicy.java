@@ -0,0 +1,33 @@
+package net.toshimichi.indexer;
+
+/**
+ * This enum specifies what happens when an asynchronous subscriber falls behind and its queue is full.
+ * <p>
+ * To buffer every event, use a capacity of {@link Integer#MAX_VALUE}, where the policy only matters for {@link #COALESCE}.
+ *
+ * @see ObservableSet#subscribeAsync(ObservableSetHandler, java.util.concurrent.Executor, int, OverflowPolicy)
+ * @see ObservableField#subscribeAsync(ObservableFieldHandler, java.util.concurrent.Executor, int, OverflowPolicy)
+ * @see ObservableSet#publisher(java.util.concurrent.Executor, int, int, OverflowPolicy)
+ * @see ObservableField#publisher(java.util.concurrent.Executor, int, int, OverflowPolicy)
+ */
+public enum OverflowPolicy {
+
+    /**
+     * The new event is dropped.
+     */
+    DROP_NEWEST,
+
+    /**
+     * The oldest pending event is dropped to make room for the new event.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Pending events are merged with new events whenever possible, even if the queue is not full.
+     * <p>
+     * Consecutive updates of a field are merged into one update from the oldest to the latest value,
+     * and an addition and a removal of the same element cancel each other out.
+     * If the queue is still full, the oldest pending event is dropped.
+     */
+    COALESCE
+}
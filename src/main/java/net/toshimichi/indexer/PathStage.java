@@ -0,0 +1,87 @@
+package net.toshimichi.indexer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.function.Function;
+
+// a hop of a path, which forwards the elements of the sets of its elements to the next hop or the index
+class PathStage<S, T> implements ElementHandler<S>, ObservableSetHandler<S, T>, Instrumented {
+
+    private final Function<S, ObservableSet<S, T>> function;
+    private final ElementHandler<T> downstream;
+
+    public PathStage(Function<S, ObservableSet<S, T>> function, ElementHandler<T> downstream) {
+        this.function = function;
+        this.downstream = downstream;
+    }
+
+    @Override
+    public void add0(S obj) {
+        ObservableSet<S, T> set = function.apply(obj);
+        set.initialize(obj);
+        if (!set.isEmpty()) downstream.addAll0(set);
+        set.subscribe(this);
+    }
+
+    @Override
+    public void addAll0(Collection<? extends S> objs) {
+        ArrayList<T> elements = new ArrayList<>();
+        for (S obj : objs) {
+            ObservableSet<S, T> set = function.apply(obj);
+            set.initialize(obj);
+            elements.addAll(set);
+        }
+
+        if (!elements.isEmpty()) downstream.addAll0(elements);
+        for (S obj : objs) function.apply(obj).subscribe(this);
+    }
+
+    @Override
+    public boolean remove0(S obj) {
+        ObservableSet<S, T> set = function.apply(obj);
+        boolean result = set.unsubscribe(this);
+        if (result && !set.isEmpty()) downstream.removeAll0(set);
+        return result;
+    }
+
+    @Override
+    public void removeAll0(Collection<? extends S> objs) {
+        ArrayList<T> elements = new ArrayList<>();
+        for (S obj : objs) {
+            ObservableSet<S, T> set = function.apply(obj);
+            if (set.unsubscribe(this)) elements.addAll(set);
+        }
+
+        if (!elements.isEmpty()) downstream.removeAll0(elements);
+    }
+
+    @Override
+    public void add(ObservableSet<? extends S, ? extends T> set, T element) {
+        downstream.add0(element);
+    }
+
+    @Override
+    public void remove(ObservableSet<? extends S, ? extends T> set, T element) {
+        downstream.remove0(element);
+    }
+
+    @Override
+    public void addAll(ObservableSet<? extends S, ? extends T> set, Collection<? extends T> elements) {
+        downstream.addAll0(elements);
+    }
+
+    @Override
+    public void removeAll(ObservableSet<? extends S, ? extends T> set, Collection<? extends T> elements) {
+        downstream.removeAll0(elements);
+    }
+
+    @Override
+    public void attached(Subscription subscription) {
+        downstream.attached(subscription);
+    }
+
+    @Override
+    public void instrument(MetricsSink metrics) {
+        if (downstream instanceof Instrumented) ((Instrumented) downstream).instrument(metrics);
+    }
+}
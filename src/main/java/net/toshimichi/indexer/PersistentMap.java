@@ -0,0 +1,422 @@
+package net.toshimichi.indexer;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+
+// an immutable hash array mapped trie, every update copies only the path from the root to the changed entry
+final class PersistentMap<K, V> {
+
+    @SuppressWarnings("rawtypes")
+    private static final PersistentMap EMPTY = new PersistentMap<>(null, 0);
+
+    // marks a slot which holds a child node instead of a key
+    private static final Object NODE = new Object();
+
+    private final Node root;
+    private final int size;
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentMap<K, V> empty() {
+        return EMPTY;
+    }
+
+    static <K, V> PersistentMap<K, V> of(Map<K, V> map) {
+        PersistentMap<K, V> result = empty();
+        for (Map.Entry<K, V> entry : map.entrySet()) result = result.put(entry.getKey(), entry.getValue());
+        return result;
+    }
+
+    static <E> PersistentMap<E, E> of(Set<E> set) {
+        PersistentMap<E, E> result = empty();
+        for (E e : set) result = result.put(e, e);
+        return result;
+    }
+
+    private static int hash(Object key) {
+        int h = Objects.hashCode(key);
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & 31);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean containsKey(Object key) {
+        return root != null && root.find(0, hash(key), key) != NODE;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(Object key) {
+        if (root == null) return null;
+        Object value = root.find(0, hash(key), key);
+        return value == NODE ? null : (V) value;
+    }
+
+    PersistentMap<K, V> put(K key, V value) {
+        boolean[] added = new boolean[1];
+        Node node = root == null ? BitmapNode.EMPTY : root;
+        Node updated = node.put(0, hash(key), key, value, added);
+        if (updated == root) return this;
+        return new PersistentMap<>(updated, added[0] ? size + 1 : size);
+    }
+
+    PersistentMap<K, V> remove(Object key) {
+        if (root == null) return this;
+        Node updated = root.remove(0, hash(key), key);
+        if (updated == root) return this;
+        return updated == null ? empty() : new PersistentMap<>(updated, size - 1);
+    }
+
+    Iterator<Map.Entry<K, V>> iterator() {
+        return new EntryIterator<>(root);
+    }
+
+    Map<K, V> asMap() {
+        return asMap(Function.identity());
+    }
+
+    // the values are converted every time they are read
+    <W> Map<K, W> asMap(Function<? super V, ? extends W> mapper) {
+        return new MapView<>(this, mapper);
+    }
+
+    Set<K> asSet() {
+        return new SetView<>(this);
+    }
+
+    private abstract static class Node {
+
+        // returns NODE if the key is not found
+        abstract Object find(int shift, int hash, Object key);
+
+        abstract Node put(int shift, int hash, Object key, Object value, boolean[] added);
+
+        // returns null if the node becomes empty
+        abstract Node remove(int shift, int hash, Object key);
+    }
+
+    private static final class BitmapNode extends Node {
+
+        private static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        private final int bitmap;
+
+        // key and value pairs, or NODE and a child node
+        private final Object[] array;
+
+        private BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1)) * 2;
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) return NODE;
+            int index = index(bit);
+            Object k = array[index];
+            if (k == NODE) return ((Node) array[index + 1]).find(shift + 5, hash, key);
+            return Objects.equals(k, key) ? array[index + 1] : NODE;
+        }
+
+        @Override
+        Node put(int shift, int hash, Object key, Object value, boolean[] added) {
+            int bit = bit(hash, shift);
+            int index = index(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] updated = new Object[array.length + 2];
+                System.arraycopy(array, 0, updated, 0, index);
+                updated[index] = key;
+                updated[index + 1] = value;
+                System.arraycopy(array, index, updated, index + 2, array.length - index);
+                added[0] = true;
+                return new BitmapNode(bitmap | bit, updated);
+            }
+
+            Object k = array[index];
+            Object v = array[index + 1];
+            if (k == NODE) {
+                Node child = ((Node) v).put(shift + 5, hash, key, value, added);
+                return child == v ? this : replace(index + 1, child);
+            }
+            if (Objects.equals(k, key)) {
+                return v == value ? this : replace(index + 1, value);
+            }
+
+            added[0] = true;
+            Object[] updated = array.clone();
+            updated[index] = NODE;
+            updated[index + 1] = merge(shift + 5, k, v, hash, key, value);
+            return new BitmapNode(bitmap, updated);
+        }
+
+        private BitmapNode replace(int index, Object value) {
+            Object[] updated = array.clone();
+            updated[index] = value;
+            return new BitmapNode(bitmap, updated);
+        }
+
+        private static Node merge(int shift, Object k1, Object v1, int h2, Object k2, Object v2) {
+            int h1 = hash(k1);
+            if (h1 == h2) return new CollisionNode(h1, new Object[]{k1, v1, k2, v2});
+
+            boolean[] added = new boolean[1];
+            return EMPTY.put(shift, h1, k1, v1, added).put(shift, h2, k2, v2, added);
+        }
+
+        @Override
+        Node remove(int shift, int hash, Object key) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) return this;
+            int index = index(bit);
+            Object k = array[index];
+            if (k == NODE) {
+                Node child = (Node) array[index + 1];
+                Node updated = child.remove(shift + 5, hash, key);
+                if (updated == child) return this;
+                if (updated != null) {
+                    // a child left with a single entry is pulled up, so that removals shrink the trie again
+                    if (updated instanceof BitmapNode && ((BitmapNode) updated).array.length == 2
+                            && ((BitmapNode) updated).array[0] != NODE) {
+                        Object[] array = this.array.clone();
+                        array[index] = ((BitmapNode) updated).array[0];
+                        array[index + 1] = ((BitmapNode) updated).array[1];
+                        return new BitmapNode(bitmap, array);
+                    }
+                    return replace(index + 1, updated);
+                }
+            } else if (!Objects.equals(k, key)) {
+                return this;
+            }
+
+            if (bitmap == bit) return null;
+            Object[] updated = new Object[array.length - 2];
+            System.arraycopy(array, 0, updated, 0, index);
+            System.arraycopy(array, index + 2, updated, index, array.length - index - 2);
+            return new BitmapNode(bitmap ^ bit, updated);
+        }
+    }
+
+    private static final class CollisionNode extends Node {
+
+        private final int hash;
+        private final Object[] array;
+
+        private CollisionNode(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (Objects.equals(array[i], key)) return i;
+            }
+            return -1;
+        }
+
+        @Override
+        Object find(int shift, int hash, Object key) {
+            if (hash != this.hash) return NODE;
+            int index = indexOf(key);
+            return index < 0 ? NODE : array[index + 1];
+        }
+
+        @Override
+        Node put(int shift, int hash, Object key, Object value, boolean[] added) {
+            if (hash != this.hash) {
+                // the hashes only share a prefix, so the collision moves one level down
+                BitmapNode parent = new BitmapNode(bit(this.hash, shift), new Object[]{NODE, this});
+                return parent.put(shift, hash, key, value, added);
+            }
+
+            int index = indexOf(key);
+            if (index >= 0) {
+                if (array[index + 1] == value) return this;
+                Object[] updated = array.clone();
+                updated[index + 1] = value;
+                return new CollisionNode(hash, updated);
+            }
+
+            added[0] = true;
+            Object[] updated = new Object[array.length + 2];
+            System.arraycopy(array, 0, updated, 0, array.length);
+            updated[array.length] = key;
+            updated[array.length + 1] = value;
+            return new CollisionNode(hash, updated);
+        }
+
+        @Override
+        Node remove(int shift, int hash, Object key) {
+            if (hash != this.hash) return this;
+            int index = indexOf(key);
+            if (index < 0) return this;
+            if (array.length == 2) return null;
+
+            Object[] updated = new Object[array.length - 2];
+            System.arraycopy(array, 0, updated, 0, index);
+            System.arraycopy(array, index + 2, updated, index, array.length - index - 2);
+            if (updated.length == 2) return new BitmapNode(bit(hash, shift), updated);
+            return new CollisionNode(hash, updated);
+        }
+    }
+
+    private static class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+
+        private final ArrayDeque<Object[]> arrays = new ArrayDeque<>();
+        private final ArrayDeque<Integer> indexes = new ArrayDeque<>();
+        private Map.Entry<K, V> next;
+
+        private EntryIterator(Node root) {
+            if (root != null) push(root);
+            advance();
+        }
+
+        private void push(Node node) {
+            arrays.push(node instanceof BitmapNode ? ((BitmapNode) node).array : ((CollisionNode) node).array);
+            indexes.push(0);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            next = null;
+            while (!arrays.isEmpty()) {
+                Object[] array = arrays.peek();
+                int index = indexes.pop();
+                if (index >= array.length) {
+                    arrays.pop();
+                    continue;
+                }
+
+                indexes.push(index + 2);
+                if (array[index] == NODE) {
+                    push((Node) array[index + 1]);
+                } else {
+                    next = new AbstractMap.SimpleImmutableEntry<>((K) array[index], (V) array[index + 1]);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (next == null) throw new NoSuchElementException();
+            Map.Entry<K, V> result = next;
+            advance();
+            return result;
+        }
+    }
+
+    private static class MapView<K, V, W> extends AbstractMap<K, W> {
+
+        private final PersistentMap<K, V> map;
+        private final Function<? super V, ? extends W> mapper;
+
+        private MapView(PersistentMap<K, V> map, Function<? super V, ? extends W> mapper) {
+            this.map = map;
+            this.mapper = mapper;
+        }
+
+        @Override
+        public W get(Object key) {
+            V value = map.get(key);
+            return value == null ? null : mapper.apply(value);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return map.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return map.size();
+        }
+
+        @Override
+        public Set<Entry<K, W>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<K, W>> iterator() {
+                    Iterator<Entry<K, V>> iterator = map.iterator();
+                    return new Iterator<>() {
+                        @Override
+                        public boolean hasNext() {
+                            return iterator.hasNext();
+                        }
+
+                        @Override
+                        public Entry<K, W> next() {
+                            Entry<K, V> entry = iterator.next();
+                            return new SimpleImmutableEntry<>(entry.getKey(), mapper.apply(entry.getValue()));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return map.size();
+                }
+            };
+        }
+    }
+
+    private static class SetView<E> extends AbstractSet<E> {
+
+        private final PersistentMap<E, ?> map;
+
+        private SetView(PersistentMap<E, ?> map) {
+            this.map = map;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return map.containsKey(o);
+        }
+
+        @Override
+        public int size() {
+            return map.size();
+        }
+
+        @Override
+        public Iterator<E> iterator() {
+            Iterator<? extends Map.Entry<E, ?>> iterator = map.iterator();
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public E next() {
+                    return iterator.next().getKey();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package net.toshimichi.indexer;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An index which maps strings to their owners and finds the owners of all strings starting with a prefix.
+ * <p>
+ * Instances of this interface are created by {@link ObservableSet#createPrefixIndex(java.util.function.Function)}
+ * and {@link ObservableSet#createPrefixIndex(java.util.function.Function, boolean)}. As a map, it works like
+ * a multi index. The strings are kept in a radix tree, so prefix queries only visit the strings which start
+ * with the prefix regardless of the number of indexed elements.
+ * <p>
+ * If the index ignores case, the strings are lower-cased with {@link java.util.Locale#ROOT} both when they are
+ * indexed and when they are looked up, and the keys of this map are the lower-cased strings.
+ *
+ * @param <E> the type of the elements
+ */
+public interface PrefixIndex<E> extends CloseableMap<String, Set<E>> {
+
+    /**
+     * Iterates over the strings starting with the specified prefix and their owners in lexicographic order.
+     * <p>
+     * The entries are read lazily from this index, which must not be updated during the iteration.
+     *
+     * @param prefix the prefix
+     * @return the entries whose keys start with the prefix
+     */
+    Iterable<Map.Entry<String, Set<E>>> withPrefix(String prefix);
+
+    /**
+     * Gets the owners of all strings starting with the specified prefix.
+     *
+     * @param prefix the prefix
+     * @return a copy of the owners
+     */
+    Set<E> getByPrefix(String prefix);
+
+    /**
+     * Gets the first strings starting with the specified prefix in lexicographic order.
+     * <p>
+     * This method stops at the limit, which makes it suitable for completing a string while it is typed.
+     *
+     * @param prefix the prefix
+     * @param limit  the maximum number of strings to return
+     * @return the strings
+     */
+    List<String> getKeysByPrefix(String prefix, int limit);
+
+    /**
+     * Gets the owners of the first strings starting with the specified prefix in lexicographic order.
+     *
+     * @param prefix the prefix
+     * @param limit  the maximum number of owners to return
+     * @return the owners, ordered by their strings
+     */
+    List<E> getByPrefix(String prefix, int limit);
+}
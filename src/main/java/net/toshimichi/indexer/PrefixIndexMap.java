@@ -0,0 +1,429 @@
+package net.toshimichi.indexer;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Function;
+
+class PrefixIndexMap<V> extends AbstractMap<String, Set<V>> implements PrefixIndex<V>, ObservableFieldHandler<V, String>, ElementHandler<V>, Instrumented {
+
+    // exact lookups go through the hash map, and the tree shares its sets for prefix queries
+    private Map<String, Set<V>> internal = new HashMap<>();
+    private final Node<V> root = new Node<>("");
+    private final Function<V, ObservableField<V, String>> function;
+    private final boolean ignoreCase;
+    private MetricsSink metrics;
+    private Subscription subscription;
+
+    public PrefixIndexMap(Function<V, ObservableField<V, String>> function, boolean ignoreCase) {
+        this.function = function;
+        this.ignoreCase = ignoreCase;
+    }
+
+    private String normalize(String key) {
+        return ignoreCase ? key.toLowerCase(Locale.ROOT) : key;
+    }
+
+    private void put0(String key, V value) {
+        Set<V> set = internal.get(key);
+        if (set == null) {
+            set = new CompactSet<>();
+            internal.put(key, set);
+            root.insert(key, set);
+        }
+        if (!set.add(value)) return;
+        if (metrics != null) metrics.updated(this, internal.size());
+    }
+
+    private void remove1(String key, V value) {
+        Set<V> set = internal.get(key);
+        if (set == null || !set.remove(value)) return;
+        if (set.isEmpty()) {
+            internal.remove(key);
+            root.remove(key);
+        }
+        if (metrics != null) metrics.updated(this, internal.size());
+    }
+
+    @Override
+    public void attached(Subscription subscription) {
+        this.subscription = subscription;
+    }
+
+    @Override
+    public void close() {
+        if (subscription != null) subscription.unsubscribe();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return subscription != null && !subscription.isSubscribed();
+    }
+
+    @Override
+    public void instrument(MetricsSink metrics) {
+        this.metrics = metrics;
+    }
+
+    public void add0(V obj) {
+        ObservableField<V, String> field = function.apply(obj);
+        field.initialize(obj);
+        field.subscribe(this);
+
+        String key = field.get();
+        if (key == null) return;
+        put0(normalize(key), obj);
+    }
+
+    @Override
+    public void addAll0(Collection<? extends V> objs) {
+        internal = Capacity.ensure(internal, objs.size());
+        for (V obj : objs) add0(obj);
+    }
+
+    public boolean remove0(V obj) {
+        ObservableField<V, String> field = function.apply(obj);
+        boolean result = field.unsubscribe(this);
+        if (result) {
+            String key = field.get();
+            if (key != null) remove1(normalize(key), obj);
+        }
+
+        return result;
+    }
+
+    @Override
+    public void accept(ObservableField<? extends V, ? extends String> field, String old, String updated) {
+        String oldKey = old == null ? null : normalize(old);
+        String updatedKey = updated == null ? null : normalize(updated);
+        if (oldKey != null && oldKey.equals(updatedKey)) return;
+
+        V owner = field.getOwner();
+        if (oldKey != null) remove1(oldKey, owner);
+        if (updatedKey != null) put0(updatedKey, owner);
+    }
+
+    @Override
+    public Iterable<Entry<String, Set<V>>> withPrefix(String prefix) {
+        String normalized = normalize(prefix);
+        return () -> new PrefixIterator<>(root, normalized);
+    }
+
+    @Override
+    public Set<V> getByPrefix(String prefix) {
+        HashSet<V> result = new HashSet<>();
+        for (Entry<String, Set<V>> entry : withPrefix(prefix)) {
+            result.addAll(entry.getValue());
+        }
+        if (metrics != null) metrics.lookedUp(this, !result.isEmpty());
+        return result;
+    }
+
+    @Override
+    public List<String> getKeysByPrefix(String prefix, int limit) {
+        ArrayList<String> result = new ArrayList<>();
+        if (limit <= 0) return result;
+
+        for (Entry<String, Set<V>> entry : withPrefix(prefix)) {
+            result.add(entry.getKey());
+            if (result.size() >= limit) break;
+        }
+        if (metrics != null) metrics.lookedUp(this, !result.isEmpty());
+        return result;
+    }
+
+    @Override
+    public List<V> getByPrefix(String prefix, int limit) {
+        ArrayList<V> result = new ArrayList<>();
+        if (limit <= 0) return result;
+
+        loop:
+        for (Entry<String, Set<V>> entry : withPrefix(prefix)) {
+            for (V value : entry.getValue()) {
+                result.add(value);
+                if (result.size() >= limit) break loop;
+            }
+        }
+        if (metrics != null) metrics.lookedUp(this, !result.isEmpty());
+        return result;
+    }
+
+    @Override
+    public Set<Entry<String, Set<V>>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<String, Set<V>>> iterator() {
+                Iterator<Entry<String, Set<V>>> iterator = internal.entrySet().iterator();
+                return new Iterator<>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, Set<V>> next() {
+                        Entry<String, Set<V>> entry = iterator.next();
+                        return new SimpleImmutableEntry<>(entry.getKey(), Collections.unmodifiableSet(entry.getValue()));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return internal.size();
+            }
+        };
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return Collections.unmodifiableSet(internal.keySet());
+    }
+
+    @Override
+    public Collection<Set<V>> values() {
+        return new AbstractCollection<>() {
+            @Override
+            public Iterator<Set<V>> iterator() {
+                Iterator<Set<V>> iterator = internal.values().iterator();
+                return new Iterator<>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Set<V> next() {
+                        return Collections.unmodifiableSet(iterator.next());
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return internal.size();
+            }
+        };
+    }
+
+    @Override
+    public Set<V> get(Object key) {
+        Set<V> set = key instanceof String ? internal.get(normalize((String) key)) : null;
+        if (metrics != null) metrics.lookedUp(this, set != null);
+        if (set == null) return null;
+        return Collections.unmodifiableSet(set);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && internal.containsKey(normalize((String) key));
+    }
+
+    @Override
+    public int size() {
+        return internal.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return internal.isEmpty();
+    }
+
+    // a node of the radix tree, whose edge from its parent is labeled with one or more characters
+    private static class Node<V> {
+
+        private static final Node<?>[] NO_CHILDREN = new Node<?>[0];
+
+        private String label;
+        // sorted by the first character of their labels, which is unique among the children of a node
+        private Node<V>[] children;
+        private int childCount;
+        // the owners of the string ending at this node, null if no string ends here
+        private Set<V> values;
+
+        @SuppressWarnings("unchecked")
+        private Node(String label) {
+            this.label = label;
+            this.children = (Node<V>[]) NO_CHILDREN;
+        }
+
+        // returns the index of the child starting with c, or -(insertion point) - 1
+        private int indexOf(char c) {
+            int low = 0;
+            int high = childCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                char m = children[mid].label.charAt(0);
+                if (m < c) {
+                    low = mid + 1;
+                } else if (m > c) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+
+        private void addChild(int index, Node<V> child) {
+            if (childCount == children.length) {
+                children = Arrays.copyOf(children, Math.max(2, childCount * 2));
+            }
+            System.arraycopy(children, index, children, index + 1, childCount - index);
+            children[index] = child;
+            childCount++;
+        }
+
+        private void removeChild(int index) {
+            childCount--;
+            System.arraycopy(children, index + 1, children, index, childCount - index);
+            children[childCount] = null;
+        }
+
+        private void insert(String key, Set<V> set) {
+            Node<V> node = this;
+            int offset = 0;
+            while (offset < key.length()) {
+                int index = node.indexOf(key.charAt(offset));
+                if (index < 0) {
+                    Node<V> leaf = new Node<>(key.substring(offset));
+                    leaf.values = set;
+                    node.addChild(-index - 1, leaf);
+                    return;
+                }
+
+                Node<V> child = node.children[index];
+                int common = commonPrefix(child.label, key, offset);
+                if (common < child.label.length()) {
+                    // split the edge so that the common part gets its own node
+                    Node<V> middle = new Node<>(child.label.substring(0, common));
+                    child.label = child.label.substring(common);
+                    middle.addChild(0, child);
+                    node.children[index] = middle;
+                    child = middle;
+                }
+                node = child;
+                offset += common;
+            }
+            node.values = set;
+        }
+
+        private static int commonPrefix(String label, String key, int offset) {
+            int length = Math.min(label.length(), key.length() - offset);
+            int i = 0;
+            while (i < length && label.charAt(i) == key.charAt(offset + i)) i++;
+            return i;
+        }
+
+        private void remove(String key) {
+            Node<V> parent = null;
+            Node<V> node = this;
+            int index = -1;
+            int offset = 0;
+            while (offset < key.length()) {
+                int i = node.indexOf(key.charAt(offset));
+                if (i < 0) return;
+                Node<V> child = node.children[i];
+                if (!key.startsWith(child.label, offset)) return;
+                parent = node;
+                node = child;
+                index = i;
+                offset += child.label.length();
+            }
+
+            node.values = null;
+            if (parent == null) return;
+
+            // keep the tree compressed, so that every node without values has at least two children
+            if (node.childCount == 0) {
+                parent.removeChild(index);
+                if (parent != this && parent.values == null && parent.childCount == 1) parent.merge();
+            } else if (node.childCount == 1) {
+                node.merge();
+            }
+        }
+
+        // absorbs the only child of this node
+        private void merge() {
+            Node<V> child = children[0];
+            label = label + child.label;
+            children = child.children;
+            childCount = child.childCount;
+            values = child.values;
+        }
+
+        // finds the node under which all strings start with the prefix, and the string leading to that node
+        private Entry<String, Node<V>> find(String prefix) {
+            Node<V> node = this;
+            int offset = 0;
+            while (offset < prefix.length()) {
+                int index = node.indexOf(prefix.charAt(offset));
+                if (index < 0) return null;
+                Node<V> child = node.children[index];
+                int common = commonPrefix(child.label, prefix, offset);
+                if (offset + common == prefix.length()) {
+                    return new SimpleImmutableEntry<>(prefix.substring(0, offset) + child.label, child);
+                }
+                if (common < child.label.length()) return null;
+                node = child;
+                offset += common;
+            }
+            return new SimpleImmutableEntry<>(prefix, node);
+        }
+    }
+
+    // walks the subtree in lexicographic order, visiting a node before its children
+    private static class PrefixIterator<V> implements Iterator<Entry<String, Set<V>>> {
+
+        private final ArrayDeque<Entry<String, Node<V>>> stack = new ArrayDeque<>();
+        private Entry<String, Set<V>> next;
+
+        public PrefixIterator(Node<V> root, String prefix) {
+            Entry<String, Node<V>> start = root.find(prefix);
+            if (start != null) stack.push(start);
+            advance();
+        }
+
+        private void advance() {
+            next = null;
+            while (next == null && !stack.isEmpty()) {
+                Entry<String, Node<V>> entry = stack.pop();
+                String key = entry.getKey();
+                Node<V> node = entry.getValue();
+                for (int i = node.childCount - 1; i >= 0; i--) {
+                    Node<V> child = node.children[i];
+                    stack.push(new SimpleImmutableEntry<>(key + child.label, child));
+                }
+                if (node.values != null) {
+                    next = new SimpleImmutableEntry<>(key, Collections.unmodifiableSet(node.values));
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Entry<String, Set<V>> next() {
+            if (next == null) throw new NoSuchElementException();
+            Entry<String, Set<V>> result = next;
+            advance();
+            return result;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package net.toshimichi.indexer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * A query which finds the elements of an {@link ObservableSet} satisfying a {@link Condition}.
+ * <p>
+ * Instances of this class are created by {@link ObservableSet#query(Condition)}.
+ * Every time the query is executed, it is planned against the indexes attached to the set at that time:
+ * <ul>
+ *     <li>{@link Condition#equal(java.util.function.Function, Object)} and
+ *     {@link Condition#in(java.util.function.Function, java.util.Collection)} use an index, a multi index
+ *     or a bitmap index created with the same field.</li>
+ *     <li>{@link Condition#range(java.util.function.Function, Comparable, Comparable)} uses a sorted index
+ *     created with the same field in the natural order.</li>
+ *     <li>{@link Condition#contains(java.util.function.Function, Object)} uses a flat index, a flat multi index
+ *     or a flat bitmap index created with the same set.</li>
+ *     <li>{@link Condition#and(Condition[])} starts from the condition which is estimated to match the fewest
+ *     elements, intersects the result with the other conditions which can be looked up in constant time and
+ *     tests the remaining conditions on each candidate. Bitmap indexes are intersected by their bitmaps.</li>
+ *     <li>{@link Condition#or(Condition[])} merges the results of the conditions.</li>
+ * </ul>
+ * The set is scanned only when no index can be used. The estimates are taken from the sizes of the index
+ * entries for the looked up keys, so the plan follows the current distribution of the keys.
+ *
+ * @param <E> the type of the elements
+ */
+public final class Query<E> {
+
+    private final ObservableSet<?, E> set;
+    private final Condition<E> condition;
+
+    Query(ObservableSet<?, E> set, Condition<E> condition) {
+        this.set = set;
+        this.condition = condition;
+    }
+
+    /**
+     * Finds the elements satisfying the condition.
+     *
+     * @return a new set of the matching elements
+     */
+    public Set<E> execute() {
+        return new HashSet<>(plan(set.adaptiveIndexer()).execute());
+    }
+
+    /**
+     * Describes how this query would be executed now.
+     * <p>
+     * Each line shows a step of the plan with the number of elements it is estimated to match,
+     * and the steps of an intersection or a union are indented under it.
+     *
+     * @return the description of the plan
+     */
+    public String explain() {
+        StringBuilder builder = new StringBuilder();
+        plan(null).explain(builder, 0);
+        return builder.toString();
+    }
+
+    // the adaptive indexer is told about the scans and the lookups, null when only explaining the plan
+    private QueryPlan<E> plan(AdaptiveIndexer<E> adaptive) {
+        // indexes are matched by the field they read from an element, which requires at least one element
+        Iterator<E> iterator = set.iterator();
+        if (!iterator.hasNext()) return new QueryPlan.Scan<>(condition, set);
+        return plan(condition, set.indexes(), iterator.next(), adaptive);
+    }
+
+    private QueryPlan<E> plan(Condition<E> condition, List<FieldIndex<E>> indexes, E sample, AdaptiveIndexer<E> adaptive) {
+        if (condition instanceof FieldCondition) {
+            FieldCondition<E, ?> field = (FieldCondition<E, ?>) condition;
+            if (field.values().contains(null)) return new QueryPlan.Scan<>(condition, set);
+            FieldIndex<E> index = find(indexes, sample, field.function().apply(sample));
+            record(adaptive, index, "multi", field.function(), sample);
+            return lookup(condition, index, field.values());
+        } else if (condition instanceof ContainsCondition) {
+            ContainsCondition<E, ?> contains = (ContainsCondition<E, ?>) condition;
+            FieldIndex<E> index = find(indexes, sample, contains.function().apply(sample));
+            record(adaptive, index, "flat multi", contains.function(), sample);
+            return lookup(condition, index, Collections.singleton(contains.value()));
+        } else if (condition instanceof RangeCondition) {
+            return range((RangeCondition<E, ?>) condition, indexes, sample, adaptive);
+        } else if (condition instanceof CompoundCondition) {
+            CompoundCondition<E> compound = (CompoundCondition<E>) condition;
+            ArrayList<QueryPlan<E>> plans = new ArrayList<>();
+            ArrayList<Condition<E>> filters = new ArrayList<>();
+            for (Condition<E> child : compound.conditions()) {
+                QueryPlan<E> plan = plan(child, indexes, sample, adaptive);
+                if (plan instanceof QueryPlan.Scan) {
+                    filters.add(child);
+                } else {
+                    plans.add(plan);
+                }
+            }
+
+            if (compound.isAnd()) return intersect(condition, plans, filters);
+            if (filters.isEmpty() && !plans.isEmpty()) return new QueryPlan.Union<>(condition, plans);
+        }
+        return new QueryPlan.Scan<>(condition, set);
+    }
+
+    private QueryPlan<E> intersect(Condition<E> condition, List<QueryPlan<E>> plans, List<Condition<E>> filters) {
+        if (plans.isEmpty()) return new QueryPlan.Scan<>(condition, set);
+
+        plans.sort(Comparator.comparingInt(QueryPlan::estimate));
+        ArrayList<QueryPlan<E>> probes = new ArrayList<>();
+        for (QueryPlan<E> plan : plans.subList(1, plans.size())) {
+            if (plan.isDirect()) {
+                probes.add(plan);
+            } else {
+                filters.add(plan.condition());
+            }
+        }
+        return new QueryPlan.Intersect<>(condition, plans.get(0), probes, filters);
+    }
+
+    private FieldIndex<E> find(List<FieldIndex<E>> indexes, E sample, Object source) {
+        FieldIndex<E> found = null;
+        for (FieldIndex<E> index : indexes) {
+            if (index.source(sample) != source) continue;
+            // an index without duplicated keys matches at most one element per key
+            if (isUnique(index)) return index;
+            if (found == null) found = index;
+        }
+        return found;
+    }
+
+    private static boolean isUnique(FieldIndex<?> index) {
+        return index instanceof IndexMap || index instanceof FlatIndexMap || index instanceof MappedIndexMap;
+    }
+
+    private void record(AdaptiveIndexer<E> adaptive, FieldIndex<E> index, String kind, Function<E, ?> function, E sample) {
+        if (adaptive == null) return;
+        if (index == null) {
+            adaptive.scanned(kind, function, sample);
+        } else {
+            adaptive.used(index);
+        }
+    }
+
+    private QueryPlan<E> lookup(Condition<E> condition, FieldIndex<E> index, Set<?> keys) {
+        if (index == null) return new QueryPlan.Scan<>(condition, set);
+        boolean multi = !isUnique(index);
+        return new QueryPlan.Lookup<>(condition, (Map<?, ?>) index, multi, keys);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private QueryPlan<E> range(RangeCondition<E, ?> condition, List<FieldIndex<E>> indexes, E sample, AdaptiveIndexer<E> adaptive) {
+        Object source = condition.function().apply(sample);
+        for (FieldIndex<E> index : indexes) {
+            if (!(index instanceof SortedIndexMap) || index.source(sample) != source) continue;
+            NavigableMap map = (NavigableMap) index;
+            if (map.comparator() != null && map.comparator() != Comparator.naturalOrder()) continue;
+
+            Object from = condition.from();
+            Object to = condition.to();
+            NavigableMap range;
+            if (condition.isEmpty()) {
+                range = Collections.emptyNavigableMap();
+            } else if (from == null) {
+                range = to == null ? map : map.headMap(to, false);
+            } else {
+                range = to == null ? map.tailMap(from, true) : map.subMap(from, true, to, false);
+            }
+            if (adaptive != null) adaptive.used(index);
+            return new QueryPlan.RangeLookup<>(condition, (NavigableMap<?, Set<E>>) range, set.size());
+        }
+
+        if (adaptive != null) adaptive.scanned("sorted", condition.function(), sample);
+        return new QueryPlan.Scan<>(condition, set);
+    }
+}
@@ -0,0 +1,248 @@
+package net.toshimichi.indexer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+
+// a step of a query, which estimates the number of matching elements before it is executed
+abstract class QueryPlan<E> {
+
+    private final Condition<E> condition;
+
+    QueryPlan(Condition<E> condition) {
+        this.condition = condition;
+    }
+
+    Condition<E> condition() {
+        return condition;
+    }
+
+    abstract int estimate();
+
+    // whether executing this plan takes constant time, which makes its result cheap to intersect with
+    boolean isDirect() {
+        return false;
+    }
+
+    // the returned set may be a live view of an index, so it must not be kept
+    abstract Set<E> execute();
+
+    abstract void explain(StringBuilder builder, int depth);
+
+    void line(StringBuilder builder, int depth, String text) {
+        builder.append("  ".repeat(depth)).append(text).append(" (estimated ").append(estimate()).append(")\n");
+    }
+
+    static class Lookup<E> extends QueryPlan<E> {
+
+        private final Map<?, ?> index;
+        private final boolean multi;
+        private final List<Object> hits = new ArrayList<>();
+        private final int keys;
+        private int estimate;
+
+        // looks up the keys while planning, so that the estimate is exact and the keys are looked up only once
+        public Lookup(Condition<E> condition, Map<?, ?> index, boolean multi, Collection<?> keys) {
+            super(condition);
+            this.index = index;
+            this.multi = multi;
+            this.keys = keys.size();
+            for (Object key : keys) {
+                Object hit = index.get(key);
+                if (hit == null) continue;
+                hits.add(hit);
+                estimate += multi ? ((Set<?>) hit).size() : 1;
+            }
+        }
+
+        @Override
+        int estimate() {
+            return estimate;
+        }
+
+        @Override
+        boolean isDirect() {
+            return keys == 1;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        Set<E> execute() {
+            if (hits.isEmpty()) return Collections.emptySet();
+            if (hits.size() == 1) return multi ? (Set<E>) hits.get(0) : Collections.singleton((E) hits.get(0));
+
+            HashSet<E> result = new HashSet<>(Capacity.of(estimate));
+            for (Object hit : hits) {
+                if (multi) {
+                    result.addAll((Set<E>) hit);
+                } else {
+                    result.add((E) hit);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        void explain(StringBuilder builder, int depth) {
+            line(builder, depth, "lookup " + condition() + " on " + index.getClass().getSimpleName());
+        }
+    }
+
+    static class RangeLookup<E> extends QueryPlan<E> {
+
+        private final NavigableMap<?, Set<E>> range;
+        private final int estimate;
+
+        // counting the keys in the range takes linear time, so a non-empty range is assumed to match a third of the set
+        public RangeLookup(Condition<E> condition, NavigableMap<?, Set<E>> range, int size) {
+            super(condition);
+            this.range = range;
+            this.estimate = range.isEmpty() ? 0 : (size + 2) / 3;
+        }
+
+        @Override
+        int estimate() {
+            return estimate;
+        }
+
+        @Override
+        Set<E> execute() {
+            HashSet<E> result = new HashSet<>();
+            for (Set<E> values : range.values()) result.addAll(values);
+            return result;
+        }
+
+        @Override
+        void explain(StringBuilder builder, int depth) {
+            line(builder, depth, "range " + condition() + " on SortedIndexMap");
+        }
+    }
+
+    static class Scan<E> extends QueryPlan<E> {
+
+        private final Collection<E> elements;
+
+        public Scan(Condition<E> condition, Collection<E> elements) {
+            super(condition);
+            this.elements = elements;
+        }
+
+        @Override
+        int estimate() {
+            return elements.size();
+        }
+
+        @Override
+        Set<E> execute() {
+            HashSet<E> result = new HashSet<>();
+            for (E element : elements) {
+                if (condition().test(element)) result.add(element);
+            }
+            return result;
+        }
+
+        @Override
+        void explain(StringBuilder builder, int depth) {
+            line(builder, depth, "scan " + condition());
+        }
+    }
+
+    static class Intersect<E> extends QueryPlan<E> {
+
+        private final QueryPlan<E> driver;
+        private final List<QueryPlan<E>> probes;
+        private final List<Condition<E>> filters;
+
+        public Intersect(Condition<E> condition, QueryPlan<E> driver, List<QueryPlan<E>> probes, List<Condition<E>> filters) {
+            super(condition);
+            this.driver = driver;
+            this.probes = probes;
+            this.filters = filters;
+        }
+
+        @Override
+        int estimate() {
+            return driver.estimate();
+        }
+
+        @Override
+        Set<E> execute() {
+            Set<E> candidates = driver.execute();
+            if (candidates.isEmpty()) return candidates;
+
+            List<Set<E>> sets = new ArrayList<>(probes.size());
+            for (QueryPlan<E> probe : probes) {
+                Set<E> set = probe.execute();
+                if (set.isEmpty()) return set;
+
+                // bitmaps of the same ids are intersected a group of ids at a time instead of an element at a time
+                if (candidates instanceof BitmapSet && set instanceof BitmapSet
+                        && ((BitmapSet<E>) candidates).ids() == ((BitmapSet<E>) set).ids()) {
+                    BitmapSet<E> bitmap = (BitmapSet<E>) candidates;
+                    candidates = new BitmapSet<>(bitmap.bitmap().and(((BitmapSet<E>) set).bitmap()), bitmap.ids());
+                } else {
+                    sets.add(set);
+                }
+            }
+
+            HashSet<E> result = new HashSet<>();
+            outer:
+            for (E candidate : candidates) {
+                for (Set<E> set : sets) {
+                    if (!set.contains(candidate)) continue outer;
+                }
+                for (Condition<E> filter : filters) {
+                    if (!filter.test(candidate)) continue outer;
+                }
+                result.add(candidate);
+            }
+            return result;
+        }
+
+        @Override
+        void explain(StringBuilder builder, int depth) {
+            line(builder, depth, "intersect");
+            driver.explain(builder, depth + 1);
+            for (QueryPlan<E> probe : probes) probe.explain(builder, depth + 1);
+            for (Condition<E> filter : filters) builder.append("  ".repeat(depth + 1)).append("filter ").append(filter).append('\n');
+        }
+    }
+
+    static class Union<E> extends QueryPlan<E> {
+
+        private final List<QueryPlan<E>> plans;
+        private final int estimate;
+
+        public Union(Condition<E> condition, List<QueryPlan<E>> plans) {
+            super(condition);
+            this.plans = plans;
+
+            int estimate = 0;
+            for (QueryPlan<E> plan : plans) estimate += plan.estimate();
+            this.estimate = estimate;
+        }
+
+        @Override
+        int estimate() {
+            return estimate;
+        }
+
+        @Override
+        Set<E> execute() {
+            HashSet<E> result = new HashSet<>(Capacity.of(estimate));
+            for (QueryPlan<E> plan : plans) result.addAll(plan.execute());
+            return result;
+        }
+
+        @Override
+        void explain(StringBuilder builder, int depth) {
+            line(builder, depth, "union");
+            for (QueryPlan<E> plan : plans) plan.explain(builder, depth + 1);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package net.toshimichi.indexer;
+
+import java.util.function.Function;
+
+class RangeCondition<E, K extends Comparable<? super K>> implements Condition<E> {
+
+    private final Function<E, ObservableField<E, K>> function;
+    private final K from;
+    private final K to;
+
+    public RangeCondition(Function<E, ObservableField<E, K>> function, K from, K to) {
+        this.function = function;
+        this.from = from;
+        this.to = to;
+    }
+
+    Function<E, ObservableField<E, K>> function() {
+        return function;
+    }
+
+    K from() {
+        return from;
+    }
+
+    K to() {
+        return to;
+    }
+
+    // true if no value can satisfy this condition, which NavigableMap#subMap rejects
+    boolean isEmpty() {
+        return from != null && to != null && from.compareTo(to) > 0;
+    }
+
+    @Override
+    public boolean test(E element) {
+        K value = function.apply(element).get();
+        if (value == null) return false;
+        if (from != null && value.compareTo(from) < 0) return false;
+        return to == null || value.compareTo(to) < 0;
+    }
+
+    @Override
+    public String toString() {
+        return "range[" + (from == null ? "-inf" : from) + ", " + (to == null ? "+inf" : to) + ")";
+    }
+}
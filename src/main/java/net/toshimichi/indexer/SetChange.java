@@ -0,0 +1,55 @@
+package net.toshimichi.indexer;
+
+import java.util.Objects;
+
+/**
+ * An addition or a removal of an element published by {@link ObservableSet#publisher()}.
+ *
+ * @param <E> the type of the element
+ */
+public final class SetChange<E> {
+
+    private final E element;
+    private final boolean added;
+
+    SetChange(E element, boolean added) {
+        this.element = element;
+        this.added = added;
+    }
+
+    /**
+     * Gets the element which was added or removed.
+     *
+     * @return the element
+     */
+    public E getElement() {
+        return element;
+    }
+
+    /**
+     * Checks whether the element was added or removed.
+     *
+     * @return true if the element was added, false if it was removed
+     */
+    public boolean isAdded() {
+        return added;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof SetChange)) return false;
+        SetChange<?> other = (SetChange<?>) o;
+        return added == other.added && Objects.equals(element, other.element);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(element, added);
+    }
+
+    @Override
+    public String toString() {
+        return (added ? "+" : "-") + element;
+    }
+}
@@ -0,0 +1,31 @@
+package net.toshimichi.indexer;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+class SetSnapshot<E> implements Snapshot<E> {
+
+    private final Set<E> elements;
+    private final IdentityHashMap<Object, Map<?, ?>> indexes;
+
+    public SetSnapshot(Set<E> elements, IdentityHashMap<Object, Map<?, ?>> indexes) {
+        this.elements = elements;
+        this.indexes = indexes;
+    }
+
+    @Override
+    public Set<E> elements() {
+        return elements;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <K, V> Map<K, V> get(Map<K, V> index) {
+        Map<?, ?> frozen = indexes.get(index);
+        if (frozen == null) {
+            throw new IllegalArgumentException("The index is not attached or does not support snapshots");
+        }
+        return (Map<K, V>) frozen;
+    }
+}
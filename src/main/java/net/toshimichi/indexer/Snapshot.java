@@ -0,0 +1,37 @@
+package net.toshimichi.indexer;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable point-in-time view of an {@link ObservableSet} and the indexes attached to it.
+ * <p>
+ * Instances of this interface are created by {@link ObservableSet#snapshot()}.
+ * A snapshot never changes after it is taken and can be read from any thread without locking.
+ *
+ * @param <E> the type of the elements
+ */
+public interface Snapshot<E> {
+
+    /**
+     * Gets the elements of the set at the time the snapshot was taken.
+     *
+     * @return the unmodifiable set of the elements
+     */
+    Set<E> elements();
+
+    /**
+     * Gets the state of an index at the time the snapshot was taken.
+     * <p>
+     * Indexes created by {@link ObservableSet#createIndex(java.util.function.Function)} and
+     * {@link ObservableSet#createMultiIndex(java.util.function.Function)} are supported,
+     * including those created by {@link IndexBuilder} and {@link SnapshotReader}.
+     *
+     * @param index the live index which was attached to the set when the snapshot was taken
+     * @param <K>   the type of the keys of the index
+     * @param <V>   the type of the values of the index
+     * @return the unmodifiable map with the same contents as the index had
+     * @throws IllegalArgumentException if the index is not attached to the set or does not support snapshots
+     */
+    <K, V> Map<K, V> get(Map<K, V> index);
+}
@@ -0,0 +1,90 @@
+package net.toshimichi.indexer;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * This interface converts elements and keys to and from the binary representation used by snapshots.
+ *
+ * @param <T> the type of the converted values
+ * @see SnapshotWriter
+ * @see SnapshotReader
+ */
+public interface SnapshotCodec<T> {
+
+    /**
+     * Writes the specified value.
+     *
+     * @param out   the output
+     * @param value the value to write, can be {@code null} if the value is a key
+     * @throws IOException if an I/O error occurs
+     */
+    void write(DataOutput out, T value) throws IOException;
+
+    /**
+     * Reads a value. This method must read exactly the bytes written by {@link #write(DataOutput, Object)}.
+     *
+     * @param in the input
+     * @return the value
+     * @throws IOException if an I/O error occurs
+     */
+    T read(DataInput in) throws IOException;
+
+    /**
+     * Gets a codec for {@link Integer} values. {@code null} is not supported.
+     *
+     * @return the codec
+     */
+    static SnapshotCodec<Integer> integers() {
+        return new SnapshotCodec<>() {
+            @Override
+            public void write(DataOutput out, Integer value) throws IOException {
+                out.writeInt(value);
+            }
+
+            @Override
+            public Integer read(DataInput in) throws IOException {
+                return in.readInt();
+            }
+        };
+    }
+
+    /**
+     * Gets a codec for {@link Long} values. {@code null} is not supported.
+     *
+     * @return the codec
+     */
+    static SnapshotCodec<Long> longs() {
+        return new SnapshotCodec<>() {
+            @Override
+            public void write(DataOutput out, Long value) throws IOException {
+                out.writeLong(value);
+            }
+
+            @Override
+            public Long read(DataInput in) throws IOException {
+                return in.readLong();
+            }
+        };
+    }
+
+    /**
+     * Gets a codec for {@link String} values. {@code null} is not supported.
+     *
+     * @return the codec
+     */
+    static SnapshotCodec<String> strings() {
+        return new SnapshotCodec<>() {
+            @Override
+            public void write(DataOutput out, String value) throws IOException {
+                out.writeUTF(value);
+            }
+
+            @Override
+            public String read(DataInput in) throws IOException {
+                return in.readUTF();
+            }
+        };
+    }
+}
@@ -0,0 +1,294 @@
+package net.toshimichi.indexer;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+/**
+ * This class reads a snapshot file written by {@link SnapshotWriter}.
+ * <p>
+ * The file is memory-mapped and validated with its checksum when it is opened.
+ * Restored indexes look up keys in the stored hash tables in place, so restoring an index only subscribes to
+ * the fields of the elements, and only the keys changed after the restoration are kept on the heap.
+ * Stored keys are checked against the current values of the fields when they are looked up.
+ * <p>
+ * The file stays mapped while the restored indexes are in use, and the key codecs are used to encode
+ * the keys looked up, so they must write equal keys as equal bytes.
+ * <pre>{@code
+ * SnapshotReader<Nation> reader = SnapshotReader.open(path, nationCodec);
+ * nations.addAll(reader.getElements());
+ * Map<Vec2i, Nation> headquarterIndex = reader.restoreIndex(nations, "headquarter", Nation::getHeadquarter, vec2iCodec);
+ * }</pre>
+ *
+ * @param <E> the type of the elements
+ */
+public class SnapshotReader<E> {
+
+    private final List<E> elements;
+    private final Map<String, ByteBuffer> tables;
+
+    private SnapshotReader(List<E> elements, Map<String, ByteBuffer> tables) {
+        this.elements = elements;
+        this.tables = tables;
+    }
+
+    /**
+     * Opens a snapshot file and reads its elements.
+     *
+     * @param path  the path of the file
+     * @param codec the codec of the elements
+     * @param <E>   the type of the elements
+     * @return the reader
+     * @throws IOException if an I/O error occurs, or the file is not a valid snapshot
+     */
+    public static <E> SnapshotReader<E> open(Path path, SnapshotCodec<E> codec) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < SnapshotWriter.HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid snapshot size: " + size);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        if (buffer.getInt() != SnapshotWriter.MAGIC) {
+            throw new IOException("Not a snapshot: " + path);
+        }
+        int version = buffer.getInt();
+        if (version != SnapshotWriter.VERSION) {
+            throw new IOException("Unsupported snapshot version: " + version);
+        }
+        long length = buffer.getLong();
+        int checksum = buffer.getInt();
+        if (length != buffer.remaining()) {
+            throw new IOException("Truncated snapshot: " + path);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Corrupted snapshot: " + path);
+        }
+
+        try {
+            int count = buffer.getInt();
+            ArrayList<E> elements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                elements.add(read(buffer, codec));
+            }
+
+            int tableCount = buffer.getInt();
+            HashMap<String, ByteBuffer> tables = new HashMap<>(Capacity.of(tableCount));
+            for (int i = 0; i < tableCount; i++) {
+                byte[] name = new byte[buffer.getInt()];
+                buffer.get(name);
+                tables.put(new String(name, StandardCharsets.UTF_8), skipTable(buffer, count));
+            }
+
+            if (buffer.hasRemaining()) throw new IOException("Trailing bytes in snapshot: " + path);
+            return new SnapshotReader<>(Collections.unmodifiableList(elements), tables);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed snapshot: " + path, e);
+        }
+    }
+
+    static <T> T read(ByteBuffer buffer, SnapshotCodec<T> codec) throws IOException {
+        int length = buffer.getInt();
+        ByteBuffer slice = buffer.slice(buffer.position(), length);
+        buffer.position(buffer.position() + length);
+
+        T value = codec.read(new DataInputStream(new ByteBufferInputStream(slice)));
+        if (slice.hasRemaining()) {
+            throw new IOException("Codec did not read " + slice.remaining() + " bytes of " + value);
+        }
+        return value;
+    }
+
+    // returns the table starting at the current position and moves to the next one
+    private static ByteBuffer skipTable(ByteBuffer buffer, int elementCount) throws IOException {
+        int start = buffer.position();
+        byte type = buffer.get();
+        if (type != SnapshotWriter.SINGLE && type != SnapshotWriter.MULTI) {
+            throw new IOException("Invalid index type: " + type);
+        }
+        int entries = buffer.getInt();
+        int slots = buffer.getInt();
+        if (entries < 0 || slots <= entries || Integer.bitCount(slots) != 1
+                || slots > buffer.remaining() / SnapshotWriter.SLOT_SIZE) {
+            throw new IOException("Invalid index size: " + entries + " entries in " + slots + " slots");
+        }
+        int slotStart = buffer.position();
+        buffer.position(slotStart + slots * SnapshotWriter.SLOT_SIZE);
+
+        // each element is indexed by at most one key, and by exactly one key in a single index
+        BitSet offsets = new BitSet();
+        BitSet seen = new BitSet(elementCount);
+        for (int i = 0; i < entries; i++) {
+            offsets.set(buffer.position() - start);
+            int length = buffer.getInt();
+            if (length < 0) throw new IOException("Invalid key length: " + length);
+            buffer.position(buffer.position() + length);
+            int ids = buffer.getInt();
+            if (ids < 1 || type == SnapshotWriter.SINGLE && ids != 1) throw new IOException("Invalid element count: " + ids);
+            for (int j = 0; j < ids; j++) {
+                int id = buffer.getInt();
+                if (id < 0 || id >= elementCount) throw new IOException("Invalid element id: " + id);
+                if (seen.get(id)) throw new IOException("Duplicated element id: " + id);
+                seen.set(id);
+            }
+        }
+
+        int used = 0;
+        for (int i = 0; i < slots; i++) {
+            int offset = buffer.getInt(slotStart + i * SnapshotWriter.SLOT_SIZE + 4);
+            if (offset == SnapshotWriter.EMPTY_SLOT) continue;
+            if (offset < 0 || !offsets.get(offset)) throw new IOException("Invalid entry offset: " + offset);
+            used++;
+        }
+        if (used != entries) throw new IOException("Invalid index slots");
+        return buffer.slice(start, buffer.position() - start);
+    }
+
+    /**
+     * Gets the elements in the snapshot.
+     *
+     * @return the unmodifiable list of the elements
+     */
+    public List<E> getElements() {
+        return elements;
+    }
+
+    /**
+     * Gets the names of the indexes in the snapshot.
+     *
+     * @return the unmodifiable set of the names
+     */
+    public Set<String> getIndexNames() {
+        return Collections.unmodifiableSet(tables.keySet());
+    }
+
+    private ByteBuffer table(ObservableSet<?, E> set, String name, byte type) {
+        ByteBuffer table = tables.get(name);
+        if (table == null) {
+            throw new IllegalArgumentException("No such index: " + name);
+        }
+        if (table.get(0) != type) {
+            throw new IllegalArgumentException("Index type mismatch: " + name);
+        }
+        // the elements are not compared one by one, which would take as long as building the index
+        if (set.size() != elements.size()) {
+            throw new IllegalArgumentException("The set does not contain the same elements as the snapshot");
+        }
+        return table;
+    }
+
+    /**
+     * Restores an index written by {@link SnapshotWriter#addIndex(String, Map, SnapshotCodec)}.
+     * <p>
+     * The returned index works like one created by {@link ObservableSet#createIndex(Function)},
+     * but looks up the keys which have not changed since the restoration in the mapped file.
+     * The indexes of a {@link ConcurrentObservableSet} are always created from scratch.
+     *
+     * @param set      the set which contains the same elements as the snapshot
+     * @param name     the name of the index
+     * @param function a function which maps the owners to their elements
+     * @param keyCodec the codec of the keys
+     * @param <K>      the type of the keys
+     * @return the index, whose lookups throw {@link IllegalStateException} if a stored key does not match
+     * the current value of the field
+     * @throws IllegalArgumentException if the index is not found, or the set contains a different number of elements
+     * @throws IllegalStateException    if the index does not contain every element
+     */
+    public <K> CloseableMap<K, E> restoreIndex(ObservableSet<?, E> set, String name, Function<E, ObservableField<E, K>> function,
+                                      SnapshotCodec<K> keyCodec) {
+        ByteBuffer table = table(set, name, SnapshotWriter.SINGLE);
+        if (set instanceof ConcurrentObservableSet) return set.createIndex(function);
+
+        // the ids are unique, so the index contains every element if it has as many keys as the elements
+        MappedTable<K> keys = new MappedTable<>(table, keyCodec);
+        if (keys.size() != elements.size()) {
+            throw new IllegalStateException("Snapshot does not index every element: " + name);
+        }
+        MappedIndexMap<K, E> map = new MappedIndexMap<>(keys, elements, function);
+        try {
+            for (E element : elements) map.observe(element);
+        } catch (RuntimeException e) {
+            for (E element : elements) map.remove0(element);
+            throw e;
+        }
+
+        set.adopt(map);
+        return map;
+    }
+
+    /**
+     * Restores an index written by {@link SnapshotWriter#addMultiIndex(String, Map, SnapshotCodec)}.
+     * <p>
+     * The returned index works like one created by {@link ObservableSet#createMultiIndex(Function)},
+     * but reads the elements of a key from the mapped file until the key is looked up or changed.
+     * The indexes of a {@link ConcurrentObservableSet} are always created from scratch.
+     *
+     * @param set      the set which contains the same elements as the snapshot
+     * @param name     the name of the index
+     * @param function a function which maps the owners to their elements
+     * @param keyCodec the codec of the keys
+     * @param <K>      the type of the keys
+     * @return the index, whose lookups throw {@link IllegalStateException} if a stored key does not match
+     * the current value of the field
+     * @throws IllegalArgumentException if the index is not found, or the set contains a different number of elements
+     */
+    public <K> CloseableMap<K, Set<E>> restoreMultiIndex(ObservableSet<?, E> set, String name, Function<E, ObservableField<E, K>> function,
+                                                SnapshotCodec<K> keyCodec) {
+        ByteBuffer table = table(set, name, SnapshotWriter.MULTI);
+        if (set instanceof ConcurrentObservableSet) return set.createMultiIndex(function);
+
+        MappedMultiIndexMap<K, E> map = new MappedMultiIndexMap<>(new MappedTable<>(table, keyCodec), elements, function);
+        try {
+            for (E element : elements) map.observe(element);
+        } catch (RuntimeException e) {
+            for (E element : elements) map.remove0(element);
+            throw e;
+        }
+
+        set.adopt(map);
+        return map;
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package net.toshimichi.indexer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * This class writes elements and the state of their indexes to a snapshot file.
+ * <p>
+ * The snapshot can be loaded with {@link SnapshotReader}. Each index is stored as a hash table of the encoded keys,
+ * which the restored index looks up in place instead of building its own table element by element.
+ * The key codecs must therefore write equal keys as equal bytes.
+ * The file is written to a temporary file first and then moved to the destination,
+ * so an interrupted write never leaves a broken snapshot behind.
+ *
+ * @param <E> the type of the elements
+ */
+public class SnapshotWriter<E> {
+
+    static final int MAGIC = 0x49445853;
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 20;
+    // the type, the number of entries and the number of slots of a table
+    static final int TABLE_HEADER_SIZE = 9;
+    // the hash of the key and the offset of the entry in a slot
+    static final int SLOT_SIZE = 8;
+    static final int EMPTY_SLOT = -1;
+    static final byte SINGLE = 0;
+    static final byte MULTI = 1;
+
+    private final SnapshotCodec<E> codec;
+    private final Map<String, Table<?>> tables = new LinkedHashMap<>();
+
+    /**
+     * Creates a new writer.
+     *
+     * @param codec the codec of the elements
+     */
+    public SnapshotWriter(SnapshotCodec<E> codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Adds an index created by {@link ObservableSet#createIndex(java.util.function.Function)} to the snapshot.
+     *
+     * @param name     the name used to restore the index
+     * @param index    the index
+     * @param keyCodec the codec of the keys of the index
+     * @param <K>      the type of the keys
+     * @return this writer
+     * @throws IllegalArgumentException if an index with the same name is already added
+     */
+    public <K> SnapshotWriter<E> addIndex(String name, Map<K, E> index, SnapshotCodec<K> keyCodec) {
+        return add(name, new Table<>(SINGLE, index, keyCodec));
+    }
+
+    /**
+     * Adds an index created by {@link ObservableSet#createMultiIndex(java.util.function.Function)} to the snapshot.
+     *
+     * @param name     the name used to restore the index
+     * @param index    the index
+     * @param keyCodec the codec of the keys of the index
+     * @param <K>      the type of the keys
+     * @return this writer
+     * @throws IllegalArgumentException if an index with the same name is already added
+     */
+    public <K> SnapshotWriter<E> addMultiIndex(String name, Map<K, ? extends Set<E>> index, SnapshotCodec<K> keyCodec) {
+        return add(name, new Table<>(MULTI, index, keyCodec));
+    }
+
+    private SnapshotWriter<E> add(String name, Table<?> table) {
+        if (tables.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicated index: " + name);
+        }
+        tables.put(name, table);
+        return this;
+    }
+
+    /**
+     * Writes the specified elements and the added indexes to a file.
+     * <p>
+     * Every element in the added indexes must be one of the specified elements.
+     *
+     * @param path     the path of the file
+     * @param elements the elements
+     * @throws IOException              if an I/O error occurs
+     * @throws IllegalArgumentException if an index contains an element which is not specified
+     */
+    public void write(Path path, Collection<? extends E> elements) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(HEADER_SIZE);
+            CRC32 crc = new CRC32();
+
+            // the stream is not closed, because closing it closes the channel before the header is written
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), crc));
+            Buffer buffer = new Buffer();
+
+            HashMap<E, Integer> ids = new HashMap<>(Capacity.of(elements.size()));
+            out.writeInt(elements.size());
+            for (E element : elements) {
+                ids.put(element, ids.size());
+                buffer.write(out, codec, element);
+            }
+
+            out.writeInt(tables.size());
+            for (Map.Entry<String, Table<?>> entry : tables.entrySet()) {
+                byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(name.length);
+                out.write(name);
+                entry.getValue().write(out, buffer, ids);
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(channel.position() - HEADER_SIZE).putInt((int) crc.getValue());
+            header.flip();
+            while (header.hasRemaining()) channel.write(header, header.position());
+            channel.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // the smallest power of two which keeps the load factor of a table at most one half
+    static int slots(int entries) {
+        return Integer.highestOneBit(Math.max(entries * 2 - 1, 1)) << 1;
+    }
+
+    // encodes values separately to prefix them with their length, which lets the reader validate the codecs
+    static class Buffer extends ByteArrayOutputStream {
+
+        private final DataOutputStream data = new DataOutputStream(this);
+
+        <T> void encode(SnapshotCodec<T> codec, T value) throws IOException {
+            reset();
+            codec.write(data, value);
+        }
+
+        private <T> void write(DataOutputStream out, SnapshotCodec<T> codec, T value) throws IOException {
+            encode(codec, value);
+            out.writeInt(count);
+            out.write(buf, 0, count);
+        }
+
+        // the hash of the encoded value, which unlike hashCode() is the same in every JVM.
+        // FNV-1a followed by the finalizer of MurmurHash3, since linear probing needs well-spread hashes
+        int hash() {
+            int hash = 0x811c9dc5;
+            for (int i = 0; i < count; i++) hash = (hash ^ buf[i] & 0xff) * 0x01000193;
+            hash = (hash ^ hash >>> 16) * 0x85ebca6b;
+            hash = (hash ^ hash >>> 13) * 0xc2b2ae35;
+            return hash ^ hash >>> 16;
+        }
+
+        // checks whether the encoded value equals the length-prefixed value at the offset
+        boolean matches(ByteBuffer buffer, int offset) {
+            if (buffer.getInt(offset) != count) return false;
+            for (int i = 0; i < count; i++) {
+                if (buffer.get(offset + 4 + i) != buf[i]) return false;
+            }
+            return true;
+        }
+    }
+
+    private static class Table<K> {
+
+        private final byte type;
+        private final Map<K, ?> index;
+        private final SnapshotCodec<K> keyCodec;
+
+        private Table(byte type, Map<K, ?> index, SnapshotCodec<K> keyCodec) {
+            this.type = type;
+            this.index = index;
+            this.keyCodec = keyCodec;
+        }
+
+        private void write(DataOutputStream out, Buffer buffer, Map<?, Integer> ids) throws IOException {
+            ArrayList<byte[]> keys = new ArrayList<>(index.size());
+            ArrayList<int[]> values = new ArrayList<>(index.size());
+            int[] keyHashes = new int[index.size()];
+            for (Map.Entry<K, ?> entry : index.entrySet()) {
+                Collection<?> elements = type == SINGLE
+                        ? Collections.singleton(entry.getValue())
+                        : (Collection<?>) entry.getValue();
+                if (elements.isEmpty()) continue;
+
+                int[] array = new int[elements.size()];
+                int i = 0;
+                for (Object element : elements) {
+                    Integer id = ids.get(element);
+                    if (id == null) {
+                        throw new IllegalArgumentException("Unknown element in index: " + element);
+                    }
+                    array[i++] = id;
+                }
+                buffer.encode(keyCodec, entry.getKey());
+                keyHashes[keys.size()] = buffer.hash();
+                keys.add(buffer.toByteArray());
+                values.add(array);
+            }
+
+            // the entries follow the slots, which are filled with linear probing
+            int slots = slots(keys.size());
+            int[] hashes = new int[slots];
+            int[] offsets = new int[slots];
+            Arrays.fill(offsets, EMPTY_SLOT);
+            int offset = TABLE_HEADER_SIZE + slots * SLOT_SIZE;
+            for (int i = 0; i < keys.size(); i++) {
+                int hash = keyHashes[i];
+                int slot = hash & slots - 1;
+                while (offsets[slot] != EMPTY_SLOT) slot = slot + 1 & slots - 1;
+                hashes[slot] = hash;
+                offsets[slot] = offset;
+                offset += 8 + keys.get(i).length + 4 * values.get(i).length;
+            }
+
+            out.writeByte(type);
+            out.writeInt(keys.size());
+            out.writeInt(slots);
+            for (int i = 0; i < slots; i++) {
+                out.writeInt(hashes[i]);
+                out.writeInt(offsets[i]);
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                out.writeInt(keys.get(i).length);
+                out.write(keys.get(i));
+                out.writeInt(values.get(i).length);
+                for (int id : values.get(i)) out.writeInt(id);
+            }
+        }
+    }
+}
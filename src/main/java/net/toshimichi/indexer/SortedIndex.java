@@ -0,0 +1,16 @@
+package net.toshimichi.indexer;
+
+import java.util.NavigableMap;
+import java.util.Set;
+
+/**
+ * An index which keeps its keys sorted and supports range queries.
+ * <p>
+ * Instances of this interface are created by {@link ObservableSet#createSortedIndex(java.util.function.Function)}
+ * and {@link ObservableSet#createSortedIndex(java.util.function.Function, java.util.Comparator)}.
+ *
+ * @param <K> the type of the keys
+ * @param <E> the type of the elements
+ */
+public interface SortedIndex<K, E> extends NavigableMap<K, Set<E>>, CloseableMap<K, Set<E>> {
+}
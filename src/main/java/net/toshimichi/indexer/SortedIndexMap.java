@@ -0,0 +1,280 @@
+package net.toshimichi.indexer;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+class SortedIndexMap<K, V> extends AbstractMap<K, Set<V>> implements SortedIndex<K, V>, ObservableFieldHandler<V, K>, ElementHandler<V>, FieldIndex<V> {
+
+    // the values are buckets, so that the views of this map never expose a modifiable set
+    private final TreeMap<K, Set<V>> internal;
+    private final NavigableMap<K, Set<V>> view;
+    private final Function<V, ObservableField<V, K>> function;
+    private Subscription subscription;
+
+    public SortedIndexMap(Function<V, ObservableField<V, K>> function, Comparator<? super K> comparator) {
+        this.internal = new TreeMap<>(comparator);
+        this.view = Collections.unmodifiableNavigableMap(internal);
+        this.function = function;
+    }
+
+    private void put0(K key, V value) {
+        ((Bucket<V>) internal.computeIfAbsent(key, k -> new Bucket<>())).set.add(value);
+    }
+
+    private void remove1(K key, V value) {
+        Bucket<V> bucket = (Bucket<V>) internal.get(key);
+        if (bucket == null) return;
+        bucket.set.remove(value);
+        if (bucket.set.isEmpty()) internal.remove(key);
+    }
+
+    public void add0(V obj) {
+        ObservableField<V, K> field = function.apply(obj);
+        field.initialize(obj);
+        field.subscribe(this);
+
+        K key = field.get();
+        if (key == null) return;
+        put0(key, obj);
+    }
+
+    public boolean remove0(V obj) {
+        ObservableField<V, K> field = function.apply(obj);
+        boolean result = field.unsubscribe(this);
+        if (result) {
+            K key = field.get();
+            if (key != null) remove1(key, obj);
+        }
+
+        return result;
+    }
+
+    @Override
+    public void accept(ObservableField<? extends V, ? extends K> field, K old, K updated) {
+        V owner = field.getOwner();
+        if (old != null) remove1(old, owner);
+        if (updated != null) put0(updated, owner);
+    }
+
+    @Override
+    public Set<Entry<K, Set<V>>> entrySet() {
+        return view.entrySet();
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return view.keySet();
+    }
+
+    @Override
+    public Collection<Set<V>> values() {
+        return view.values();
+    }
+
+    @Override
+    public Set<V> get(Object key) {
+        return internal.get(key);
+    }
+
+    @Override
+    public int size() {
+        return internal.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return internal.isEmpty();
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        return internal.containsValue(value);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return internal.containsKey(key);
+    }
+
+    @Override
+    public Comparator<? super K> comparator() {
+        return internal.comparator();
+    }
+
+    @Override
+    public K firstKey() {
+        return internal.firstKey();
+    }
+
+    @Override
+    public K lastKey() {
+        return internal.lastKey();
+    }
+
+    @Override
+    public Entry<K, Set<V>> lowerEntry(K key) {
+        return view.lowerEntry(key);
+    }
+
+    @Override
+    public K lowerKey(K key) {
+        return internal.lowerKey(key);
+    }
+
+    @Override
+    public Entry<K, Set<V>> floorEntry(K key) {
+        return view.floorEntry(key);
+    }
+
+    @Override
+    public K floorKey(K key) {
+        return internal.floorKey(key);
+    }
+
+    @Override
+    public Entry<K, Set<V>> ceilingEntry(K key) {
+        return view.ceilingEntry(key);
+    }
+
+    @Override
+    public K ceilingKey(K key) {
+        return internal.ceilingKey(key);
+    }
+
+    @Override
+    public Entry<K, Set<V>> higherEntry(K key) {
+        return view.higherEntry(key);
+    }
+
+    @Override
+    public K higherKey(K key) {
+        return internal.higherKey(key);
+    }
+
+    @Override
+    public Entry<K, Set<V>> firstEntry() {
+        return view.firstEntry();
+    }
+
+    @Override
+    public Entry<K, Set<V>> lastEntry() {
+        return view.lastEntry();
+    }
+
+    @Override
+    public Entry<K, Set<V>> pollFirstEntry() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Entry<K, Set<V>> pollLastEntry() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public NavigableMap<K, Set<V>> descendingMap() {
+        return view.descendingMap();
+    }
+
+    @Override
+    public NavigableSet<K> navigableKeySet() {
+        return view.navigableKeySet();
+    }
+
+    @Override
+    public NavigableSet<K> descendingKeySet() {
+        return view.descendingKeySet();
+    }
+
+    @Override
+    public NavigableMap<K, Set<V>> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+        return view.subMap(fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    @Override
+    public NavigableMap<K, Set<V>> headMap(K toKey, boolean inclusive) {
+        return view.headMap(toKey, inclusive);
+    }
+
+    @Override
+    public NavigableMap<K, Set<V>> tailMap(K fromKey, boolean inclusive) {
+        return view.tailMap(fromKey, inclusive);
+    }
+
+    @Override
+    public SortedMap<K, Set<V>> subMap(K fromKey, K toKey) {
+        return view.subMap(fromKey, toKey);
+    }
+
+    @Override
+    public SortedMap<K, Set<V>> headMap(K toKey) {
+        return view.headMap(toKey);
+    }
+
+    @Override
+    public SortedMap<K, Set<V>> tailMap(K fromKey) {
+        return view.tailMap(fromKey);
+    }
+
+    @Override
+    public void attached(Subscription subscription) {
+        this.subscription = subscription;
+    }
+
+    @Override
+    public void close() {
+        if (subscription != null) subscription.unsubscribe();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return subscription != null && !subscription.isSubscribed();
+    }
+
+    @Override
+    public Object source(V element) {
+        return function.apply(element);
+    }
+
+    // an unmodifiable set of the owners of a key
+    private static class Bucket<V> extends AbstractSet<V> {
+
+        private final CompactSet<V> set = new CompactSet<>();
+
+        @Override
+        public Iterator<V> iterator() {
+            Iterator<V> iterator = set.iterator();
+            return new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public V next() {
+                    return iterator.next();
+                }
+            };
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return set.contains(o);
+        }
+
+        @Override
+        public int size() {
+            return set.size();
+        }
+    }
+}
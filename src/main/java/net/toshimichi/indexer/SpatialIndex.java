@@ -0,0 +1,71 @@
+package net.toshimichi.indexer;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This interface provides range and nearest-neighbor queries over elements placed on a two-dimensional grid.
+ * <p>
+ * Instances of this interface are created by {@link ObservableSet#createSpatialIndex(java.util.function.Function,
+ * java.util.function.ToIntFunction, java.util.function.ToIntFunction, int)} and automatically get updated
+ * when the set or the positions of its elements change.
+ * All query results are copies and are not affected by later updates.
+ *
+ * @param <E> the type of the indexed elements
+ */
+public interface SpatialIndex<E> extends AutoCloseable {
+
+    /**
+     * Gets all elements inside the specified rectangle.
+     *
+     * @param minX the minimum x coordinate, inclusive
+     * @param minY the minimum y coordinate, inclusive
+     * @param maxX the maximum x coordinate, inclusive
+     * @param maxY the maximum y coordinate, inclusive
+     * @return the elements inside the rectangle
+     */
+    Set<E> getWithinRectangle(int minX, int minY, int maxX, int maxY);
+
+    /**
+     * Gets all elements whose distance from the specified point is equal to or less than the radius.
+     *
+     * @param x      the x coordinate of the center
+     * @param y      the y coordinate of the center
+     * @param radius the radius
+     * @return the elements inside the circle
+     */
+    Set<E> getWithinRadius(int x, int y, double radius);
+
+    /**
+     * Gets the elements nearest to the specified point.
+     *
+     * @param x     the x coordinate of the point
+     * @param y     the y coordinate of the point
+     * @param count the maximum number of elements to return
+     * @return the nearest elements, sorted by the distance in ascending order
+     */
+    List<E> getNearest(int x, int y, int count);
+
+    /**
+     * Gets the number of indexed elements.
+     *
+     * @return the number of indexed elements
+     */
+    int size();
+
+    /**
+     * Detaches this index from the set it is created from and from the fields of the elements.
+     * <p>
+     * This method takes linear time in the number of elements of the set.
+     * This index becomes empty and is no longer updated. Calling this method more than once has no effect.
+     */
+    @Override
+    void close();
+
+    /**
+     * Checks whether this index is closed.
+     *
+     * @return true if this index is detached from the set
+     */
+    boolean isClosed();
+}
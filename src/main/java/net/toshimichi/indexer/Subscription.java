@@ -0,0 +1,34 @@
+package net.toshimichi.indexer;
+
+/**
+ * This interface represents a handler subscribed to an {@link ObservableSet} or an {@link ObservableField}.
+ * <p>
+ * Unsubscribing through this interface takes constant time regardless of the number of subscribed handlers.
+ */
+public interface Subscription extends AutoCloseable {
+
+    /**
+     * Unsubscribes the handler. Calling this method more than once has no effect.
+     * <p>
+     * This method can be safely called while a notification is being dispatched, including from the handler itself.
+     * The handler does not receive any notification after this method returns.
+     */
+    void unsubscribe();
+
+    /**
+     * Checks whether the handler is still subscribed.
+     *
+     * @return true if the handler is subscribed
+     */
+    boolean isSubscribed();
+
+    /**
+     * Unsubscribes the handler.
+     *
+     * @see #unsubscribe()
+     */
+    @Override
+    default void close() {
+        unsubscribe();
+    }
+}
@@ -0,0 +1,53 @@
+package net.toshimichi.indexer;
+
+// integral values are summed exactly, and the others with compensated summation,
+// which drops back to exactly zero once every non-integral value is removed
+class Sum {
+
+    private long integral;
+    private double fractional;
+    private double compensation;
+    private int fractionalCount;
+
+    void add(Number value) {
+        if (value == null) return;
+        if (isIntegral(value)) {
+            integral += value.longValue();
+        } else {
+            fractionalCount++;
+            add0(value.doubleValue());
+        }
+    }
+
+    void subtract(Number value) {
+        if (value == null) return;
+        if (isIntegral(value)) {
+            integral -= value.longValue();
+        } else if (--fractionalCount == 0) {
+            fractional = 0;
+            compensation = 0;
+        } else {
+            add0(-value.doubleValue());
+        }
+    }
+
+    // Neumaier's variant of Kahan summation, which keeps the low-order bits lost by each addition
+    private void add0(double value) {
+        double sum = fractional + value;
+        if (Math.abs(fractional) >= Math.abs(value)) {
+            compensation += (fractional - sum) + value;
+        } else {
+            compensation += (value - sum) + fractional;
+        }
+        fractional = sum;
+    }
+
+    // the integral part is rounded to the nearest double once it exceeds 2^53
+    double get() {
+        return integral + (fractional + compensation);
+    }
+
+    private static boolean isIntegral(Number value) {
+        return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte;
+    }
+}
@@ -0,0 +1,58 @@
+package net.toshimichi.indexer;
+
+import java.util.Collection;
+import java.util.function.Function;
+
+class SumAggregate<E> implements ElementHandler<E>, ObservableFieldHandler<E, Number> {
+
+    private final AggregateField<?, Double> field;
+    private final Function<E, ObservableField<E, ? extends Number>> function;
+    private final Sum sum = new Sum();
+
+    public SumAggregate(AggregateField<?, Double> field, Function<E, ObservableField<E, ? extends Number>> function) {
+        this.field = field;
+        this.function = function;
+    }
+
+    private void subscribe(E obj) {
+        ObservableField<E, ? extends Number> value = function.apply(obj);
+        value.initialize(obj);
+        value.subscribe(this);
+        sum.add(value.get());
+    }
+
+    @Override
+    public void attached(Subscription subscription) {
+        field.bind(subscription);
+    }
+
+    @Override
+    public void add0(E obj) {
+        subscribe(obj);
+        field.update(sum.get());
+    }
+
+    @Override
+    public void addAll0(Collection<? extends E> objs) {
+        for (E obj : objs) subscribe(obj);
+        field.update(sum.get());
+    }
+
+    @Override
+    public boolean remove0(E obj) {
+        ObservableField<E, ? extends Number> value = function.apply(obj);
+        boolean result = value.unsubscribe(this);
+        if (result) {
+            sum.subtract(value.get());
+            field.update(sum.get());
+        }
+        return result;
+    }
+
+    @Override
+    public void accept(ObservableField<? extends E, ? extends Number> field, Number old, Number updated) {
+        sum.subtract(old);
+        sum.add(updated);
+        this.field.update(sum.get());
+    }
+}
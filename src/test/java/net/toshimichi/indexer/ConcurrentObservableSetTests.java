@@ -0,0 +1,204 @@
+package net.toshimichi.indexer;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConcurrentObservableSetTests {
+
+    private static final int PLAYERS = 1000;
+    private static final int WRITERS = 4;
+    private static final int READERS = 4;
+    private static final int ITERATIONS = 20000;
+    private static final int ROUNDS = 500;
+
+    @Test
+    public void testConcurrentIndexes() throws Exception {
+        ConcurrentObservableSet<?, Player> players = new ConcurrentObservableSet<>();
+        Map<Integer, Player> idIndex = players.createIndex(Player::getId);
+        Map<Integer, Set<Player>> teamIndex = players.createMultiIndex(Player::getTeam);
+
+        List<Player> list = new ArrayList<>();
+        for (int i = 0; i < PLAYERS; i++) {
+            list.add(new Player(i, i % 10));
+        }
+        players.addAll(list);
+
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS + READERS);
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> writers = new ArrayList<>();
+        List<Future<?>> readers = new ArrayList<>();
+
+        for (int w = 0; w < WRITERS; w++) {
+            int offset = w;
+            writers.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < ITERATIONS; i++) {
+                    // each writer owns a disjoint slice of players, and ids are moved between id and -id - 1
+                    Player player = list.get((i * WRITERS + offset) % PLAYERS);
+                    ConcurrentObservableField<Player, Integer> id = player.getId();
+                    id.set(-id.get() - 1);
+                    player.getTeam().set((player.getTeam().get() + 1) % 10);
+                }
+                return null;
+            }));
+        }
+
+        for (int r = 0; r < READERS; r++) {
+            readers.add(executor.submit(() -> {
+                start.await();
+                while (running.get()) {
+                    // a key move must never be observed halfway
+                    assertEquals(PLAYERS, idIndex.size());
+                    for (int team = 0; team < 10; team++) {
+                        Set<Player> set = teamIndex.get(team);
+                        if (set == null) continue;
+                        for (Player player : set) assertNotNull(player);
+                    }
+                }
+                return null;
+            }));
+        }
+
+        start.countDown();
+        for (Future<?> writer : writers) writer.get(1, TimeUnit.MINUTES);
+        running.set(false);
+        for (Future<?> reader : readers) reader.get(1, TimeUnit.MINUTES);
+        executor.shutdown();
+
+        assertEquals(PLAYERS, idIndex.size());
+        for (Player player : list) {
+            assertSame(player, idIndex.get(player.getId().get()));
+            assertTrue(teamIndex.get(player.getTeam().get()).contains(player));
+        }
+        assertEquals(PLAYERS, teamIndex.values().stream().mapToInt(Set::size).sum());
+    }
+
+    @Test
+    public void testConcurrentAddRemove() throws Exception {
+        ConcurrentObservableSet<?, Player> players = new ConcurrentObservableSet<>();
+        Map<Integer, Player> idIndex = players.createIndex(Player::getId);
+
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS);
+        List<Future<?>> writers = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            int offset = w * ITERATIONS;
+            writers.add(executor.submit(() -> {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    Player player = new Player(offset + i, 0);
+                    players.add(player);
+                    if (i % 2 == 0) players.remove(player);
+                }
+                return null;
+            }));
+        }
+
+        for (Future<?> writer : writers) writer.get(1, TimeUnit.MINUTES);
+        executor.shutdown();
+
+        assertEquals(WRITERS * ITERATIONS / 2, players.size());
+        assertEquals(players.size(), idIndex.size());
+        for (Player player : players) {
+            assertSame(player, idIndex.get(player.getId().get()));
+        }
+    }
+
+    @Test
+    public void testConcurrentMoveRemove() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        for (int round = 0; round < ROUNDS; round++) {
+            ConcurrentObservableSet<?, Player> players = new ConcurrentObservableSet<>();
+            Map<Integer, Player> idIndex = players.createIndex(Player::getId);
+            Map<Integer, Set<Player>> teamIndex = players.createMultiIndex(Player::getTeam);
+            Map<Integer, Player> tagIndex = players.createFlatIndex(Player::getTags);
+            Map<Integer, Set<Player>> tagsIndex = players.createFlatMultiIndex(Player::getTags);
+
+            List<Player> list = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                list.add(new Player(i, i % 10));
+            }
+
+            // fields and sets are moved while the elements are added, and then while they are removed
+            race(executor, list, () -> list.forEach(players::add));
+            for (Player player : list) {
+                assertSame(player, idIndex.get(player.getId().get()));
+                assertTrue(teamIndex.get(player.getTeam().get()).contains(player));
+                for (int tag : player.getTags()) {
+                    assertSame(player, tagIndex.get(tag));
+                    assertEquals(Set.of(player), tagsIndex.get(tag));
+                }
+            }
+            assertEquals(list.size(), idIndex.size());
+
+            race(executor, list, () -> list.forEach(players::remove));
+            assertTrue(idIndex.isEmpty(), idIndex.toString());
+            assertTrue(teamIndex.isEmpty(), teamIndex.toString());
+            assertTrue(tagIndex.isEmpty(), tagIndex.toString());
+            assertTrue(tagsIndex.isEmpty(), tagsIndex.toString());
+        }
+        executor.shutdown();
+    }
+
+    private static void race(ExecutorService executor, List<Player> list, Runnable task) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        Future<?> mover = executor.submit(() -> {
+            start.await();
+            for (Player player : list) {
+                ConcurrentObservableField<Player, Integer> id = player.getId();
+                id.set(-id.get() - 1);
+                player.getTeam().set((player.getTeam().get() + 1) % 10);
+                int tag = player.getTags().iterator().next();
+                player.getTags().remove(tag);
+                player.getTags().add(-tag - 1);
+            }
+            return null;
+        });
+        Future<?> other = executor.submit(() -> {
+            start.await();
+            task.run();
+            return null;
+        });
+
+        start.countDown();
+        mover.get(1, TimeUnit.MINUTES);
+        other.get(1, TimeUnit.MINUTES);
+    }
+
+    private static class Player {
+
+        private final ConcurrentObservableField<Player, Integer> id;
+        private final ConcurrentObservableField<Player, Integer> team;
+        private final ConcurrentObservableSet<Player, Integer> tags;
+
+        public Player(int id, int team) {
+            this.id = new ConcurrentObservableField<>(id);
+            this.team = new ConcurrentObservableField<>(team);
+            this.tags = new ConcurrentObservableSet<>();
+            this.tags.add(id);
+        }
+
+        public ConcurrentObservableField<Player, Integer> getId() {
+            return id;
+        }
+
+        public ConcurrentObservableField<Player, Integer> getTeam() {
+            return team;
+        }
+
+        public ConcurrentObservableSet<Player, Integer> getTags() {
+            return tags;
+        }
+    }
+}
@@ -5,11 +5,13 @@ public class Factory {
     private final ObservableField<Factory, FactoryType> factoryType;
     private final ObservableField<Factory, Vec2i> start;
     private final ObservableField<Factory, Vec2i> end;
+    private final ObservableField<Factory, Integer> workers;
 
     public Factory(FactoryType factoryType, Vec2i start, Vec2i end) {
         this.factoryType = new ObservableField<>(factoryType);
         this.start = new ObservableField<>(start);
         this.end = new ObservableField<>(end);
+        this.workers = new ObservableField<>(0);
     }
 
     public ObservableField<Factory, FactoryType> getFactoryType() {
@@ -23,4 +25,8 @@ public class Factory {
     public ObservableField<Factory, Vec2i> getEnd() {
         return end;
     }
+
+    public ObservableField<Factory, Integer> getWorkers() {
+        return workers;
+    }
 }
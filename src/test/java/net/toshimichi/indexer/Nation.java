@@ -1,5 +1,6 @@
 package net.toshimichi.indexer;
 
+import java.util.ArrayList;
 import java.util.UUID;
 
 public class Nation implements ObservableFieldHandler<Nation, Vec2i> {
@@ -7,6 +8,7 @@ public class Nation implements ObservableFieldHandler<Nation, Vec2i> {
     private final ObservableSet<Nation, UUID> leaders;
     private final ObservableSet<Nation, Factory> factories;
     private final ObservableField<Nation, Vec2i> headquarter;
+    private final LongObservableField<Nation> capital;
 
     private final ObservableField<Nation, Vec2i> start;
     private final ObservableField<Nation, Vec2i> end;
@@ -16,6 +18,7 @@ public class Nation implements ObservableFieldHandler<Nation, Vec2i> {
         this.leaders = new ObservableSet<>();
         this.factories = new ObservableSet<>();
         this.headquarter = new ObservableField<>(headquarter);
+        this.capital = new LongObservableField<>(((long) headquarter.x() << 32) | (headquarter.y() & 0xffffffffL));
 
         this.start = new ObservableField<>(new Vec2i(0, 0));
         this.start.subscribe(this);
@@ -38,6 +41,10 @@ public class Nation implements ObservableFieldHandler<Nation, Vec2i> {
         return headquarter;
     }
 
+    public LongObservableField<Nation> getCapital() {
+        return capital;
+    }
+
     public ObservableField<Nation, Vec2i> getStart() {
         return start;
     }
@@ -57,13 +64,15 @@ public class Nation implements ObservableFieldHandler<Nation, Vec2i> {
         Vec2i end = this.end.get();
         Vec2i endChunk = new Vec2i(end.x() >> 4, end.y() >> 4);
 
-        chunks.clear();
+        ArrayList<Vec2i> updated = new ArrayList<>();
         for (int x = startChunk.x(); x <= endChunk.x(); x++) {
             for (int y = startChunk.y(); y <= endChunk.y(); y++) {
-                Vec2i chunk = new Vec2i(x, y);
-                chunks.add(chunk);
+                updated.add(new Vec2i(x, y));
             }
         }
+
+        chunks.replaceWith(chunk -> chunk.x() >= startChunk.x() && chunk.x() <= endChunk.x()
+                && chunk.y() >= startChunk.y() && chunk.y() <= endChunk.y(), updated);
     }
 
     @Override
@@ -1,11 +1,30 @@
 package net.toshimichi.indexer;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Flow;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -120,4 +139,1318 @@ public class ObservableSetTests {
         assertEquals(0, nations.size());
         assertEquals(0, chunkIndex.size());
     }
+
+    @Test
+    public void testBulkNotification() {
+        ObservableSet<?, Nation> nations = new ObservableSet<>();
+        Map<Vec2i, Nation> headquarterIndex = nations.createIndex(Nation::getHeadquarter);
+        Map<UUID, Nation> leaderIndex = nations.createFlatIndex(Nation::getLeaders);
+        ObservableSet<?, Factory> factories = nations.createFlatMap(Nation::getFactories);
+        Map<FactoryType, Set<Factory>> factoryTypeIndex = factories.createMultiIndex(Factory::getFactoryType);
+
+        int[] calls = new int[2];
+        nations.subscribe(new ObservableSetHandler<Object, Nation>() {
+            @Override
+            public void add(ObservableSet<?, ? extends Nation> set, Nation element) {
+                fail();
+            }
+
+            @Override
+            public void remove(ObservableSet<?, ? extends Nation> set, Nation element) {
+                fail();
+            }
+
+            @Override
+            public void addAll(ObservableSet<?, ? extends Nation> set, Collection<? extends Nation> elements) {
+                calls[0]++;
+            }
+
+            @Override
+            public void removeAll(ObservableSet<?, ? extends Nation> set, Collection<? extends Nation> elements) {
+                calls[1]++;
+            }
+        });
+
+        List<Nation> list = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Nation nation = new Nation(new Vec2i(i, i));
+            nation.getLeaders().add(UUID.randomUUID());
+            nation.getFactories().addAll(List.of(
+                    new Factory(FactoryType.FOOD, new Vec2i(0, 0), new Vec2i(1, 1)),
+                    new Factory(FactoryType.ROBOT, new Vec2i(0, 0), new Vec2i(1, 1))));
+            list.add(nation);
+        }
+
+        nations.addAll(list);
+        assertArrayEquals(new int[]{1, 0}, calls);
+        assertEquals(100, headquarterIndex.size());
+        assertEquals(100, leaderIndex.size());
+        assertEquals(200, factories.size());
+        assertEquals(100, factoryTypeIndex.get(FactoryType.ROBOT).size());
+
+        nations.removeAll(list.subList(0, 50));
+        assertArrayEquals(new int[]{1, 1}, calls);
+        assertEquals(50, headquarterIndex.size());
+        assertEquals(50, leaderIndex.size());
+        assertEquals(100, factories.size());
+
+        nations.retainAll(list.subList(50, 60));
+        assertArrayEquals(new int[]{1, 2}, calls);
+        assertEquals(10, headquarterIndex.size());
+        assertEquals(20, factories.size());
+
+        nations.clear();
+        assertArrayEquals(new int[]{1, 3}, calls);
+        assertEquals(0, headquarterIndex.size());
+        assertEquals(0, leaderIndex.size());
+        assertEquals(0, factories.size());
+        assertEquals(0, factoryTypeIndex.size());
+
+        assertThrows(UnsupportedOperationException.class, factories::clear);
+    }
+
+    @Test
+    public void testReplaceWith() {
+        ObservableSet<?, Nation> nations = new ObservableSet<>();
+        Map<Vec2i, Nation> chunkIndex = nations.createFlatIndex(Nation::getChunks);
+        Nation nation = new Nation(new Vec2i(0, 0));
+        nation.getEnd().set(new Vec2i(16 * 9, 16 * 9));
+        nations.add(nation);
+        assertEquals(100, chunkIndex.size());
+
+        int[] changes = new int[2];
+        nation.getChunks().subscribe(new ObservableSetHandler<Object, Vec2i>() {
+            @Override
+            public void add(ObservableSet<?, ? extends Vec2i> set, Vec2i element) {
+                changes[0]++;
+            }
+
+            @Override
+            public void remove(ObservableSet<?, ? extends Vec2i> set, Vec2i element) {
+                changes[1]++;
+            }
+
+            @Override
+            public void addAll(ObservableSet<?, ? extends Vec2i> set, Collection<? extends Vec2i> elements) {
+                changes[0] += elements.size();
+            }
+
+            @Override
+            public void removeAll(ObservableSet<?, ? extends Vec2i> set, Collection<? extends Vec2i> elements) {
+                changes[1] += elements.size();
+            }
+        });
+
+        nation.getStart().set(new Vec2i(16, 0));
+        nation.getEnd().set(new Vec2i(16 * 10, 16 * 9));
+        assertArrayEquals(new int[]{10, 10}, changes);
+        assertEquals(100, chunkIndex.size());
+        assertEquals(nation, chunkIndex.get(new Vec2i(10, 0)));
+        assertNull(chunkIndex.get(new Vec2i(0, 0)));
+
+        ObservableSet<?, Integer> set = new ObservableSet<>();
+        set.addAll(List.of(1, 2, 3));
+        assertFalse(set.replaceWith(List.of(3, 2, 1)));
+        assertTrue(set.replaceWith(List.of(2, 3, 4, 4)));
+        assertEquals(Set.of(2, 3, 4), set);
+    }
+
+    @Test
+    public void testClose() {
+        ObservableSet<?, Nation> nations = new ObservableSet<>();
+        Nation nation0 = new Nation(new Vec2i(1, 2));
+        Nation nation1 = new Nation(new Vec2i(3, 4));
+        nation0.getFactories().add(new Factory(FactoryType.FOOD, new Vec2i(0, 0), new Vec2i(1, 1)));
+        nations.addAll(List.of(nation0, nation1));
+
+        CloseableMap<Vec2i, Nation> headquarterIndex = nations.createIndex(Nation::getHeadquarter);
+        CloseableMap<Vec2i, Set<Nation>> startIndex = nations.createMultiIndex(Nation::getStart);
+        DerivedSet<Factory> factories = nations.createFlatMap(Nation::getFactories);
+        Map<FactoryType, Set<Factory>> factoryTypeIndex = factories.createMultiIndex(Factory::getFactoryType);
+        assertEquals(2, headquarterIndex.size());
+        assertEquals(1, factoryTypeIndex.size());
+
+        headquarterIndex.close();
+        startIndex.close();
+        factories.close();
+        assertTrue(headquarterIndex.isClosed());
+        assertTrue(factories.isClosed());
+        assertTrue(headquarterIndex.isEmpty());
+        assertTrue(startIndex.isEmpty());
+        assertTrue(factories.isEmpty());
+        assertTrue(factoryTypeIndex.isEmpty());
+
+        // the elements no longer notify the closed indexes, so duplicated keys are not rejected
+        nation1.getHeadquarter().set(new Vec2i(1, 2));
+        nation0.getFactories().add(new Factory(FactoryType.ROBOT, new Vec2i(0, 0), new Vec2i(1, 1)));
+        nations.add(new Nation(new Vec2i(1, 2)));
+        assertTrue(headquarterIndex.isEmpty());
+        assertTrue(factories.isEmpty());
+
+        headquarterIndex.close();
+        assertTrue(headquarterIndex.isClosed());
+
+        ObservableSet<?, Nation> others = new ObservableSet<>();
+        others.addAll(List.of(new Nation(new Vec2i(0, 1)), new Nation(new Vec2i(2, 3))));
+        LongIndex<Nation> capitalIndex = others.createLongIndex(Nation::getCapital);
+        CompositeIndex<Nation> compositeIndex = others.createCompositeIndex(Nation::getHeadquarter, Nation::getStart);
+        SpatialIndex<Nation> spatialIndex = others.createSpatialIndex(Nation::getHeadquarter, Vec2i::x, Vec2i::y);
+        AggregateField<?, Integer> count = others.createCount();
+        SortedIndex<Integer, Factory> workersIndex = nation0.getFactories().createSortedIndex(Factory::getWorkers);
+        AggregateField<?, Integer> maxWorkers = nation0.getFactories().createMax(Factory::getWorkers);
+        CloseableMap<FactoryType, Aggregate> workersByType = nation0.getFactories().createGroupedAggregate(Factory::getFactoryType, Factory::getWorkers);
+        assertEquals(2, capitalIndex.size());
+        assertEquals(2, count.get());
+        assertEquals(2, workersByType.get(FactoryType.FOOD).getCount() + workersByType.get(FactoryType.ROBOT).getCount());
+
+        for (AutoCloseable closeable : List.of(capitalIndex, compositeIndex, spatialIndex, count, workersIndex, maxWorkers, workersByType)) {
+            assertDoesNotThrow(closeable::close);
+        }
+        assertTrue(capitalIndex.isClosed() && compositeIndex.isClosed() && spatialIndex.isClosed());
+        assertTrue(count.isClosed() && workersIndex.isClosed() && maxWorkers.isClosed() && workersByType.isClosed());
+        assertEquals(0, capitalIndex.size());
+        assertEquals(0, compositeIndex.size());
+        assertEquals(0, spatialIndex.size());
+        assertTrue(workersIndex.isEmpty());
+        assertTrue(workersByType.isEmpty());
+
+        // closed aggregates go back to the aggregate of no elements
+        others.add(new Nation(new Vec2i(5, 6)));
+        nation0.getFactories().iterator().next().getWorkers().set(100);
+        assertEquals(0, count.get());
+        assertNull(maxWorkers.get());
+    }
+
+    @Test
+    public void testQuery() {
+        ObservableSet<?, Factory> factories = new ObservableSet<>();
+        Random random = new Random(0);
+        for (int i = 0; i < 200; i++) {
+            Factory factory = new Factory(FactoryType.values()[i % FactoryType.values().length], new Vec2i(i, 0), new Vec2i(i, 1));
+            factory.getWorkers().set(random.nextInt(20));
+            factories.add(factory);
+        }
+
+        Condition<Factory> condition = Condition.and(
+                Condition.equal(Factory::getFactoryType, FactoryType.FOOD),
+                Condition.range(Factory::getWorkers, 5, 10),
+                Condition.or(Condition.in(Factory::getStart, List.of(new Vec2i(0, 0), new Vec2i(4, 0))),
+                        Condition.equal(Factory::getEnd, new Vec2i(8, 1))));
+        Set<Factory> expected = new HashSet<>();
+        for (Factory factory : factories) {
+            if (condition.test(factory)) expected.add(factory);
+        }
+
+        Query<Factory> query = factories.query(condition);
+        assertEquals(expected, query.execute());
+        assertTrue(query.explain().startsWith("scan"));
+        Query<Factory> reversed = factories.query(Condition.range(Factory::getWorkers, 7, 3));
+        assertEquals(Set.of(), reversed.execute());
+
+        factories.createMultiIndex(Factory::getFactoryType);
+        factories.createSortedIndex(Factory::getWorkers);
+        assertEquals(expected, query.execute());
+        assertTrue(query.explain().startsWith("intersect"));
+        assertTrue(query.explain().contains("range"));
+        assertEquals(Set.of(), reversed.execute());
+        assertTrue(reversed.explain().startsWith("range"));
+
+        factories.createIndex(Factory::getStart);
+        factories.createIndex(Factory::getEnd);
+        assertEquals(expected, query.execute());
+        String plan = query.explain();
+        assertTrue(plan.lines().skip(1).findFirst().orElseThrow().trim().startsWith("union"), plan);
+
+        Factory factory = factories.iterator().next();
+        factory.getWorkers().set(100);
+        assertFalse(factories.query(Condition.range(Factory::getWorkers, 20, null)).explain().startsWith("scan"));
+        assertEquals(Set.of(factory), factories.query(Condition.range(Factory::getWorkers, 20, null)).execute());
+        assertEquals(Set.of(factory), factories.query(Condition.equal(Factory::getWorkers, 100)).execute());
+        assertTrue(factories.query(Condition.equal(Factory::getWorkers, 100)).explain().startsWith("lookup"));
+    }
+
+    @Test
+    public void testBitmap() {
+        Random random = new Random(0);
+        for (int round = 0; round < 20; round++) {
+            // small bounds produce dense groups stored as bitmaps, large bounds produce sparse groups stored as arrays
+            int bound = round % 2 == 0 ? 1 << 14 : 1 << 24;
+            Bitmap[] bitmaps = new Bitmap[2];
+            List<Set<Integer>> expected = List.of(new HashSet<>(), new HashSet<>());
+            for (int i = 0; i < 2; i++) {
+                bitmaps[i] = new Bitmap();
+                for (int j = 0; j < 10000; j++) {
+                    int value = random.nextInt(bound);
+                    assertEquals(expected.get(i).add(value), bitmaps[i].add(value));
+                }
+                for (int j = 0; j < 3000; j++) {
+                    int value = random.nextInt(bound);
+                    assertEquals(expected.get(i).remove(value), bitmaps[i].remove(value));
+                }
+                assertEquals(expected.get(i).size(), bitmaps[i].getCardinality());
+            }
+
+            Set<Integer> and = new HashSet<>(expected.get(0));
+            and.retainAll(expected.get(1));
+            Set<Integer> or = new HashSet<>(expected.get(0));
+            or.addAll(expected.get(1));
+            Set<Integer> andNot = new HashSet<>(expected.get(0));
+            andNot.removeAll(expected.get(1));
+            assertEquals(and, toSet(bitmaps[0].and(bitmaps[1])));
+            assertEquals(or, toSet(bitmaps[0].or(bitmaps[1])));
+            assertEquals(andNot, toSet(bitmaps[0].andNot(bitmaps[1])));
+            assertEquals(and.size(), bitmaps[0].and(bitmaps[1]).getCardinality());
+            assertTrue(bitmaps[0].contains(expected.get(0).iterator().next()));
+        }
+    }
+
+    private static Set<Integer> toSet(Bitmap bitmap) {
+        Set<Integer> set = new HashSet<>();
+        bitmap.forEach(set::add);
+        assertEquals(bitmap.getCardinality(), set.size());
+        return set;
+    }
+
+    @Test
+    public void testAdaptiveIndexer() {
+        ObservableSet<?, Factory> factories = new ObservableSet<>();
+        for (int i = 0; i < 100; i++) {
+            Factory factory = new Factory(FactoryType.values()[i % FactoryType.values().length], new Vec2i(i, 0), new Vec2i(i, 1));
+            factory.getWorkers().set(i);
+            factories.add(factory);
+        }
+
+        long[] now = {0};
+        ArrayDeque<Runnable> builds = new ArrayDeque<>();
+        AdaptiveIndexer<Factory> indexer = factories.enableAdaptiveIndexing(3, Duration.ofSeconds(10), builds::add, () -> now[0]);
+        assertThrows(IllegalStateException.class, () -> factories.enableAdaptiveIndexing(3, Duration.ofSeconds(10)));
+
+        Query<Factory> query = factories.query(Condition.equal(Factory::getFactoryType, FactoryType.FOOD));
+        Set<Factory> expected = query.execute();
+        query.execute();
+        assertTrue(builds.isEmpty());
+        assertEquals(expected, query.execute());
+        assertEquals(1, builds.size());
+
+        // queries keep scanning until the index is built
+        query.execute();
+        assertEquals(1, builds.size());
+        assertTrue(query.explain().startsWith("scan"));
+        builds.poll().run();
+        assertTrue(query.explain().startsWith("lookup"));
+        assertEquals(expected, query.execute());
+
+        AdaptiveIndexStats stats = indexer.getStats().get(0);
+        assertEquals(4, stats.getScans());
+        assertEquals(1, stats.getLookups());
+        assertEquals(1, stats.getBuilds());
+        assertTrue(stats.isIndexed());
+
+        // the index is dropped once no query has used it for the idle window
+        Query<Factory> range = factories.query(Condition.range(Factory::getWorkers, 10, 20));
+        now[0] = Duration.ofSeconds(11).toNanos();
+        range.execute();
+        assertTrue(query.explain().startsWith("scan"));
+        stats = indexer.getStats().get(0);
+        assertEquals(1, stats.getDrops());
+        assertFalse(stats.isIndexed());
+        assertEquals("sorted", indexer.getStats().get(1).getKind());
+
+        range.execute();
+        range.execute();
+        builds.poll().run();
+        assertTrue(range.explain().startsWith("range"));
+        assertEquals(10, range.execute().size());
+
+        indexer.close();
+        assertTrue(range.explain().startsWith("scan"));
+        assertEquals(10, range.execute().size());
+        assertNotNull(factories.enableAdaptiveIndexing(3, Duration.ofSeconds(10)));
+    }
+
+    @Test
+    public void testCreateBitmapIndex() {
+        ObservableSet<?, Factory> factories = new ObservableSet<>();
+        BitmapIndex<FactoryType, Factory> typeIndex = factories.createBitmapIndex(Factory::getFactoryType);
+        BitmapIndex<Integer, Factory> workersIndex = factories.createBitmapIndex(Factory::getWorkers);
+        List<Factory> list = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Factory factory = new Factory(FactoryType.values()[i % 2], new Vec2i(i, 0), new Vec2i(i, 1));
+            factory.getWorkers().set(i % 5);
+            list.add(factory);
+        }
+        factories.addAll(list);
+
+        ElementIds<Factory> ids = factories.elementIds();
+        Bitmap bitmap = typeIndex.getBitmap(FactoryType.values()[0]).and(workersIndex.getBitmap(0));
+        assertEquals(10, bitmap.getCardinality());
+        for (Factory factory : ids.getElements(bitmap)) {
+            assertEquals(FactoryType.values()[0], factory.getFactoryType().get());
+            assertEquals(0, factory.getWorkers().get());
+        }
+        assertEquals(50, typeIndex.get(FactoryType.values()[1]).size());
+        assertTrue(typeIndex.get(FactoryType.values()[1]).contains(list.get(1)));
+
+        Query<Factory> query = factories.query(Condition.and(
+                Condition.equal(Factory::getFactoryType, FactoryType.values()[0]),
+                Condition.equal(Factory::getWorkers, 0)));
+        assertEquals(new HashSet<>(ids.getElements(bitmap)), query.execute());
+
+        // ids of removed elements are reused
+        Factory removed = list.get(0);
+        int id = ids.getId(removed);
+        factories.remove(removed);
+        assertFalse(typeIndex.getBitmap(FactoryType.values()[0]).contains(id));
+        Factory added = new Factory(FactoryType.values()[1], new Vec2i(0, 0), new Vec2i(0, 1));
+        factories.add(added);
+        assertEquals(id, ids.getId(added));
+        assertEquals(-1, ids.getId(removed));
+        assertTrue(typeIndex.getBitmap(FactoryType.values()[1]).contains(id));
+
+        added.getWorkers().set(42);
+        assertEquals(Set.of(added), workersIndex.get(42));
+        assertEquals(19, workersIndex.getBitmap(0).getCardinality());
+
+        ObservableSet<?, Nation> nations = new ObservableSet<>();
+        BitmapIndex<UUID, Nation> leaderIndex = nations.createFlatBitmapIndex(Nation::getLeaders);
+        Nation nation = new Nation(new Vec2i(0, 0));
+        UUID leader = UUID.randomUUID();
+        nations.add(nation);
+        nation.getLeaders().add(leader);
+        assertEquals(Set.of(nation), leaderIndex.get(leader));
+        nation.getLeaders().remove(leader);
+        assertTrue(leaderIndex.isEmpty());
+    }
+
+    @Test
+    public void testCreatePrefixIndex() {
+        Map<Integer, ObservableField<Integer, String>> names = new HashMap<>();
+        ObservableSet<?, Integer> players = new ObservableSet<>();
+        List<String> words = List.of("Toshimichi", "Tos", "toast", "Tom", "Alice", "Al", "alpha", "", "Tos");
+        for (int i = 0; i < words.size(); i++) {
+            names.put(i, new ObservableField<>(words.get(i)));
+            players.add(i);
+        }
+
+        PrefixIndex<Integer> index = players.createPrefixIndex(names::get);
+        PrefixIndex<Integer> lowerIndex = players.createPrefixIndex(names::get, true);
+        assertEquals(Set.of(0, 1, 3, 8), index.getByPrefix("To"));
+        assertEquals(Set.of(1, 8), index.get("Tos"));
+        assertEquals(List.of("Tom", "Tos", "Toshimichi"), index.getKeysByPrefix("To", 5));
+        assertEquals(List.of("Tom", "Tos"), index.getKeysByPrefix("To", 2));
+        assertEquals(List.of(3), index.getByPrefix("To", 1));
+        assertEquals(Set.of(0, 1, 2, 3, 8), lowerIndex.getByPrefix("TO"));
+        assertEquals(Set.of(1, 8), lowerIndex.get("TOS"));
+        assertEquals(Set.of(), index.getByPrefix("Tox"));
+        assertEquals(words.size(), index.getByPrefix("").size());
+        assertThrows(UnsupportedOperationException.class, () -> index.entrySet().iterator().next().getValue().clear());
+        assertThrows(UnsupportedOperationException.class, () -> index.values().iterator().next().clear());
+
+        names.get(0).set("Alfred");
+        names.get(1).set(null);
+        players.remove(4);
+        assertEquals(Set.of(3, 8), index.getByPrefix("To"));
+        assertEquals(List.of("Al", "Alfred"), index.getKeysByPrefix("Al", 5));
+        assertEquals(List.of("al", "alfred", "alpha"), lowerIndex.getKeysByPrefix("al", 5));
+
+        // the tree agrees with a scan after random updates
+        Random random = new Random(0);
+        for (int i = 0; i < 2000; i++) {
+            int id = random.nextInt(64);
+            StringBuilder builder = new StringBuilder();
+            for (int j = random.nextInt(6); j > 0; j--) builder.append((char) ('a' + random.nextInt(3)));
+            if (!names.containsKey(id)) names.put(id, new ObservableField<>(null));
+            if (random.nextInt(8) == 0) {
+                players.remove(id);
+            } else {
+                names.get(id).set(builder.toString());
+                players.add(id);
+            }
+        }
+        for (String prefix : List.of("", "a", "ab", "bca", "ccc")) {
+            Set<Integer> expected = new HashSet<>();
+            for (int id : players) {
+                String name = names.get(id).get();
+                if (name != null && name.startsWith(prefix)) expected.add(id);
+            }
+            assertEquals(expected, index.getByPrefix(prefix));
+
+            List<String> keys = new ArrayList<>();
+            index.withPrefix(prefix).forEach(it -> keys.add(it.getKey()));
+            List<String> sorted = new ArrayList<>(keys);
+            sorted.sort(Comparator.naturalOrder());
+            assertEquals(sorted, keys);
+        }
+
+        index.close();
+        players.add(3);
+        names.get(3).set("Tommy");
+        assertTrue(index.isClosed());
+        assertEquals(List.of("tommy"), lowerIndex.getKeysByPrefix("tomm", 5));
+    }
+
+    @Test
+    public void testPath() {
+        Map<String, ObservableSet<String, Nation>> regions = new HashMap<>();
+        regions.put("east", new ObservableSet<>());
+        regions.put("west", new ObservableSet<>());
+        ObservableSet<?, String> names = new ObservableSet<>();
+        names.add("east");
+
+        FlatMapPath<Factory> path = names.path(regions::get).flatMap(Nation::getFactories);
+        CloseableMap<FactoryType, Set<Factory>> typeIndex = path.createMultiIndex(Factory::getFactoryType);
+        CloseableMap<Vec2i, Factory> startIndex = path.createIndex(Factory::getStart);
+
+        Nation nation0 = new Nation(new Vec2i(0, 0));
+        Nation nation1 = new Nation(new Vec2i(1, 0));
+        Factory factory0 = new Factory(FactoryType.FOOD, new Vec2i(0, 0), new Vec2i(1, 1));
+        Factory factory1 = new Factory(FactoryType.ROBOT, new Vec2i(1, 0), new Vec2i(2, 1));
+        Factory factory2 = new Factory(FactoryType.FOOD, new Vec2i(2, 0), new Vec2i(3, 1));
+        nation0.getFactories().add(factory0);
+        regions.get("east").add(nation0);
+        regions.get("west").add(nation1);
+        nation1.getFactories().addAll(List.of(factory1, factory2));
+        assertEquals(Map.of(FactoryType.FOOD, Set.of(factory0)), typeIndex);
+
+        names.add("west");
+        assertEquals(Map.of(FactoryType.FOOD, Set.of(factory0, factory2), FactoryType.ROBOT, Set.of(factory1)), typeIndex);
+        assertEquals(factory2, startIndex.get(new Vec2i(2, 0)));
+        assertEquals(Set.of(factory0, factory1, factory2), path.materialize());
+
+        factory1.getFactoryType().set(FactoryType.FOOD);
+        regions.get("east").remove(nation0);
+        assertEquals(Map.of(FactoryType.FOOD, Set.of(factory1, factory2)), typeIndex);
+
+        names.remove("west");
+        assertTrue(typeIndex.isEmpty());
+        assertTrue(startIndex.isEmpty());
+
+        names.add("west");
+        startIndex.close();
+        assertTrue(startIndex.isEmpty());
+        nation1.getFactories().add(new Factory(FactoryType.ROBOT, new Vec2i(2, 0), new Vec2i(3, 1)));
+        assertTrue(startIndex.isEmpty());
+        assertEquals(2, typeIndex.get(FactoryType.FOOD).size());
+    }
+
+    @Test
+    public void testCreateSortedIndex() {
+        ObservableSet<?, Nation> nations = new ObservableSet<>();
+        NavigableMap<Vec2i, Set<Nation>> headquarterIndex = nations.createSortedIndex(Nation::getHeadquarter,
+                Comparator.comparingInt(Vec2i::x).thenComparingInt(Vec2i::y));
+
+        Nation nation0 = new Nation(new Vec2i(1, 2));
+        Nation nation1 = new Nation(new Vec2i(5, 0));
+        Nation nation2 = new Nation(new Vec2i(5, 0));
+        Nation nation3 = new Nation(new Vec2i(9, 9));
+        nations.addAll(List.of(nation0, nation1, nation2, nation3));
+        assertEquals(3, headquarterIndex.size());
+        assertEquals(Set.of(nation1, nation2), headquarterIndex.get(new Vec2i(5, 0)));
+        assertEquals(new Vec2i(1, 2), headquarterIndex.firstKey());
+        assertEquals(new Vec2i(5, 0), headquarterIndex.floorKey(new Vec2i(6, 0)));
+        assertEquals(new Vec2i(9, 9), headquarterIndex.ceilingKey(new Vec2i(6, 0)));
+        assertEquals(2, headquarterIndex.subMap(new Vec2i(0, 0), true, new Vec2i(5, 0), true).size());
+        assertEquals(1, headquarterIndex.tailMap(new Vec2i(5, 0), false).size());
+
+        nation1.getHeadquarter().set(new Vec2i(0, 0));
+        assertEquals(Set.of(nation2), headquarterIndex.get(new Vec2i(5, 0)));
+        assertEquals(new Vec2i(0, 0), headquarterIndex.firstKey());
+        assertEquals(2, headquarterIndex.headMap(new Vec2i(5, 0)).size());
+
+        nations.remove(nation2);
+        assertNull(headquarterIndex.get(new Vec2i(5, 0)));
+        assertEquals(3, headquarterIndex.size());
+        assertThrows(UnsupportedOperationException.class, headquarterIndex::pollFirstEntry);
+        assertThrows(UnsupportedOperationException.class, () -> headquarterIndex.firstEntry().getValue().clear());
+        assertThrows(UnsupportedOperationException.class, () -> headquarterIndex.values().iterator().next().add(nation2));
+        assertThrows(UnsupportedOperationException.class,
+                () -> headquarterIndex.tailMap(new Vec2i(5, 0)).values().iterator().next().remove(nation3));
+        assertEquals(Set.of(nation3), headquarterIndex.get(new Vec2i(9, 9)));
+    }
+
+    @Test
+    public void testCreateSpatialIndex() {
+        ObservableSet<?, Nation> nations = new ObservableSet<>();
+        SpatialIndex<Nation> headquarterIndex = nations.createSpatialIndex(Nation::getHeadquarter, Vec2i::x, Vec2i::y);
+
+        Nation nation0 = new Nation(new Vec2i(0, 0));
+        Nation nation1 = new Nation(new Vec2i(100, 0));
+        Nation nation2 = new Nation(new Vec2i(-150, -150));
+        Nation nation3 = new Nation(new Vec2i(1000, 1000));
+        nations.addAll(List.of(nation0, nation1, nation2, nation3));
+        assertEquals(4, headquarterIndex.size());
+
+        assertEquals(Set.of(nation0, nation1), headquarterIndex.getWithinRadius(0, 0, 200));
+        assertEquals(Set.of(nation0, nation1, nation2), headquarterIndex.getWithinRadius(0, 0, 300));
+        assertEquals(Set.of(nation0, nation2), headquarterIndex.getWithinRectangle(-150, -150, 0, 0));
+        assertEquals(List.of(nation1, nation0), headquarterIndex.getNearest(90, 0, 2));
+        assertEquals(List.of(nation3, nation1, nation0, nation2), headquarterIndex.getNearest(5000, 5000, 10));
+
+        nation3.getHeadquarter().set(new Vec2i(10, 10));
+        assertEquals(Set.of(nation0, nation1, nation3), headquarterIndex.getWithinRadius(0, 0, 200));
+        assertEquals(List.of(nation3), headquarterIndex.getNearest(11, 11, 1));
+
+        nations.remove(nation0);
+        assertEquals(3, headquarterIndex.size());
+        assertEquals(Set.of(nation3), headquarterIndex.getWithinRectangle(0, 0, 10, 10));
+    }
+
+    @Test
+    public void testCreateLongIndex() {
+        ObservableSet<?, Nation> nations = new ObservableSet<>();
+        LongIndex<Nation> capitalIndex = nations.createLongIndex(Nation::getCapital);
+
+        List<Nation> list = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            list.add(new Nation(new Vec2i(i, -i)));
+        }
+        nations.addAll(list);
+        assertEquals(1000, capitalIndex.size());
+        for (Nation nation : list) {
+            assertSame(nation, capitalIndex.get(nation.getCapital().get()));
+        }
+
+        Nation nation0 = list.get(0);
+        long capital = nation0.getCapital().get();
+        nation0.getCapital().set(Long.MIN_VALUE);
+        assertFalse(capitalIndex.containsKey(capital));
+        assertSame(nation0, capitalIndex.get(Long.MIN_VALUE));
+
+        for (int i = 0; i < 1000; i += 2) {
+            nations.remove(list.get(i));
+        }
+        assertEquals(500, capitalIndex.size());
+        assertNull(capitalIndex.get(Long.MIN_VALUE));
+        for (int i = 1; i < 1000; i += 2) {
+            assertSame(list.get(i), capitalIndex.get(list.get(i).getCapital().get()));
+        }
+    }
+
+    @Test
+    public void testSubscription() {
+        ObservableField<Nation, Vec2i> field = new ObservableField<>(new Vec2i(0, 0));
+        List<String> calls = new ArrayList<>();
+
+        Subscription[] second = new Subscription[1];
+        Subscription first = field.subscribe((f, old, updated) -> {
+            calls.add("first");
+            // unsubscribing a handler which has not been called yet prevents it from being called
+            second[0].unsubscribe();
+        });
+        second[0] = field.subscribe((f, old, updated) -> calls.add("second"));
+
+        field.set(new Vec2i(1, 1));
+        assertEquals(List.of("first"), calls);
+        assertTrue(first.isSubscribed());
+        assertFalse(second[0].isSubscribed());
+
+        first.unsubscribe();
+        first.unsubscribe();
+        field.set(new Vec2i(2, 2));
+        assertEquals(List.of("first"), calls);
+
+        ObservableSet<?, Nation> nations = new ObservableSet<>();
+        List<Subscription> subscriptions = new ArrayList<>();
+        int[] count = new int[1];
+        for (int i = 0; i < 10; i++) {
+            subscriptions.add(nations.subscribe(it -> count[0]++, it -> {}));
+        }
+        for (int i = 0; i < 10; i += 2) {
+            subscriptions.get(i).close();
+        }
+
+        nations.add(new Nation(new Vec2i(0, 0)));
+        assertEquals(5, count[0]);
+    }
+
+    @Test
+    public void testCreateCompositeIndex() {
+        ObservableSet<?, Factory> factories = new ObservableSet<>();
+        CompositeIndex<Factory> index = factories.createCompositeIndex(Factory::getFactoryType, Factory::getStart);
+        assertEquals(2, index.getArity());
+
+        Factory factory0 = new Factory(FactoryType.FOOD, new Vec2i(0, 0), new Vec2i(1, 1));
+        Factory factory1 = new Factory(FactoryType.FOOD, new Vec2i(5, 5), new Vec2i(6, 6));
+        Factory factory2 = new Factory(FactoryType.ROBOT, new Vec2i(0, 0), new Vec2i(1, 1));
+        factories.addAll(List.of(factory0, factory1, factory2));
+        assertEquals(3, index.size());
+        assertEquals(Set.of(factory0, factory1), index.get(FactoryType.FOOD));
+        assertEquals(Set.of(factory0), index.get(FactoryType.FOOD, new Vec2i(0, 0)));
+        assertEquals(Set.of(factory2), index.get(new Object[]{FactoryType.ROBOT, new Vec2i(0, 0)}));
+        assertEquals(Set.of(), index.get(FactoryType.PARTS));
+        assertThrows(IllegalArgumentException.class, () -> index.get(FactoryType.FOOD, new Vec2i(0, 0), null));
+
+        factory1.getStart().set(new Vec2i(0, 0));
+        assertEquals(Set.of(factory0, factory1), index.get(FactoryType.FOOD, new Vec2i(0, 0)));
+        assertEquals(Set.of(), index.get(FactoryType.FOOD, new Vec2i(5, 5)));
+
+        factory0.getFactoryType().set(FactoryType.ROBOT);
+        assertEquals(Set.of(factory1), index.get(FactoryType.FOOD));
+        assertEquals(Set.of(factory0, factory2), index.get(FactoryType.ROBOT, new Vec2i(0, 0)));
+
+        factories.remove(factory2);
+        assertEquals(2, index.size());
+        assertEquals(Set.of(factory0), index.get(FactoryType.ROBOT));
+    }
+
+    @Test
+    public void testLazyIndex() {
+        ObservableSet<?, Nation> nations = new ObservableSet<>();
+        Map<Vec2i, Nation> headquarterIndex = nations.createIndex(Nation::getHeadquarter, IndexMode.LAZY);
+        ObservableSet<?, Factory> factories = nations.createFlatMap(Nation::getFactories);
+        Map<FactoryType, Set<Factory>> factoryTypeIndex = factories.createMultiIndex(Factory::getFactoryType, IndexMode.LAZY);
+
+        Nation nation0 = new Nation(new Vec2i(1, 2));
+        Nation nation1 = new Nation(new Vec2i(2, 3));
+        Factory factory0 = new Factory(FactoryType.FOOD, new Vec2i(2, 3), new Vec2i(3, 4));
+        Factory factory1 = new Factory(FactoryType.CLOTHES, new Vec2i(4, 5), new Vec2i(3, 2));
+        nation0.getFactories().addAll(List.of(factory0, factory1));
+        nations.addAll(List.of(nation0, nation1));
+        assertEquals(nation0, headquarterIndex.get(new Vec2i(1, 2)));
+        assertEquals(Set.of(factory0), factoryTypeIndex.get(FactoryType.FOOD));
+
+        // swapping keys is only valid once both changes are applied
+        nation0.getHeadquarter().set(new Vec2i(2, 3));
+        nation1.getHeadquarter().set(new Vec2i(5, 5));
+        nation1.getHeadquarter().set(new Vec2i(1, 2));
+        factory0.getFactoryType().set(FactoryType.CLOTHES);
+        factory0.getFactoryType().set(null);
+        assertEquals(2, headquarterIndex.size());
+        assertEquals(nation0, headquarterIndex.get(new Vec2i(2, 3)));
+        assertEquals(nation1, headquarterIndex.get(new Vec2i(1, 2)));
+        assertEquals(Set.of(factory1), factoryTypeIndex.get(FactoryType.CLOTHES));
+        assertFalse(factoryTypeIndex.containsKey(FactoryType.FOOD));
+
+        nation1.getHeadquarter().set(new Vec2i(7, 7));
+        nations.remove(nation1);
+        nation0.getFactories().remove(factory1);
+        assertEquals(1, headquarterIndex.size());
+        assertEquals(0, factoryTypeIndex.size());
+
+        // a duplicated key found while reconciling does not drop the other dirty elements
+        List<Nation> others = new ArrayList<>();
+        for (int i = 0; i < 8; i++) others.add(new Nation(new Vec2i(10, i)));
+        nations.addAll(others);
+        assertEquals(9, headquarterIndex.size());
+        for (int i = 0; i < 8; i++) others.get(i).getHeadquarter().set(new Vec2i(20, i));
+        others.get(0).getHeadquarter().set(new Vec2i(2, 3));
+        assertThrows(IllegalArgumentException.class, headquarterIndex::size);
+        others.get(0).getHeadquarter().set(new Vec2i(20, 0));
+        assertEquals(9, headquarterIndex.size());
+        for (int i = 0; i < 8; i++) assertEquals(others.get(i), headquarterIndex.get(new Vec2i(20, i)));
+        assertEquals(nation0, headquarterIndex.get(new Vec2i(2, 3)));
+    }
+
+    @Test
+    public void testSubscribeAsync() {
+        ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        ObservableSet<?, Integer> set = new ObservableSet<>();
+        List<Integer> added = new ArrayList<>();
+        List<Integer> removed = new ArrayList<>();
+        ObservableSetHandler<Object, Integer> handler = new ObservableSetHandler<>() {
+            @Override
+            public void add(ObservableSet<?, ? extends Integer> set, Integer element) {
+                added.add(element);
+            }
+
+            @Override
+            public void remove(ObservableSet<?, ? extends Integer> set, Integer element) {
+                removed.add(element);
+            }
+        };
+
+        AsyncSubscription subscription = set.subscribeAsync(handler, tasks::add);
+        set.add(1);
+        set.addAll(List.of(2, 3));
+        assertEquals(1, tasks.size());
+        assertEquals(3, subscription.getQueueDepth());
+        assertTrue(added.isEmpty());
+
+        tasks.poll().run();
+        assertEquals(List.of(1, 2, 3), added);
+        assertEquals(0, subscription.getQueueDepth());
+        assertEquals(3, subscription.getMaxQueueDepth());
+        subscription.unsubscribe();
+
+        AsyncSubscription coalesced = set.subscribeAsync(handler, tasks::add, 2, OverflowPolicy.COALESCE);
+        added.clear();
+        set.add(4);
+        set.remove(4);
+        set.remove(1);
+        set.add(5);
+        set.add(6);
+        assertEquals(2, coalesced.getQueueDepth());
+        assertEquals(3, coalesced.getDroppedCount());
+        while (!tasks.isEmpty()) tasks.poll().run();
+        assertEquals(List.of(5, 6), added);
+        assertEquals(List.of(), removed);
+
+        Nation nation = new Nation(new Vec2i(1, 2));
+        List<Vec2i> updates = new ArrayList<>();
+        AsyncSubscription fieldSubscription = nation.getHeadquarter().subscribeAsync(
+                (field, old, updated) -> updates.add(updated), tasks::add, 1, OverflowPolicy.DROP_NEWEST);
+        nation.getHeadquarter().set(new Vec2i(2, 3));
+        nation.getHeadquarter().set(new Vec2i(3, 4));
+        assertEquals(1, fieldSubscription.getDroppedCount());
+        tasks.poll().run();
+        assertEquals(List.of(new Vec2i(2, 3)), updates);
+    }
+
+    @Test
+    public void testPublisher() {
+        ObservableSet<?, Integer> set = new ObservableSet<>();
+        ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        List<List<SetChange<Integer>>> chunks = new ArrayList<>();
+        Flow.Subscription[] subscription = new Flow.Subscription[1];
+        Flow.Subscriber<List<SetChange<Integer>>> subscriber = new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription[0] = s;
+            }
+
+            @Override
+            public void onNext(List<SetChange<Integer>> item) {
+                chunks.add(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                fail(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                fail();
+            }
+        };
+
+        set.publisher(tasks::add, Integer.MAX_VALUE, 2, OverflowPolicy.DROP_NEWEST).subscribe(subscriber);
+        set.addAll(List.of(1, 2, 3));
+        set.remove(1);
+        assertTrue(tasks.isEmpty());
+        assertTrue(chunks.isEmpty());
+
+        // nothing is delivered beyond the demand
+        subscription[0].request(1);
+        while (!tasks.isEmpty()) tasks.poll().run();
+        assertEquals(1, chunks.size());
+        assertEquals(2, chunks.get(0).size());
+        assertTrue(chunks.get(0).get(0).isAdded());
+
+        subscription[0].request(5);
+        while (!tasks.isEmpty()) tasks.poll().run();
+        assertEquals(List.of(new SetChange<>(3, true), new SetChange<>(1, false)), chunks.get(1));
+        set.add(4);
+        while (!tasks.isEmpty()) tasks.poll().run();
+        assertEquals(List.of(new SetChange<>(4, true)), chunks.get(2));
+        subscription[0].cancel();
+        set.add(5);
+        assertTrue(tasks.isEmpty());
+
+        // changes waiting for demand are coalesced by element
+        chunks.clear();
+        set.publisher(tasks::add, 2, 16, OverflowPolicy.COALESCE).subscribe(subscriber);
+        set.add(6);
+        set.remove(6);
+        set.remove(2);
+        set.add(7);
+        set.add(8);
+        subscription[0].request(Long.MAX_VALUE);
+        while (!tasks.isEmpty()) tasks.poll().run();
+        assertEquals(List.of(List.of(new SetChange<>(7, true), new SetChange<>(8, true))), chunks);
+        subscription[0].cancel();
+
+        Nation nation = new Nation(new Vec2i(1, 2));
+        List<List<FieldChange<Vec2i>>> updates = new ArrayList<>();
+        nation.getHeadquarter().publisher(tasks::add, 1, 16, OverflowPolicy.COALESCE).subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription[0] = s;
+            }
+
+            @Override
+            public void onNext(List<FieldChange<Vec2i>> item) {
+                updates.add(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                fail(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                fail();
+            }
+        });
+        nation.getHeadquarter().set(new Vec2i(2, 3));
+        nation.getHeadquarter().set(new Vec2i(3, 4));
+        subscription[0].request(1);
+        while (!tasks.isEmpty()) tasks.poll().run();
+        assertEquals(List.of(List.of(new FieldChange<>(new Vec2i(1, 2), new Vec2i(3, 4)))), updates);
+        assertThrows(IllegalArgumentException.class, () -> set.publisher(tasks::add, 1, 0, OverflowPolicy.DROP_NEWEST));
+
+        // signals stay serial when the subscriber requests a non-positive number of items or throws
+        List<String> signals = new ArrayList<>();
+        Flow.Subscriber<List<SetChange<Integer>>> failing = new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription[0] = s;
+            }
+
+            @Override
+            public void onNext(List<SetChange<Integer>> item) {
+                signals.add("next " + item.get(0).getElement());
+                if (item.get(0).getElement() == 9) subscription[0].request(0);
+                if (item.get(0).getElement() == 11) throw new IllegalStateException();
+                signals.add("end");
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                signals.add("error " + throwable.getClass().getSimpleName());
+            }
+
+            @Override
+            public void onComplete() {
+                fail();
+            }
+        };
+        set.publisher(tasks::add, Integer.MAX_VALUE, 1, OverflowPolicy.DROP_NEWEST).subscribe(failing);
+        set.addAll(List.of(9, 10));
+        subscription[0].request(Long.MAX_VALUE);
+        while (!tasks.isEmpty()) tasks.poll().run();
+        assertEquals(List.of("next 9", "end", "error IllegalArgumentException"), signals);
+
+        signals.clear();
+        set.publisher(tasks::add, Integer.MAX_VALUE, 1, OverflowPolicy.DROP_NEWEST).subscribe(failing);
+        subscription[0].request(Long.MAX_VALUE);
+        set.add(11);
+        set.add(12);
+        while (!tasks.isEmpty()) tasks.poll().run();
+        set.add(13);
+        assertTrue(tasks.isEmpty());
+        assertEquals(List.of("next 11", "error IllegalStateException"), signals);
+    }
+
+    @Test
+    public void testCreateAggregate() {
+        ObservableSet<?, Nation> nations = new ObservableSet<>();
+        ObservableSet<?, Factory> factories = nations.createFlatMap(Nation::getFactories);
+        ObservableField<?, Integer> count = factories.createCount();
+        ObservableField<?, Double> sum = factories.createSum(Factory::getWorkers);
+        ObservableField<?, Integer> min = factories.createMin(Factory::getWorkers);
+        ObservableField<?, Integer> max = factories.createMax(Factory::getWorkers);
+        Map<FactoryType, Aggregate> workersByType = factories.createGroupedAggregate(Factory::getFactoryType, Factory::getWorkers);
+        assertEquals(0, count.get());
+        assertEquals(0.0, sum.get());
+        assertNull(min.get());
+
+        Nation nation0 = new Nation(new Vec2i(1, 2));
+        Factory factory0 = new Factory(FactoryType.FOOD, new Vec2i(2, 3), new Vec2i(3, 4));
+        Factory factory1 = new Factory(FactoryType.CLOTHES, new Vec2i(4, 5), new Vec2i(3, 2));
+        Factory factory2 = new Factory(FactoryType.FOOD, new Vec2i(1, 0), new Vec2i(3, 1));
+        factory0.getWorkers().set(10);
+        factory1.getWorkers().set(5);
+        nation0.getFactories().addAll(List.of(factory0, factory1, factory2));
+        nations.add(nation0);
+        assertEquals(3, count.get());
+        assertEquals(15.0, sum.get());
+        assertEquals(0, min.get());
+        assertEquals(10, max.get());
+        assertEquals(2, workersByType.get(FactoryType.FOOD).getCount());
+        assertEquals(5.0, workersByType.get(FactoryType.FOOD).getAverage());
+
+        factory2.getWorkers().set(20);
+        factory0.getFactoryType().set(FactoryType.CLOTHES);
+        assertEquals(35.0, sum.get());
+        assertEquals(5, min.get());
+        assertEquals(20, max.get());
+        assertEquals(20.0, workersByType.get(FactoryType.FOOD).getSum());
+        assertEquals(15.0, workersByType.get(FactoryType.CLOTHES).getSum());
+        assertThrows(UnsupportedOperationException.class, () -> count.set(0));
+
+        nation0.getFactories().remove(factory2);
+        assertEquals(2, count.get());
+        assertEquals(10, max.get());
+        assertFalse(workersByType.containsKey(FactoryType.FOOD));
+
+        nations.remove(nation0);
+        assertEquals(0, count.get());
+        assertEquals(0.0, sum.get());
+        assertNull(max.get());
+        assertTrue(workersByType.isEmpty());
+
+        // removing fractional values leaves no rounding errors behind
+        Map<Integer, ObservableField<Integer, Double>> prices = new HashMap<>();
+        ObservableSet<?, Integer> items = new ObservableSet<>();
+        ObservableField<?, Double> total = items.createSum(prices::get);
+        List<Double> values = List.of(0.1, 0.2, 0.3, 1e16, 1.5);
+        for (int i = 0; i < values.size(); i++) {
+            prices.put(i, new ObservableField<>(values.get(i)));
+            items.add(i);
+        }
+        items.remove(3);
+        assertEquals(2.1, total.get(), 1e-15);
+        items.remove(0);
+        items.remove(1);
+        prices.get(4).set(0.7);
+        assertEquals(1.0, total.get(), 1e-15);
+        items.remove(2);
+        items.remove(4);
+        assertEquals(0.0, total.get());
+    }
+
+    @Test
+    public void testCreateFilter() {
+        ObservableSet<?, Nation> nations = new ObservableSet<>();
+        ObservableSet<?, Nation> eastern = nations.createFilter(nation -> nation.getHeadquarter().get().x() > 0, Nation::getHeadquarter);
+        Map<Vec2i, Nation> headquarterIndex = eastern.createIndex(Nation::getHeadquarter);
+        ObservableSet<?, Factory> factories = eastern.createFlatMap(Nation::getFactories);
+
+        Nation nation0 = new Nation(new Vec2i(1, 2));
+        Nation nation1 = new Nation(new Vec2i(-1, 2));
+        Factory factory0 = new Factory(FactoryType.FOOD, new Vec2i(2, 3), new Vec2i(3, 4));
+        nation1.getFactories().add(factory0);
+        nations.addAll(List.of(nation0, nation1));
+        assertEquals(Set.of(nation0), eastern);
+        assertEquals(Set.of(), factories);
+        assertThrows(UnsupportedOperationException.class, () -> eastern.add(nation1));
+
+        nation1.getHeadquarter().set(new Vec2i(3, 2));
+        nation0.getHeadquarter().set(new Vec2i(-3, 2));
+        assertEquals(Set.of(nation1), eastern);
+        assertEquals(Map.of(new Vec2i(3, 2), nation1), headquarterIndex);
+        assertEquals(Set.of(factory0), factories);
+
+        nations.remove(nation1);
+        assertTrue(eastern.isEmpty());
+        assertTrue(headquarterIndex.isEmpty());
+
+        nation1.getHeadquarter().set(new Vec2i(5, 5));
+        assertTrue(eastern.isEmpty());
+    }
+
+    private static final SnapshotCodec<Vec2i> VEC2I_CODEC = new SnapshotCodec<>() {
+        @Override
+        public void write(DataOutput out, Vec2i value) throws IOException {
+            out.writeInt(value.x());
+            out.writeInt(value.y());
+        }
+
+        @Override
+        public Vec2i read(DataInput in) throws IOException {
+            return new Vec2i(in.readInt(), in.readInt());
+        }
+    };
+
+    private static final SnapshotCodec<Factory> FACTORY_CODEC = new SnapshotCodec<>() {
+        @Override
+        public void write(DataOutput out, Factory value) throws IOException {
+            out.writeUTF(value.getFactoryType().get().name());
+            VEC2I_CODEC.write(out, value.getStart().get());
+            VEC2I_CODEC.write(out, value.getEnd().get());
+        }
+
+        @Override
+        public Factory read(DataInput in) throws IOException {
+            FactoryType type = FactoryType.valueOf(in.readUTF());
+            return new Factory(type, VEC2I_CODEC.read(in), VEC2I_CODEC.read(in));
+        }
+    };
+
+    @Test
+    public void testSnapshotFile(@TempDir Path directory) throws IOException {
+        ObservableSet<?, Factory> factories = new ObservableSet<>();
+        Map<Vec2i, Factory> startIndex = factories.createIndex(Factory::getStart);
+        Map<FactoryType, Set<Factory>> typeIndex = factories.createMultiIndex(Factory::getFactoryType);
+        factories.add(new Factory(FactoryType.FOOD, new Vec2i(2, 3), new Vec2i(3, 4)));
+        factories.add(new Factory(FactoryType.CLOTHES, new Vec2i(4, 5), new Vec2i(3, 2)));
+        factories.add(new Factory(FactoryType.FOOD, new Vec2i(1, 0), new Vec2i(3, 1)));
+
+        SnapshotCodec<FactoryType> typeCodec = new SnapshotCodec<>() {
+            @Override
+            public void write(DataOutput out, FactoryType value) throws IOException {
+                out.writeByte(value.ordinal());
+            }
+
+            @Override
+            public FactoryType read(DataInput in) throws IOException {
+                return FactoryType.values()[in.readByte()];
+            }
+        };
+        Path path = directory.resolve("factories.snapshot");
+        new SnapshotWriter<>(FACTORY_CODEC)
+                .addIndex("start", startIndex, VEC2I_CODEC)
+                .addMultiIndex("type", typeIndex, typeCodec)
+                .write(path, factories);
+
+        SnapshotReader<Factory> reader = SnapshotReader.open(path, FACTORY_CODEC);
+        assertEquals(Set.of("start", "type"), reader.getIndexNames());
+        ObservableSet<?, Factory> restored = new ObservableSet<>();
+        restored.addAll(reader.getElements());
+        Map<Vec2i, Factory> restoredStartIndex = reader.restoreIndex(restored, "start", Factory::getStart, VEC2I_CODEC);
+        Map<FactoryType, Set<Factory>> restoredTypeIndex = reader.restoreMultiIndex(restored, "type", Factory::getFactoryType, typeCodec);
+        assertThrows(IllegalArgumentException.class, () -> reader.restoreIndex(restored, "type", Factory::getStart, VEC2I_CODEC));
+        assertEquals(3, restoredStartIndex.size());
+        assertEquals(startIndex.keySet(), restoredStartIndex.keySet());
+        assertEquals(2, restoredTypeIndex.get(FactoryType.FOOD).size());
+        assertNull(restoredStartIndex.get(new Vec2i(9, 9)));
+        assertNull(restoredStartIndex.get("start"));
+
+        Factory factory = restoredStartIndex.get(new Vec2i(4, 5));
+        assertEquals(FactoryType.CLOTHES, factory.getFactoryType().get());
+        Snapshot<Factory> snapshot = restored.snapshot();
+        factory.getStart().set(new Vec2i(6, 6));
+        factory.getFactoryType().set(FactoryType.FOOD);
+        assertEquals(factory, restoredStartIndex.get(new Vec2i(6, 6)));
+        assertNull(restoredStartIndex.get(new Vec2i(4, 5)));
+        assertEquals(Set.of(new Vec2i(2, 3), new Vec2i(1, 0), new Vec2i(6, 6)), restoredStartIndex.keySet());
+        assertEquals(3, restoredTypeIndex.get(FactoryType.FOOD).size());
+        assertEquals(1, restoredTypeIndex.size());
+        assertFalse(restoredTypeIndex.containsKey(FactoryType.CLOTHES));
+        assertEquals(factory, snapshot.get(restoredStartIndex).get(new Vec2i(4, 5)));
+        assertEquals(Set.of(factory), snapshot.get(restoredTypeIndex).get(FactoryType.CLOTHES));
+
+        // a stored key which is out of date is detected when it is looked up
+        CloseableMap<Vec2i, Factory> staleStartIndex = reader.restoreIndex(restored, "start", Factory::getStart, VEC2I_CODEC);
+        assertThrows(IllegalStateException.class, () -> staleStartIndex.get(new Vec2i(4, 5)));
+        staleStartIndex.close();
+
+        factory.getStart().set(new Vec2i(4, 5));
+        Map<Vec2i, Factory> secondStartIndex = reader.restoreIndex(restored, "start", Factory::getStart, VEC2I_CODEC);
+        assertEquals(restoredStartIndex, secondStartIndex);
+        restored.remove(factory);
+        assertEquals(2, secondStartIndex.size());
+        assertNull(secondStartIndex.get(new Vec2i(4, 5)));
+        assertEquals(2, restoredTypeIndex.get(FactoryType.FOOD).size());
+
+        // an element indexed by two keys is rejected
+        Factory any = factories.iterator().next();
+        Path duplicated = directory.resolve("duplicated.snapshot");
+        new SnapshotWriter<>(FACTORY_CODEC)
+                .addMultiIndex("type", Map.of(FactoryType.FOOD, Set.of(any), FactoryType.CLOTHES, Set.of(any)), typeCodec)
+                .write(duplicated, factories);
+        assertThrows(IOException.class, () -> SnapshotReader.open(duplicated, FACTORY_CODEC));
+
+        byte[] bytes = Files.readAllBytes(path);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(path, bytes);
+        assertThrows(IOException.class, () -> SnapshotReader.open(path, FACTORY_CODEC));
+    }
+
+    @Test
+    public void testSnapshotFileLookup(@TempDir Path directory) throws IOException {
+        ObservableSet<?, Factory> factories = new ObservableSet<>();
+        Map<Vec2i, Factory> startIndex = factories.createIndex(Factory::getStart);
+        Map<Vec2i, Set<Factory>> endIndex = factories.createMultiIndex(Factory::getEnd);
+        Random random = new Random(0);
+        for (int i = 0; i < 2000; i++) {
+            factories.add(new Factory(FactoryType.FOOD, new Vec2i(i, -i), new Vec2i(random.nextInt(30), 0)));
+        }
+        Path path = directory.resolve("factories.snapshot");
+        new SnapshotWriter<>(FACTORY_CODEC)
+                .addIndex("start", startIndex, VEC2I_CODEC)
+                .addMultiIndex("end", endIndex, VEC2I_CODEC)
+                .write(path, factories);
+
+        SnapshotReader<Factory> reader = SnapshotReader.open(path, FACTORY_CODEC);
+        ObservableSet<?, Factory> restored = new ObservableSet<>();
+        restored.addAll(reader.getElements());
+        Map<Vec2i, Factory> restoredStartIndex = reader.restoreIndex(restored, "start", Factory::getStart, VEC2I_CODEC);
+        Map<Vec2i, Set<Factory>> restoredEndIndex = reader.restoreMultiIndex(restored, "end", Factory::getEnd, VEC2I_CODEC);
+        Map<Vec2i, Factory> expectedStartIndex = restored.createIndex(Factory::getStart);
+        Map<Vec2i, Set<Factory>> expectedEndIndex = restored.createMultiIndex(Factory::getEnd);
+        assertEquals(expectedStartIndex, restoredStartIndex);
+        assertEquals(expectedEndIndex, restoredEndIndex);
+
+        // the restored indexes agree with indexes built from scratch after random updates
+        List<Factory> elements = reader.getElements();
+        for (int i = 0; i < 3000; i++) {
+            Factory factory = elements.get(random.nextInt(elements.size()));
+            int action = random.nextInt(4);
+            if (action == 0) {
+                restored.remove(factory);
+            } else if (action == 1) {
+                restored.add(factory);
+            } else if (action == 2) {
+                factory.getEnd().set(new Vec2i(random.nextInt(40), 0));
+            } else {
+                factory.getStart().set(new Vec2i(i, 1));
+            }
+            Vec2i key = new Vec2i(random.nextInt(40), 0);
+            assertEquals(expectedEndIndex.get(key), restoredEndIndex.get(key));
+        }
+        for (Factory factory : elements) {
+            Vec2i start = factory.getStart().get();
+            assertEquals(expectedStartIndex.get(start), restoredStartIndex.get(start));
+        }
+        assertEquals(expectedStartIndex, restoredStartIndex);
+        assertEquals(expectedEndIndex, restoredEndIndex);
+    }
+
+    @Test
+    public void testIndexBuilder() {
+        ObservableSet<?, Factory> factories = new ObservableSet<>();
+        for (int i = 0; i < 5000; i++) {
+            FactoryType type = FactoryType.values()[i % FactoryType.values().length];
+            factories.add(new Factory(type, new Vec2i(i, 0), new Vec2i(0, i)));
+        }
+
+        IndexBuilder<Factory> builder = factories.indexBuilder();
+        Map<Vec2i, Factory> startIndex = builder.addIndex(Factory::getStart);
+        Map<FactoryType, Set<Factory>> typeIndex = builder.addMultiIndex(Factory::getFactoryType);
+        assertTrue(startIndex.isEmpty());
+        builder.build();
+        assertThrows(IllegalStateException.class, builder::build);
+        assertEquals(factories.createIndex(Factory::getStart), startIndex);
+        assertEquals(factories.createMultiIndex(Factory::getFactoryType), typeIndex);
+
+        Factory factory = startIndex.get(new Vec2i(42, 0));
+        factory.getStart().set(new Vec2i(-1, -1));
+        assertEquals(factory, startIndex.get(new Vec2i(-1, -1)));
+        factories.remove(factory);
+        assertEquals(4999, startIndex.size());
+        assertFalse(typeIndex.get(factory.getFactoryType().get()).contains(factory));
+
+        ObservableSet<?, Factory> duplicated = new ObservableSet<>();
+        Factory duplicated0 = new Factory(FactoryType.FOOD, new Vec2i(0, 0), new Vec2i(0, 0));
+        Factory duplicated1 = new Factory(FactoryType.FOOD, new Vec2i(0, 0), new Vec2i(0, 0));
+        duplicated.addAll(List.of(duplicated0, duplicated1));
+        IndexBuilder<Factory> duplicatedBuilder = duplicated.indexBuilder();
+        duplicatedBuilder.addIndex(Factory::getStart);
+        duplicatedBuilder.addMultiIndex(Factory::getFactoryType);
+        assertThrows(IllegalArgumentException.class, duplicatedBuilder::build);
+
+        // the abandoned indexes are detached from the fields
+        duplicated0.getStart().set(new Vec2i(1, 1));
+        duplicated1.getStart().set(new Vec2i(1, 1));
+        duplicated0.getFactoryType().set(FactoryType.ROBOT);
+        assertEquals(new Vec2i(1, 1), duplicated1.getStart().get());
+    }
+
+    @Test
+    public void testMultiIndexGrowAndShrink() {
+        ObservableSet<?, Factory> factories = new ObservableSet<>();
+        Map<FactoryType, Set<Factory>> typeIndex = factories.createMultiIndex(Factory::getFactoryType);
+        List<Factory> foods = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            foods.add(new Factory(FactoryType.FOOD, new Vec2i(i, 0), new Vec2i(0, i)));
+        }
+
+        Set<Factory> view = null;
+        for (int i = 0; i < foods.size(); i++) {
+            factories.add(foods.get(i));
+            if (view == null) view = typeIndex.get(FactoryType.FOOD);
+            assertEquals(Set.copyOf(foods.subList(0, i + 1)), view);
+            assertTrue(view.contains(foods.get(i)));
+        }
+
+        for (int i = 0; i < foods.size() - 1; i++) {
+            factories.remove(foods.get(i));
+            assertEquals(Set.copyOf(foods.subList(i + 1, foods.size())), view);
+            assertFalse(view.contains(foods.get(i)));
+        }
+
+        factories.remove(foods.get(foods.size() - 1));
+        assertFalse(typeIndex.containsKey(FactoryType.FOOD));
+
+        // iterating a set which changes fails fast, also when the set grows out of its array
+        factories.addAll(foods.subList(0, 8));
+        Iterator<Factory> iterator = typeIndex.get(FactoryType.FOOD).iterator();
+        iterator.next();
+        factories.add(foods.get(8));
+        assertThrows(ConcurrentModificationException.class, iterator::next);
+
+        iterator = typeIndex.get(FactoryType.FOOD).iterator();
+        iterator.next();
+        foods.get(0).getFactoryType().set(FactoryType.ROBOT);
+        assertThrows(ConcurrentModificationException.class, iterator::next);
+    }
+
+    @Test
+    public void testPersistentSnapshot() {
+        ObservableSet<?, Factory> factories = new ObservableSet<>();
+        Map<Vec2i, Factory> startIndex = factories.createIndex(Factory::getStart);
+        Map<FactoryType, Set<Factory>> typeIndex = factories.createMultiIndex(Factory::getFactoryType);
+        Map<Vec2i, Set<Factory>> endIndex = factories.createSortedIndex(Factory::getEnd, Comparator.comparing(Vec2i::x));
+        Factory factory0 = new Factory(FactoryType.FOOD, new Vec2i(2, 3), new Vec2i(3, 4));
+        Factory factory1 = new Factory(FactoryType.CLOTHES, new Vec2i(4, 5), new Vec2i(3, 2));
+        factories.addAll(List.of(factory0, factory1));
+
+        Snapshot<Factory> snapshot0 = factories.snapshot();
+        Factory factory2 = new Factory(FactoryType.FOOD, new Vec2i(1, 0), new Vec2i(3, 1));
+        factories.add(factory2);
+        factory0.getStart().set(new Vec2i(7, 7));
+        factory1.getFactoryType().set(FactoryType.FOOD);
+        Snapshot<Factory> snapshot1 = factories.snapshot();
+        factories.remove(factory0);
+
+        assertEquals(Set.of(factory0, factory1), snapshot0.elements());
+        assertEquals(Map.of(new Vec2i(2, 3), factory0, new Vec2i(4, 5), factory1), snapshot0.get(startIndex));
+        assertEquals(Map.of(FactoryType.FOOD, Set.of(factory0), FactoryType.CLOTHES, Set.of(factory1)), snapshot0.get(typeIndex));
+        assertEquals(Set.of(factory0, factory1, factory2), snapshot1.elements());
+        assertEquals(factory0, snapshot1.get(startIndex).get(new Vec2i(7, 7)));
+        assertEquals(Set.of(factory0, factory1, factory2), snapshot1.get(typeIndex).get(FactoryType.FOOD));
+        assertFalse(snapshot1.get(typeIndex).containsKey(FactoryType.CLOTHES));
+        assertEquals(Map.of(FactoryType.FOOD, Set.of(factory1, factory2)), factories.snapshot().get(typeIndex));
+        assertThrows(IllegalArgumentException.class, () -> snapshot0.get(endIndex));
+
+        // elements with colliding hash codes
+        ObservableSet<?, Vec2i> points = new ObservableSet<>();
+        Set<Vec2i> expected = new HashSet<>();
+        List<Snapshot<Vec2i>> snapshots = new ArrayList<>();
+        List<Set<Vec2i>> states = new ArrayList<>();
+        Random random = new Random(0);
+        for (int i = 0; i < 20000; i++) {
+            Vec2i point = new Vec2i(random.nextInt(64), random.nextInt(64) * 31);
+            if (random.nextBoolean()) {
+                points.add(point);
+                expected.add(point);
+            } else {
+                points.remove(point);
+                expected.remove(point);
+            }
+            if (i % 1000 == 0) {
+                snapshots.add(points.snapshot());
+                states.add(Set.copyOf(expected));
+            }
+        }
+        for (int i = 0; i < snapshots.size(); i++) {
+            assertEquals(states.get(i), snapshots.get(i).elements());
+            assertEquals(states.get(i), new HashSet<>(snapshots.get(i).elements()));
+        }
+    }
+
+    @Test
+    public void testMetrics() {
+        MetricsRecorder recorder = new MetricsRecorder();
+        ObservableSet<?, Nation> nations = new ObservableSet<>();
+        nations.setMetricsSink(recorder);
+        Map<Vec2i, Nation> headquarterIndex = nations.createIndex(Nation::getHeadquarter);
+        ObservableSet<?, UUID> leaders = nations.createFlatMap(Nation::getLeaders);
+        assertSame(recorder, leaders.getMetricsSink());
+
+        Nation nation0 = new Nation(new Vec2i(1, 2));
+        Nation nation1 = new Nation(new Vec2i(3, 4));
+        nations.addAll(List.of(nation0, nation1));
+        nation0.getLeaders().add(UUID.randomUUID());
+        assertEquals(nation0, headquarterIndex.get(new Vec2i(1, 2)));
+        assertNull(headquarterIndex.get(new Vec2i(5, 6)));
+
+        assertEquals(1, recorder.getHits(headquarterIndex));
+        assertEquals(1, recorder.getMisses(headquarterIndex));
+        assertEquals(2, recorder.getUpdates(headquarterIndex));
+        assertEquals(2, recorder.getSize(headquarterIndex));
+        assertEquals(1, recorder.getMaxCascadeDepth());
+        assertEquals(1, Arrays.stream(recorder.getHistogram(headquarterIndex)).sum());
+
+        assertThrows(IllegalArgumentException.class, () -> nation1.getHeadquarter().set(new Vec2i(1, 2)));
+        assertEquals(1, recorder.getRejections(headquarterIndex));
+
+        nations.setMetricsSink(null);
+        headquarterIndex.get(new Vec2i(1, 2));
+        nations.remove(nation0);
+        assertEquals(1, Arrays.stream(recorder.getHistogram(headquarterIndex)).sum());
+    }
 }